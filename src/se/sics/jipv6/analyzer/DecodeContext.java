@@ -0,0 +1,135 @@
+package se.sics.jipv6.analyzer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+import se.sics.jipv6.pcap.CapturedPacket;
+import se.sics.jipv6.pcap.MappedPCAPReader;
+
+/*
+ * Pool of reusable decoded packets.
+ *
+ * Each decoded packet keeps its MAC packet, IPv6 packet and payload objects
+ * which are reset and reused when the packet is recycled after the
+ * analyzers have seen it. Analyzers that keep a packet past the callback
+ * must call retain() on the packet - retained packets are left to the
+ * analyzer and new packet objects are allocated in their place.
+ *
+ * Records read from a mapped capture file are copied into pooled payload
+ * arrays, one free list per packet length, so that the captured packet
+ * objects and their payloads are reused as well.
+ *
+ * A context is used by one decoding thread but packets may be recycled
+ * from another thread, as when the ParallelIngester hands decoded packets
+ * to the analyzers.
+ */
+class DecodeContext {
+
+    public static final int DEFAULT_CAPACITY = 16;
+
+    private final DecodedPacket[] free;
+    private int freeCount;
+    /* free payload arrays indexed by length */
+    private final ArrayList<ArrayDeque<byte[]>> freeBuffers = new ArrayList<ArrayDeque<byte[]>>();
+
+    private long allocatedPackets;
+    private long reusedPackets;
+    private long retainedPackets;
+
+    DecodeContext() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /* capacity is the max number of recycled packets kept for reuse */
+    DecodeContext(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("illegal capacity: " + capacity);
+        }
+        this.free = new DecodedPacket[capacity];
+    }
+
+    DecodedPacket obtain(CapturedPacket captured) {
+        DecodedPacket decoded = obtainPacket();
+        decoded.reset(captured);
+        return decoded;
+    }
+
+    /* Copies the current record of the reader into a pooled captured packet */
+    DecodedPacket obtain(MappedPCAPReader reader) {
+        DecodedPacket decoded = obtainPacket();
+        byte[] data = obtainBuffer(reader.getPacketLength());
+        reader.copyPacketData(data, 0);
+        decoded.reset(decoded.newCapture(reader.getTimestamp(), reader.getCapturedSize(), data));
+        return decoded;
+    }
+
+    private synchronized DecodedPacket obtainPacket() {
+        if (freeCount > 0) {
+            DecodedPacket decoded = free[--freeCount];
+            free[freeCount] = null;
+            reusedPackets++;
+            return decoded;
+        }
+        allocatedPackets++;
+        return new DecodedPacket(this);
+    }
+
+    private synchronized byte[] obtainBuffer(int length) {
+        if (length < freeBuffers.size()) {
+            byte[] data = freeBuffers.get(length).poll();
+            if (data != null) {
+                return data;
+            }
+        }
+        return new byte[length];
+    }
+
+    /* called with the lock held */
+    private void recycleBuffer(byte[] data) {
+        while (freeBuffers.size() <= data.length) {
+            freeBuffers.add(new ArrayDeque<byte[]>());
+        }
+        ArrayDeque<byte[]> buffers = freeBuffers.get(data.length);
+        if (buffers.size() < free.length) {
+            buffers.push(data);
+        }
+    }
+
+    void recycle(DecodedPacket decoded) {
+        boolean retained = decoded.isRetained();
+        /* The payload of a pooled captured packet is reused with the packet */
+        byte[] buffer = null;
+        if (retained) {
+            decoded.release();
+        } else if (decoded.isPooledCapture()) {
+            buffer = decoded.captured.getPayload();
+        } else if (decoded.captured != null) {
+            /* The pooled IPv6 packet is reused - the captured packet must not refer to it */
+            decoded.captured.setAttribute(JShark.IP_PACKET, null);
+        }
+        decoded.reset(null);
+        synchronized (this) {
+            if (retained) {
+                retainedPackets++;
+            }
+            if (buffer != null) {
+                recycleBuffer(buffer);
+            }
+            if (freeCount < free.length) {
+                free[freeCount++] = decoded;
+            }
+        }
+    }
+
+    synchronized long getAllocatedPackets() {
+        return allocatedPackets;
+    }
+
+    synchronized long getReusedPackets() {
+        return reusedPackets;
+    }
+
+    synchronized long getRetainedPackets() {
+        return retainedPackets;
+    }
+}
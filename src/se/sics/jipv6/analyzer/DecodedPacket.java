@@ -0,0 +1,101 @@
+package se.sics.jipv6.analyzer;
+
+import se.sics.jipv6.core.IPv6Packet;
+import se.sics.jipv6.core.MacPacket;
+import se.sics.jipv6.pcap.CapturedPacket;
+import se.sics.jipv6.pcap.PCAPPacket;
+
+/* The result of decoding a captured packet before it is handed to the analyzers */
+class DecodedPacket {
+
+    /* the context this packet is recycled to */
+    final DecodeContext context;
+
+    CapturedPacket captured;
+    MacPacket packet;
+    IPv6Packet ipPacket;
+    /* fragment that must be reassembled in packet order */
+    boolean reassemble;
+    /* decoding error to report when the packet is analyzed */
+    RuntimeException error;
+
+    /* packet objects reused when the decoded packet is recycled */
+    private MacPacket pooledPacket;
+    private IPv6Packet pooledIPPacket;
+    private PCAPPacket pooledCapture;
+
+    DecodedPacket(DecodeContext context) {
+        this.context = context;
+    }
+
+    void reset(CapturedPacket captured) {
+        this.captured = captured;
+        this.packet = null;
+        this.ipPacket = null;
+        this.reassemble = false;
+        this.error = null;
+    }
+
+    /* Returns a captured packet for a record read from file - reused between packets */
+    PCAPPacket newCapture(long timestamp, int capturedSize, byte[] data) {
+        if (pooledCapture == null) {
+            pooledCapture = new PCAPPacket(timestamp, capturedSize, data);
+        } else {
+            pooledCapture.reset(timestamp, capturedSize, data);
+        }
+        return pooledCapture;
+    }
+
+    boolean isPooledCapture() {
+        return captured != null && captured == pooledCapture;
+    }
+
+    /* Returns a MAC packet for the captured packet - reused between packets */
+    MacPacket newMacPacket() {
+        if (pooledPacket == null) {
+            pooledPacket = new MacPacket(captured);
+        } else {
+            pooledPacket.reset(captured);
+        }
+        return pooledPacket;
+    }
+
+    /* Returns an IPv6 packet for the MAC packet - reused between packets */
+    IPv6Packet newIPPacket(MacPacket packet) {
+        if (pooledIPPacket == null) {
+            pooledIPPacket = new IPv6Packet(packet.getTimeMillis());
+        }
+        pooledIPPacket.reset(packet);
+        return pooledIPPacket;
+    }
+
+    /* Keeps the packet objects from being reused */
+    void retain() {
+        if (pooledPacket != null) {
+            pooledPacket.retain();
+        }
+        if (pooledIPPacket != null) {
+            pooledIPPacket.retain();
+        }
+        if (pooledCapture != null) {
+            pooledCapture.retain();
+        }
+    }
+
+    boolean isRetained() {
+        return (pooledPacket != null && pooledPacket.isRetained())
+                || (pooledIPPacket != null && pooledIPPacket.isRetained())
+                || (pooledCapture != null && pooledCapture.isRetained());
+    }
+
+    /* Forgets the packet objects - used when the objects have been retained */
+    void release() {
+        pooledPacket = null;
+        pooledIPPacket = null;
+        pooledCapture = null;
+    }
+
+    void recycle() {
+        context.recycle(this);
+    }
+}
@@ -4,6 +4,7 @@ import java.io.PrintStream;
 import java.util.Formatter;
 
 import se.sics.jipv6.analyzer.NodeTable.NodeStats;
+import se.sics.jipv6.core.Checksum;
 import se.sics.jipv6.core.ICMP6Packet;
 import se.sics.jipv6.core.IPPayload;
 import se.sics.jipv6.core.IPv6ExtensionHeader;
@@ -11,6 +12,7 @@ import se.sics.jipv6.core.IPv6Packet;
 import se.sics.jipv6.core.MacPacket;
 import se.sics.jipv6.core.UDPPacket;
 import se.sics.jipv6.pcap.CapturedPacket;
+import se.sics.jipv6.util.TextFormat;
 
 public class ExampleAnalyzer implements PacketAnalyzer {
 
@@ -53,9 +55,9 @@ public class ExampleAnalyzer implements PacketAnalyzer {
         if (elapsed < 1) {
             elapsed = 1;
         }
-        out.format("Example Analyzer: Tot:%d NS:%d Sleep:%d Data:%d\n",
+        out.format("Example Analyzer: Tot:%d NS:%d Sleep:%d Data:%d BadChecksum:%d\n",
                 totPacket,
-                nsPacket, sleepPacket, dataPacket);
+                nsPacket, sleepPacket, dataPacket, Checksum.getErrorCount());
     }
 
     /* MAC packet received */
@@ -179,13 +181,15 @@ public class ExampleAnalyzer implements PacketAnalyzer {
                 }
                 /* Print the payload of all packets as a String*/
                 if (printPayload) {
-                    out.format(" ");
-                    for (int i = 0; i < data.length; i++) {
-                        if(data[i] < ' ') {
-                            out.format(".");
-                        } else {
-                            out.format("%c", (char) data[i]);
+                    StringBuilder sb = TextFormat.getBuilder();
+                    try {
+                        sb.append(' ');
+                        for (int i = 0; i < data.length; i++) {
+                            sb.append(data[i] < ' ' ? '.' : (char) data[i]);
                         }
+                        TextFormat.write(out, sb);
+                    } finally {
+                        TextFormat.release(sb);
                     }
                 }
             }
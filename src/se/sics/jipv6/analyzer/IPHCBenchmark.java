@@ -0,0 +1,142 @@
+package se.sics.jipv6.analyzer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import se.sics.jipv6.core.IPHCPacketer;
+import se.sics.jipv6.core.IPv6Packet;
+import se.sics.jipv6.core.MacPacket;
+import se.sics.jipv6.mac.IEEE802154Handler;
+import se.sics.jipv6.pcap.CaptureReader;
+import se.sics.jipv6.pcap.PCAPPacket;
+
+/*
+ * Compares the table driven IPHC header decoder with the field by field
+ * decoder on the IPHC frames (including first fragments) of a capture.
+ * The headers are first decoded with both to check that they agree and then
+ * timed over a number of rounds after a warm up.
+ *
+ * Usage: IPHCBenchmark <capture file> [rounds]
+ */
+public class IPHCBenchmark {
+
+    private static final int WARMUP_ROUNDS = 20;
+
+    private final ArrayList<MacPacket> frames = new ArrayList<MacPacket>();
+    private final IPHCPacketer packeter = new IPHCPacketer();
+    private final IPv6Packet ipPacket = new IPv6Packet(0);
+
+    public IPHCBenchmark() {
+        /* same context as the sniffer */
+        packeter.setContext(0, 0xaaaa0000, 0, 0, 0);
+    }
+
+    public void load(String filename) throws IOException {
+        CaptureReader reader = CaptureReader.open(filename);
+        reader.setStripEthernetHeaders(true);
+        reader.setStripCRC(true);
+        IEEE802154Handler i154Handler = new IEEE802154Handler();
+        try {
+            for (PCAPPacket captured = reader.readPacket(); captured != null; captured = reader.readPacket()) {
+                MacPacket packet = new MacPacket(captured);
+                try {
+                    i154Handler.packetReceived(packet);
+                } catch (RuntimeException e) {
+                    continue;
+                }
+                if (packet.getPayloadLength() < 2
+                        || packet.getAttributeAsInt(IEEE802154Handler.PACKET_TYPE_KEY) != IEEE802154Handler.DATAFRAME) {
+                    continue;
+                }
+                if ((packet.getData(0) & 0xf8) == IPHCPacketer.SICSLOWPAN_DISPATCH_FRAG1) {
+                    packet.incPos(4);
+                }
+                if (packet.getPayloadLength() >= 2
+                        && (packet.getData(0) & 0xe0) == IPHCPacketer.SICSLOWPAN_DISPATCH_IPHC) {
+                    frames.add(packet);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    public int getFrameCount() {
+        return frames.size();
+    }
+
+    /* Returns the number of frames the two decoders do not agree on */
+    public int verify() {
+        IPv6Packet reference = new IPv6Packet(0);
+        int mismatches = 0;
+        for (MacPacket frame : frames) {
+            String expected = decode(reference, frame, false);
+            String actual = decode(ipPacket, frame, true);
+            if (!expected.equals(actual)) {
+                System.out.println("Mismatch: " + expected + " <> " + actual);
+                mismatches++;
+            }
+        }
+        return mismatches;
+    }
+
+    private String decode(IPv6Packet packet, MacPacket frame, boolean table) {
+        try {
+            packet.reset(frame);
+            int len = table ? packeter.decompressHeader(packet) : packeter.decompressHeaderSequential(packet);
+            return len + " " + packet.getTrafficClass() + " " + packet.getFlowLabel() + " "
+                    + packet.getNextHeader() + " " + packet.getHopLimit() + " "
+                    + Arrays.toString(packet.getSourceAddress()) + " "
+                    + Arrays.toString(packet.getDestinationAddress());
+        } catch (RuntimeException e) {
+            return e.getClass().getName();
+        }
+    }
+
+    /* Returns the decoding time in nanoseconds per frame */
+    public double run(int rounds, boolean table) {
+        long start = System.nanoTime();
+        long sum = 0;
+        for (int i = 0; i < rounds; i++) {
+            for (MacPacket frame : frames) {
+                ipPacket.reset(frame);
+                try {
+                    sum += table ? packeter.decompressHeader(ipPacket)
+                            : packeter.decompressHeaderSequential(ipPacket);
+                } catch (RuntimeException e) {
+                    /* broken frames take the same path in both decoders */
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        if (sum == 42) {
+            /* keeps the result alive */
+            System.out.print("");
+        }
+        return (double) elapsed / ((long) rounds * Math.max(1, frames.size()));
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: IPHCBenchmark <capture file> [rounds]");
+            System.exit(1);
+        }
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        IPHCBenchmark benchmark = new IPHCBenchmark();
+        benchmark.load(args[0]);
+        System.out.println("IPHC frames: " + benchmark.getFrameCount());
+        if (benchmark.getFrameCount() == 0) {
+            return;
+        }
+        int mismatches = benchmark.verify();
+        System.out.println("Mismatches: " + mismatches);
+
+        benchmark.run(WARMUP_ROUNDS, false);
+        benchmark.run(WARMUP_ROUNDS, true);
+        double sequential = benchmark.run(rounds, false);
+        double table = benchmark.run(rounds, true);
+        System.out.printf("Sequential: %.1f ns/frame\n", sequential);
+        System.out.printf("Table:      %.1f ns/frame (%.2fx)\n", table, sequential / table);
+    }
+}
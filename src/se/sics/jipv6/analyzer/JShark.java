@@ -43,17 +43,28 @@ import java.net.MalformedURLException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Formatter;
+import java.util.concurrent.atomic.AtomicLong;
 
 import se.sics.jipv6.core.IPHCPacketer;
+import se.sics.jipv6.core.IPv6Address;
 import se.sics.jipv6.core.HopByHopOption;
 import se.sics.jipv6.core.ICMP6Packet;
+import se.sics.jipv6.core.IPPayloadDecoder;
 import se.sics.jipv6.core.IPv6ExtensionHeader;
 import se.sics.jipv6.core.IPv6Packet;
+import se.sics.jipv6.core.LoWPANFragmenter;
 import se.sics.jipv6.core.MacPacket;
+import se.sics.jipv6.core.RoutingHeader;
 import se.sics.jipv6.core.UDPPacket;
 import se.sics.jipv6.mac.IEEE802154Handler;
+import se.sics.jipv6.mac.KeyTable;
+import se.sics.jipv6.mac.LoWPANHandler;
+import se.sics.jipv6.pcap.AsyncCaptureWriter;
+import se.sics.jipv6.pcap.AttributeKey;
+import se.sics.jipv6.pcap.CaptureFilter;
 import se.sics.jipv6.pcap.CapturedPacket;
-import se.sics.jipv6.pcap.PCAPWriter;
+import se.sics.jipv6.pcap.CaptureWriter;
+import se.sics.jipv6.pcap.MappedPCAPReader;
 import se.sics.jipv6.util.PacketStore;
 import se.sics.jipv6.util.SerialRadioConnection;
 
@@ -62,6 +73,11 @@ public class JShark {
 
     public static final String KEY = "jshark";
 
+    /* Packet attributes set by the sniffer and its analyzers */
+    public static final AttributeKey IP_TYPE = AttributeKey.objectKey("ip.type");
+    public static final AttributeKey IP_PACKET = AttributeKey.objectKey("ip.packet");
+    public static final AttributeKey COLOR = AttributeKey.objectKey("color");
+
     public static JShark defaultJShark;
     
     ArrayList<PacketAnalyzer> analyzers = new ArrayList<PacketAnalyzer>();
@@ -71,10 +87,16 @@ public class JShark {
     Formatter out;
     
     private boolean storePackets = false;
+    private boolean lazyDecoding = false;
+    private final IPPayloadDecoder payloadDecoder = this::decodeIPPayload;
     private PacketStore packetStore = new PacketStore();
 
     NodeTable nodeTable = new NodeTable();
-    private PCAPWriter pcapOutput;
+    private CaptureWriter pcapOutput;
+    /* set from the CLI while packets are handled */
+    private volatile CaptureFilter filter;
+    private final AtomicLong filteredPackets = new AtomicLong();
+    private final DecodeContext decodeContext = new DecodeContext();
 
     public JShark(PacketAnalyzer a, Formatter out) {
         analyzers.add(new MACAnalyzer());
@@ -137,6 +159,52 @@ public class JShark {
         return storePackets;
     }
 
+    /*
+     * With lazy decoding only the IPv6 header is decoded up front and the
+     * extension headers and upper layer header are decoded when an analyzer
+     * first calls getIPPayload. Decode errors are then thrown from there.
+     */
+    public void setLazyDecoding(boolean b) {
+        lazyDecoding = b;
+    }
+
+    public boolean isLazyDecoding() {
+        return lazyDecoding;
+    }
+
+    public CaptureFilter getFilter() {
+        return filter;
+    }
+
+    /* Packets not matching the filter are dropped before decoding. Null to handle all packets. */
+    public void setFilter(CaptureFilter filter) {
+        this.filter = filter;
+    }
+
+    /* number of packets dropped by the filter */
+    public long getFilteredPackets() {
+        return filteredPackets.get();
+    }
+
+    /* packets dropped by a filter before being handed over to packetDecoded() */
+    void addFilteredPackets(long count) {
+        filteredPackets.addAndGet(count);
+    }
+
+    public KeyTable getKeyTable() {
+        return i154Handler.getKeyTable();
+    }
+
+    /* Keys for decrypting secured 802.15.4 frames - null to leave them encrypted */
+    public void setKeyTable(KeyTable keyTable) {
+        i154Handler.setKeyTable(keyTable);
+    }
+
+    /* The reassembly of fragments for the packets decoded in order */
+    public LoWPANFragmenter getFragmenter() {
+        return iphcPacketer.getFragmenter();
+    }
+
     public PacketStore getPacketStore() {
         return packetStore;
     }
@@ -146,19 +214,219 @@ public class JShark {
     }
 
     public void packetData(CapturedPacket captured) {
-        MacPacket packet = new MacPacket(captured);
+        CaptureFilter filter = this.filter;
+        if (filter != null && !filter.matches(captured)) {
+            filteredPackets.incrementAndGet();
+            return;
+        }
+        packetDecoded(decodePacket(captured, decodeContext, i154Handler, iphcPacketer, true));
+    }
 
-        if (storePackets) {
-            packetStore.storePacket(captured);
+    /*
+     * Handles the current packet of the reader. The filter is matched on the
+     * mapped packet data and the captured packet is reused for later packets
+     * unless it is stored or retained.
+     */
+    public void packetData(MappedPCAPReader reader) {
+        CaptureFilter filter = this.filter;
+        if (filter != null && !filter.matches(reader.getPacketData())) {
+            filteredPackets.incrementAndGet();
+            return;
         }
+        packetDecoded(decodePacket(decodeContext.obtain(reader), i154Handler, iphcPacketer, true));
+    }
 
-        if (pcapOutput != null) {
-            try {
-                pcapOutput.writePacket(captured);
-            } catch (IOException e) {
-                System.err.println("Failed to write to PCAP file");
-                e.printStackTrace();
+    /*
+     * Hand over a decoded packet to the analyzers - packets must be handed
+     * over in time order. The packet is recycled when the analyzers are done.
+     */
+    void packetDecoded(DecodedPacket decoded) {
+        try {
+            analyzePacket(decoded);
+        } catch (RuntimeException e) {
+            /* The caller may report the packet data with the error */
+            decoded.captured.retain();
+            throw e;
+        } finally {
+            /* Written after analysis to include any annotations made by the analyzers */
+            if (pcapOutput != null) {
+                try {
+                    pcapOutput.writePacket(decoded.captured);
+                } catch (IOException e) {
+                    System.err.println("Failed to write to PCAP file");
+                    e.printStackTrace();
+                }
             }
+            if (storePackets) {
+                /* The stored packet refers to the decoded packets by its attributes */
+                decoded.retain();
+            }
+            decoded.recycle();
+        }
+    }
+
+    /* Creates a IPHC packeter with the contexts used by this sniffer */
+    IPHCPacketer createIPHCPacketer() {
+        IPHCPacketer packeter = new IPHCPacketer();
+        packeter.setContext(0, 0xaaaa0000, 0, 0, 0);
+        return packeter;
+    }
+
+    /*
+     * Decodes the MAC and IP headers of a packet. This does not touch the
+     * node table or the analyzers and can be run in parallel as long as each
+     * thread uses its own context, handler and packeter. If reassemble is
+     * false, fragments are left for analyzePacket to reassemble in order.
+     */
+    DecodedPacket decodePacket(CapturedPacket captured, DecodeContext context,
+            IEEE802154Handler i154Handler, IPHCPacketer iphcPacketer, boolean reassemble) {
+        return decodePacket(context.obtain(captured), i154Handler, iphcPacketer, reassemble);
+    }
+
+    DecodedPacket decodePacket(DecodedPacket decoded, IEEE802154Handler i154Handler,
+            IPHCPacketer iphcPacketer, boolean reassemble) {
+        MacPacket packet = decoded.newMacPacket();
+        try {
+            i154Handler.packetReceived(packet);
+        } catch (RuntimeException e) {
+            /* Reported after the raw analyzers have seen the packet */
+            decoded.error = e;
+            return decoded;
+        }
+        //    packet.printPacket();
+        //    i154Handler.printPacket(System.out, packet);
+        decoded.packet = packet;
+
+        if (packet.getPayloadLength() > 1 &&
+                packet.getAttributeAsInt(IEEE802154Handler.PACKET_TYPE_KEY) == IEEE802154Handler.DATAFRAME
+                && !isEncrypted(packet)) {
+            if (!reassemble && isFragment(packet)) {
+                decoded.reassemble = true;
+            } else {
+                try {
+                    decoded.ipPacket = decodeIPPacket(decoded, packet, iphcPacketer);
+                } catch (RuntimeException e) {
+                    /* Reported after the MAC analyzers have seen the packet */
+                    decoded.error = e;
+                }
+            }
+        }
+        return decoded;
+    }
+
+    /* secured frames are only decoded when decrypted */
+    private static boolean isEncrypted(MacPacket packet) {
+        return packet.getAttributeAsInt(IEEE802154Handler.SECURITY_KEY) == 1
+                && packet.getAttributeAsInt(IEEE802154Handler.DECRYPTED_KEY) != 1;
+    }
+
+    private static boolean isFragment(MacPacket packet) {
+        int dispatch = packet.getData(0) & 0xf8;
+        return dispatch == IPHCPacketer.SICSLOWPAN_DISPATCH_FRAG1
+                || dispatch == IPHCPacketer.SICSLOWPAN_DISPATCH_FRAGN;
+    }
+
+    /* Returns the IPv6 packet or null if not a complete IPv6 packet */
+    private IPv6Packet decodeIPPacket(DecodedPacket decoded, MacPacket packet, IPHCPacketer iphcPacketer) {
+        IPv6Packet ipPacket = decoded.newIPPacket(packet);
+        int dispatch = packet.getData(0);
+        packet.setAttribute(LoWPANHandler.DISPATCH_KEY, dispatch);
+        if (!iphcPacketer.parsePacketData(ipPacket)) {
+            return null;
+        }
+        packet.setAttribute(IP_PACKET, ipPacket);
+        if (!lazyDecoding) {
+            decodeIPPayload(ipPacket);
+        } else if (ipPacket.getIPPayload() == null) {
+            ipPacket.setIPPayloadDecoder(payloadDecoder);
+        }
+        return ipPacket;
+    }
+
+    /* Decodes the extension headers and the upper layer header */
+    private void decodeIPPayload(IPv6Packet ipPacket) {
+        boolean more = true;
+        byte nextHeader = ipPacket.getNextHeader();
+        IPv6ExtensionHeader extHeader = null;
+        while(more) {
+            //                System.out.printf("Next Header: %d pos:%d\n", nextHeader, ipPacket.getPos());
+            //                ipPacket.printPayload();
+            switch(nextHeader) {
+            case HopByHopOption.DISPATCH:
+                HopByHopOption hbh = ipPacket.newHopByHopOption();
+                hbh.parsePacketData(ipPacket);
+                if (extHeader != null) {
+                    extHeader.setNext(hbh);
+                } else {
+                    ipPacket.setIPPayload(hbh);
+                }
+                extHeader = hbh;
+                nextHeader = hbh.getNextHeader();
+                break;
+            case RoutingHeader.DISPATCH:
+                RoutingHeader rh = ipPacket.newRoutingHeader();
+                rh.parsePacketData(ipPacket);
+                if (extHeader != null) {
+                    extHeader.setNext(rh);
+                } else {
+                    ipPacket.setIPPayload(rh);
+                }
+                extHeader = rh;
+                nextHeader = rh.getNextHeader();
+                break;
+            case UDPPacket.DISPATCH:
+                if (ipPacket.getIPPayload() != null && ipPacket.getIPPayload() instanceof UDPPacket) {
+                    /* All done ? */
+                    //                        System.out.println("All done - UDP already part of payload?");
+                    more = false;
+                } else {
+                    UDPPacket udpPacket = ipPacket.newUDPPacket();
+                    try {
+                        udpPacket.parsePacketData(ipPacket);
+                        ipPacket.setAttribute(IP_TYPE, "UDP");
+                    } catch (RuntimeException e) {
+                        synchronized (out) {
+                            System.out.println("Failed to parse UDP packet:");
+                            ipPacket.printPacket();
+                            ipPacket.printPacket(out);
+                        }
+                        throw e;
+                    }
+                    if (extHeader != null) {
+                        extHeader.setNext(udpPacket);
+                    } else {
+                        ipPacket.setIPPayload(udpPacket);
+                    }
+                    //                        System.out.println("UDP Packet handled...");
+                    //udpPacket.printPacket(System.out);
+                    more = false;
+                }
+                break;
+            case ICMP6Packet.DISPATCH:
+                ICMP6Packet icmp6Packet = ICMP6Packet.parseICMP6Packet(ipPacket);
+                ipPacket.setAttribute(IP_TYPE, "ICMPv6");
+                if (extHeader != null) {
+                    extHeader.setNext(icmp6Packet);
+                } else {
+                    ipPacket.setIPPayload(icmp6Packet);
+                }
+                //                    System.out.println("ICMP6 packet handled...");
+                //icmp6Packet.printPacket(System.out);
+                more = false;
+                break;
+            default:
+                more = false;
+                break;
+            }
+        }
+    }
+
+    private void analyzePacket(DecodedPacket decoded) {
+        CapturedPacket captured = decoded.captured;
+        MacPacket packet = decoded.packet;
+
+        if (storePackets) {
+            packetStore.storePacket(captured);
         }
 
         /* Allow all analyzers run on the raw packet */
@@ -167,11 +435,10 @@ public class JShark {
                 break;
             }
         }
-
-
-        i154Handler.packetReceived(packet);
-        //    packet.printPacket();
-        //    i154Handler.printPacket(System.out, packet);
+        if (packet == null) {
+            /* Failed to decode the MAC header */
+            throw decoded.error;
+        }
 
         byte[] mac;
         Node sender = null;
@@ -185,7 +452,7 @@ public class JShark {
             receiver = nodeTable.getNodeByMAC(mac);
             /* NOTE: this is packets sent towards... rather than actually received */
             receiver.packetReceived++;
-            receiver.seqNo = packet.getAttributeAsInt(IEEE802154Handler.SEQ_NO);
+            receiver.seqNo = packet.getAttributeAsInt(IEEE802154Handler.SEQ_NO_KEY);
         }
 
         for(PacketAnalyzer analyzer: analyzers) {
@@ -195,102 +462,81 @@ public class JShark {
             }
         }
 
-        if (packet.getPayloadLength() > 1 &&
-                packet.getAttributeAsInt(IEEE802154Handler.PACKET_TYPE) == IEEE802154Handler.DATAFRAME) {
-            IPv6Packet ipPacket = new IPv6Packet(packet);
-            int dispatch = packet.getData(0);
-            packet.setAttribute("6lowpan.dispatch", dispatch);
-            if (iphcPacketer.parsePacketData(ipPacket)) {
-                boolean more = true;
-                byte nextHeader = ipPacket.getNextHeader();
-                IPv6ExtensionHeader extHeader = null;
-                packet.setAttribute("ip.packet", ipPacket);
-                while(more) {
-                    //                System.out.printf("Next Header: %d pos:%d\n", nextHeader, ipPacket.getPos());
-                    //                ipPacket.printPayload();
-                    switch(nextHeader) {
-                    case HopByHopOption.DISPATCH:
-                        HopByHopOption hbh = new HopByHopOption();
-                        hbh.parsePacketData(ipPacket);
-                        ipPacket.setIPPayload(hbh);
-                        extHeader = hbh;
-                        nextHeader = hbh.getNextHeader();
-                        break;
-                    case UDPPacket.DISPATCH:
-                        if (ipPacket.getIPPayload() != null && ipPacket.getIPPayload() instanceof UDPPacket) {
-                            /* All done ? */
-                            //                        System.out.println("All done - UDP already part of payload?");
-                            more = false;
-                        } else {
-                            UDPPacket udpPacket = new UDPPacket();
-                            try {
-                                udpPacket.parsePacketData(ipPacket);
-                                packet.setAttribute("ip.type", "UDP");
-                            } catch (Exception e) {
-                                System.out.println("Failed to parse UDP packet:");
-                                ipPacket.printPacket();
-                                ipPacket.printPacket(out);
-                                throw e;
-                            }
-                            if (extHeader != null) {
-                                extHeader.setNext(udpPacket);
-                            } else {
-                                ipPacket.setIPPayload(udpPacket);
-                            }
-                            //                        System.out.println("UDP Packet handled...");
-                            //udpPacket.printPacket(System.out);
-                            more = false;
-                        }
-                        break;
-                    case ICMP6Packet.DISPATCH:
-                        ICMP6Packet icmp6Packet = ICMP6Packet.parseICMP6Packet(ipPacket);
-                        packet.setAttribute("ip.type", "ICMPv6");
-                        if (extHeader != null) {
-                            extHeader.setNext(icmp6Packet);
-                        } else {
-                            ipPacket.setIPPayload(icmp6Packet);
-                        }
-                        //                    System.out.println("ICMP6 packet handled...");
-                        //icmp6Packet.printPacket(System.out);
-                        more = false;
-                        break;
-                    default:
-                        more = false;
-                        break;
-                    }
-                }
-                /* Add link local destination address */
-                byte[] destination = ipPacket.getDestinationAddress();
-                if (IPv6Packet.isMACBased(destination, ipPacket.getLinkDestination()) ||
-                        IPv6Packet.isLinkLocal(destination)) {
-                    Node node = nodeTable.getNodeByIP(destination);
-                    if (node == null) {
-                        node = nodeTable.getNodeByMAC(ipPacket.getLinkDestination());
-                        nodeTable.addIPAddr(node, destination);
-                    }
+        if (decoded.error != null) {
+            throw decoded.error;
+        }
+        IPv6Packet ipPacket = decoded.ipPacket;
+        if (decoded.reassemble) {
+            /* Fragments are reassembled in packet order */
+            ipPacket = decoded.ipPacket = decodeIPPacket(decoded, packet, iphcPacketer);
+        }
+        if (ipPacket != null) {
+            /* Add link local destination address */
+            byte[] destination = ipPacket.getDestinationAddress();
+            if (IPv6Packet.isMACBased(destination, ipPacket.getLinkDestination()) ||
+                    IPv6Packet.isLinkLocal(destination)) {
+                IPv6Address address = IPv6Address.of(destination);
+                Node node = nodeTable.getNodeByIP(address);
+                if (node == null) {
+                    node = nodeTable.getNodeByMAC(ipPacket.getLinkDestination());
+                    nodeTable.addIPAddr(node, address);
                 }
-                byte[] source = ipPacket.getSourceAddress();
-                if (IPv6Packet.isMACBased(source, ipPacket.getLinkSource()) ||
-                        IPv6Packet.isLinkLocal(source)) {
-                    Node node = nodeTable.getNodeByIP(source);
-                    if (node == null) {
-                        node = nodeTable.getNodeByMAC(ipPacket.getLinkSource());
-                        nodeTable.addIPAddr(node, source);
-                    }
+            }
+            byte[] source = ipPacket.getSourceAddress();
+            if (IPv6Packet.isMACBased(source, ipPacket.getLinkSource()) ||
+                    IPv6Packet.isLinkLocal(source)) {
+                IPv6Address address = IPv6Address.of(source);
+                Node node = nodeTable.getNodeByIP(address);
+                if (node == null) {
+                    node = nodeTable.getNodeByMAC(ipPacket.getLinkSource());
+                    nodeTable.addIPAddr(node, address);
                 }
+            }
 
-                for(PacketAnalyzer analyzer: analyzers) {
-                    if (!analyzer.analyzeIPPacket(ipPacket, sender, receiver)) {
-                        break;
-                    }
+            for(PacketAnalyzer analyzer: analyzers) {
+                if (!analyzer.analyzeIPPacket(ipPacket, sender, receiver)) {
+                    break;
                 }
             }
         }
     }
 
     public void setPCAPOutFile(String outfile) throws IOException {
-        this.pcapOutput = new PCAPWriter(outfile);
-        this.pcapOutput.setAddingCRC(true);
+        setPCAPOutFile(outfile, false);
+    }
+
+    /* Writes captured packets to file - asynchronously from a writer thread if async is true */
+    public void setPCAPOutFile(String outfile, boolean async) throws IOException {
+        setPCAPOutput(CaptureWriter.create(outfile), async);
+    }
+
+    /* Writes captured packets to the specified writer, for example a RotatingCaptureWriter */
+    public void setPCAPOutput(CaptureWriter output, boolean async) throws IOException {
+        output.setAddingCRC(true);
+        if (async) {
+            output = new AsyncCaptureWriter(output);
+        }
+        closePCAPOutput();
+        this.pcapOutput = output;
+    }
+
+    public CaptureWriter getPCAPOutput() {
+        return pcapOutput;
+    }
+
+    /* Writes any pending packets and closes the PCAP output */
+    public void closePCAPOutput() throws IOException {
+        CaptureWriter output = this.pcapOutput;
+        if (output != null) {
+            this.pcapOutput = null;
+            output.close();
+            if (output instanceof AsyncCaptureWriter) {
+                long dropped = ((AsyncCaptureWriter) output).getDroppedPackets();
+                if (dropped > 0) {
+                    System.err.println("# Dropped " + dropped + " packets when writing PCAP file");
+                }
+            }
+        }
     }
 
     static String getJarManifestProperty(String property) {
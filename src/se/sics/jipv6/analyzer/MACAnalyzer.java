@@ -8,6 +8,7 @@ import se.sics.jipv6.core.IPv6Packet;
 import se.sics.jipv6.core.MacPacket;
 import se.sics.jipv6.mac.IEEE802154Handler;
 import se.sics.jipv6.pcap.CapturedPacket;
+import se.sics.jipv6.util.TextFormat;
 
 public class MACAnalyzer implements PacketAnalyzer {
 
@@ -50,7 +51,7 @@ public class MACAnalyzer implements PacketAnalyzer {
     @Override
     public boolean analyzeMacPacket(MacPacket packet, Node sender,
             Node receiver) {
-        int type = packet.getAttributeAsInt("802154.type");
+        int type = packet.getAttributeAsInt(IEEE802154Handler.PACKET_TYPE_KEY);
         bytes += packet.getTotalLength() + 5 + 1 + 2; /* Preamble + len + crc */
         long elapsed = nodeTable.getElapsed(packet);
         // Take the time of first packet as start time
@@ -63,7 +64,13 @@ public class MACAnalyzer implements PacketAnalyzer {
         case IEEE802154Handler.BEACONFRAME:
             printStart(out, packet, elapsed);
             beacon++;
-            out.format("Beacon Frame from:" + sender.macAddresses.get(0) + "\n");
+            StringBuilder sb = TextFormat.getBuilder();
+            try {
+                sb.append("Beacon Frame from:").append(sender.macAddresses.get(0)).append('\n');
+                TextFormat.write(out, sb);
+            } finally {
+                TextFormat.release(sb);
+            }
             if (stats != null) {
                 stats.beacon++;
             }
@@ -71,11 +78,11 @@ public class MACAnalyzer implements PacketAnalyzer {
         case IEEE802154Handler.ACKFRAME:
             ack++;
             if (nodeTable.printAck) {
-                if(packet.getAttributeAsInt(IEEE802154Handler.SEQ_NO) == nodeTable.lastSeqNo) {
+                if(packet.getAttributeAsInt(IEEE802154Handler.SEQ_NO_KEY) == nodeTable.lastSeqNo) {
                     out.format(" ACKED\n");
                     nodeTable.printAck = false;
                 } else {
-                    out.format(" Wrong ack: " + nodeTable.lastSeqNo + " <> " + packet.getAttributeAsInt(IEEE802154Handler.SEQ_NO));
+                    out.format(" Wrong ack: " + nodeTable.lastSeqNo + " <> " + packet.getAttributeAsInt(IEEE802154Handler.SEQ_NO_KEY));
                 }
             }
             break;
@@ -84,7 +91,7 @@ public class MACAnalyzer implements PacketAnalyzer {
             if (stats != null) {
                 stats.data++;
             }
-            nodeTable.lastSeqNo = packet.getAttributeAsInt(IEEE802154Handler.SEQ_NO);
+            nodeTable.lastSeqNo = packet.getAttributeAsInt(IEEE802154Handler.SEQ_NO_KEY);
             break;
         case IEEE802154Handler.CMDFRAME:
             printStart(out, packet, elapsed);
@@ -11,8 +11,12 @@ import se.sics.jipv6.cli.CLIContext;
 import se.sics.jipv6.cli.PacketCommands;
 import se.sics.jipv6.cli.StreamCLIContext;
 import se.sics.jipv6.cli.jline.ConsoleCLIContext;
+import se.sics.jipv6.mac.KeyTable;
+import se.sics.jipv6.pcap.CaptureFilter;
+import se.sics.jipv6.pcap.CaptureReader;
+import se.sics.jipv6.pcap.MappedPCAPReader;
 import se.sics.jipv6.pcap.PCAPPacket;
-import se.sics.jipv6.pcap.PCAPReader;
+import se.sics.jipv6.pcap.RotatingCaptureWriter;
 import se.sics.jipv6.server.SnifferServer;
 import se.sics.jipv6.server.SnifferServerCommands;
 import se.sics.jipv6.util.SerialRadioConnection;
@@ -23,7 +27,7 @@ public class Main {
     private static final boolean DEBUG = false;
 
     private static void usage(int status) {
-        System.out.println("Usage: jipv6 [-s] [-ws] [-f file-to-read] [-o file-to-write] [-a host] [-p host-port] [-z analyzer] [-t timing] [-c channel]");
+        System.out.println("Usage: jipv6 [-s] [-l] [-ws] [-f file-to-read] [-o file-to-write] [-C file-size-MB] [-G file-seconds] [-W file-count] [-a host] [-p host-port] [-z analyzer] [-t timing] [-c channel] [-j threads] [-F filter] [-k key-file]");
         System.exit(status);
     }
 
@@ -36,9 +40,16 @@ public class Main {
         String host = null;
         int port = 9999;
         int channel = -1;
-        int realtime = -1;
+        double speed = 0;
         int delay = -1;
+        int threads = 0;
+        String filter = null;
+        String keyFile = null;
+        long rotateSize = 0;
+        long rotateTime = 0;
+        int rotateFiles = 0;
         boolean storePackets = false;
+        boolean lazyDecoding = false;
         boolean startWS = false;
 
         if (System.getProperty("logback.configurationFile") == null) {
@@ -56,6 +67,18 @@ public class Main {
                     outfile = args[++i];
                     continue;
                 }
+                if (a.equals("-C")) {
+                    rotateSize = Long.parseLong(args[++i]) * 1000000L;
+                    continue;
+                }
+                if (a.equals("-G")) {
+                    rotateTime = Long.parseLong(args[++i]) * 1000L;
+                    continue;
+                }
+                if (a.equals("-W")) {
+                    rotateFiles = Integer.parseInt(args[++i]);
+                    continue;
+                }
                 if (a.equals("-a")) {
                     host = args[++i];
                     continue;
@@ -68,6 +91,18 @@ public class Main {
                     channel = Integer.parseInt(args[++i]);
                     continue;
                 }
+                if (a.equals("-j")) {
+                    threads = Integer.parseInt(args[++i]);
+                    continue;
+                }
+                if (a.equals("-F")) {
+                    filter = args[++i];
+                    continue;
+                }
+                if (a.equals("-k")) {
+                    keyFile = args[++i];
+                    continue;
+                }
                 if (a.equals("-z")) {
                     analyzerName = args[++i];
                     continue;
@@ -75,7 +110,9 @@ public class Main {
                 if (a.equals("-t")) {
                     String timing = args[++i];
                     if (timing.endsWith("%")) {
-                        realtime = Integer.parseInt(timing.substring(0,  timing.length() - 1));
+                        speed = Double.parseDouble(timing.substring(0,  timing.length() - 1)) / 100;
+                    } else if (timing.endsWith("x")) {
+                        speed = Double.parseDouble(timing.substring(0,  timing.length() - 1));
                     } else if(timing.endsWith("ms")) {
                         delay = Integer.parseInt(timing.substring(0,  timing.length() - 2));
                     } else if(timing.endsWith("msec")) {
@@ -92,6 +129,10 @@ public class Main {
                 storePackets = true;
                 continue;
             }
+            if (a.equals("-l")) {
+                lazyDecoding = true;
+                continue;
+            }
             if (a.equals("-ws")) {
                 startWS = true;
                 continue;
@@ -113,6 +154,12 @@ public class Main {
             usage(1);
         }
 
+        if (speed != 0 && (speed < PacketReplayer.MIN_SPEED || speed > PacketReplayer.MAX_SPEED)) {
+            System.err.println("Error: replay speed must be between " + PacketReplayer.MIN_SPEED
+                    + "x and " + PacketReplayer.MAX_SPEED + "x");
+            usage(1);
+        }
+
         if (analyzerName == null) {
             analyzerName = JShark.getJarManifestProperty("DefaultPacketAnalyzer");
         }
@@ -130,6 +177,26 @@ public class Main {
         if (storePackets) {
             sniff.setStorePackets(true);
         }
+        if (lazyDecoding) {
+            sniff.setLazyDecoding(true);
+        }
+        if (filter != null) {
+            try {
+                sniff.setFilter(CaptureFilter.compile(filter));
+            } catch (IllegalArgumentException e) {
+                System.err.println("Error: " + e.getMessage());
+                usage(1);
+            }
+        }
+
+        if (keyFile != null) {
+            try {
+                sniff.setKeyTable(KeyTable.load(keyFile));
+            } catch (IOException e) {
+                System.err.println("Error: failed to read key file: " + e.getMessage());
+                usage(1);
+            }
+        }
 
         CLI cli = new CLI();
         CLIContext cliContext;
@@ -163,31 +230,75 @@ public class Main {
 
         cliContext.start();
 
+        if (infile != null && threads > 0 && CaptureReader.isPCAPNG(infile)) {
+            // The records of a PCAPNG file can not be located without reading all blocks
+            System.err.println("# Parallel reading is only supported for PCAP files - using one thread");
+            threads = 0;
+        }
+        if (infile != null && threads > 0 && delay <= 0 && speed <= 0) {
+            System.err.println("# Reading from pcap file " + infile + " using " + threads + " threads");
+            ParallelIngester ingester = new ParallelIngester(sniff, infile, threads);
+            ingester.setStripEthernetHeaders(true);
+            ingester.setStripCRC(true);
+            int count = ingester.run();
+            System.err.println("# [End of PCAP file] " + count + " packets");
+            for (;;) {
+                try {
+                    Thread.sleep(60000);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
         if (infile != null) {
             System.err.println("# Reading from pcap file " + infile);
-            PCAPReader reader = new PCAPReader(infile);
+            CaptureReader reader = CaptureReader.open(infile);
             reader.setStripEthernetHeaders(true);
             reader.setStripCRC(true);
 
-            if (DEBUG) System.err.println("# PCAP " + reader.getVersionMajor() + "." + reader.getVersionMinor()
-            + " " + reader.getLinkLayerHeaderType());
+            if (DEBUG) System.err.println("# PCAP link type " + reader.getLinkLayerHeaderType());
 
-            for (PCAPPacket packet = reader.readPacket(); packet != null; packet = reader.readPacket()) {
-                byte[] packetData = packet.getPayload();
-                if (DEBUG) System.out.println("PCAP(" + packetData.length + "/" + packet.getCapturedSize() + "): " + Utils.bytesToHexString(packet.getPayload()));
-                try {
-                    sniff.packetData(packet);
-                } catch (Exception e) {
-                    System.err.println("Error: failed to handle packet: " + e.getMessage());
-                    System.err.println("       0x" + Utils.bytesToHexString(packetData));
-                    e.printStackTrace();
-                }
+            if (speed > 0) {
+                // Replay with the original timing
+                PacketReplayer replayer = new PacketReplayer(reader, sniff);
+                replayer.setSpeed(speed);
+                replayer.setReportInterval(10000);
+                replayer.run();
+            } else if (reader instanceof MappedPCAPReader) {
+                // The packets are decoded from the mapped file without copying each record
+                MappedPCAPReader mapped = (MappedPCAPReader) reader;
+                while (mapped.nextPacket()) {
+                    if (DEBUG) System.out.println("PCAP(" + mapped.getPacketLength() + "/" + mapped.getCapturedSize() + ")");
+                    try {
+                        sniff.packetData(mapped);
+                    } catch (Exception e) {
+                        byte[] packetData = new byte[mapped.getPacketLength()];
+                        mapped.copyPacketData(packetData, 0);
+                        System.err.println("Error: failed to handle packet: " + e.getMessage());
+                        System.err.println("       0x" + Utils.bytesToHexString(packetData));
+                        e.printStackTrace();
+                    }
 
-                if (delay > 0) {
-                    Thread.sleep(delay);
+                    if (delay > 0) {
+                        Thread.sleep(delay);
+                    }
                 }
-                if (realtime > 0 && realtime < 100) {
-                    //
+            } else {
+                for (PCAPPacket packet = reader.readPacket(); packet != null; packet = reader.readPacket()) {
+                    byte[] packetData = packet.getPayload();
+                    if (DEBUG) System.out.println("PCAP(" + packetData.length + "/" + packet.getCapturedSize() + "): " + Utils.bytesToHexString(packet.getPayload()));
+                    try {
+                        sniff.packetData(packet);
+                    } catch (Exception e) {
+                        System.err.println("Error: failed to handle packet: " + e.getMessage());
+                        System.err.println("       0x" + Utils.bytesToHexString(packetData));
+                        e.printStackTrace();
+                    }
+
+                    if (delay > 0) {
+                        Thread.sleep(delay);
+                    }
                 }
             }
             reader.close();
@@ -203,8 +314,25 @@ public class Main {
         }
 
         if (outfile != null) {
-            System.err.println("# Exporting to log file " + outfile);
-            sniff.setPCAPOutFile(outfile);
+            if (rotateSize > 0 || rotateTime > 0 || rotateFiles > 0) {
+                System.err.println("# Exporting to rotating log files " + outfile);
+                RotatingCaptureWriter output = new RotatingCaptureWriter(outfile);
+                output.setMaxFileSize(rotateSize);
+                output.setMaxDuration(rotateTime);
+                output.setMaxFiles(rotateFiles);
+                sniff.setPCAPOutput(output, true);
+            } else {
+                System.err.println("# Exporting to log file " + outfile);
+                sniff.setPCAPOutFile(outfile, true);
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    sniff.closePCAPOutput();
+                } catch (IOException e) {
+                    System.err.println("Failed to close PCAP file");
+                    e.printStackTrace();
+                }
+            }));
         }
 
         if (host != null && !"-".equals(host)) {
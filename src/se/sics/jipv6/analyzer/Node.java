@@ -5,11 +5,14 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map.Entry;
 
+import se.sics.jipv6.core.IPv6Address;
+import se.sics.jipv6.core.LinkAddress;
+
 public class Node {
 
     public HashMap<String, Object> properties = new HashMap<String,Object>();
-    public ArrayList<String> ipAddresses = new ArrayList<String>();
-    public ArrayList<String> macAddresses = new ArrayList<String>();
+    public ArrayList<IPv6Address> ipAddresses = new ArrayList<IPv6Address>();
+    public ArrayList<LinkAddress> macAddresses = new ArrayList<LinkAddress>();
 
     /* MAC packet */
     public int packetSent;
@@ -58,11 +61,11 @@ public class Node {
 
     public void print(PrintWriter printWriter) {
         printWriter.print("Node - MAC:");
-        for(String mac : macAddresses) {
+        for(LinkAddress mac : macAddresses) {
             printWriter.print("  " + mac);
         }
         printWriter.print("   IP:");
-        for(String ip : ipAddresses) {
+        for(IPv6Address ip : ipAddresses) {
             printWriter.print("  " + ip);
         }
         printWriter.println();
@@ -2,11 +2,13 @@ package se.sics.jipv6.analyzer;
 import java.io.PrintWriter;
 import java.util.HashMap;
 
-import se.sics.jipv6.core.IPv6Packet;
+import se.sics.jipv6.core.IPv6Address;
+import se.sics.jipv6.core.LinkAddress;
 import se.sics.jipv6.core.MacPacket;
 
 public class NodeTable {
-    private final HashMap<String, Node> nodeTable = new HashMap<String,Node>();
+    private final HashMap<LinkAddress, Node> macTable = new HashMap<LinkAddress,Node>();
+    private final HashMap<IPv6Address, Node> ipTable = new HashMap<IPv6Address,Node>();
 
     private long startTime;
 
@@ -50,49 +52,55 @@ public class NodeTable {
     }
 
     public Node getNodeByMAC(byte[] mac) {
-        String addr = MacPacket.macToString(mac);
-        Node node = nodeTable.get(addr);
+        return getNodeByMAC(LinkAddress.of(mac));
+    }
+
+    public Node getNodeByMAC(LinkAddress addr) {
+        Node node = macTable.get(addr);
         if (node == null) {
             node = new Node();
             node.macAddresses.add(addr);
-            nodeTable.put(addr, node);
+            macTable.put(addr, node);
         }
         return node;
     }
 
     public Node getNodeByIP(byte[] address) {
-        String addr = IPv6Packet.addressToString(address);
-        return nodeTable.get(addr);
+        return getNodeByIP(IPv6Address.of(address));
+    }
+
+    public Node getNodeByIP(IPv6Address address) {
+        return ipTable.get(address);
     }
 
     public void print(PrintWriter printWriter) {
-        for(String key : nodeTable.keySet()) {
-            Node node = nodeTable.get(key);
-            if (key.length() < 24) {
-                /* A MAC address - shorter then IPv6 address... */
-                node.print(printWriter);
-            }
+        for(Node node : macTable.values()) {
+            node.print(printWriter);
         }
     }
 
     public void addIPAddr(Node node, byte[] address) {
+        addIPAddr(node, IPv6Address.of(address));
+    }
+
+    public void addIPAddr(Node node, IPv6Address address) {
         if (getNodeByIP(address) == null) {
-            String addrStr;
-            nodeTable.put(addrStr = IPv6Packet.addressToString(address),node);
-            node.ipAddresses.add(addrStr);
+            ipTable.put(address, node);
+            node.ipAddresses.add(address);
         }
     }
 
 
+    /* number of MAC and IP addresses in the table */
     public int nodeCount() {
-        return nodeTable.size();
+        return macTable.size() + ipTable.size();
     }
 
 
     public Node[] getAllNodes() {
         // TODO Auto-generated method stub
         HashMap<Node, Node> uniqueMap = new HashMap<Node, Node>();
-        Node[] nodes = nodeTable.values().toArray(new Node[0]);
+        Node[] nodes = macTable.values().toArray(new Node[0]);
         System.out.println("Started with: " + nodes.length);
         for (int i = 0; i < nodes.length; i++) {
             Node n = nodes[i];
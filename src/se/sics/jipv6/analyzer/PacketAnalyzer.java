@@ -5,6 +5,7 @@ import java.util.Formatter;
 import se.sics.jipv6.core.IPv6Packet;
 import se.sics.jipv6.core.MacPacket;
 import se.sics.jipv6.pcap.CapturedPacket;
+import se.sics.jipv6.util.TextFormat;
 
 public interface PacketAnalyzer {
 
@@ -20,28 +21,53 @@ public interface PacketAnalyzer {
     public void print();
     
     default public void printFromTo(Formatter out, IPv6Packet packet) {
-        out.format("from ");
-        IPv6Packet.printAddress(out, packet.getSourceAddress());
-        out.format(" to ");
-        IPv6Packet.printAddress(out, packet.getDestinationAddress());
+        StringBuilder sb = TextFormat.getBuilder();
+        try {
+            sb.append("from ");
+            TextFormat.appendIPv6(sb, packet.getSourceAddress());
+            sb.append(" to ");
+            TextFormat.appendIPv6(sb, packet.getDestinationAddress());
+            TextFormat.write(out, sb);
+        } finally {
+            TextFormat.release(sb);
+        }
     }
 
     default public void printStart(Formatter out, MacPacket packet, long elapsed) {
-        out.format("[%d:%02d:%02d.%03d %3d] ", elapsed / (1000 * 3600) , elapsed / (1000 * 60) % 60,
-                (elapsed / 1000) % 60, elapsed % 1000, packet.getTotalLength());
+        StringBuilder sb = TextFormat.getBuilder();
+        try {
+            sb.append('[');
+            TextFormat.appendElapsed(sb, elapsed).append(' ');
+            TextFormat.appendPadded(sb, packet.getTotalLength(), 3).append("] ");
+            TextFormat.write(out, sb);
+        } finally {
+            TextFormat.release(sb);
+        }
     }
 
     default public void printStart(Formatter out, IPv6Packet packet, long elapsed) {
-        String timeStr = String.format("[%d:%02d:%02d.%03d %3d] %3d", elapsed / (1000 * 3600) , elapsed / (1000 * 60) % 60,
-                (elapsed / 1000) % 60, elapsed % 1000, packet.getTotalLength(), packet.getAttribute(CapturedPacket.RSSI));
-        out.format(timeStr);
-        out.format(" ");
-        IPv6Packet.printAddress(out, packet.getSourceAddress());
-        out.format("%c", packet.isSourceMACBased() ? '*' : '-');
-        out.format(" -> ");
-        IPv6Packet.printAddress(out, packet.getDestinationAddress());
-        out.format("%c", packet.isDestinationMACBased() ? '*' : '-');
-        out.format(" ");
+        StringBuilder sb = TextFormat.getBuilder();
+        try {
+            sb.append('[');
+            TextFormat.appendElapsed(sb, elapsed).append(' ');
+            TextFormat.appendPadded(sb, packet.getTotalLength(), 3).append("] ");
+            Object rssi = packet.getAttribute(CapturedPacket.RSSI);
+            if (rssi instanceof Number) {
+                TextFormat.appendPadded(sb, ((Number) rssi).longValue(), 3);
+            } else {
+                sb.append(rssi == null ? "null" : rssi.toString());
+            }
+            sb.append(' ');
+            TextFormat.appendIPv6(sb, packet.getSourceAddress());
+            sb.append(packet.isSourceMACBased() ? '*' : '-');
+            sb.append(" -> ");
+            TextFormat.appendIPv6(sb, packet.getDestinationAddress());
+            sb.append(packet.isDestinationMACBased() ? '*' : '-');
+            sb.append(' ');
+            TextFormat.write(out, sb);
+        } finally {
+            TextFormat.release(sb);
+        }
     }
 
     
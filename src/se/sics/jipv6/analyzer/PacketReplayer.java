@@ -0,0 +1,144 @@
+package se.sics.jipv6.analyzer;
+
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+import se.sics.jipv6.pcap.CaptureReader;
+import se.sics.jipv6.pcap.PCAPPacket;
+import se.sics.jipv6.util.Utils;
+
+/*
+ * Replays a capture to the sniffer with the original packet timing scaled
+ * by a speed factor (0.5 is half speed, 2 is double speed), or as fast as
+ * possible if the speed factor is 0.
+ *
+ * Each packet is scheduled relative to the start of the replay so that
+ * delays do not accumulate. The thread parks until shortly before a packet
+ * is due and then spins for the last part to get sub-millisecond accuracy.
+ * The lag (how late each packet is delivered) is tracked and reported.
+ */
+public class PacketReplayer {
+
+    public static final double MIN_SPEED = 0.1;
+    public static final double MAX_SPEED = 100;
+
+    /* time before the deadline when parking stops and spinning starts */
+    private static final long SPIN_NANOS = 200000;
+    /* packets delivered later than this are counted as late */
+    private static final long LATE_NANOS = 1000000;
+
+    private final CaptureReader reader;
+    private final JShark sniff;
+    private double speed = 1;
+    private long reportInterval = 0;
+
+    private long packetCount;
+    private long latePackets;
+    private long maxLag;
+    private long totalLag;
+
+    public PacketReplayer(CaptureReader reader, JShark sniff) {
+        this.reader = reader;
+        this.sniff = sniff;
+    }
+
+    public double getSpeed() {
+        return speed;
+    }
+
+    /* speed factor between MIN_SPEED and MAX_SPEED, or 0 to replay as fast as possible */
+    public void setSpeed(double speed) {
+        if (speed != 0 && (speed < MIN_SPEED || speed > MAX_SPEED)) {
+            throw new IllegalArgumentException("illegal replay speed: " + speed);
+        }
+        this.speed = speed;
+    }
+
+    public long getReportInterval() {
+        return reportInterval;
+    }
+
+    /* interval in milliseconds between lag reports, 0 to only report at the end */
+    public void setReportInterval(long reportInterval) {
+        this.reportInterval = reportInterval;
+    }
+
+    public long getPacketCount() {
+        return packetCount;
+    }
+
+    public long getLatePackets() {
+        return latePackets;
+    }
+
+    /* max lag in nanoseconds */
+    public long getMaxLag() {
+        return maxLag;
+    }
+
+    /* average lag in nanoseconds */
+    public long getAverageLag() {
+        return packetCount == 0 ? 0 : totalLag / packetCount;
+    }
+
+    /* Replays all remaining packets in the capture and returns the number of packets */
+    public long run() throws IOException {
+        long startNanos = System.nanoTime();
+        long nextReport = startNanos + reportInterval * 1000000L;
+        long firstTimestamp = 0;
+
+        for (PCAPPacket packet = reader.readPacket(); packet != null; packet = reader.readPacket()) {
+            if (speed > 0) {
+                if (packetCount == 0) {
+                    firstTimestamp = packet.getTimestamp();
+                    startNanos = System.nanoTime();
+                }
+                long deadline = startNanos + (long) ((packet.getTimestamp() - firstTimestamp) * 1000 / speed);
+                long lag = waitUntil(deadline);
+                totalLag += lag;
+                if (lag > maxLag) {
+                    maxLag = lag;
+                }
+                if (lag > LATE_NANOS) {
+                    latePackets++;
+                }
+            }
+            try {
+                sniff.packetData(packet);
+            } catch (Exception e) {
+                System.err.println("Error: failed to handle packet: " + e.getMessage());
+                System.err.println("       0x" + Utils.bytesToHexString(packet.getPayload()));
+                e.printStackTrace();
+            }
+            packetCount++;
+
+            long now = System.nanoTime();
+            if (reportInterval > 0 && now - nextReport >= 0) {
+                report();
+                // One report after an idle gap - not one per missed interval
+                nextReport = now + reportInterval * 1000000L;
+            }
+        }
+        report();
+        return packetCount;
+    }
+
+    /* waits until the deadline and returns the lag in nanoseconds */
+    private static long waitUntil(long deadline) {
+        long now = System.nanoTime();
+        while (deadline - now > SPIN_NANOS) {
+            LockSupport.parkNanos(deadline - now - SPIN_NANOS);
+            now = System.nanoTime();
+        }
+        while (deadline - now > 0) {
+            Thread.yield();
+            now = System.nanoTime();
+        }
+        return now - deadline;
+    }
+
+    public void report() {
+        System.err.printf("# Replay: %d packets, %d late, lag avg %.3f ms max %.3f ms%n",
+                packetCount, latePackets, getAverageLag() / 1000000.0, maxLag / 1000000.0);
+    }
+}
@@ -0,0 +1,277 @@
+package se.sics.jipv6.analyzer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import se.sics.jipv6.core.IPHCPacketer;
+import se.sics.jipv6.mac.IEEE802154Handler;
+import se.sics.jipv6.pcap.CaptureFilter;
+import se.sics.jipv6.pcap.CaptureReader;
+import se.sics.jipv6.pcap.CapturedPacket;
+import se.sics.jipv6.pcap.MappedPCAPReader;
+import se.sics.jipv6.util.Utils;
+
+/*
+ * Reads a PCAP file using several threads.
+ *
+ * The capture is first scanned for record offsets and split into chunks of
+ * records. The chunks are decoded (802.15.4 and IPHC) on a fork-join pool
+ * while the decoded packets are handed to the analyzers of the sniffer in
+ * timestamp order on the calling thread. Fragments are reassembled on the
+ * calling thread as reassembly depends on the packet order.
+ */
+public class ParallelIngester {
+
+    public static final int DEFAULT_CHUNK_SIZE = 2048;
+
+    private static class Chunk {
+        /* offset of the first record when the records are consecutive */
+        long startOffset;
+        /* offset of each record when the records are not consecutive */
+        long[] offsets;
+        int count;
+        /* the decoding of the chunk, set when submitted */
+        ForkJoinTask<DecodedPacket[]> task;
+        /* records dropped by the filter, set when decoded */
+        int filtered;
+    }
+
+    private static class Decoder {
+        final MappedPCAPReader reader;
+        final IEEE802154Handler i154Handler = new IEEE802154Handler();
+        final IPHCPacketer iphcPacketer;
+        final CaptureFilter filter;
+        final DecodeContext context;
+
+        Decoder(MappedPCAPReader reader, IPHCPacketer iphcPacketer, CaptureFilter filter,
+                int capacity) {
+            this.reader = reader;
+            this.context = new DecodeContext(capacity);
+            this.iphcPacketer = iphcPacketer;
+            this.filter = filter;
+        }
+    }
+
+    private final JShark sniff;
+    private final String filename;
+    private final int parallelism;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private boolean isStrippingEthernetHeaders = false;
+    private boolean isStrippingCRC = false;
+
+    private final ArrayList<Decoder> decoders = new ArrayList<Decoder>();
+    private ThreadLocal<Decoder> threadDecoder;
+
+    public ParallelIngester(JShark sniff, String filename, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("illegal parallelism: " + parallelism);
+        }
+        this.sniff = sniff;
+        this.filename = filename;
+        this.parallelism = parallelism;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("illegal chunk size: " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    public void setStripEthernetHeaders(boolean stripEthernetHeaders) {
+        this.isStrippingEthernetHeaders = stripEthernetHeaders;
+    }
+
+    public void setStripCRC(boolean stripCRC) {
+        this.isStrippingCRC = stripCRC;
+    }
+
+    private MappedPCAPReader openReader() throws IOException {
+        MappedPCAPReader reader = new MappedPCAPReader(filename);
+        reader.setStripEthernetHeaders(isStrippingEthernetHeaders);
+        reader.setStripCRC(isStrippingCRC);
+        return reader;
+    }
+
+    private Decoder createDecoder() {
+        try {
+            CaptureFilter filter = sniff.getFilter();
+            /* Decoded chunks are recycled after they have been analyzed */
+            Decoder decoder = new Decoder(openReader(), sniff.createIPHCPacketer(),
+                    filter == null ? null : filter.copy(), chunkSize * 2);
+            decoder.i154Handler.setKeyTable(sniff.getKeyTable());
+            synchronized (decoders) {
+                decoders.add(decoder);
+            }
+            return decoder;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /* Scans the record headers and splits the file into chunks in timestamp order */
+    private ArrayList<Chunk> createChunks() throws IOException {
+        ArrayList<Chunk> chunks = new ArrayList<Chunk>();
+        MappedPCAPReader reader = openReader();
+        try {
+            long lastTimestamp = Long.MIN_VALUE;
+            Chunk chunk = null;
+            while (reader.nextPacket()) {
+                long timestamp = reader.getTimestamp();
+                if (timestamp < lastTimestamp) {
+                    // Records are out of order - sort all records
+                    reader.rewind();
+                    return createSortedChunks(reader);
+                }
+                lastTimestamp = timestamp;
+                if (chunk == null) {
+                    chunk = new Chunk();
+                    chunk.startOffset = reader.getRecordOffset();
+                    chunks.add(chunk);
+                }
+                chunk.count++;
+                if (chunk.count == chunkSize) {
+                    chunk = null;
+                }
+            }
+            return chunks;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private ArrayList<Chunk> createSortedChunks(MappedPCAPReader reader) throws IOException {
+        long[] offsets = new long[1024];
+        long[] timestamps = new long[1024];
+        int count = 0;
+        while (reader.nextPacket()) {
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+                timestamps = Arrays.copyOf(timestamps, count * 2);
+            }
+            offsets[count] = reader.getRecordOffset();
+            timestamps[count] = reader.getTimestamp();
+            count++;
+        }
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Utils.sortIndices(order, timestamps);
+
+        ArrayList<Chunk> chunks = new ArrayList<Chunk>();
+        for (int i = 0; i < count; i += chunkSize) {
+            Chunk chunk = new Chunk();
+            chunk.count = Math.min(chunkSize, count - i);
+            chunk.offsets = new long[chunk.count];
+            for (int j = 0; j < chunk.count; j++) {
+                chunk.offsets[j] = offsets[order[i + j]];
+            }
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    private DecodedPacket[] decodeChunk(Chunk chunk) throws IOException {
+        Decoder decoder = threadDecoder.get();
+        MappedPCAPReader reader = decoder.reader;
+        DecodedPacket[] decoded = new DecodedPacket[chunk.count];
+        int filtered = 0;
+        if (chunk.offsets == null) {
+            reader.setPosition(chunk.startOffset);
+        }
+        for (int i = 0; i < chunk.count; i++) {
+            if (chunk.offsets != null) {
+                reader.setPosition(chunk.offsets[i]);
+            }
+            if (!reader.nextPacket()) {
+                throw new IOException("unexpected end of PCAP file");
+            }
+            if (decoder.filter != null && !decoder.filter.matches(reader.getPacketData())) {
+                // Filtered out before decoding
+                filtered++;
+                continue;
+            }
+            decoded[i] = sniff.decodePacket(decoder.context.obtain(reader), decoder.i154Handler,
+                    decoder.iphcPacketer, false);
+        }
+        /* Read by the calling thread after the task has completed */
+        chunk.filtered = filtered;
+        return decoded;
+    }
+
+    /* Reads the whole file and returns the number of packets handled (matching the sniffer filter) */
+    public int run() throws IOException, InterruptedException {
+        if (CaptureReader.isPCAPNG(filename)) {
+            throw new IOException("parallel reading is only supported for PCAP files: " + filename);
+        }
+        ArrayList<Chunk> chunks = createChunks();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        threadDecoder = ThreadLocal.withInitial(this::createDecoder);
+        ArrayDeque<Chunk> pending = new ArrayDeque<Chunk>();
+        int maxPending = parallelism * 2;
+        int next = 0;
+        int count = 0;
+        try {
+            while (next < chunks.size() || !pending.isEmpty()) {
+                // Keep a bounded number of chunks in progress
+                while (next < chunks.size() && pending.size() < maxPending) {
+                    final Chunk chunk = chunks.get(next++);
+                    chunk.task = pool.submit(() -> decodeChunk(chunk));
+                    pending.add(chunk);
+                }
+                Chunk chunk = pending.poll();
+                DecodedPacket[] decoded;
+                try {
+                    decoded = chunk.task.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof UncheckedIOException) {
+                        cause = cause.getCause();
+                    }
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    }
+                    throw new IOException("failed to decode PCAP file", cause);
+                }
+                chunk.task = null;
+                sniff.addFilteredPackets(chunk.filtered);
+                for (DecodedPacket packet : decoded) {
+                    if (packet == null) {
+                        continue;
+                    }
+                    /* The decoded packet is recycled when handled */
+                    CapturedPacket captured = packet.captured;
+                    try {
+                        sniff.packetDecoded(packet);
+                    } catch (Exception e) {
+                        System.err.println("Error: failed to handle packet: " + e.getMessage());
+                        System.err.println("       0x" + Utils.bytesToHexString(captured.getPayload()));
+                        e.printStackTrace();
+                    }
+                    count++;
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+            synchronized (decoders) {
+                for (Decoder decoder : decoders) {
+                    decoder.reader.close();
+                }
+                decoders.clear();
+            }
+        }
+        return count;
+    }
+
+}
@@ -2,11 +2,14 @@ package se.sics.jipv6.analyzer;
 
 import java.util.Formatter;
 
+import se.sics.jipv6.core.HopByHopOption;
 import se.sics.jipv6.core.IPPayload;
+import se.sics.jipv6.core.IPv6Address;
 import se.sics.jipv6.core.IPv6ExtensionHeader;
 import se.sics.jipv6.core.IPv6Packet;
 import se.sics.jipv6.core.MacPacket;
 import se.sics.jipv6.core.RPLPacket;
+import se.sics.jipv6.core.RoutingHeader;
 import se.sics.jipv6.pcap.CapturedPacket;
 
 public class RPLAnalyzer implements PacketAnalyzer {
@@ -21,15 +24,25 @@ public class RPLAnalyzer implements PacketAnalyzer {
         int DAO_ACK;
         int rplRank;
         int topologyNodeID; /* for the topology generator */
-        byte[] parentAddr = null;
+        IPv6Address parentAddr = null;
+        /* last source route towards the node */
+        IPv6Address[] route = null;
 
         public String toString() {
             String parentStr = "-";
             if (parentAddr != null) {
-                parentStr = IPv6Packet.addressToString(parentAddr);
+                parentStr = parentAddr.toString();
             }
-            return "RPL Sent: ucDIO:" + ucDIO + " mcDIO:" + mcDIO + " ucDIS:" + ucDIO + " mcDIS:" + mcDIS +
+            String str = "RPL Sent: ucDIO:" + ucDIO + " mcDIO:" + mcDIO + " ucDIS:" + ucDIO + " mcDIS:" + mcDIS +
                     " DAO:" + DAO + " DAO_ACK:" + DAO_ACK + " Rank:" + (rplRank / 128.0) + " Parent: " + parentStr;
+            if (route != null) {
+                StringBuilder sb = new StringBuilder(str).append(" Route:");
+                for (int i = 0; i < route.length; i++) {
+                    sb.append(i == 0 ? " " : " -> ").append(route[i]);
+                }
+                str = sb.toString();
+            }
+            return str;
         }
     }
 
@@ -37,6 +50,8 @@ public class RPLAnalyzer implements PacketAnalyzer {
     private int bcDISPacket;
     private int ucDISPacket;
     private int daoPacket;
+    private int rpiPacket;
+    private int srhPacket;
 
 
     private NodeTable nodeTable;
@@ -66,17 +81,31 @@ public class RPLAnalyzer implements PacketAnalyzer {
             Node macReceiver) {
         IPPayload payload = packet.getIPPayload();
         Node sourceNode = nodeTable.getNodeByIP(packet.getSourceAddress());
-        RPLStats stats = null;
-        if (sourceNode != null) {
-            stats = (RPLStats) sourceNode.properties.get("rplstats");
-            if (stats == null) {
-                stats = new RPLStats();
-                sourceNode.properties.put("rplstats", stats);
-            }
-        }
+        RPLStats stats = getStats(sourceNode);
 
         long elapsed = nodeTable.getElapsed(packet);
         while (payload instanceof IPv6ExtensionHeader) {
+            if (payload instanceof HopByHopOption) {
+                HopByHopOption hbh = (HopByHopOption) payload;
+                if (hbh.hasRPLOption()) {
+                    rpiPacket++;
+                    /* the rank of the node that sent the frame */
+                    RPLStats senderStats = getStats(macSender);
+                    if (senderStats != null) {
+                        senderStats.rplRank = hbh.getSenderRank();
+                    }
+                }
+            } else if (payload instanceof RoutingHeader) {
+                RoutingHeader rh = (RoutingHeader) payload;
+                IPv6Address[] route = rh.getAddresses();
+                if (rh.getRoutingType() == RoutingHeader.TYPE_RPL_SOURCE_ROUTE && route.length > 0) {
+                    srhPacket++;
+                    RPLStats destStats = getStats(nodeTable.getNodeByIP(route[route.length - 1]));
+                    if (destStats != null) {
+                        destStats.route = route;
+                    }
+                }
+            }
             payload = ((IPv6ExtensionHeader) payload).getNext();
         }
 
@@ -126,7 +155,8 @@ public class RPLAnalyzer implements PacketAnalyzer {
                 rpl.printPacket(out);
                 if (stats != null) {
                     stats.DAO++;
-                    stats.parentAddr = packet.getDestinationAddress();
+                    /* copied as the packet is reused after the callback */
+                    stats.parentAddr = IPv6Address.of(packet.getDestinationAddress());
                 }
                 packet.setAttribute("ip.type", "RPL-DAO");
                 break;
@@ -143,9 +173,22 @@ public class RPLAnalyzer implements PacketAnalyzer {
         return true;
     }
 
+    private static RPLStats getStats(Node node) {
+        if (node == null) {
+            return null;
+        }
+        RPLStats stats = (RPLStats) node.properties.get("rplstats");
+        if (stats == null) {
+            stats = new RPLStats();
+            node.properties.put("rplstats", stats);
+        }
+        return stats;
+    }
+
     @Override
     public void print() {
-        out.format("RPL mcDIS: " + bcDISPacket + " ucDIS: " + ucDISPacket + " DIO: " + dioPacket + " DAO: " + daoPacket + "\n");
+        out.format("RPL mcDIS: " + bcDISPacket + " ucDIS: " + ucDISPacket + " DIO: " + dioPacket + " DAO: " + daoPacket
+                + " RPI: " + rpiPacket + " SRH: " + srhPacket + "\n");
     }
     
     public static String getRPLTopology(NodeTable nodeTable) {
@@ -35,10 +35,20 @@
 
 package se.sics.jipv6.cli;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
 import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.Option;
 
 import se.sics.jipv6.analyzer.JShark;
+import se.sics.jipv6.core.LoWPANFragmenter;
+import se.sics.jipv6.mac.KeyTable;
+import se.sics.jipv6.pcap.CaptureFilter;
 import se.sics.jipv6.pcap.CapturedPacket;
+import se.sics.jipv6.pcap.IndexedPCAPReader;
+import se.sics.jipv6.pcap.PCAPPacket;
 import se.sics.jipv6.util.Utils;
 
 public class PacketCommands {
@@ -87,4 +97,130 @@ public class PacketCommands {
         }
     }
 
+    @CLICommand(name="readpcap", topic="packets", description="read the packets in a time range from a PCAP file")
+    public static class ReadPCAPCommand implements Command {
+
+        @Option(name = "-from", usage = "start time in seconds", metaVar = "SECONDS")
+        private double from = 0;
+
+        @Option(name = "-to", usage = "end time in seconds", metaVar = "SECONDS")
+        private double to = -1;
+
+        @Argument(usage="file", metaVar="FILE", required=true)
+        private String file;
+
+        @Override
+        public int executeCommand(CommandContext context) throws CLIException {
+            JShark js = JShark.getJShark();
+            long fromTime = (long) (from * 1000000);
+            long toTime = to < 0 ? Long.MAX_VALUE : (long) (to * 1000000);
+            try {
+                IndexedPCAPReader reader = new IndexedPCAPReader(file);
+                try {
+                    reader.setStripEthernetHeaders(true);
+                    reader.setStripCRC(true);
+                    List<PCAPPacket> packets = reader.range(fromTime, toTime);
+                    for (PCAPPacket packet : packets) {
+                        js.packetData(packet);
+                    }
+                    context.out.println("Read " + packets.size() + " of " + reader.getPacketCount() + " packets");
+                } finally {
+                    reader.close();
+                }
+            } catch (IOException e) {
+                throw new CLIException("Failed to read PCAP file " + file, e);
+            }
+            return 0;
+        }
+    }
+
+    @CLICommand(name="filter", topic="packets", description="set the capture filter, for example 'pan 0xabcd and not ack'")
+    public static class FilterCommand implements Command {
+
+        @Option(name = "-c", usage = "clear the filter")
+        private boolean clear = false;
+
+        @Argument(usage="filter expression", metaVar="EXPRESSION")
+        private List<String> expression = new ArrayList<String>();
+
+        @Override
+        public int executeCommand(CommandContext context) throws CLIException {
+            JShark js = JShark.getJShark();
+            if (clear) {
+                js.setFilter(null);
+                context.out.println("Filter cleared.");
+            } else if (expression.isEmpty()) {
+                CaptureFilter filter = js.getFilter();
+                context.out.println("Filter: " + (filter == null ? "none" : filter.getExpression())
+                        + " Filtered packets: " + js.getFilteredPackets());
+            } else {
+                try {
+                    js.setFilter(CaptureFilter.compile(String.join(" ", expression)));
+                } catch (IllegalArgumentException e) {
+                    throw new CLIException(e.getMessage(), e);
+                }
+            }
+            return 0;
+        }
+    }
+
+    @CLICommand(name="fragments", topic="packets", description="show or set the limits of fragment reassembly")
+    public static class FragmentsCommand implements Command {
+
+        @Option(name = "-timeout", usage = "reassembly timeout in seconds", metaVar = "SECONDS")
+        private double timeout = -1;
+
+        @Option(name = "-memory", usage = "max bytes buffered for incomplete packets", metaVar = "BYTES")
+        private int memory = -1;
+
+        @Override
+        public int executeCommand(CommandContext context) throws CLIException {
+            LoWPANFragmenter fragmenter = JShark.getJShark().getFragmenter();
+            try {
+                if (timeout >= 0) {
+                    fragmenter.setReassemblyTimeout((long) (timeout * 1000));
+                }
+                if (memory >= 0) {
+                    fragmenter.setMaxMemory(memory);
+                }
+            } catch (IllegalArgumentException e) {
+                throw new CLIException(e.getMessage(), e);
+            }
+            context.out.println(fragmenter.getStatistics() + " memory:" + fragmenter.getMemoryUsed()
+                    + "/" + fragmenter.getMaxMemory() + " timeout:" + fragmenter.getReassemblyTimeout() / 1000.0 + "s");
+            return 0;
+        }
+    }
+
+    @CLICommand(name="keys", topic="packets", description="show or load the keys for decrypting secured frames")
+    public static class KeysCommand implements Command {
+
+        @Option(name = "-f", usage = "key file to load", metaVar = "FILE")
+        private String file;
+
+        @Override
+        public int executeCommand(CommandContext context) throws CLIException {
+            JShark sniff = JShark.getJShark();
+            KeyTable keyTable = sniff.getKeyTable();
+            if (file != null) {
+                try {
+                    if (keyTable == null) {
+                        keyTable = KeyTable.load(file);
+                        sniff.setKeyTable(keyTable);
+                    } else {
+                        keyTable.loadFile(file);
+                    }
+                } catch (IOException e) {
+                    throw new CLIException("failed to read key file: " + e.getMessage(), e);
+                }
+            }
+            if (keyTable == null) {
+                context.out.println("No keys loaded");
+            } else {
+                context.out.println(keyTable.getStatistics());
+            }
+            return 0;
+        }
+    }
+
 }
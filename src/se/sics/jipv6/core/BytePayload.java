@@ -40,12 +40,16 @@
 
 package se.sics.jipv6.core;
 
+import java.util.Arrays;
 import java.util.Formatter;
 
 /* keep the packet payload untouched ... */
 public class BytePayload implements IPPayload {
 
+    /* payloadLength bytes at payloadOffset - a view of the packet data */
     byte[] payloadData;
+    int payloadOffset;
+    int payloadLength;
     byte dispatch;
 
     public BytePayload(IPv6Packet packet) {
@@ -53,6 +57,11 @@ public class BytePayload implements IPPayload {
     }
 
     public byte[] generatePacketData(IPv6Packet packet) {
+        if (payloadOffset != 0 || payloadLength != payloadData.length) {
+            /* copied when the payload is sent */
+            payloadData = Arrays.copyOfRange(payloadData, payloadOffset, payloadOffset + payloadLength);
+            payloadOffset = 0;
+        }
         return payloadData;
     }
 
@@ -62,7 +71,9 @@ public class BytePayload implements IPPayload {
 
     public void parsePacketData(IPv6Packet packet) {
         dispatch = packet.getDispatch();
-        payloadData = packet.getPayload();
+        payloadData = packet.packetData;
+        payloadOffset = packet.dataStart + packet.currentPos;
+        payloadLength = packet.getPayloadLength();
     }
 
     public void printPacket(Formatter out) {
@@ -0,0 +1,97 @@
+package se.sics.jipv6.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Internet checksum (RFC 1071) of big endian 16 bit words.
+ *
+ * The data is added eight bytes at a time into a 64 bit accumulator as two
+ * 32 bit halves - the carries collect in the upper bits and are folded
+ * back once at the end instead of on every word. All sums passed in and
+ * returned are folded 16 bit ones complement sums, as for IPv6Packet.checkSum,
+ * so a sum can be continued over several buffers as long as every part but
+ * the last has an even length.
+ */
+public final class Checksum {
+
+    /* UDP and ICMPv6 packets received with a checksum that does not match */
+    private static final AtomicLong errors = new AtomicLong();
+
+    private Checksum() {
+    }
+
+    public static int add(int sum, byte[] data, int offset, int len) {
+        long acc = sum & 0xffffffffL;
+        int pos = offset;
+        int end = offset + len;
+        for (int n = end - 7; pos < n; pos += 8) {
+            acc += (((data[pos] & 0xffL) << 24) | ((data[pos + 1] & 0xff) << 16)
+                    | ((data[pos + 2] & 0xff) << 8) | (data[pos + 3] & 0xff))
+                    + (((data[pos + 4] & 0xffL) << 24) | ((data[pos + 5] & 0xff) << 16)
+                    | ((data[pos + 6] & 0xff) << 8) | (data[pos + 7] & 0xff));
+        }
+        for (; pos < end - 1; pos += 2) {
+            acc += ((data[pos] & 0xff) << 8) | (data[pos + 1] & 0xff);
+        }
+        /* final byte - if any */
+        if (pos < end) {
+            acc += (data[pos] & 0xff) << 8;
+        }
+        return fold(acc);
+    }
+
+    /* Adds a 16 bit word */
+    public static int add16(int sum, int word) {
+        return fold((sum & 0xffffffffL) + (word & 0xffff));
+    }
+
+    public static int fold(long acc) {
+        while ((acc >>> 16) != 0) {
+            acc = (acc & 0xffff) + (acc >>> 16);
+        }
+        return (int) acc;
+    }
+
+    /* The checksum field value for a sum */
+    public static int complement(int sum) {
+        return (~sum) & 0xffff;
+    }
+
+    /*
+     * RFC 1624 incremental update of a checksum field when a 16 bit word
+     * covered by it changes from oldWord to newWord: HC' = ~(~HC + ~m + m').
+     */
+    public static int update(int checksum, int oldWord, int newWord) {
+        int sum = add16(complement(checksum), ~oldWord);
+        return complement(add16(sum, newWord));
+    }
+
+    /*
+     * Checks the upper layer checksum of the len bytes of payload in place:
+     * the pseudo header and the payload including the checksum field sum to
+     * 0xffff when the checksum is correct. Sets the payload length of the
+     * packet to len as used in the pseudo header.
+     */
+    public static boolean verify(IPv6Packet packet, int nextHeader, int len) {
+        return sum(packet, nextHeader, len) == 0xffff;
+    }
+
+    /* The checksum field value that verify() expected, for error messages */
+    public static int expected(IPv6Packet packet, int nextHeader, int len, int checksum) {
+        return complement(add16(sum(packet, nextHeader, len), ~checksum));
+    }
+
+    private static int sum(IPv6Packet packet, int nextHeader, int len) {
+        packet.payloadLen = len;
+        int sum = packet.upperLayerHeaderChecksum((byte) nextHeader);
+        return packet.checkSum(sum, 0, len);
+    }
+
+    static void countError() {
+        errors.incrementAndGet();
+    }
+
+    public static long getErrorCount() {
+        return errors.get();
+    }
+}
@@ -0,0 +1,257 @@
+package se.sics.jipv6.core;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import se.sics.jipv6.core.LoWPANFragmenter.FragmentKey;
+import se.sics.jipv6.pcap.PacketAttributes;
+
+/*
+ * Forwarding of 6LoWPAN fragments without reassembly - a virtual reassembly
+ * buffer as for minimal fragment forwarding (RFC 8930). The first fragment
+ * of a datagram that a router forwards on the link sets up an entry with the
+ * next hop and a new datagram tag. Only its IPHC header is rewritten - for
+ * the new link addresses and the decremented hop limit - and the compressed
+ * next headers and data are sent on as they are. The following fragments
+ * are sent on with the tag replaced as soon as they arrive.
+ *
+ * Fragments that arrive before the first fragment of their datagram and
+ * first fragments with 6LoRH headers are left to the normal reassembly.
+ */
+public class FragmentForwarder {
+
+    private static final boolean DEBUG = false;
+
+    public static final int DEFAULT_MAX_ENTRIES = 32;
+
+    static final class ForwardingEntry {
+        /* the link addresses of the next hop */
+        final PacketAttributes attributes;
+        final int tag;
+        final int size;
+        final long time;
+        /* one bit per 8 octets of the uncompressed datagram sent on */
+        final long[] forwarded;
+        int forwardedUnits;
+
+        ForwardingEntry(PacketAttributes attributes, int tag, int size, long time) {
+            this.attributes = attributes;
+            this.tag = tag;
+            this.size = size;
+            this.time = time;
+            this.forwarded = new long[(LoWPANFragmenter.units(size) + 63) >> 6];
+        }
+
+        /* Marks the units in [first, last) as sent on - a duplicate fragment adds nothing */
+        void setForwarded(int first, int last) {
+            for (int i = first; i < last; i++) {
+                long bit = 1L << i;
+                if ((forwarded[i >> 6] & bit) == 0) {
+                    forwarded[i >> 6] |= bit;
+                    forwardedUnits++;
+                }
+            }
+        }
+
+        boolean isComplete() {
+            return forwardedUnits == LoWPANFragmenter.units(size);
+        }
+    }
+
+    private final IPStack ipStack;
+
+    /* in access order - the first entry is the least recently used */
+    private final LinkedHashMap<FragmentKey, ForwardingEntry> entries =
+            new LinkedHashMap<FragmentKey, ForwardingEntry>(16, 0.75f, true);
+
+    private long timeout = LoWPANFragmenter.DEFAULT_REASSEMBLY_TIMEOUT;
+    private int maxEntries = DEFAULT_MAX_ENTRIES;
+
+    private long forwardedDatagrams;
+    private long forwardedFragments;
+    private long expiredCount;
+    private long evictedCount;
+
+    public FragmentForwarder(IPStack stack) {
+        this.ipStack = stack;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /* Sets how long in milliseconds a datagram is forwarded after its first fragment */
+    public void setTimeout(long timeout) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("forwarding timeout must be positive: " + timeout);
+        }
+        this.timeout = timeout;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public void setMaxEntries(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("at least one forwarding entry is needed: " + maxEntries);
+        }
+        this.maxEntries = maxEntries;
+    }
+
+    public int getEntryCount() {
+        return entries.size();
+    }
+
+    public long getForwardedDatagrams() {
+        return forwardedDatagrams;
+    }
+
+    public long getForwardedFragments() {
+        return forwardedFragments;
+    }
+
+    public String getStatistics() {
+        return "Forwarded fragments: datagrams:" + forwardedDatagrams + " fragments:" + forwardedFragments
+                + " active:" + entries.size() + " expired:" + expiredCount + " evicted:" + evictedCount;
+    }
+
+    private void expire(long now) {
+        Iterator<ForwardingEntry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().time > timeout) {
+                expiredCount++;
+                it.remove();
+            }
+        }
+    }
+
+    /*
+     * Returns the fragment to send on for the fragment at the current
+     * position of the packet, with headroom bytes free in front of it, or
+     * null if the fragment is not forwarded without reassembly. The rewritten
+     * first fragment must fit in maxLength bytes.
+     */
+    public MacPacket forwardFragment(IPv6Packet packet, IPHCPacketer packeter, int maxLength, int headroom) {
+        int type = packet.getData(0) & 0xf8;
+        boolean firstFragment = type == IPHCPacketer.SICSLOWPAN_DISPATCH_FRAG1;
+        if ((!firstFragment && type != IPHCPacketer.SICSLOWPAN_DISPATCH_FRAGN)
+                || packet.getPayloadLength() < LoWPANFragmenter.FRAGN_HEADER_LENGTH) {
+            return null;
+        }
+        long now = packet.getTimeMillis();
+        if (now == 0) {
+            now = System.currentTimeMillis();
+        }
+        expire(now);
+
+        int size = packet.get16(0) & 0x7ff;
+        FragmentKey key = new FragmentKey(LinkAddress.of(packet.getLinkSource()), packet.get16(2), size);
+        ForwardingEntry entry = entries.get(key);
+        if (firstFragment) {
+            return forwardFirstFragment(packet, packeter, key, entry, maxLength, headroom, now);
+        }
+        if (entry == null) {
+            return null;
+        }
+        int len = packet.getPayloadLength() - LoWPANFragmenter.FRAGN_HEADER_LENGTH;
+        byte[] data = new byte[headroom + LoWPANFragmenter.FRAGN_HEADER_LENGTH + len];
+        /* the same header with the tag of the next hop */
+        packet.copy(0, data, headroom, LoWPANFragmenter.FRAGN_HEADER_LENGTH + len);
+        data[headroom + 2] = (byte) (entry.tag >> 8);
+        data[headroom + 3] = (byte) entry.tag;
+        int offset = (packet.getData(4) & 0xff) * 8;
+        addForwarded(key, entry, offset, offset + len);
+        return createFragment(data, headroom, entry, now);
+    }
+
+    private MacPacket forwardFirstFragment(IPv6Packet packet, IPHCPacketer packeter, FragmentKey key,
+            ForwardingEntry entry, int maxLength, int headroom, long now) {
+        IPv6Packet view = new IPv6Packet(packet);
+        view.incPos(LoWPANFragmenter.FRAG1_HEADER_LENGTH);
+        if (view.getPayloadLength() < 2
+                || (view.getData(0) & 0xe0) != IPHCPacketer.SICSLOWPAN_DISPATCH_IPHC) {
+            return null;
+        }
+        int iphcLength = packeter.decompressHeader(view);
+        int hopLimit = view.hopLimit & 0xff;
+        if (!ipStack.isForwardedOnLink(view.destAddress) || hopLimit <= 1) {
+            /* for this node - or dropped after reassembly */
+            return null;
+        }
+        /* the uncompressed size of the headers as for reassembly */
+        IPv6Packet headers = new IPv6Packet(view);
+        int uncomprSize = packeter.decompress(headers, false);
+        int comprSize = headers.currentPos - view.currentPos;
+
+        IPv6Packet out = new IPv6Packet(packet.getTimeMillis());
+        if (entry != null) {
+            /* a retransmission - keep the tag the next hop knows */
+            out.attributes = entry.attributes;
+        } else {
+            out.setAttribute(MacPacket.LL_SOURCE_KEY, ipStack.getLinkLayerAddress());
+            out.setAttribute(MacPacket.LL_DESTINATION_KEY, ipStack.getNextHop(view.destAddress));
+        }
+        out.trafficClass = view.trafficClass;
+        out.flowLabel = view.flowLabel;
+        out.nextHeader = view.nextHeader;
+        out.hopLimit = hopLimit - 1;
+        System.arraycopy(view.sourceAddress, 0, out.sourceAddress, 0, 16);
+        System.arraycopy(view.destAddress, 0, out.destAddress, 0, 16);
+
+        int rest = view.getPayloadLength() - iphcLength;
+        byte[] data = new byte[headroom + LoWPANFragmenter.FRAG1_HEADER_LENGTH
+                               + IPHCPacketer.MAX_HEADER_LENGTH + rest];
+        boolean compressNextHeader = (view.getData(0) & IPHCPacketer.SICSLOWPAN_IPHC_NH_C) != 0;
+        int pos = packeter.writeIPHCHeader(out, compressNextHeader, data,
+                headroom + LoWPANFragmenter.FRAG1_HEADER_LENGTH);
+        if (pos + rest - headroom > maxLength) {
+            /* the addresses compress worse for the next hop - reassemble instead */
+            if (DEBUG) System.out.println("First fragment too large to forward: " + (pos + rest - headroom));
+            return null;
+        }
+        view.copy(iphcLength, data, pos, rest);
+
+        boolean retransmission = entry != null;
+        if (!retransmission) {
+            entry = new ForwardingEntry(out.attributes, packeter.getFragmenter().nextDatagramTag(),
+                    key.size, now);
+            Iterator<ForwardingEntry> it = entries.values().iterator();
+            while (entries.size() >= maxEntries && it.hasNext()) {
+                it.next();
+                it.remove();
+                evictedCount++;
+            }
+            entries.put(key, entry);
+            forwardedDatagrams++;
+            if (DEBUG) System.out.println("Forwarding datagram " + key + " with tag " + entry.tag);
+        }
+        data[headroom] = (byte) (IPHCPacketer.SICSLOWPAN_DISPATCH_FRAG1 | (key.size >> 8));
+        data[headroom + 1] = (byte) key.size;
+        data[headroom + 2] = (byte) (entry.tag >> 8);
+        data[headroom + 3] = (byte) entry.tag;
+        if (!retransmission) {
+            addForwarded(key, entry, 0, uncomprSize + view.getPayloadLength() - comprSize);
+        }
+        return createFragment(Arrays.copyOf(data, pos + rest), headroom, entry, now);
+    }
+
+    /* Records that [offset, end) of the uncompressed datagram has been sent on */
+    private void addForwarded(FragmentKey key, ForwardingEntry entry, int offset, int end) {
+        forwardedFragments++;
+        entry.setForwarded(Math.min(offset >> 3, LoWPANFragmenter.units(entry.size)),
+                LoWPANFragmenter.units(Math.min(end, entry.size)));
+        if (entry.isComplete()) {
+            /* the whole datagram has passed */
+            entries.remove(key);
+        }
+    }
+
+    private static MacPacket createFragment(byte[] data, int headroom, ForwardingEntry entry, long time) {
+        MacPacket fragment = new MacPacket(time);
+        fragment.attributes = entry.attributes;
+        fragment.setOwnedBytes(data, headroom, data.length - headroom);
+        return fragment;
+    }
+}
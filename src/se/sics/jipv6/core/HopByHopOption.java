@@ -2,21 +2,83 @@ package se.sics.jipv6.core;
 
 import java.util.Formatter;
 
-import se.sics.jipv6.util.Utils;
+import se.sics.jipv6.util.TextFormat;
 
 public class HopByHopOption implements IPv6ExtensionHeader {
 
     public static final boolean DEBUG = false;
 
     public static final byte DISPATCH = 0;
+
+    /* RPL option (RFC 6553) - 0x23 is the type assigned by RFC 9008 */
+    public static final int OPTION_RPL = 0x63;
+    public static final int OPTION_RPL_NEW = 0x23;
+    public static final int RPL_FLAG_DOWN = 0x80;
+    public static final int RPL_FLAG_RANK_ERROR = 0x40;
+    public static final int RPL_FLAG_FORWARD_ERROR = 0x20;
+
     byte nextHeader = 0;
     int len;
     IPPayload next;
+    /* the options when sent - padded to a multiple of 8 bytes */
+    byte[] options;
+
+    /* the RPL option if found when parsed */
+    boolean hasRPLOption;
+    int rplFlags;
+    int rplInstanceID;
+    int senderRank;
+
+    /* Resets a reused option before parsing */
+    void reset() {
+        nextHeader = 0;
+        len = 0;
+        next = null;
+        options = null;
+        hasRPLOption = false;
+        rplFlags = 0;
+        rplInstanceID = 0;
+        senderRank = 0;
+    }
+
+    /* Options with only a RPL option */
+    public static byte[] createRPLOption(int flags, int instanceID, int senderRank) {
+        return new byte[] {(byte) OPTION_RPL, 4, (byte) flags, (byte) instanceID,
+                (byte) (senderRank >> 8), (byte) senderRank};
+    }
+
+    public boolean hasRPLOption() {
+        return hasRPLOption;
+    }
+
+    public int getRPLFlags() {
+        return rplFlags;
+    }
+
+    public int getRPLInstanceID() {
+        return rplInstanceID;
+    }
+
+    public int getSenderRank() {
+        return senderRank;
+    }
 
     public byte getNextHeader() {
         return nextHeader;
     }
 
+    public void setNextHeader(byte nextHeader) {
+        this.nextHeader = nextHeader;
+    }
+
+    public byte[] getOptions() {
+        return options;
+    }
+
+    public void setOptions(byte[] options) {
+        this.options = options;
+    }
+
     @Override
     public byte getDispatch() {
         return DISPATCH;
@@ -24,15 +86,49 @@ public class HopByHopOption implements IPv6ExtensionHeader {
 
     @Override
     public byte[] generatePacketData(IPv6Packet packet) {
-        // TODO Auto-generated method stub
-        return null;
+        byte[] payload = next != null ? next.generatePacketData(packet) : null;
+        int optionsLen = options != null ? options.length : 0;
+        int size = (optionsLen + 2 + 7) & ~7;
+        byte[] data = new byte[size + (payload != null ? payload.length : 0)];
+        data[0] = next != null ? next.getDispatch() : nextHeader;
+        data[1] = (byte) (size / 8 - 1);
+        if (optionsLen > 0) {
+            System.arraycopy(options, 0, data, 2, optionsLen);
+        }
+        int padding = size - 2 - optionsLen;
+        if (padding > 1) {
+            /* PadN - a single byte is a zero Pad1 */
+            data[2 + optionsLen] = 1;
+            data[3 + optionsLen] = (byte) (padding - 2);
+        }
+        if (payload != null) {
+            System.arraycopy(payload, 0, data, size, payload.length);
+        }
+        return data;
     }
 
     @Override
     public void parsePacketData(IPv6Packet packet) {
         /* Assumes that this is the correct position */
         nextHeader = packet.getData(0);
-        len = packet.getData(1) * 8 + 8;
+        len = (packet.getData(1) & 0xff) * 8 + 8;
+        /* look for the RPL option - Pad1 is a single byte */
+        int pos = 2;
+        while (pos + 1 < len) {
+            int type = packet.getData(pos) & 0xff;
+            if (type == 0) {
+                pos++;
+                continue;
+            }
+            int optLen = packet.getData(pos + 1) & 0xff;
+            if ((type == OPTION_RPL || type == OPTION_RPL_NEW) && optLen >= 4 && pos + 6 <= len) {
+                hasRPLOption = true;
+                rplFlags = packet.getData(pos + 2) & 0xff;
+                rplInstanceID = packet.getData(pos + 3) & 0xff;
+                senderRank = packet.get16(pos + 4);
+            }
+            pos += 2 + optLen;
+        }
         if (DEBUG) {
             System.out.printf("Parsed HBH Option - NH:%d (%02x) len:%d\n",
                     nextHeader & 0xff, nextHeader & 0xff, len);
@@ -42,7 +138,27 @@ public class HopByHopOption implements IPv6ExtensionHeader {
 
     @Override
     public void printPacket(Formatter out) {
-        out.format("HBH Option NH: " + (nextHeader & 0xff) + " (" + Utils.hex8(nextHeader & 0xff) + ")\n");
+        StringBuilder sb = TextFormat.getBuilder();
+        try {
+            sb.append("HBH Option NH: ").append(nextHeader & 0xff).append(" (");
+            TextFormat.appendHex8(sb, nextHeader).append(')');
+            if (hasRPLOption) {
+                sb.append(" RPL instance: ").append(rplInstanceID).append(" rank: ").append(senderRank);
+                if ((rplFlags & RPL_FLAG_DOWN) != 0) {
+                    sb.append(" down");
+                }
+                if ((rplFlags & RPL_FLAG_RANK_ERROR) != 0) {
+                    sb.append(" rank-error");
+                }
+                if ((rplFlags & RPL_FLAG_FORWARD_ERROR) != 0) {
+                    sb.append(" forward-error");
+                }
+            }
+            sb.append('\n');
+            TextFormat.write(out, sb);
+        } finally {
+            TextFormat.release(sb);
+        }
     }
 
     public void setNext(IPPayload payload) {
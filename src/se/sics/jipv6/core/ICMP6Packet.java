@@ -43,6 +43,7 @@ import java.util.EnumSet;
 import java.util.Formatter;
 import java.util.Vector;
 
+import se.sics.jipv6.util.TextFormat;
 import se.sics.jipv6.util.Utils;
 
 public class ICMP6Packet implements IPPayload {
@@ -108,6 +109,7 @@ public class ICMP6Packet implements IPPayload {
 
     int code;
     int checksum;
+    boolean checksumValid;
     byte[] targetAddress;
     int id;
     int seqNo;
@@ -145,6 +147,26 @@ public class ICMP6Packet implements IPPayload {
         this.type = type;
     }
 
+    /* Resets a reused packet before parsing */
+    void reset() {
+        type = 0;
+        code = 0;
+        checksum = 0;
+        checksumValid = false;
+        targetAddress = null;
+        id = 0;
+        seqNo = 0;
+        flags = 0;
+        hopLimit = (byte) 128;
+        autoConfigFlags = 0;
+        routerLifetime = 0xffff;
+        reachableTime = 360000;
+        retransmissionTimer = 3000;
+        mtuSize = 1280;
+        echoData = null;
+        options.removeAllElements();
+    }
+
     void updateRA(IPStack stack) {
         byte[] llAddr = stack.getLinkLayerAddress();
         options.removeAllElements();
@@ -177,6 +199,11 @@ public class ICMP6Packet implements IPPayload {
         this.type = type;
     }
 
+    /* false if the packet was parsed with a checksum error */
+    public boolean isChecksumValid() {
+        return checksumValid;
+    }
+
     public int getCode() {
         return code;
     }
@@ -218,12 +245,17 @@ public class ICMP6Packet implements IPPayload {
                 }
             }
         }
-        out.format("ICMPv6 Type: " + type + " (" + typeS + ") Code: " + code + " id: " +
-                id + " seq: " + seqNo + "\n");
-        if (targetAddress != null) {
-            out.format("ICMPv6 Target address: ");
-            IPv6Packet.printAddress(out, targetAddress);
-            out.format("\n");
+        StringBuilder sb = TextFormat.getBuilder();
+        try {
+            sb.append("ICMPv6 Type: ").append(type).append(" (").append(typeS).append(") Code: ")
+                .append(code).append(" id: ").append(id).append(" seq: ").append(seqNo).append('\n');
+            if (targetAddress != null) {
+                sb.append("ICMPv6 Target address: ");
+                TextFormat.appendIPv6(sb, targetAddress).append('\n');
+            }
+            TextFormat.write(out, sb);
+        } finally {
+            TextFormat.release(sb);
         }
         if (type == ROUTER_ADVERTISEMENT) {
             System.out.println("ICMPv6 Route Advertisement");
@@ -257,12 +289,7 @@ public class ICMP6Packet implements IPPayload {
 
     public static ICMP6Packet parseICMP6Packet(IPv6Packet packet) {
         int type = packet.getData(0) & 0xff;
-        ICMP6Packet icmp6Packet;
-        if (type == RPLPacket.ICMP6_TYPE_RPL) {
-            icmp6Packet = new RPLPacket();
-        } else {
-            icmp6Packet = new ICMP6Packet();
-        }
+        ICMP6Packet icmp6Packet = packet.newICMP6Packet(type);
         icmp6Packet.parsePacketData(packet);
         return icmp6Packet;
     }
@@ -273,9 +300,6 @@ public class ICMP6Packet implements IPPayload {
         type = packet.getData(0) & 0xff;
         code = packet.getData(1) & 0xff;
         checksum = ((packet.getData(2) & 0xff) << 8) | packet.getData(3) & 0xff;
-        /* test the checksum ... - set checksum to zero*/
-        packet.setData(2, (byte) 0);
-        packet.setData(3, (byte) 0);
 
         switch (type) {
         case ECHO_REQUEST:
@@ -309,19 +333,13 @@ public class ICMP6Packet implements IPPayload {
             break;
         }
 
-        byte[] data = packet.getPayload();
-        packet.payloadLen = data.length;
-
-        //System.out.println("Payloadsize: " + data.length);
-        int sum = packet.upperLayerHeaderChecksum(DISPATCH);
-        sum = IPv6Packet.checkSum(sum, data, data.length);
-        sum = (~sum) & 0xffff;
-        /* TODO: here we should tag packet as failed !!! */
-        if (sum == checksum) {
-            //System.out.println("ICMPv6: Checksum matches!!!");
-        } else {
+        /* test the checksum over the payload in place */
+        int len = packet.getPayloadLength();
+        checksumValid = Checksum.verify(packet, DISPATCH, len);
+        if (!checksumValid) {
+            Checksum.countError();
             System.out.println("ICMPv6: Checksum error: " +
-                    Utils.hex16(checksum) + " <?> " + Utils.hex16(sum));
+                    Utils.hex16(checksum) + " <?> " + Utils.hex16(Checksum.expected(packet, DISPATCH, len, checksum)));
         }
     }
 
@@ -401,8 +419,7 @@ public class ICMP6Packet implements IPPayload {
          */
         packet.payloadLen = pos;
         int sum = packet.upperLayerHeaderChecksum(DISPATCH);
-        sum = IPv6Packet.checkSum(sum, packetData, packetData.length);
-        sum = (~sum) & 0xffff;
+        sum = Checksum.complement(Checksum.add(sum, packetData, 0, packetData.length));
 
         packetData[2] = (byte) (sum >> 8);
         packetData[3] = (byte) (sum & 0xff);
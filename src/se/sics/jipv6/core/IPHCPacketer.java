@@ -1,17 +1,26 @@
 package se.sics.jipv6.core;
 
+import java.util.Arrays;
 import java.util.Formatter;
 
+import se.sics.jipv6.util.Utils;
+
 public class IPHCPacketer implements IPPacketer {
 
     public final static int SICSLOWPAN_UDP_PORT_MIN                     = 0xF0B0;
     public final static int SICSLOWPAN_UDP_PORT_MAX                     = 0xF0BF;   /* F0B0 + 15 */
+    public final static int SICSLOWPAN_UDP_8_BIT_PORT_MIN               = 0xF000;
+    public final static int SICSLOWPAN_UDP_8_BIT_PORT_MAX               = 0xF0FF;   /* F000 + 255 */
+
+    /* largest compressed IPv6 header including the UDP header */
+    public final static int MAX_HEADER_LENGTH                           = 40 + 8;
 
     public final static int SICSLOWPAN_DISPATCH_IPV6                    = 0x41; /* 01000001 = 65 */
     public final static int SICSLOWPAN_DISPATCH_HC1                     = 0x42; /* 01000010 = 66 */
     public final static int SICSLOWPAN_DISPATCH_IPHC                    = 0x60; /* 011xxxxx = ... */
     public final static int SICSLOWPAN_DISPATCH_FRAG1                   = 0xc0; /* 1100= 0xxx */
     public final static int SICSLOWPAN_DISPATCH_FRAGN                   = 0xe0; /* 1110= 0xxx */
+    public final static int SICSLOWPAN_DISPATCH_PAGE1                   = 0xf1; /* 11110001 = page 1 */
 
     /*
      * Values of fields within the IPHC encoding first byte
@@ -50,14 +59,88 @@ public class IPHCPacketer implements IPPacketer {
     private static final int SICSLOWPAN_NHC_UDP_CS_P11                  = 0xf3;
     private static final int SICSLOWPAN_NHC_UDP_CHECKSUM_COMPR          = 0x04;
 
+    /* NHC for IPv6 extension headers and encapsulated IPv6: 1110 EID NH */
+    private static final int SICSLOWPAN_NHC_EXT_MASK                    = 0xf0;
+    private static final int SICSLOWPAN_NHC_EXT_ID                      = 0xe0;
+    private static final int SICSLOWPAN_NHC_EXT_NH                      = 0x01;
+    private static final int SICSLOWPAN_NHC_EID_HOPOPTS                 = 0;
+    private static final int SICSLOWPAN_NHC_EID_ROUTING                 = 1;
+    private static final int SICSLOWPAN_NHC_EID_FRAGMENT                = 2;
+    private static final int SICSLOWPAN_NHC_EID_DESTOPTS                = 3;
+    private static final int SICSLOWPAN_NHC_EID_MOBILITY                = 4;
+    private static final int SICSLOWPAN_NHC_EID_IPV6                    = 7;
+
+    /* RFC 8138 6LoRH in page 1: 10E and 5 bits followed by the type */
+    private static final int SICSLOWPAN_6LORH_MASK                      = 0xc0;
+    private static final int SICSLOWPAN_6LORH_ID                        = 0x80;
+    private static final int SICSLOWPAN_6LORH_ELECTIVE                  = 0x20;
+    private static final int SICSLOWPAN_6LORH_TYPE_RH3_MAX              = 4;
+    private static final int SICSLOWPAN_6LORH_TYPE_RPI                  = 5;
+    private static final int SICSLOWPAN_6LORH_TYPE_IPINIP               = 6;
+    private static final int SICSLOWPAN_6LORH_RPI_O                     = 0x10;
+    private static final int SICSLOWPAN_6LORH_RPI_R                     = 0x08;
+    private static final int SICSLOWPAN_6LORH_RPI_F                     = 0x04;
+    private static final int SICSLOWPAN_6LORH_RPI_I                     = 0x02;
+    private static final int SICSLOWPAN_6LORH_RPI_K                     = 0x01;
+    private static final int SICSLOWPAN_6LORH_RH3_MAX_HOPS              = 32;
+    /* room for the 6LoRHs beyond the headers they replace */
+    private static final int MAX_6LORH_GROWTH                           = 64;
+
     public final static int PROTO_UDP = 17;
     public final static int PROTO_TCP = 6;
     public final static int PROTO_ICMP = 58;
+    public final static int PROTO_HOPOPTS = 0;
+    public final static int PROTO_ROUTING = 43;
+    public final static int PROTO_FRAGMENT = 44;
+    public final static int PROTO_DESTOPTS = 60;
+    public final static int PROTO_MOBILITY = 135;
+    public final static int PROTO_IPV6 = 41;
 
     private static final boolean DEBUG = false;
 
     private LoWPANFragmenter fragmenter = new LoWPANFragmenter();
 
+    /* the reassembly of received fragments - for its limits and statistics */
+    public LoWPANFragmenter getFragmenter() {
+        return fragmenter;
+    }
+
+    /* elide the UDP checksum - only when the upper layer has its own integrity check */
+    private boolean udpChecksumElision = false;
+
+    public boolean isUDPChecksumElision() {
+        return udpChecksumElision;
+    }
+
+    public void setUDPChecksumElision(boolean elide) {
+        udpChecksumElision = elide;
+    }
+
+    /*
+     * RFC 8138 compression of RPL options, source routing headers and
+     * IP-in-IP encapsulation - only for networks where all nodes support
+     * 6LoRH. Received 6LoRHs are always decoded.
+     */
+    private boolean routingHeaderCompression = false;
+    /* the RPL root - elided as encapsulator address */
+    private byte[] rootAddress;
+
+    public boolean isRoutingHeaderCompression() {
+        return routingHeaderCompression;
+    }
+
+    public void setRoutingHeaderCompression(boolean compress) {
+        routingHeaderCompression = compress;
+    }
+
+    public byte[] getRootAddress() {
+        return rootAddress;
+    }
+
+    public void setRootAddress(byte[] address) {
+        rootAddress = address;
+    }
+
     /**
      * \brief check whether we can compress the IID in
      * address to 16 bits.
@@ -128,6 +211,8 @@ public class IPHCPacketer implements IPPacketer {
 
     public void setContext(int cIndex, long a1, long a2, long a3, long a4) {
         contexts[cIndex] = new AddrContext(a1, a2, a3, a4);
+        /* compression plans may depend on the old context */
+        Arrays.fill(plans, null);
     }
 
 
@@ -140,123 +225,359 @@ public class IPHCPacketer implements IPPacketer {
         return -1;
     }
 
-    public byte[] generatePacketData(IPv6Packet packet) {
-        byte[] data = new byte[40 + 8];
-        int iphc_ptr = 2;
+    /*
+     * Address reconstruction for each SAC/SAM and M/DAC/DAM encoding, with
+     * the number of inline bytes it uses.
+     */
+    private enum AddressMode {
+        NONE(0, false) {
+            void decode(IPv6Packet packet, int pos, byte[] address, AddrContext context) {
+            }
+        },
+        UNSPECIFIED(0, false) {
+            void decode(IPv6Packet packet, int pos, byte[] address, AddrContext context) {
+                System.arraycopy(IPStack.UNSPECIFIED, 0, address, 0, 16);
+            }
+        },
+        INLINE(16, false) {
+            void decode(IPv6Packet packet, int pos, byte[] address, AddrContext context) {
+                packet.copy(pos, address, 0, 16);
+            }
+        },
+        LINK_LOCAL_64(8, false) {
+            void decode(IPv6Packet packet, int pos, byte[] address, AddrContext context) {
+                setLinkLocalPrefix(address);
+                packet.copy(pos, address, 8, 8);
+            }
+        },
+        LINK_LOCAL_16(2, false) {
+            void decode(IPv6Packet packet, int pos, byte[] address, AddrContext context) {
+                setLinkLocalPrefix(address);
+                packet.copy(pos, address, 14, 2);
+            }
+        },
+        LINK_LOCAL_FROM_SOURCE(0, false) {
+            void decode(IPv6Packet packet, int pos, byte[] address, AddrContext context) {
+                setLinkLocalPrefix(address);
+                setIID(address, packet.getLinkSource());
+            }
+        },
+        LINK_LOCAL_FROM_DESTINATION(0, false) {
+            void decode(IPv6Packet packet, int pos, byte[] address, AddrContext context) {
+                setLinkLocalPrefix(address);
+                setIID(address, packet.getLinkDestination());
+            }
+        },
+        CONTEXT_64(8, true) {
+            void decode(IPv6Packet packet, int pos, byte[] address, AddrContext context) {
+                System.arraycopy(context.prefix, 0, address, 0, 8);
+                packet.copy(pos, address, 8, 8);
+            }
+        },
+        CONTEXT_16(2, true) {
+            void decode(IPv6Packet packet, int pos, byte[] address, AddrContext context) {
+                System.arraycopy(context.prefix, 0, address, 0, 8);
+                packet.copy(pos, address, 14, 2);
+            }
+        },
+        CONTEXT_FROM_SOURCE(0, true) {
+            void decode(IPv6Packet packet, int pos, byte[] address, AddrContext context) {
+                System.arraycopy(context.prefix, 0, address, 0, 8);
+                setIID(address, packet.getLinkSource());
+            }
+        },
+        CONTEXT_FROM_DESTINATION(0, true) {
+            void decode(IPv6Packet packet, int pos, byte[] address, AddrContext context) {
+                System.arraycopy(context.prefix, 0, address, 0, 8);
+                setIID(address, packet.getLinkDestination());
+            }
+        },
+        /* FFXX::00XX:XXXX:XXXX */
+        MULTICAST_48(6, false) {
+            void decode(IPv6Packet packet, int pos, byte[] address, AddrContext context) {
+                address[0] = (byte) 0xff;
+                address[1] = packet.getData(pos);
+                packet.copy(pos + 1, address, 11, 5);
+            }
+        },
+        /* FFXX::00XX:XXXX */
+        MULTICAST_32(4, false) {
+            void decode(IPv6Packet packet, int pos, byte[] address, AddrContext context) {
+                address[0] = (byte) 0xff;
+                address[1] = packet.getData(pos);
+                packet.copy(pos + 1, address, 13, 3);
+            }
+        },
+        /* FF02::00XX */
+        MULTICAST_8(1, false) {
+            void decode(IPv6Packet packet, int pos, byte[] address, AddrContext context) {
+                address[0] = (byte) 0xff;
+                address[1] = (byte) 0x02;
+                address[15] = packet.getData(pos);
+            }
+        };
 
-        data[0] = SICSLOWPAN_DISPATCH_IPHC;
-        data[1] = 0;
-        data[2] = 0; /* might not be used - but needs to be cleared */
+        final int length;
+        final boolean usesContext;
 
-        /* check if dest context exists (for allocating third byte) */
-        /* TODO: fix this so that it remembers the looked up values for
-           avoiding two lookups - or set the lookup values immediately */
-        if(lookupContext(packet.destAddress) != -1 ||
-                lookupContext(packet.sourceAddress) != -1) {
-            /* set context flag and increase iphc_ptr */
-            if (DEBUG) System.out.println("IPHC: compressing dest or src ipaddr - setting CID\n");
-            data[1] |= SICSLOWPAN_IPHC_CID;
-            iphc_ptr++;
+        AddressMode(int length, boolean usesContext) {
+            this.length = length;
+            this.usesContext = usesContext;
         }
 
-        /*
-         * Traffic class, flow label
-         * If flow label is 0, compress it. If traffic class is 0, compress it
-         * We have to process both in the same time as the offset of traffic class
-         * depends on the presence of version and flow label
-         */
+        abstract void decode(IPv6Packet packet, int pos, byte[] address, AddrContext context);
 
-        /* IPHC format of tc is ECN | DSCP , original is DSCP | ECN */
-        int tmp = (packet.trafficClass << 6) & 0xff | (packet.trafficClass >> 2);
+        static AddressMode source(int iphc1) {
+            int sam = iphc1 & SICSLOWPAN_IPHC_SAM_11;
+            if ((iphc1 & SICSLOWPAN_IPHC_SAC) != 0) {
+                return sam == SICSLOWPAN_IPHC_SAM_00 ? UNSPECIFIED
+                        : sam == SICSLOWPAN_IPHC_SAM_01 ? CONTEXT_64
+                        : sam == SICSLOWPAN_IPHC_SAM_10 ? CONTEXT_16 : CONTEXT_FROM_SOURCE;
+            }
+            return sam == SICSLOWPAN_IPHC_SAM_00 ? INLINE
+                    : sam == SICSLOWPAN_IPHC_SAM_01 ? LINK_LOCAL_64
+                    : sam == SICSLOWPAN_IPHC_SAM_10 ? LINK_LOCAL_16 : LINK_LOCAL_FROM_SOURCE;
+        }
 
-        if(packet.flowLabel == 0) {
-            /* flow label can be compressed */
-            data[0] |= SICSLOWPAN_IPHC_FL_C;
-            if(packet.trafficClass == 0) {
-                /* compress (elide) all */
-                data[0] |= SICSLOWPAN_IPHC_TC_C;
-            } else {
-                /* compress only the flow label */
-                data[iphc_ptr] = (byte) (tmp & 0xff);
-                iphc_ptr += 1;
+        static AddressMode destination(int iphc1) {
+            int dam = iphc1 & SICSLOWPAN_IPHC_DAM_11;
+            boolean dac = (iphc1 & SICSLOWPAN_IPHC_DAC) != 0;
+            if ((iphc1 & SICSLOWPAN_IPHC_M) != 0) {
+                if (dac) {
+                    /* TODO: context based multicast compression */
+                    return NONE;
+                }
+                return dam == SICSLOWPAN_IPHC_DAM_00 ? INLINE
+                        : dam == SICSLOWPAN_IPHC_DAM_01 ? MULTICAST_48
+                        : dam == SICSLOWPAN_IPHC_DAM_10 ? MULTICAST_32 : MULTICAST_8;
             }
-        } else {
-            /* Flow label cannot be compressed - maybe check traffic class 0x3f */
-            if((packet.trafficClass & 0x03) == 0) {
-                /* compress only traffic class */
-                data[0] |= SICSLOWPAN_IPHC_TC_C;
-                data[iphc_ptr] = (byte) ((tmp & 0xc0) | (packet.flowLabel >> 16) & 0x0f);
-                data[iphc_ptr + 1] = (byte) ((packet.flowLabel >> 8) & 0xff);
-                data[iphc_ptr + 2] = (byte) (packet.flowLabel & 0xff);
-                iphc_ptr += 3;
+            if (dac) {
+                return dam == SICSLOWPAN_IPHC_DAM_00 ? NONE
+                        : dam == SICSLOWPAN_IPHC_DAM_01 ? CONTEXT_64
+                        : dam == SICSLOWPAN_IPHC_DAM_10 ? CONTEXT_16 : CONTEXT_FROM_DESTINATION;
+            }
+            return dam == SICSLOWPAN_IPHC_DAM_00 ? INLINE
+                    : dam == SICSLOWPAN_IPHC_DAM_01 ? LINK_LOCAL_64
+                    : dam == SICSLOWPAN_IPHC_DAM_10 ? LINK_LOCAL_16 : LINK_LOCAL_FROM_DESTINATION;
+        }
+    }
+
+    private static void setLinkLocalPrefix(byte[] address) {
+        address[0] = (byte) 0xfe;
+        address[1] = (byte) 0x80;
+    }
+
+    /* infer IID from L2 address */
+    private static void setIID(byte[] address, byte[] linkAddress) {
+        System.arraycopy(linkAddress, 0, address, 16 - linkAddress.length, linkAddress.length);
+        address[8] ^= 0x02;
+    }
+
+    /*
+     * Decoder for one encoding of the two IPHC bytes - the inline field
+     * offsets and the address modes are worked out once so decoding is a
+     * sequence of copies from fixed positions.
+     */
+    private static final class HeaderDecoder {
+        /* traffic class and flow label inline: TC+FL, ECN+FL, TC or none */
+        private static final int TF_ALL = 0;
+        private static final int TF_ECN_FL = 1;
+        private static final int TF_TC = 2;
+        private static final int TF_NONE = 3;
+
+        final int trafficFlow;
+        final boolean contextId;
+        final int tfPos;
+        final int nhPos;
+        final int hopLimit;
+        final int hlPos;
+        final AddressMode source;
+        final int sourcePos;
+        final AddressMode destination;
+        final int destinationPos;
+        final int length;
+
+        /* index is the low five bits of the first IPHC byte and the second byte */
+        HeaderDecoder(int index) {
+            int iphc0 = index >> 8;
+            int iphc1 = index & 0xff;
+            contextId = (iphc1 & SICSLOWPAN_IPHC_CID) != 0;
+            int pos = contextId ? 3 : 2;
+
+            tfPos = pos;
+            trafficFlow = (iphc0 >> 3) & 0x03;
+            pos += trafficFlow == TF_ALL ? 4 : trafficFlow == TF_ECN_FL ? 3 : trafficFlow == TF_TC ? 1 : 0;
+
+            if ((iphc0 & SICSLOWPAN_IPHC_NH_C) == 0) {
+                nhPos = pos++;
             } else {
-                /* compress nothing */
-                data[iphc_ptr] = (byte) tmp;
-                /* but replace the top byte with the new ECN | DSCP format*/
-                data[iphc_ptr + 1] = (byte) ((packet.flowLabel >> 16) & 0x0f);
-                data[iphc_ptr + 2] = (byte) ((packet.flowLabel >> 8) & 0xff);
-                data[iphc_ptr + 3] = (byte) (packet.flowLabel & 0xff);
-                iphc_ptr += 4;
+                nhPos = -1;
+            }
+
+            switch (iphc0 & 0x03) {
+            case SICSLOWPAN_IPHC_TTL_1:
+                hopLimit = 1;
+                break;
+            case SICSLOWPAN_IPHC_TTL_64:
+                hopLimit = 64;
+                break;
+            case SICSLOWPAN_IPHC_TTL_255:
+                hopLimit = 255;
+                break;
+            default:
+                hopLimit = -1;
+                break;
+            }
+            hlPos = pos;
+            if (hopLimit < 0) {
+                pos++;
             }
+
+            source = AddressMode.source(iphc1);
+            sourcePos = pos;
+            pos += source.length;
+            destination = AddressMode.destination(iphc1);
+            destinationPos = pos;
+            pos += destination.length;
+            length = pos;
         }
 
-        /* Next header compression */
-        if(packet.nextHeader == PROTO_UDP) {
-            data[0] |= SICSLOWPAN_IPHC_NH_C;
-        } else {
-            data[iphc_ptr] = packet.nextHeader;
-            iphc_ptr += 1;
+        int decode(IPv6Packet packet, AddrContext[] contexts) {
+            packet.version = 6;
+
+            int tmp;
+            switch (trafficFlow) {
+            case TF_ALL:
+                packet.flowLabel = packet.get24(tfPos + 1);
+                tmp = packet.getData(tfPos);
+                /* IPHC format of tc is ECN | DSCP , original is DSCP | ECN */
+                packet.trafficClass = ((tmp >> 2) & 0x3f) | (tmp << 6) & (0x80 + 0x40);
+                break;
+            case TF_ECN_FL:
+                tmp = packet.getData(tfPos);
+                packet.trafficClass = (tmp >> 6) & 0x0f;
+                packet.flowLabel = packet.get16(tfPos + 1);
+                break;
+            case TF_TC:
+                packet.trafficClass = (packet.getData(tfPos) << 2);
+                break;
+            }
+
+            if (nhPos >= 0) {
+                packet.nextHeader = packet.getData(nhPos);
+            }
+            packet.hopLimit = hopLimit >= 0 ? hopLimit : packet.getData(hlPos);
+
+            int ci = contextId ? packet.getData(2) : 0;
+            source.decode(packet, sourcePos, packet.sourceAddress,
+                    source.usesContext ? contexts[ci >> 4] : null);
+            destination.decode(packet, destinationPos, packet.destAddress,
+                    destination.usesContext ? contexts[ci & 0x0f] : null);
+            return length;
         }
+    }
 
-        /*
-         * Hop limit
-         * if 1: compress, encoding is 01
-         * if 64: compress, encoding is 10
-         * if 255: compress, encoding is 11
-         * else do not compress
-         */
-        switch(packet.hopLimit) {
-        case 1:
-            data[0] |= SICSLOWPAN_IPHC_TTL_1;
-            break;
-        case 64:
-            data[0] |= SICSLOWPAN_IPHC_TTL_64;
-            break;
-        case 255:
-            data[0] |= SICSLOWPAN_IPHC_TTL_255;
-            break;
-        default:
-            data[iphc_ptr] = (byte) packet.hopLimit;
-            iphc_ptr += 1;
-            break;
+    /* decoders for the encodings seen so far, indexed as for HeaderDecoder */
+    private static final HeaderDecoder[] decoders = new HeaderDecoder[1 << 13];
+
+    /*
+     * Compression plan for a flow - the address part of the IPHC header
+     * (the SAC/SAM/M/DAC/DAM flags, the context identifiers and the inline
+     * address bytes) for one source and destination address, next header and
+     * pair of link addresses. Plans are kept in a small direct mapped cache
+     * so the context lookups and address checks are only done for the first
+     * packet of a flow. The cache is cleared when a context changes.
+     */
+    private static final class CompressionPlan {
+        final IPv6Address source;
+        final IPv6Address destination;
+        final byte nextHeader;
+        final byte[] linkSource;
+        final byte[] linkDestination;
+
+        byte iphc1;
+        byte iphc2;
+        byte[] inline;
+
+        CompressionPlan(IPv6Address source, IPv6Address destination, byte nextHeader,
+                byte[] linkSource, byte[] linkDestination) {
+            this.source = source;
+            this.destination = destination;
+            this.nextHeader = nextHeader;
+            this.linkSource = linkSource != null ? linkSource.clone() : null;
+            this.linkDestination = linkDestination != null ? linkDestination.clone() : null;
+        }
+
+        boolean matches(IPv6Address source, IPv6Address destination, byte nextHeader,
+                byte[] linkSource, byte[] linkDestination) {
+            return this.nextHeader == nextHeader && this.source.equals(source)
+                    && this.destination.equals(destination)
+                    && Arrays.equals(this.linkSource, linkSource)
+                    && Arrays.equals(this.linkDestination, linkDestination);
+        }
+    }
+
+    private static final int PLAN_CACHE_SIZE = 64;
+    private final CompressionPlan[] plans = new CompressionPlan[PLAN_CACHE_SIZE];
+
+    private CompressionPlan getPlan(IPv6Packet packet) {
+        IPv6Address source = IPv6Address.of(packet.sourceAddress);
+        IPv6Address destination = IPv6Address.of(packet.destAddress);
+        byte[] linkSource = packet.getLinkSource();
+        byte[] linkDestination = packet.getLinkDestination();
+        int hash = source.hashCode() * 31 + destination.hashCode() + packet.nextHeader;
+        int index = (hash ^ (hash >>> 16)) & (PLAN_CACHE_SIZE - 1);
+        CompressionPlan plan = plans[index];
+        if (plan == null || !plan.matches(source, destination, packet.nextHeader,
+                linkSource, linkDestination)) {
+            plan = new CompressionPlan(source, destination, packet.nextHeader,
+                    linkSource, linkDestination);
+            compilePlan(plan, packet);
+            plans[index] = plan;
+        }
+        return plan;
+    }
+
+    private void compilePlan(CompressionPlan plan, IPv6Packet packet) {
+        /* flags in buf[1], context identifiers in buf[2] and inline bytes from 3 */
+        byte[] buf = new byte[3 + 16 + 17];
+        int iphc_ptr = 3;
+        int srcContext = lookupContext(packet.sourceAddress);
+        int dstContext = lookupContext(packet.destAddress);
+
+        /* check if dest context exists (for allocating third byte) */
+        if(dstContext != -1 || srcContext != -1) {
+            /* set context flag */
+            if (DEBUG) System.out.println("IPHC: compressing dest or src ipaddr - setting CID\n");
+            buf[1] |= SICSLOWPAN_IPHC_CID;
         }
 
-        int context = 0;
+        int context;
         /* source address - cannot be multicast */
         if(packet.isSourceUnspecified()) {
             System.out.println("IPHC: compressing unspecified - setting SAC\n");
-            data[1] |= SICSLOWPAN_IPHC_SAC;
-            data[1] |= SICSLOWPAN_IPHC_SAM_00;
-        } else if((context = lookupContext(packet.sourceAddress)) != -1) {
+            buf[1] |= SICSLOWPAN_IPHC_SAC;
+            buf[1] |= SICSLOWPAN_IPHC_SAM_00;
+        } else if((context = srcContext) != -1) {
             /* elide the prefix - indicate by CID and set context + SAC */
             System.out.println("IPHC: compressing src with context - setting CID & SAC ctx: " +
                     context);
-            data[1] |= SICSLOWPAN_IPHC_CID | SICSLOWPAN_IPHC_SAC;
-            data[2] |= context << 4;
+            buf[1] |= SICSLOWPAN_IPHC_CID | SICSLOWPAN_IPHC_SAC;
+            buf[2] |= context << 4;
             /* compession compare with this nodes address (source) */
             if(packet.isSourceMACBased()){
                 /* elide the IID */
-                data[1] |= SICSLOWPAN_IPHC_SAM_11; /* 0-bits */
+                buf[1] |= SICSLOWPAN_IPHC_SAM_11; /* 0-bits */
             } else {
                 if(is16bitCompressable(packet.sourceAddress)){
                     /* compress IID to 16 bits */
-                    data[1] |= SICSLOWPAN_IPHC_SAM_10; /* 16-bits */
-                    data[iphc_ptr++] = packet.sourceAddress[14];
-                    data[iphc_ptr++] = packet.sourceAddress[15];
+                    buf[1] |= SICSLOWPAN_IPHC_SAM_10; /* 16-bits */
+                    buf[iphc_ptr++] = packet.sourceAddress[14];
+                    buf[iphc_ptr++] = packet.sourceAddress[15];
                 } else {
                     /* do not compress IID */
-                    data[1] |= SICSLOWPAN_IPHC_SAM_01; /* 64-bits */
-                    System.arraycopy(packet.sourceAddress, 8, data, iphc_ptr, 8);
+                    buf[1] |= SICSLOWPAN_IPHC_SAM_01; /* 64-bits */
+                    System.arraycopy(packet.sourceAddress, 8, buf, iphc_ptr, 8);
                     iphc_ptr += 8;
                 }
             }
@@ -264,72 +585,72 @@ public class IPHCPacketer implements IPPacketer {
         } else if(IPStack.isLinkLocal(packet.sourceAddress)) {
             // TODO: make a function of this: compress_ll_iphc(&UIP_IP_BUF->srcipaddr);
             if(packet.isSourceMACBased()){
-                data[1] |= SICSLOWPAN_IPHC_SAM_11; /* 0-bits */
+                buf[1] |= SICSLOWPAN_IPHC_SAM_11; /* 0-bits */
             } else if(is16bitCompressable(packet.sourceAddress)){
                 /* compress IID to 16 bits fe80::XXXX */
-                data[1] |= SICSLOWPAN_IPHC_SAM_10; /* 16-bits */
-                data[iphc_ptr++] = packet.sourceAddress[14];
-                data[iphc_ptr++] = packet.sourceAddress[15];
+                buf[1] |= SICSLOWPAN_IPHC_SAM_10; /* 16-bits */
+                buf[iphc_ptr++] = packet.sourceAddress[14];
+                buf[iphc_ptr++] = packet.sourceAddress[15];
                 iphc_ptr += 2;
             } else {
                 /* do not compress IID => fe80::IID */
-                data[1] |= SICSLOWPAN_IPHC_SAM_01; /* 64-bits */
-                System.arraycopy(packet.sourceAddress, 8, data, iphc_ptr, 8);
+                buf[1] |= SICSLOWPAN_IPHC_SAM_01; /* 64-bits */
+                System.arraycopy(packet.sourceAddress, 8, buf, iphc_ptr, 8);
                 iphc_ptr += 8;
             }
         } else {
             /* send the full address => SAC = 0, SAM = 00 */
-            data[1] |= SICSLOWPAN_IPHC_SAM_00; /* 128-bits */
-            System.arraycopy(packet.sourceAddress, 0, data, iphc_ptr, 16);
+            buf[1] |= SICSLOWPAN_IPHC_SAM_00; /* 128-bits */
+            System.arraycopy(packet.sourceAddress, 0, buf, iphc_ptr, 16);
             iphc_ptr += 16;
         }
 
         /* dest address*/
         if(packet.isMulticastDestination()) {
             /* Address is multicast, try to compress */
-            data[1] |= SICSLOWPAN_IPHC_M;
+            buf[1] |= SICSLOWPAN_IPHC_M;
             if(isMcastAddrCompressable8(packet.destAddress)) {
-                data[1] |= SICSLOWPAN_IPHC_DAM_11;
+                buf[1] |= SICSLOWPAN_IPHC_DAM_11;
                 /* use last byte */
-                data[iphc_ptr++] = packet.destAddress[15];
+                buf[iphc_ptr++] = packet.destAddress[15];
             } else if(isMcastAddrCompressable32(packet.destAddress)){
-                data[1] |= SICSLOWPAN_IPHC_DAM_10;
+                buf[1] |= SICSLOWPAN_IPHC_DAM_10;
                 /* second byte + the last three */
-                data[iphc_ptr] = packet.destAddress[1];
-                System.arraycopy(packet.destAddress, 13, data, iphc_ptr + 1, 3);
+                buf[iphc_ptr] = packet.destAddress[1];
+                System.arraycopy(packet.destAddress, 13, buf, iphc_ptr + 1, 3);
                 iphc_ptr += 4;
             } else if(isMcastAddrCompressable48(packet.destAddress)){
-                data[1] |= SICSLOWPAN_IPHC_DAM_01;
+                buf[1] |= SICSLOWPAN_IPHC_DAM_01;
                 /* second byte + the last five */
-                data[iphc_ptr] = packet.destAddress[1];
-                System.arraycopy(packet.destAddress, 11, data, iphc_ptr + 1, 5);
+                buf[iphc_ptr] = packet.destAddress[1];
+                System.arraycopy(packet.destAddress, 11, buf, iphc_ptr + 1, 5);
                 iphc_ptr += 6;
             } else {
-                data[1] |= SICSLOWPAN_IPHC_DAM_00;
+                buf[1] |= SICSLOWPAN_IPHC_DAM_00;
                 /* full address */
-                System.arraycopy(packet.destAddress, 0, data, iphc_ptr + 1, 16);
+                System.arraycopy(packet.destAddress, 0, buf, iphc_ptr + 1, 16);
                 iphc_ptr += 16;
             }
         } else {
             /* Address is unicast, try to compress */
-            if((context = lookupContext(packet.destAddress)) != -1) {
+            if((context = dstContext) != -1) {
                 /* elide the prefix */
-                data[1] |= SICSLOWPAN_IPHC_DAC;
-                data[2] |= context;
+                buf[1] |= SICSLOWPAN_IPHC_DAC;
+                buf[2] |= context;
                 /* compession compare with link adress (destination) */
                 if(packet.isDestinationMACBased()) {
                     /* elide the IID */
-                    data[1] |= SICSLOWPAN_IPHC_DAM_11; /* 0-bits */
+                    buf[1] |= SICSLOWPAN_IPHC_DAM_11; /* 0-bits */
                 } else {
                     if(is16bitCompressable(packet.destAddress)) {
                         /* compress IID to 16 bits */
-                        data[1] |= SICSLOWPAN_IPHC_DAM_10; /* 16-bits */
-                        data[iphc_ptr++] = packet.destAddress[14];
-                        data[iphc_ptr++] = packet.destAddress[15];
+                        buf[1] |= SICSLOWPAN_IPHC_DAM_10; /* 16-bits */
+                        buf[iphc_ptr++] = packet.destAddress[14];
+                        buf[iphc_ptr++] = packet.destAddress[15];
                     } else {
                         /* do not compress IID */
-                        data[1] |= SICSLOWPAN_IPHC_DAM_01; /* 64-bits */
-                        System.arraycopy(packet.destAddress, 8, data, iphc_ptr, 8);
+                        buf[1] |= SICSLOWPAN_IPHC_DAM_01; /* 64-bits */
+                        System.arraycopy(packet.destAddress, 8, buf, iphc_ptr, 8);
                         iphc_ptr += 8;
                     }
                 }
@@ -337,53 +658,96 @@ public class IPHCPacketer implements IPPacketer {
             } else if(IPStack.isLinkLocal(packet.destAddress)) {
                 // TODO: make a function of this: compress_ll_iphc(&UIP_IP_BUF->destipaddr);
                 if(packet.isDestinationMACBased()) {
-                    data[1] |= SICSLOWPAN_IPHC_DAM_11; /* 0-bits */
+                    buf[1] |= SICSLOWPAN_IPHC_DAM_11; /* 0-bits */
                 } else if(is16bitCompressable(packet.destAddress)){
                     /* compress IID to 16 bits fe80::XXXX */
-                    data[1] |= SICSLOWPAN_IPHC_DAM_10; /* 16-bits */
-                    data[iphc_ptr++] = packet.destAddress[14];
-                    data[iphc_ptr++] = packet.destAddress[15];
+                    buf[1] |= SICSLOWPAN_IPHC_DAM_10; /* 16-bits */
+                    buf[iphc_ptr++] = packet.destAddress[14];
+                    buf[iphc_ptr++] = packet.destAddress[15];
                 } else {
                     /* do not compress IID => fe80::IID */
-                    data[1] |= SICSLOWPAN_IPHC_DAM_01; /* 64-bits */
-                    System.arraycopy(packet.destAddress, 8, data, iphc_ptr, 8);
+                    buf[1] |= SICSLOWPAN_IPHC_DAM_01; /* 64-bits */
+                    System.arraycopy(packet.destAddress, 8, buf, iphc_ptr, 8);
                     iphc_ptr += 8;
                 }
             } else {
                 /* send the full address */
-                data[1] |= SICSLOWPAN_IPHC_DAM_00; /* 128-bits */
-                System.arraycopy(packet.destAddress, 0, data, iphc_ptr, 16);
+                buf[1] |= SICSLOWPAN_IPHC_DAM_00; /* 128-bits */
+                System.arraycopy(packet.destAddress, 0, buf, iphc_ptr, 16);
                 iphc_ptr += 16;
             }
         }
 
+        plan.iphc1 = buf[1];
+        plan.iphc2 = buf[2];
+        plan.inline = Arrays.copyOfRange(buf, 3, iphc_ptr);
+    }
+
+    public byte[] generatePacketData(IPv6Packet packet) {
+        byte[] pload = getPayloadData(packet);
+        int ploadLen = pload != null ? pload.length : getPayloadLength(packet);
+        byte[] data = new byte[getMaxHeaderLength() + ploadLen];
+        int len = writeHeaders(packet, pload, data, 0);
+        return len == data.length ? data : Arrays.copyOf(data, len);
+    }
+
+    /*
+     * Serializes the packet into its own packet data in a single pass. The
+     * compressed header is written directly in front of the payload and
+     * headroom bytes are left before it for the lower layer headers.
+     */
+    public void writePacketData(IPv6Packet packet, int headroom) {
+        byte[] pload = getPayloadData(packet);
+        int ploadLen = pload != null ? pload.length : getPayloadLength(packet);
+        byte[] data = new byte[headroom + getMaxHeaderLength() + ploadLen];
+        int len = writeHeaders(packet, pload, data, headroom);
+        packet.setOwnedBytes(data, headroom, len);
+    }
+
+    private int getMaxHeaderLength() {
+        return routingHeaderCompression ? MAX_HEADER_LENGTH + MAX_6LORH_GROWTH : MAX_HEADER_LENGTH;
+    }
+
+    private int writeHeaders(IPv6Packet packet, byte[] pload, byte[] data, int hdr) {
+        if (routingHeaderCompression && pload != null) {
+            int len = write6LoRH(packet, pload, data, hdr);
+            if (len > 0) {
+                return len;
+            }
+        }
+        return writePacketData(packet, pload, data, hdr);
+    }
+
+    /* generated payload or null if the payload is written from the UDP packet */
+    private byte[] getPayloadData(IPv6Packet packet) {
+        if (packet.getIPPayload() instanceof UDPPacket) {
+            return null;
+        }
+        return packet.getIPPayload().generatePacketData(packet);
+    }
+
+    private int getPayloadLength(IPv6Packet packet) {
+        return ((UDPPacket) packet.getIPPayload()).getPayloadLength();
+    }
+
+    /* writes the IPHC header at hdr followed by the payload - returns the length */
+    private int writePacketData(IPv6Packet packet, byte[] pload, byte[] data, int hdr) {
+        /* Next header compression - UDP from the UDP packet or headers in the payload */
+        boolean compressNextHeader = pload == null || getNHCHeaderLength(packet.nextHeader & 0xff, pload, 0) > 0;
+        int iphc_ptr = writeIPHCHeader(packet, compressNextHeader, data, hdr);
+
         /* UDP header compression */
-        if(packet.nextHeader == UDPPacket.DISPATCH) {
+        if(pload == null) {
             UDPPacket udp = (UDPPacket) packet.getIPPayload();
-            if( udp.sourcePort  >= SICSLOWPAN_UDP_PORT_MIN &&
-                    udp.sourcePort <  SICSLOWPAN_UDP_PORT_MAX &&
-                    udp.destinationPort >= SICSLOWPAN_UDP_PORT_MIN &&
-                    udp.destinationPort <  SICSLOWPAN_UDP_PORT_MAX) {
-                /* we can compress. Copy compressed ports, full chcksum */
-                data[iphc_ptr++] = (byte) (((udp.sourcePort - SICSLOWPAN_UDP_PORT_MIN) << 4) +
-                        (udp.destinationPort - SICSLOWPAN_UDP_PORT_MIN));
-                int checksum = udp.doVirtualChecksum(packet);
-                data[iphc_ptr++] = (byte) (checksum >> 8);
-                data[iphc_ptr++] = (byte) (checksum & 0xff);
-            } else {
-                /* we cannot compress. Copy uncompressed ports, full chcksum */
-                data[iphc_ptr++] = (byte) (udp.sourcePort >> 8);
-                data[iphc_ptr++] = (byte) (udp.sourcePort & 0xff);
-                data[iphc_ptr++] = (byte) (udp.destinationPort >> 8);
-                data[iphc_ptr++] = (byte) (udp.destinationPort & 0xff);
-                int checksum = udp.doVirtualChecksum(packet);
-                data[iphc_ptr++] = (byte) (checksum >> 8);
-                data[iphc_ptr++] = (byte) (checksum & 0xff);
-            }
+            iphc_ptr = writeUDPHeader(data, iphc_ptr, udp.sourcePort, udp.destinationPort,
+                    udp.calculateChecksum(packet));
+        } else if(compressNextHeader) {
+            /* extension headers, encapsulated IPv6 or UDP in the payload */
+            return writeCompressedHeaders(packet, pload, packet.nextHeader & 0xff, data, iphc_ptr) - hdr;
         }
 
 
-        if (DEBUG) System.out.println("IPHC Header compression: size " + iphc_ptr);
+        if (DEBUG) System.out.println("IPHC Header compression: size " + (iphc_ptr - hdr));
         if (DEBUG) {
             Formatter f = new Formatter(System.out);
             System.out.print("IPHC: From ");
@@ -392,27 +756,481 @@ public class IPHCPacketer implements IPPacketer {
             IPv6Packet.printAddress(f, packet.destAddress);
             System.out.println();
         }
-        byte[] pload;
-        if (packet.nextHeader == UDPPacket.DISPATCH) {
+        int ploadLen;
+        if (pload == null) {
             UDPPacket udp = (UDPPacket) packet.getIPPayload();
             /* already have the udp header */
-            pload = udp.payload;
+            ploadLen = udp.payloadLength;
+            if (udp.payload != null) {
+                System.arraycopy(udp.payload, udp.payloadOffset, data, iphc_ptr, ploadLen);
+            }
         } else {
-            IPPayload payload = packet.getIPPayload();
-            pload = payload.generatePacketData(packet);
+            ploadLen = pload.length;
+            System.arraycopy(pload, 0, data, iphc_ptr, ploadLen);
         }
-        if (DEBUG) System.out.println("IPHC Payload size: " + pload.length);
+        if (DEBUG) System.out.println("IPHC Payload size: " + ploadLen);
 
-        byte[] dataPacket = new byte[iphc_ptr + pload.length];
-        System.arraycopy(data, 0, dataPacket, 0, iphc_ptr);
-        System.arraycopy(pload, 0, dataPacket, iphc_ptr, pload.length);
-        return dataPacket;
+        return iphc_ptr - hdr + ploadLen;
+    }
+
+    /*
+     * Writes the IPHC header without the compressed next headers at hdr.
+     * Returns the position after it.
+     */
+    int writeIPHCHeader(IPv6Packet packet, boolean compressNextHeader, byte[] data, int hdr) {
+        int iphc_ptr = hdr + 2;
+
+        CompressionPlan plan = getPlan(packet);
+
+        data[hdr] = SICSLOWPAN_DISPATCH_IPHC;
+        data[hdr + 1] = plan.iphc1;
+        data[hdr + 2] = plan.iphc2; /* might not be used - overwritten by the inline fields then */
+
+        if ((plan.iphc1 & SICSLOWPAN_IPHC_CID) != 0) {
+            /* context identifier in the third byte */
+            iphc_ptr++;
+        }
+
+        /*
+         * Traffic class, flow label
+         * If flow label is 0, compress it. If traffic class is 0, compress it
+         * We have to process both in the same time as the offset of traffic class
+         * depends on the presence of version and flow label
+         */
+
+        /* IPHC format of tc is ECN | DSCP , original is DSCP | ECN */
+        int tmp = (packet.trafficClass << 6) & 0xff | (packet.trafficClass >> 2);
+
+        if(packet.flowLabel == 0) {
+            /* flow label can be compressed */
+            data[hdr] |= SICSLOWPAN_IPHC_FL_C;
+            if(packet.trafficClass == 0) {
+                /* compress (elide) all */
+                data[hdr] |= SICSLOWPAN_IPHC_TC_C;
+            } else {
+                /* compress only the flow label */
+                data[iphc_ptr] = (byte) (tmp & 0xff);
+                iphc_ptr += 1;
+            }
+        } else {
+            /* Flow label cannot be compressed - maybe check traffic class 0x3f */
+            if((packet.trafficClass & 0x03) == 0) {
+                /* compress only traffic class */
+                data[hdr] |= SICSLOWPAN_IPHC_TC_C;
+                data[iphc_ptr] = (byte) ((tmp & 0xc0) | (packet.flowLabel >> 16) & 0x0f);
+                data[iphc_ptr + 1] = (byte) ((packet.flowLabel >> 8) & 0xff);
+                data[iphc_ptr + 2] = (byte) (packet.flowLabel & 0xff);
+                iphc_ptr += 3;
+            } else {
+                /* compress nothing */
+                data[iphc_ptr] = (byte) tmp;
+                /* but replace the top byte with the new ECN | DSCP format*/
+                data[iphc_ptr + 1] = (byte) ((packet.flowLabel >> 16) & 0x0f);
+                data[iphc_ptr + 2] = (byte) ((packet.flowLabel >> 8) & 0xff);
+                data[iphc_ptr + 3] = (byte) (packet.flowLabel & 0xff);
+                iphc_ptr += 4;
+            }
+        }
+
+        if(compressNextHeader) {
+            data[hdr] |= SICSLOWPAN_IPHC_NH_C;
+        } else {
+            data[iphc_ptr] = packet.nextHeader;
+            iphc_ptr += 1;
+        }
+
+        /*
+         * Hop limit
+         * if 1: compress, encoding is 01
+         * if 64: compress, encoding is 10
+         * if 255: compress, encoding is 11
+         * else do not compress
+         */
+        switch(packet.hopLimit) {
+        case 1:
+            data[hdr] |= SICSLOWPAN_IPHC_TTL_1;
+            break;
+        case 64:
+            data[hdr] |= SICSLOWPAN_IPHC_TTL_64;
+            break;
+        case 255:
+            data[hdr] |= SICSLOWPAN_IPHC_TTL_255;
+            break;
+        default:
+            data[iphc_ptr] = (byte) packet.hopLimit;
+            iphc_ptr += 1;
+            break;
+        }
+
+        /* addresses - inline bytes from the compression plan */
+        System.arraycopy(plan.inline, 0, data, iphc_ptr, plan.inline.length);
+        iphc_ptr += plan.inline.length;
+
+        return iphc_ptr;
     }
 
     public byte getDispatch() {
         return 0;
     }
 
+    /*
+     * Length of the uncompressed header at off in the payload if it can be
+     * compressed with NHC, otherwise -1.
+     */
+    private static int getNHCHeaderLength(int nextHeader, byte[] pload, int off) {
+        int remaining = pload.length - off;
+        switch (nextHeader) {
+        case PROTO_UDP:
+        case PROTO_FRAGMENT:
+            return remaining >= 8 ? 8 : -1;
+        case PROTO_IPV6:
+            return remaining >= 40 && (pload[off] & 0xf0) == 0x60 ? 40 : -1;
+        case PROTO_HOPOPTS:
+        case PROTO_ROUTING:
+        case PROTO_DESTOPTS:
+        case PROTO_MOBILITY:
+            if (remaining < 2) {
+                return -1;
+            }
+            int len = ((pload[off + 1] & 0xff) + 1) * 8;
+            /* the NHC length field is one byte */
+            return len <= remaining && len - 2 <= 0xff ? len : -1;
+        default:
+            return -1;
+        }
+    }
+
+    private static int getExtensionId(int nextHeader) {
+        switch (nextHeader) {
+        case PROTO_HOPOPTS:
+            return SICSLOWPAN_NHC_EID_HOPOPTS;
+        case PROTO_ROUTING:
+            return SICSLOWPAN_NHC_EID_ROUTING;
+        case PROTO_FRAGMENT:
+            return SICSLOWPAN_NHC_EID_FRAGMENT;
+        case PROTO_DESTOPTS:
+            return SICSLOWPAN_NHC_EID_DESTOPTS;
+        case PROTO_MOBILITY:
+            return SICSLOWPAN_NHC_EID_MOBILITY;
+        case PROTO_IPV6:
+            return SICSLOWPAN_NHC_EID_IPV6;
+        default:
+            return -1;
+        }
+    }
+
+    private static int getExtensionProtocol(int eid) {
+        switch (eid) {
+        case SICSLOWPAN_NHC_EID_HOPOPTS:
+            return PROTO_HOPOPTS;
+        case SICSLOWPAN_NHC_EID_ROUTING:
+            return PROTO_ROUTING;
+        case SICSLOWPAN_NHC_EID_FRAGMENT:
+            return PROTO_FRAGMENT;
+        case SICSLOWPAN_NHC_EID_DESTOPTS:
+            return PROTO_DESTOPTS;
+        case SICSLOWPAN_NHC_EID_MOBILITY:
+            return PROTO_MOBILITY;
+        case SICSLOWPAN_NHC_EID_IPV6:
+            return PROTO_IPV6;
+        default:
+            return -1;
+        }
+    }
+
+    private static boolean isPort4Bit(int port) {
+        return port >= SICSLOWPAN_UDP_PORT_MIN && port <= SICSLOWPAN_UDP_PORT_MAX;
+    }
+
+    private static boolean isPort8Bit(int port) {
+        return port >= SICSLOWPAN_UDP_8_BIT_PORT_MIN && port <= SICSLOWPAN_UDP_8_BIT_PORT_MAX;
+    }
+
+    /* writes the NHC UDP header - returns the position after it */
+    private int writeUDPHeader(byte[] data, int pos, int srcPort, int destPort, int checksum) {
+        int nhc = pos++;
+        if (isPort4Bit(srcPort) && isPort4Bit(destPort)) {
+            /* 4 bits for each port */
+            data[nhc] = (byte) SICSLOWPAN_NHC_UDP_CS_P11;
+            data[pos++] = (byte) (((srcPort - SICSLOWPAN_UDP_PORT_MIN) << 4) +
+                    (destPort - SICSLOWPAN_UDP_PORT_MIN));
+        } else if (isPort8Bit(destPort)) {
+            /* source port inline, 8 bits of destination port */
+            data[nhc] = (byte) SICSLOWPAN_NHC_UDP_CS_P01;
+            data[pos++] = (byte) (srcPort >> 8);
+            data[pos++] = (byte) (srcPort & 0xff);
+            data[pos++] = (byte) (destPort - SICSLOWPAN_UDP_8_BIT_PORT_MIN);
+        } else if (isPort8Bit(srcPort)) {
+            /* 8 bits of source port, destination port inline */
+            data[nhc] = (byte) SICSLOWPAN_NHC_UDP_CS_P10;
+            data[pos++] = (byte) (srcPort - SICSLOWPAN_UDP_8_BIT_PORT_MIN);
+            data[pos++] = (byte) (destPort >> 8);
+            data[pos++] = (byte) (destPort & 0xff);
+        } else {
+            /* we cannot compress. Copy uncompressed ports */
+            data[nhc] = (byte) SICSLOWPAN_NHC_UDP_CS_P00;
+            data[pos++] = (byte) (srcPort >> 8);
+            data[pos++] = (byte) (srcPort & 0xff);
+            data[pos++] = (byte) (destPort >> 8);
+            data[pos++] = (byte) (destPort & 0xff);
+        }
+        if (udpChecksumElision) {
+            data[nhc] |= SICSLOWPAN_NHC_UDP_CHECKSUM_COMPR;
+        } else {
+            data[pos++] = (byte) (checksum >> 8);
+            data[pos++] = (byte) (checksum & 0xff);
+        }
+        return pos;
+    }
+
+    /*
+     * Compresses the uncompressed extension headers, encapsulated IPv6 header
+     * and UDP header at the start of the payload with NHC and writes them
+     * followed by the rest of the payload - returns the end position.
+     */
+    private int writeCompressedHeaders(IPv6Packet packet, byte[] pload, int nextHeader, byte[] data, int pos) {
+        int off = 0;
+        int len;
+        while ((len = getNHCHeaderLength(nextHeader, pload, off)) > 0) {
+            if (nextHeader == PROTO_UDP) {
+                int srcPort = ((pload[off] & 0xff) << 8) | (pload[off + 1] & 0xff);
+                int destPort = ((pload[off + 2] & 0xff) << 8) | (pload[off + 3] & 0xff);
+                int checksum = ((pload[off + 6] & 0xff) << 8) | (pload[off + 7] & 0xff);
+                pos = writeUDPHeader(data, pos, srcPort, destPort, checksum);
+                off += len;
+                break;
+            }
+            int eid = getExtensionId(nextHeader);
+            if (eid == SICSLOWPAN_NHC_EID_IPV6) {
+                /* the encapsulated header is compressed with IPHC */
+                data[pos++] = (byte) (SICSLOWPAN_NHC_EXT_ID | (eid << 1) | SICSLOWPAN_NHC_EXT_NH);
+                IPv6Packet inner = new IPv6Packet();
+                inner.setBytes(pload, off, pload.length - off);
+                inner.parsePacketData(inner);
+                inner.attributes = packet.attributes;
+                byte[] innerPayload = Arrays.copyOfRange(pload, off + len, pload.length);
+                return pos + writePacketData(inner, innerPayload, data, pos);
+            }
+            int next = pload[off] & 0xff;
+            boolean nextCompressed = getNHCHeaderLength(next, pload, off + len) > 0;
+            data[pos++] = (byte) (SICSLOWPAN_NHC_EXT_ID | (eid << 1) |
+                    (nextCompressed ? SICSLOWPAN_NHC_EXT_NH : 0));
+            if (!nextCompressed) {
+                data[pos++] = (byte) next;
+            }
+            /* the length of the header after the length field */
+            data[pos++] = (byte) (len - 2);
+            System.arraycopy(pload, off + 2, data, pos, len - 2);
+            pos += len - 2;
+            off += len;
+            nextHeader = next;
+            if (!nextCompressed) {
+                break;
+            }
+        }
+        System.arraycopy(pload, off, data, pos, pload.length - off);
+        return pos + pload.length - off;
+    }
+
+    /*
+     * Compresses a RPL option, a RPL source routing header and an
+     * encapsulated IPv6 header at the start of the payload into RFC 8138
+     * 6LoRHs in page 1 - RH3, RPI and IP-in-IP in that order - followed by
+     * the IPHC header of the innermost header. With IP-in-IP the first hop
+     * of the route is the destination of the encapsulating header and
+     * without a route it is the inner destination. Returns the length or -1
+     * if the headers are not compressed this way.
+     */
+    private int write6LoRH(IPv6Packet packet, byte[] pload, byte[] data, int hdr) {
+        int nh = packet.nextHeader & 0xff;
+        int off = 0;
+
+        boolean rpi = false;
+        if (nh == PROTO_HOPOPTS && isRPLOptionOnly(pload)) {
+            rpi = true;
+            nh = pload[0] & 0xff;
+            off = 8;
+        }
+
+        IPv6Address[] route = null;
+        if (nh == PROTO_ROUTING && pload.length - off >= 8
+                && pload[off + 2] == RoutingHeader.TYPE_RPL_SOURCE_ROUTE) {
+            IPv6Packet view = new IPv6Packet();
+            view.destAddress = packet.destAddress;
+            view.setBytes(pload, off, pload.length - off);
+            RoutingHeader rh = new RoutingHeader();
+            rh.parsePacketData(view);
+            IPv6Address[] addresses = rh.getAddresses();
+            int segmentsLeft = rh.getSegmentsLeft();
+            if (segmentsLeft == 0 || segmentsLeft > addresses.length) {
+                return -1;
+            }
+            /* the visited addresses are dropped */
+            route = Arrays.copyOfRange(addresses, addresses.length - segmentsLeft, addresses.length);
+            nh = rh.getNextHeader() & 0xff;
+            off += rh.len;
+        }
+
+        IPv6Packet header;
+        boolean ipInIp = nh == PROTO_IPV6 && pload.length - off >= 40 && (pload[off] & 0xf0) == 0x60;
+        if (ipInIp) {
+            header = new IPv6Packet();
+            header.setBytes(pload, off, 40);
+            header.parsePacketData(header);
+            header.attributes = packet.attributes;
+            off += 40;
+            if (packet.trafficClass != 0 || packet.flowLabel != 0) {
+                return -1;
+            }
+            if (route == null) {
+                if (!Arrays.equals(packet.destAddress, header.destAddress)) {
+                    return -1;
+                }
+            } else {
+                IPv6Address[] hops = new IPv6Address[route.length + 1];
+                hops[0] = IPv6Address.of(packet.destAddress);
+                System.arraycopy(route, 0, hops, 1, route.length);
+                route = hops;
+            }
+        } else if (rpi || route != null) {
+            header = new IPv6Packet();
+            header.trafficClass = packet.trafficClass;
+            header.flowLabel = packet.flowLabel;
+            header.hopLimit = packet.hopLimit;
+            header.nextHeader = (byte) nh;
+            header.sourceAddress = packet.sourceAddress;
+            header.destAddress = packet.destAddress;
+            header.attributes = packet.attributes;
+        } else {
+            return -1;
+        }
+        byte[] rest = Arrays.copyOfRange(pload, off, pload.length);
+
+        /* all 6LoRHs at their largest */
+        int maxLen = 1 + (route != null ? route.length * 18 : 0) + 6 + 19;
+        if (hdr + maxLen + MAX_HEADER_LENGTH + rest.length > data.length) {
+            return -1;
+        }
+
+        int pos = hdr;
+        data[pos++] = (byte) SICSLOWPAN_DISPATCH_PAGE1;
+        if (route != null) {
+            pos = writeRH3(data, pos, packet.sourceAddress, route);
+        }
+        if (rpi) {
+            int flags = pload[4] & 0xff;
+            int instance = pload[5] & 0xff;
+            int rank = ((pload[6] & 0xff) << 8) | (pload[7] & 0xff);
+            int b = SICSLOWPAN_6LORH_ID;
+            if ((flags & HopByHopOption.RPL_FLAG_DOWN) != 0) {
+                b |= SICSLOWPAN_6LORH_RPI_O;
+            }
+            if ((flags & HopByHopOption.RPL_FLAG_RANK_ERROR) != 0) {
+                b |= SICSLOWPAN_6LORH_RPI_R;
+            }
+            if ((flags & HopByHopOption.RPL_FLAG_FORWARD_ERROR) != 0) {
+                b |= SICSLOWPAN_6LORH_RPI_F;
+            }
+            if (instance == 0) {
+                b |= SICSLOWPAN_6LORH_RPI_I;
+            }
+            if (rank < 0x100) {
+                b |= SICSLOWPAN_6LORH_RPI_K;
+            }
+            data[pos++] = (byte) b;
+            data[pos++] = SICSLOWPAN_6LORH_TYPE_RPI;
+            if (instance != 0) {
+                data[pos++] = (byte) instance;
+            }
+            if (rank >= 0x100) {
+                data[pos++] = (byte) (rank >> 8);
+            }
+            data[pos++] = (byte) rank;
+        }
+        if (ipInIp) {
+            /* the hop limit and the encapsulator - elided for the root */
+            boolean elided = rootAddress != null && Arrays.equals(rootAddress, packet.sourceAddress);
+            data[pos++] = (byte) (SICSLOWPAN_6LORH_ID | SICSLOWPAN_6LORH_ELECTIVE | (elided ? 1 : 17));
+            data[pos++] = SICSLOWPAN_6LORH_TYPE_IPINIP;
+            data[pos++] = (byte) packet.hopLimit;
+            if (!elided) {
+                System.arraycopy(packet.sourceAddress, 0, data, pos, 16);
+                pos += 16;
+            }
+        }
+        return pos - hdr + writePacketData(header, rest, data, pos);
+    }
+
+    /* a hop-by-hop header with only a RPL option */
+    private static boolean isRPLOptionOnly(byte[] pload) {
+        if (pload.length < 8 || pload[1] != 0 || pload[3] != 4) {
+            return false;
+        }
+        int type = pload[2] & 0xff;
+        return type == HopByHopOption.OPTION_RPL || type == HopByHopOption.OPTION_RPL_NEW;
+    }
+
+    /*
+     * Writes the hops as RH3-6LoRHs. Each address is compressed against the
+     * previous one - the first against the source - and consecutive hops of
+     * the same size share a 6LoRH.
+     */
+    private static int writeRH3(byte[] data, int pos, byte[] source, IPv6Address[] hops) {
+        byte[] reference = source;
+        int i = 0;
+        while (i < hops.length) {
+            byte[] address = hops[i].getBytes();
+            int type = getRH3Type(address, reference);
+            int size = 1 << type;
+            int start = pos;
+            pos += 2;
+            int count = 0;
+            do {
+                System.arraycopy(address, 16 - size, data, pos, size);
+                pos += size;
+                reference = address;
+                count++;
+                i++;
+                if (i < hops.length) {
+                    address = hops[i].getBytes();
+                }
+            } while (i < hops.length && count < SICSLOWPAN_6LORH_RH3_MAX_HOPS
+                    && getRH3Type(address, reference) == type);
+            data[start] = (byte) (SICSLOWPAN_6LORH_ID | (count - 1));
+            data[start + 1] = (byte) type;
+        }
+        return pos;
+    }
+
+    /* the smallest RH3-6LoRH type - 1, 2, 4, 8 or 16 bytes - for the address */
+    private static int getRH3Type(byte[] address, byte[] reference) {
+        int prefix = 0;
+        while (prefix < 16 && address[prefix] == reference[prefix]) {
+            prefix++;
+        }
+        int type = 0;
+        while (type < SICSLOWPAN_6LORH_TYPE_RH3_MAX && 16 - (1 << type) > prefix) {
+            type++;
+        }
+        return type;
+    }
+
+    /*
+     * Splits a packet written by writePacketData into FRAG1/FRAGN fragments
+     * of at most maxLength bytes, with headroom bytes in front of each for
+     * the lower layer headers. Returns null if the packet fits in one frame.
+     */
+    public MacPacket[] fragment(IPv6Packet packet, int maxLength, int headroom) {
+        if (packet.getPayloadLength() <= maxLength) {
+            return null;
+        }
+        /* the header sizes as the receiver will see them */
+        IPv6Packet view = new IPv6Packet(packet);
+        int headerSize = decompress(view, false);
+        int compressedHeaderSize = view.currentPos - packet.currentPos;
+        return fragmenter.fragment(packet, headerSize, compressedHeaderSize, maxLength, headroom);
+    }
+
     public boolean parsePacketData(IPv6Packet packet) {
         int headerSize = 0;
         int compressedHeaderSize = 0;
@@ -420,7 +1238,7 @@ public class IPHCPacketer implements IPPacketer {
             /* first fragment need to decompress first to get "size" diff. */
             packet.incPos(4);
             int pos = packet.currentPos;
-            headerSize = decompress(packet);
+            headerSize = decompress(packet, false);
             compressedHeaderSize = packet.currentPos - pos;
             packet.currentPos = pos - 4;
         }
@@ -434,8 +1252,39 @@ public class IPHCPacketer implements IPPacketer {
     }
 
     public int decompress(IPv6Packet packet) {
-        int headerSize = 40;
+        return decompress(packet, true);
+    }
+
+    /* Returns the uncompressed header size - the headers are only written to the packet if apply */
+    int decompress(IPv6Packet packet, boolean apply) {
+        if ((packet.getData(0) & 0xff) == SICSLOWPAN_DISPATCH_PAGE1) {
+            return decompress6LoRH(packet, apply);
+        }
+        return decompressNextHeader(packet, decompressHeader(packet), apply);
+    }
+
+    /*
+     * Decodes the IPHC header with the decoder for its encoding. Returns the
+     * compressed header length.
+     */
+    public int decompressHeader(IPv6Packet packet) {
+        if(DEBUG) {
+            System.out.printf("Packet:%02x%02x\n", packet.getData(0), packet.getData(1));
+        }
+        int index = ((packet.getData(0) & 0x1f) << 8) | (packet.getData(1) & 0xff);
+        HeaderDecoder decoder = decoders[index];
+        if (decoder == null) {
+            decoder = new HeaderDecoder(index);
+            decoders[index] = decoder;
+        }
+        return decoder.decode(packet, contexts);
+    }
 
+    /*
+     * Decodes the IPHC header one field at a time - the reference for the
+     * table driven decompressHeader(). Returns the compressed header length.
+     */
+    public int decompressHeaderSequential(IPv6Packet packet) {
         if(DEBUG) {
             System.out.printf("Packet:%02x%02x\n", packet.getData(0), packet.getData(1));
         }
@@ -456,12 +1305,6 @@ public class IPHCPacketer implements IPPacketer {
         int iphc_ptr = 2 + cid;
 
         packet.version = 6;
-        UDPPacket udp = null;
-
-        int checkSum = 0;
-        int srcPort = 0;
-        int destPort = 0;
-
         /* Traffic class and flow label */
         if((packet.getData(0) & SICSLOWPAN_IPHC_FL_C) == 0) {
             /* Flow label are carried inline */
@@ -529,7 +1372,7 @@ public class IPHCPacketer implements IPPacketer {
             switch(packet.getData(1) & SICSLOWPAN_IPHC_SAM_11) {
             case SICSLOWPAN_IPHC_SAM_00:
                 /* copy the unspecificed address */
-                packet.sourceAddress = IPStack.UNSPECIFIED;
+                System.arraycopy(IPStack.UNSPECIFIED, 0, packet.sourceAddress, 0, 16);
                 break;
             case SICSLOWPAN_IPHC_SAM_01: /* 64 bits */
                 /* copy prefix from context */
@@ -686,49 +1529,33 @@ public class IPHCPacketer implements IPPacketer {
             }
         }
 
+        return iphc_ptr;
+    }
+
+    /*
+     * Decodes the NHC headers and the UDP payload following the IPHC header.
+     * When apply is false only the position is moved past the compressed
+     * headers - for the size of a first fragment.
+     */
+    private int decompressNextHeader(IPv6Packet packet, int iphc_ptr, boolean apply) {
+        int headerSize = 40;
+        UDPPacket udp = null;
+        boolean checksumElided = false;
+
         /* Next header processing - continued */
         if((packet.getData(0) & SICSLOWPAN_IPHC_NH_C) != 0) {
-            /* TODO: check if this is correct in IPHC */
             /* The next header is compressed, NHC is following */
-            if((packet.getData(iphc_ptr) & SICSLOWPAN_NHC_UDP_MASK) == SICSLOWPAN_NHC_UDP_ID) {
+            int nhc = packet.getData(iphc_ptr) & 0xff;
+            if((nhc & SICSLOWPAN_NHC_UDP_MASK) == SICSLOWPAN_NHC_UDP_ID) {
                 packet.nextHeader = PROTO_UDP;
-                boolean checksumCompressed = (packet.getData(iphc_ptr) & SICSLOWPAN_NHC_UDP_CHECKSUM_COMPR) != 0;
-                switch(packet.getData(iphc_ptr) & SICSLOWPAN_NHC_UDP_CS_P11) {
-                case SICSLOWPAN_NHC_UDP_CS_P00:
-                    /* 1 byte for NHC, 4 byte for ports */
-                    srcPort = packet.get16(iphc_ptr + 1);
-                    destPort = packet.get16(iphc_ptr + 3);
-                    iphc_ptr += 5;
-                    break;
-                case SICSLOWPAN_NHC_UDP_CS_P01:
-                case SICSLOWPAN_NHC_UDP_CS_P10:
-                    /* TODO: ADD P01 / P10 also!!!! */
-                    System.err.println("sicslowpan uncompress_hdr: error unsupported UDP compression: "
-                            + (packet.getData(iphc_ptr) & SICSLOWPAN_NHC_UDP_CS_P11));
-                    break;
-                case SICSLOWPAN_NHC_UDP_CS_P11:
-                    /* 1 byte for NHC, 1 byte for ports */
-                    srcPort = SICSLOWPAN_UDP_PORT_MIN + (packet.getData(iphc_ptr + 1) >> 4);
-                    destPort = SICSLOWPAN_UDP_PORT_MIN + (packet.getData(iphc_ptr + 1) & 0x0F);
-                    iphc_ptr += 2;
-                    break;
-                default:
-                    System.err.println("sicslowpan uncompress_hdr: error unsupported UDP compression: "
-                            + (packet.getData(iphc_ptr) & SICSLOWPAN_NHC_UDP_CS_P11));
-                }
-                if (!checksumCompressed) {
-                    checkSum = ((packet.getData(iphc_ptr) & 0xff) << 8) +
-                            (packet.getData(iphc_ptr + 1) & 0xff);
-                    iphc_ptr += 2;
-                }
-
-                udp = new UDPPacket();
-                udp.sourcePort = srcPort;
-                udp.destinationPort = destPort;
-                udp.checkSum = checkSum;
+                udp = packet.newUDPPacket();
+                checksumElided = (nhc & SICSLOWPAN_NHC_UDP_CHECKSUM_COMPR) != 0;
+                iphc_ptr = decodeUDPHeader(packet, iphc_ptr, udp);
                 headerSize += 8;
+            } else if ((nhc & SICSLOWPAN_NHC_EXT_MASK) == SICSLOWPAN_NHC_EXT_ID) {
+                return decompressExtensionHeaders(packet, iphc_ptr, apply);
             } else {
-                System.out.printf("Unsupported next header compression:%02x at %d\n",(packet.getData(iphc_ptr) & 0xFC), iphc_ptr);
+                System.out.printf("Unsupported next header compression:%02x at %d\n", nhc & 0xFC, iphc_ptr);
             }
         }
 
@@ -762,16 +1589,375 @@ public class IPHCPacketer implements IPPacketer {
 
         packet.incPos(iphc_ptr);
 
-        if (udp != null) {
+        if (udp != null && apply) {
             /* if we have a udp payload we already have the udp headers in place */
             /* the rest is only the payload */
-            udp.payload = packet.getPayload();
-            udp.length = udp.payload.length + 8;
+            udp.setPayload(packet, 0, packet.getPayloadLength());
+            udp.length = udp.payloadLength + 8;
             /* add 8 to the payload length of the UDP packet */
             packet.payloadLen += 8;
+            if (checksumElided) {
+                /* the checksum is recomputed by the receiver */
+                udp.checkSum = udp.calculateChecksum(packet);
+            }
             udp.doVirtualChecksum(packet);
             packet.setIPPayload(udp);
         }
         return headerSize;
     }
+
+    /* decodes the NHC UDP header at pos into the UDP packet - returns the position after it */
+    private int decodeUDPHeader(IPv6Packet packet, int pos, UDPPacket udp) {
+        int nhc = packet.getData(pos) & 0xff;
+        switch(nhc & SICSLOWPAN_NHC_UDP_CS_P11) {
+        case SICSLOWPAN_NHC_UDP_CS_P00:
+            /* 1 byte for NHC, 4 byte for ports */
+            udp.sourcePort = packet.get16(pos + 1);
+            udp.destinationPort = packet.get16(pos + 3);
+            pos += 5;
+            break;
+        case SICSLOWPAN_NHC_UDP_CS_P01:
+            /* 1 byte for NHC, 2 byte for source port, 1 byte for destination port */
+            udp.sourcePort = packet.get16(pos + 1);
+            udp.destinationPort = SICSLOWPAN_UDP_8_BIT_PORT_MIN + (packet.getData(pos + 3) & 0xff);
+            pos += 4;
+            break;
+        case SICSLOWPAN_NHC_UDP_CS_P10:
+            /* 1 byte for NHC, 1 byte for source port, 2 byte for destination port */
+            udp.sourcePort = SICSLOWPAN_UDP_8_BIT_PORT_MIN + (packet.getData(pos + 1) & 0xff);
+            udp.destinationPort = packet.get16(pos + 2);
+            pos += 4;
+            break;
+        case SICSLOWPAN_NHC_UDP_CS_P11:
+            /* 1 byte for NHC, 1 byte for ports */
+            udp.sourcePort = SICSLOWPAN_UDP_PORT_MIN + ((packet.getData(pos + 1) & 0xff) >> 4);
+            udp.destinationPort = SICSLOWPAN_UDP_PORT_MIN + (packet.getData(pos + 1) & 0x0F);
+            pos += 2;
+            break;
+        }
+        if ((nhc & SICSLOWPAN_NHC_UDP_CHECKSUM_COMPR) == 0) {
+            udp.checkSum = packet.get16(pos);
+            pos += 2;
+        }
+        return pos;
+    }
+
+    /*
+     * Decodes a chain of NHC extension headers and encapsulated IPv6 headers,
+     * possibly ending with a UDP header, at pos and puts the uncompressed
+     * headers into the packet data in place of the compressed ones so that
+     * they are parsed as any uncompressed headers. When apply is false only
+     * the position is moved past the compressed headers. Returns the
+     * uncompressed header size.
+     */
+    private int decompressExtensionHeaders(IPv6Packet packet, int pos, boolean apply) {
+        byte[] headers = new byte[MAX_HEADER_LENGTH];
+        int len = 0;
+        /* next header field of the previous header - -1 for the IPHC header */
+        int nhPos = -1;
+        /* encapsulated IPv6 headers - the innermost has the UDP pseudo header addresses */
+        int[] ipStarts = new int[2];
+        int ipCount = 0;
+        IPv6Packet ipPacket = packet;
+        int udpStart = -1;
+        boolean checksumElided = false;
+
+        boolean more = true;
+        while (more) {
+            int nhc = packet.getData(pos) & 0xff;
+            if ((nhc & SICSLOWPAN_NHC_UDP_MASK) == SICSLOWPAN_NHC_UDP_ID) {
+                UDPPacket udp = new UDPPacket();
+                checksumElided = (nhc & SICSLOWPAN_NHC_UDP_CHECKSUM_COMPR) != 0;
+                pos = decodeUDPHeader(packet, pos, udp);
+                setNextHeader(packet, headers, nhPos, PROTO_UDP);
+                headers = ensureCapacity(headers, len + 8);
+                udpStart = len;
+                set16(headers, len, udp.sourcePort);
+                set16(headers, len + 2, udp.destinationPort);
+                set16(headers, len + 6, udp.checkSum);
+                len += 8;
+                more = false;
+            } else if ((nhc & SICSLOWPAN_NHC_EXT_MASK) == SICSLOWPAN_NHC_EXT_ID) {
+                int proto = getExtensionProtocol((nhc >> 1) & 0x07);
+                if (proto < 0) {
+                    throw new IllegalStateException("Unsupported NHC extension header: " + Utils.hex8(nhc));
+                }
+                setNextHeader(packet, headers, nhPos, proto);
+                pos++;
+                if (proto == PROTO_IPV6) {
+                    /* encapsulated IPv6 header - compressed with IPHC */
+                    IPv6Packet inner = new IPv6Packet(packet);
+                    inner.incPos(pos);
+                    int hlen = decompressHeader(inner);
+                    headers = ensureCapacity(headers, len + 40);
+                    inner.copyHeader(headers, len, 0);
+                    if (ipCount == ipStarts.length) {
+                        ipStarts = Arrays.copyOf(ipStarts, ipCount * 2);
+                    }
+                    ipStarts[ipCount++] = len;
+                    ipPacket = inner;
+                    nhPos = len + 6;
+                    len += 40;
+                    pos += hlen;
+                    more = (inner.getData(0) & SICSLOWPAN_IPHC_NH_C) != 0;
+                } else {
+                    more = (nhc & SICSLOWPAN_NHC_EXT_NH) != 0;
+                    int next = more ? 0 : packet.getData(pos++);
+                    /* the length of the header after the length field */
+                    int dataLen = packet.getData(pos++) & 0xff;
+                    int hlen;
+                    if (proto == PROTO_FRAGMENT) {
+                        if (dataLen != 6) {
+                            throw new IllegalStateException("NHC fragment header of " + dataLen + " bytes");
+                        }
+                        hlen = 8;
+                    } else {
+                        /* padded to a multiple of 8 bytes */
+                        hlen = (dataLen + 2 + 7) & ~7;
+                    }
+                    headers = ensureCapacity(headers, len + hlen);
+                    headers[len] = (byte) next;
+                    if (proto != PROTO_FRAGMENT) {
+                        headers[len + 1] = (byte) (hlen / 8 - 1);
+                    }
+                    packet.copy(pos, headers, len + 2, dataLen);
+                    if (proto == PROTO_HOPOPTS || proto == PROTO_DESTOPTS) {
+                        setPadding(headers, len + 2 + dataLen, hlen - 2 - dataLen);
+                    }
+                    pos += dataLen;
+                    nhPos = len;
+                    len += hlen;
+                }
+            } else {
+                throw new IllegalStateException("Unsupported next header compression: " + Utils.hex8(nhc));
+            }
+        }
+
+        packet.incPos(pos);
+        if (!apply) {
+            return 40 + len;
+        }
+
+        int remaining = packet.getPayloadLength();
+        for (int i = 0; i < ipCount; i++) {
+            set16(headers, ipStarts[i] + 4, len - ipStarts[i] - 40 + remaining);
+        }
+        if (udpStart >= 0) {
+            int udpLen = len - udpStart + remaining;
+            set16(headers, udpStart + 4, udpLen);
+            if (checksumElided) {
+                /* the checksum is recomputed by the receiver */
+                ipPacket.payloadLen = udpLen;
+                int sum = ipPacket.upperLayerHeaderChecksum((byte) PROTO_UDP);
+                sum = Checksum.add(sum, headers, udpStart, 8);
+                sum = packet.checkSum(sum, 0, remaining);
+                set16(headers, udpStart + 6, Checksum.complement(sum));
+            }
+        }
+
+        /* the uncompressed headers followed by the payload */
+        byte[] data = new byte[packet.currentPos + len + remaining];
+        System.arraycopy(headers, 0, data, packet.currentPos, len);
+        packet.copy(0, data, packet.currentPos + len, remaining);
+        packet.setBytePayloadWithHeadroom(data, packet.currentPos, len + remaining);
+        return 40 + len;
+    }
+
+    /*
+     * Decodes the RFC 8138 6LoRHs in page 1 and the IPHC header following
+     * them. The RPL option, the source routing header and the encapsulated
+     * IPv6 header are put uncompressed into the packet data in front of the
+     * payload, as for the NHC headers. The 6LoRHs are accepted in any order
+     * and unknown elective 6LoRHs are skipped. Returns the uncompressed
+     * header size.
+     */
+    private int decompress6LoRH(IPv6Packet packet, boolean apply) {
+        int pos = 1;
+        boolean rpi = false;
+        int rplFlags = 0;
+        int rplInstance = 0;
+        int senderRank = 0;
+        /* positions of the RH3-6LoRHs - decoded when the reference is known */
+        int[] rh3 = new int[2];
+        int rh3Count = 0;
+        int hopCount = 0;
+        boolean ipInIp = false;
+        int hopLimit = 0;
+        byte[] encapsulator = null;
+
+        int b;
+        while (((b = packet.getData(pos) & 0xff) & SICSLOWPAN_6LORH_MASK) == SICSLOWPAN_6LORH_ID) {
+            int type = packet.getData(pos + 1) & 0xff;
+            if ((b & SICSLOWPAN_6LORH_ELECTIVE) == 0) {
+                if (type <= SICSLOWPAN_6LORH_TYPE_RH3_MAX) {
+                    if (rh3Count == rh3.length) {
+                        rh3 = Arrays.copyOf(rh3, rh3Count * 2);
+                    }
+                    rh3[rh3Count++] = pos;
+                    int count = (b & 0x1f) + 1;
+                    hopCount += count;
+                    pos += 2 + count * (1 << type);
+                } else if (type == SICSLOWPAN_6LORH_TYPE_RPI) {
+                    rpi = true;
+                    pos += 2;
+                    rplFlags = ((b & SICSLOWPAN_6LORH_RPI_O) != 0 ? HopByHopOption.RPL_FLAG_DOWN : 0)
+                            | ((b & SICSLOWPAN_6LORH_RPI_R) != 0 ? HopByHopOption.RPL_FLAG_RANK_ERROR : 0)
+                            | ((b & SICSLOWPAN_6LORH_RPI_F) != 0 ? HopByHopOption.RPL_FLAG_FORWARD_ERROR : 0);
+                    rplInstance = (b & SICSLOWPAN_6LORH_RPI_I) != 0 ? 0 : packet.getData(pos++) & 0xff;
+                    if ((b & SICSLOWPAN_6LORH_RPI_K) != 0) {
+                        senderRank = packet.getData(pos++) & 0xff;
+                    } else {
+                        senderRank = packet.get16(pos);
+                        pos += 2;
+                    }
+                } else {
+                    throw new IllegalStateException("Unsupported critical 6LoRH type: " + type);
+                }
+            } else {
+                int len = b & 0x1f;
+                if (type == SICSLOWPAN_6LORH_TYPE_IPINIP) {
+                    ipInIp = true;
+                    hopLimit = packet.getData(pos + 2) & 0xff;
+                    /* the elided part of the encapsulator is taken from the root */
+                    int addressLen = Math.min(len - 1, 16);
+                    encapsulator = new byte[16];
+                    if (rootAddress != null) {
+                        System.arraycopy(rootAddress, 0, encapsulator, 0, 16 - addressLen);
+                    }
+                    packet.copy(pos + 3, encapsulator, 16 - addressLen, addressLen);
+                }
+                /* unknown elective 6LoRHs are skipped */
+                pos += 2 + len;
+            }
+        }
+        if ((packet.getData(pos) & 0xe0) != SICSLOWPAN_DISPATCH_IPHC) {
+            throw new IllegalStateException("No IPHC header after 6LoRH: " + Utils.hex8(packet.getData(pos)));
+        }
+
+        /* the innermost header and its NHC headers */
+        IPv6Packet inner = new IPv6Packet(packet);
+        inner.incPos(pos);
+        int hlen = decompressHeader(inner);
+        int innerSize;
+        if ((inner.getData(0) & SICSLOWPAN_IPHC_NH_C) != 0) {
+            innerSize = decompressExtensionHeaders(inner, hlen, apply);
+        } else {
+            inner.incPos(hlen);
+            innerSize = 40;
+        }
+        int compressedSize = inner.currentPos - packet.currentPos;
+
+        /* the route - each address compressed against the previous one */
+        byte[] reference = ipInIp ? encapsulator : inner.sourceAddress;
+        IPv6Address[] hops = new IPv6Address[hopCount];
+        int hop = 0;
+        for (int i = 0; i < rh3Count; i++) {
+            int p = rh3[i];
+            int count = (packet.getData(p) & 0x1f) + 1;
+            int size = 1 << (packet.getData(p + 1) & 0xff);
+            p += 2;
+            for (int j = 0; j < count; j++) {
+                byte[] address = reference.clone();
+                packet.copy(p, address, 16 - size, size);
+                p += size;
+                hops[hop++] = IPv6Address.of(address);
+                reference = address;
+            }
+        }
+
+        /* the header the 6LoRHs belong to */
+        if (ipInIp) {
+            packet.version = 6;
+            packet.trafficClass = 0;
+            packet.flowLabel = 0;
+            packet.hopLimit = hopLimit;
+            System.arraycopy(encapsulator, 0, packet.sourceAddress, 0, 16);
+            if (hopCount > 0) {
+                /* the first hop is the destination */
+                hops[0].copyTo(packet.destAddress, 0);
+                hops = Arrays.copyOfRange(hops, 1, hopCount);
+            } else {
+                System.arraycopy(inner.destAddress, 0, packet.destAddress, 0, 16);
+            }
+        } else {
+            packet.version = 6;
+            packet.trafficClass = inner.trafficClass;
+            packet.flowLabel = inner.flowLabel;
+            packet.hopLimit = inner.hopLimit;
+            System.arraycopy(inner.sourceAddress, 0, packet.sourceAddress, 0, 16);
+            System.arraycopy(inner.destAddress, 0, packet.destAddress, 0, 16);
+        }
+        int last = ipInIp ? PROTO_IPV6 : inner.nextHeader & 0xff;
+
+        byte[] routing = null;
+        if (hops.length > 0) {
+            RoutingHeader rh = new RoutingHeader();
+            rh.setAddresses(hops);
+            rh.setNextHeader((byte) last);
+            routing = rh.generatePacketData(packet);
+            last = PROTO_ROUTING;
+        }
+        byte[] hopByHop = null;
+        if (rpi) {
+            HopByHopOption hbh = new HopByHopOption();
+            hbh.setOptions(HopByHopOption.createRPLOption(rplFlags, rplInstance, senderRank));
+            hbh.setNextHeader((byte) last);
+            hopByHop = hbh.generatePacketData(packet);
+            last = PROTO_HOPOPTS;
+        }
+        packet.nextHeader = (byte) last;
+
+        int len = (hopByHop != null ? hopByHop.length : 0) + (routing != null ? routing.length : 0)
+                + (ipInIp ? 40 : 0);
+        packet.incPos(compressedSize);
+        if (!apply) {
+            return len + innerSize;
+        }
+
+        byte[] rest = inner.getPayload();
+        byte[] data = new byte[packet.currentPos + len + rest.length];
+        int p = packet.currentPos;
+        if (hopByHop != null) {
+            System.arraycopy(hopByHop, 0, data, p, hopByHop.length);
+            p += hopByHop.length;
+        }
+        if (routing != null) {
+            System.arraycopy(routing, 0, data, p, routing.length);
+            p += routing.length;
+        }
+        if (ipInIp) {
+            inner.copyHeader(data, p, rest.length);
+            p += 40;
+        }
+        System.arraycopy(rest, 0, data, p, rest.length);
+        packet.setBytePayloadWithHeadroom(data, packet.currentPos, len + rest.length);
+        return len + innerSize;
+    }
+
+    private static void setNextHeader(IPv6Packet packet, byte[] headers, int nhPos, int nextHeader) {
+        if (nhPos < 0) {
+            packet.nextHeader = (byte) nextHeader;
+        } else {
+            headers[nhPos] = (byte) nextHeader;
+        }
+    }
+
+    /* Pad1 or PadN option of len bytes at pos */
+    private static void setPadding(byte[] data, int pos, int len) {
+        if (len == 1) {
+            data[pos] = 0;
+        } else if (len > 1) {
+            data[pos] = 1;
+            data[pos + 1] = (byte) (len - 2);
+        }
+    }
+
+    private static void set16(byte[] data, int pos, int value) {
+        data[pos] = (byte) (value >> 8);
+        data[pos + 1] = (byte) (value & 0xff);
+    }
+
+    private static byte[] ensureCapacity(byte[] data, int size) {
+        return size <= data.length ? data : Arrays.copyOf(data, Math.max(size, data.length * 2));
+    }
 }
@@ -51,6 +51,11 @@ public interface IPPacketer {
      */
     public byte[] generatePacketData(IPv6Packet packet);
 
+    /* as generatePacketData but the data is set as the packet data with
+     * headroom bytes reserved in front of it for the lower layer headers
+     */
+    public void writePacketData(IPv6Packet packet, int headroom);
+
 
     /* before calling this method the IPv6Packet needs to have its
      * link layer addresses added from the link layer
@@ -0,0 +1,12 @@
+package se.sics.jipv6.core;
+
+/*
+ * Decodes the upper layer headers of a parsed IPv6 packet. Set on a packet
+ * to have the headers decoded on the first call to getIPPayload - the
+ * packet position is then at the first header after the IPv6 header.
+ */
+public interface IPPayloadDecoder {
+
+    public void decodeIPPayload(IPv6Packet packet);
+
+}
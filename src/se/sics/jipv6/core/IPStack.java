@@ -91,6 +91,7 @@ public class IPStack {
     private NeighborManager neighborManager;
     private NetworkEventListener networkEventListener;
     private Timer timer = new Timer();
+    private FragmentForwarder fragmentForwarder = new FragmentForwarder(this);
     // TODO: read from configfile...
 
     public IPStack() {
@@ -204,26 +205,62 @@ public class IPStack {
             } else if (Utils.equals(ALL_NODES, destAddr)) {
                 packet.setAttribute("link.destination", linkBroadcast);
             } else {
-                byte[] destMAC;
-                Neighbor n = neighborTable.getNeighbor(destAddr);
-                if (n == null) {
-                    if (neighborTable.getDefrouter() != null) {
-                        destMAC = neighborTable.getDefrouter().linkAddress;
-                    } else {
-                        /* fill the array with a autoconf address ... */
-                        destMAC = new byte[8];
-                        makeLLAddress(destAddr, destMAC);
-                    }
-                } else {
-                    destMAC = n.linkAddress;
-                }
-                packet.setAttribute("link.destination", destMAC);
+                packet.setAttribute("link.destination", getNextHop(destAddr));
             }
         }
         packet.setAttribute("link.source", myLinkAddress);
         return true;
     }
 
+    /* Returns the link address to send a unicast packet for the destination to */
+    public byte[] getNextHop(byte[] destAddr) {
+        byte[] destMAC;
+        Neighbor n = neighborTable.getNeighbor(destAddr);
+        if (n == null) {
+            if (neighborTable.getDefrouter() != null) {
+                destMAC = neighborTable.getDefrouter().getLinkAddress();
+            } else {
+                /* fill the array with a autoconf address ... */
+                destMAC = new byte[8];
+                makeLLAddress(destAddr, destMAC);
+            }
+        } else {
+            destMAC = n.getLinkAddress();
+        }
+        return destMAC;
+    }
+
+    /*
+     * Is a packet for the destination that was received from the link to be
+     * sent on over the link - only routers forward unicast packets between
+     * other nodes.
+     */
+    public boolean isForwardedOnLink(byte[] destination) {
+        return isRouter && !isForMe(destination) && isOnLink(destination)
+                && destination[0] != (byte) 0xff && !isLinkLocal(destination);
+    }
+
+    /* Reassembly free forwarding of fragments received from the link */
+    public FragmentForwarder getFragmentForwarder() {
+        return fragmentForwarder;
+    }
+
+    /* Sends a packet received from the link on to the next hop */
+    private void forwardPacket(IPv6Packet packet) {
+        if ((packet.hopLimit & 0xff) <= 1) {
+            if (DEBUG) System.out.println("#### PACKET dropped - hop limit exceeded");
+            return;
+        }
+        packet.hopLimit = (packet.hopLimit & 0xff) - 1;
+        if (packet.ipPayload == null) {
+            packet.setIPPayload(new BytePayload(packet));
+        }
+        /* the link addresses are for the next hop */
+        packet.setAttribute(MacPacket.LL_DESTINATION_KEY, getNextHop(packet.getDestinationAddress()));
+        packet.setAttribute(MacPacket.LL_SOURCE_KEY, myLinkAddress);
+        linkLayerHandler.sendPacket(packet);
+    }
+
     public void makeLLAddress(byte[] ipAddr, byte[] macAddr) {
         for (int i = 0; i < macAddr.length; i++) {
             macAddr[i] = ipAddr[8 + i];
@@ -329,6 +366,9 @@ public class IPStack {
                     linkLayerHandler.sendPacket(packet);
                 }
             }
+        } else if (isForwardedOnLink(packet.getDestinationAddress())) {
+            if (DEBUG) System.out.println("#### PACKET forwarded on link");
+            forwardPacket(packet);
         } else {
             System.out.println("#### PACKET ignored...");
         }
@@ -0,0 +1,128 @@
+package se.sics.jipv6.core;
+
+import se.sics.jipv6.util.TextFormat;
+
+/*
+ * Immutable IPv6 address stored as two longs.
+ *
+ * Addresses are obtained with of() which returns a cached instance when
+ * the same address was recently seen, so the per packet lookups in the node
+ * and neighbor tables do not allocate. The cache is a direct mapped table -
+ * two equal addresses are not guaranteed to be the same instance and must
+ * be compared with equals(). The RFC 5952 text form is created on first
+ * call to toString() and kept.
+ */
+public final class IPv6Address {
+
+    private static final int CACHE_SIZE = 1024;
+    private static final IPv6Address[] cache = new IPv6Address[CACHE_SIZE];
+
+    private final long high;
+    private final long low;
+    private String text;
+
+    private IPv6Address(long high, long low) {
+        this.high = high;
+        this.low = low;
+    }
+
+    public static IPv6Address of(byte[] address) {
+        return of(address, 0);
+    }
+
+    /* Returns the address of the 16 bytes at offset */
+    public static IPv6Address of(byte[] address, int offset) {
+        if (address == null) {
+            return null;
+        }
+        if (offset < 0 || offset + 16 > address.length) {
+            throw new IllegalArgumentException("no IPv6 address at " + offset + " in " + address.length + " bytes");
+        }
+        long high = getLong(address, offset);
+        long low = getLong(address, offset + 8);
+        int index = index(hashCode(high, low));
+        IPv6Address addr = cache[index];
+        if (addr == null || addr.high != high || addr.low != low) {
+            addr = new IPv6Address(high, low);
+            cache[index] = addr;
+        }
+        return addr;
+    }
+
+    private static long getLong(byte[] data, int pos) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (data[pos + i] & 0xff);
+        }
+        return value;
+    }
+
+    private static int hashCode(long high, long low) {
+        long h = high * 0x9e3779b97f4a7c15L + low;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static int index(int hash) {
+        return (hash ^ (hash >>> 16)) & (CACHE_SIZE - 1);
+    }
+
+    public long getHigh() {
+        return high;
+    }
+
+    public long getLow() {
+        return low;
+    }
+
+    /* true if the 16 bytes of the address are equal to this address */
+    public boolean matches(byte[] address) {
+        return address != null && address.length >= 16
+                && getLong(address, 0) == high && getLong(address, 8) == low;
+    }
+
+    public byte[] getBytes() {
+        byte[] address = new byte[16];
+        copyTo(address, 0);
+        return address;
+    }
+
+    public void copyTo(byte[] dst, int pos) {
+        for (int i = 0; i < 8; i++) {
+            dst[pos + i] = (byte) (high >>> (56 - i * 8));
+            dst[pos + 8 + i] = (byte) (low >>> (56 - i * 8));
+        }
+    }
+
+    /* fe80::/10 */
+    public boolean isLinkLocal() {
+        return (high >>> 54) == (0xfe80 >>> 6);
+    }
+
+    public boolean isMulticast() {
+        return (high >>> 56) == 0xff;
+    }
+
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof IPv6Address)) {
+            return false;
+        }
+        IPv6Address addr = (IPv6Address) other;
+        return high == addr.high && low == addr.low;
+    }
+
+    public int hashCode() {
+        return hashCode(high, low);
+    }
+
+    /* RFC 5952 text form - the longest run of zero groups is replaced with :: */
+    public String toString() {
+        String t = text;
+        if (t == null) {
+            text = t = TextFormat.appendIPv6Compressed(new StringBuilder(39), getBytes(), 0).toString();
+        }
+        return t;
+    }
+}
@@ -39,8 +39,10 @@
  */
 
 package se.sics.jipv6.core;
+import java.util.Arrays;
 import java.util.Formatter;
 
+import se.sics.jipv6.util.TextFormat;
 import se.sics.jipv6.util.Utils;
 
 /**
@@ -65,6 +67,25 @@ public class IPv6Packet extends MacPacket implements IPPacketer {
     IPPayload ipPayload;
     public NetworkInterface netInterface;
 
+    /* Payload objects reused when a pooled packet is decoded again */
+    private static final int UDP_IN_USE = 1;
+    private static final int HBH_IN_USE = 2;
+    private static final int ICMP6_IN_USE = 4;
+    private static final int RPL_IN_USE = 8;
+    private static final int RH_IN_USE = 16;
+
+    private boolean pooled;
+    private int payloadsInUse;
+    private UDPPacket udpPacket;
+    private HopByHopOption hbhOption;
+    private RoutingHeader routingHeader;
+    private ICMP6Packet icmp6Packet;
+    private RPLPacket rplPacket;
+
+    /* decodes the upper layer headers at payloadPos on first access */
+    private IPPayloadDecoder payloadDecoder;
+    private int payloadPos;
+
 
     public IPv6Packet() {
         this(System.currentTimeMillis());
@@ -84,7 +105,103 @@ public class IPv6Packet extends MacPacket implements IPPacketer {
         this.currentPos = packet.currentPos;
         this.attributes = packet.attributes;
         this.packetData = packet.packetData;
-        ipLen = packetData.length - currentPos;
+        this.dataStart = packet.dataStart;
+        this.dataEnd = packet.dataEnd;
+        ipLen = getPayloadLength();
+    }
+
+    /*
+     * Resets a pooled packet for decoding the IP packet in the MAC packet.
+     * The address arrays and the payload objects of the packet are reused -
+     * the addresses are cleared as IPHC only writes part of some addresses.
+     */
+    public void reset(MacPacket packet) {
+        reset(packet.getTimeMillis(), packet.packetData, packet.attributes);
+        dataStart = packet.dataStart;
+        dataEnd = packet.dataEnd;
+        currentPos = packet.currentPos;
+        version = 6;
+        trafficClass = 0;
+        flowLabel = 0;
+        nextHeader = 0;
+        hopLimit = 255;
+        Arrays.fill(sourceAddress, (byte) 0);
+        Arrays.fill(destAddress, (byte) 0);
+        ipLen = getPayloadLength();
+        payloadLen = 0;
+        ipPayload = null;
+        payloadDecoder = null;
+        netInterface = null;
+        pooled = true;
+        payloadsInUse = 0;
+    }
+
+    /* Returns a UDP packet for decoding the payload - reused by pooled packets */
+    public UDPPacket newUDPPacket() {
+        if (!pooled || (payloadsInUse & UDP_IN_USE) != 0) {
+            return new UDPPacket();
+        }
+        payloadsInUse |= UDP_IN_USE;
+        if (udpPacket == null) {
+            udpPacket = new UDPPacket();
+        } else {
+            udpPacket.reset();
+        }
+        return udpPacket;
+    }
+
+    /* Returns a hop-by-hop option for decoding the payload - reused by pooled packets */
+    public HopByHopOption newHopByHopOption() {
+        if (!pooled || (payloadsInUse & HBH_IN_USE) != 0) {
+            return new HopByHopOption();
+        }
+        payloadsInUse |= HBH_IN_USE;
+        if (hbhOption == null) {
+            hbhOption = new HopByHopOption();
+        } else {
+            hbhOption.reset();
+        }
+        return hbhOption;
+    }
+
+    /* Returns a routing header for decoding the payload - reused by pooled packets */
+    public RoutingHeader newRoutingHeader() {
+        if (!pooled || (payloadsInUse & RH_IN_USE) != 0) {
+            return new RoutingHeader();
+        }
+        payloadsInUse |= RH_IN_USE;
+        if (routingHeader == null) {
+            routingHeader = new RoutingHeader();
+        } else {
+            routingHeader.reset();
+        }
+        return routingHeader;
+    }
+
+    /* Returns an ICMPv6 packet of the type for decoding the payload - reused by pooled packets */
+    public ICMP6Packet newICMP6Packet(int type) {
+        if (type == RPLPacket.ICMP6_TYPE_RPL) {
+            if (!pooled || (payloadsInUse & RPL_IN_USE) != 0) {
+                return new RPLPacket();
+            }
+            payloadsInUse |= RPL_IN_USE;
+            if (rplPacket == null) {
+                rplPacket = new RPLPacket();
+            } else {
+                rplPacket.reset();
+            }
+            return rplPacket;
+        }
+        if (!pooled || (payloadsInUse & ICMP6_IN_USE) != 0) {
+            return new ICMP6Packet();
+        }
+        payloadsInUse |= ICMP6_IN_USE;
+        if (icmp6Packet == null) {
+            icmp6Packet = new ICMP6Packet();
+        } else {
+            icmp6Packet.reset();
+        }
+        return icmp6Packet;
     }
 
     public IPv6Packet(IPPayload pl) {
@@ -173,30 +290,30 @@ public class IPv6Packet extends MacPacket implements IPPacketer {
     }
 
     public void printPacket(Formatter out) {
-        out.format("IPv6: from ");
-        printAddress(out, sourceAddress);
-        out.format(" to ");
-        printAddress(out, destAddress);
-        out.format(" NxHdr: " + nextHeader + "\n");
+        StringBuilder sb = TextFormat.getBuilder();
+        try {
+            sb.append("IPv6: from ");
+            TextFormat.appendIPv6(sb, sourceAddress);
+            sb.append(" to ");
+            TextFormat.appendIPv6(sb, destAddress);
+            sb.append(" NxHdr: ").append(nextHeader).append('\n');
+            TextFormat.write(out, sb);
+        } finally {
+            TextFormat.release(sb);
+        }
     }
 
     public static String addressToString(byte[] address) {
-        StringBuilder str = new StringBuilder();
-        for (int i = 0; i < 16; i+=2) {
-            if (i > 0) {
-                str.append(":");
-            }
-            str.append(Utils.hex16((((address[i] & 0xff) << 8) | (address[i + 1] & 0xff))));
-        }
-        return str.toString();
+        return TextFormat.appendIPv6(new StringBuilder(39), address).toString();
     }
 
     public static void printAddress(Formatter out, byte[] address) {
-        for (int i = 0; i < 16; i+=2) {
-            out.format(Utils.hex16((((address[i] & 0xff) << 8) | (address[i + 1] & 0xff))));
-            if (i < 14) {
-                out.format(":");
-            }
+        StringBuilder sb = TextFormat.getBuilder();
+        try {
+            TextFormat.appendIPv6(sb, address);
+            TextFormat.write(out, sb);
+        } finally {
+            TextFormat.release(sb);
         }
     }
 
@@ -258,18 +375,11 @@ public class IPv6Packet extends MacPacket implements IPPacketer {
     }
 
     public static int checkSum(int sum, byte[] data, int size) {
-        for (int i = 0; i < size - 1; i+= 2) {
-            int dsum = ((data[i] & 0xff) << 8) | (data[i + 1] & 0xff);
-            sum = (sum + dsum) & 0xffff;
-            if (sum < dsum) sum++;
-        }
-        /* final byte - if any*/
-        if ((size & 1) > 0) {
-            int dsum = ((data[size - 1] & 0xff) << 8);
-            sum = (sum + dsum) & 0xffff;
-            if (sum < dsum) sum++;
-        }
-        return sum;
+        return checkSum(sum, data, 0, size);
+    }
+
+    public static int checkSum(int sum, byte[] data, int offset, int size) {
+        return Checksum.add(sum, data, offset, size);
     }
 
     public static boolean isMACBased(byte[] address, byte[] macAddress) {
@@ -305,19 +415,23 @@ public class IPv6Packet extends MacPacket implements IPPacketer {
     }
 
     public void copyHeader(byte[] dataPacket, int length) {
-        dataPacket[0] = (byte) (0x60 | (trafficClass >> 4) & 0x0f);
-        dataPacket[1] = (byte) (((trafficClass & 0xf) << 4) |
+        copyHeader(dataPacket, 0, length);
+    }
+
+    public void copyHeader(byte[] dataPacket, int offset, int length) {
+        dataPacket[offset] = (byte) (0x60 | (trafficClass >> 4) & 0x0f);
+        dataPacket[offset + 1] = (byte) (((trafficClass & 0xf) << 4) |
                 ((flowLabel >> 16) & 0xf));
-        dataPacket[2] = (byte) ((trafficClass >> 8) & 0xff);
-        dataPacket[3] = (byte) (trafficClass & 0xff);
+        dataPacket[offset + 2] = (byte) ((flowLabel >> 8) & 0xff);
+        dataPacket[offset + 3] = (byte) (flowLabel & 0xff);
 
-        dataPacket[4] = (byte) ((length >> 8) & 0xff);
-        dataPacket[5] = (byte) (length & 0xff);
+        dataPacket[offset + 4] = (byte) ((length >> 8) & 0xff);
+        dataPacket[offset + 5] = (byte) (length & 0xff);
 
-        dataPacket[6] = (byte) (nextHeader & 0xff);
-        dataPacket[7] = (byte) (hopLimit & 0xff);
+        dataPacket[offset + 6] = (byte) (nextHeader & 0xff);
+        dataPacket[offset + 7] = (byte) (hopLimit & 0xff);
 
-        int pos = 8;
+        int pos = offset + 8;
         System.arraycopy(getSourceAddress(), 0, dataPacket, pos, 16);
         pos += 16;
         System.arraycopy(getDestinationAddress(), 0, dataPacket, pos, 16);
@@ -335,21 +449,53 @@ public class IPv6Packet extends MacPacket implements IPPacketer {
         return dataPacket;
     }
 
+    public void writePacketData(IPv6Packet packet, int headroom) {
+        byte[] payload = packet.ipPayload.generatePacketData(packet);
+        int size = 40 + payload.length;
+        byte[] dataPacket = new byte[headroom + size];
+        packet.copyHeader(dataPacket, headroom, payload.length);
+
+        System.arraycopy(payload, 0, dataPacket, headroom + 40, payload.length);
+        packet.setOwnedBytes(dataPacket, headroom, size);
+    }
+
     public IPPayload getIPPayload() {
+        if (payloadDecoder != null) {
+            IPPayloadDecoder decoder = payloadDecoder;
+            payloadDecoder = null;
+            currentPos = payloadPos;
+            decoder.decodeIPPayload(this);
+        }
         return ipPayload;
     }
 
+    /*
+     * Defers decoding of the upper layer headers at the current position
+     * until the payload is first asked for.
+     */
+    public void setIPPayloadDecoder(IPPayloadDecoder decoder) {
+        payloadDecoder = decoder;
+        payloadPos = currentPos;
+    }
+
     public void setIPPayload(IPPayload ipp) {
+        payloadDecoder = null;
         ipPayload = ipp;
         nextHeader = ipp.getDispatch();
     }
 
     public static void printMACAddress(Formatter out, byte[] data,
             int pos, int size) {
-        for (int i = 0; i < size; i++) {
-            out.format(Utils.hex8(data[i + pos]));
-            if (i < size - 1)
-                out.format(":");
+        StringBuilder sb = TextFormat.getBuilder();
+        try {
+            for (int i = 0; i < size; i++) {
+                TextFormat.appendHex8(sb, data[i + pos]);
+                if (i < size - 1)
+                    sb.append(':');
+            }
+            TextFormat.write(out, sb);
+        } finally {
+            TextFormat.release(sb);
         }
     }
 
@@ -407,5 +553,37 @@ public class IPv6Packet extends MacPacket implements IPPacketer {
             icmpPacket.parsePacketData(packet);
             icmpPacket.printPacket(new Formatter(System.out));
         }
+        checkPooledReset();
+    }
+
+    /*
+     * A pooled packet must decode a link local 16 bit source address after
+     * an inline source address as a new packet does.
+     */
+    private static void checkPooledReset() {
+        byte[] lladdr = Utils.hexconv("0212740100010101");
+        MacPacket inline = new MacPacket(0);
+        inline.setBytes(Utils.hexconv("7a033b20010db80102030405060708090a0b0c"));
+        inline.setAttribute(MacPacket.LL_SOURCE_KEY, lladdr);
+        inline.setAttribute(MacPacket.LL_DESTINATION_KEY, lladdr);
+        MacPacket short16 = new MacPacket(0);
+        short16.setBytes(Utils.hexconv("7a233b0001"));
+        short16.setAttribute(MacPacket.LL_SOURCE_KEY, lladdr);
+        short16.setAttribute(MacPacket.LL_DESTINATION_KEY, lladdr);
+
+        IPHCPacketer packeter = new IPHCPacketer();
+        IPv6Packet pooled = new IPv6Packet(0);
+        pooled.reset(inline);
+        packeter.parsePacketData(pooled);
+        pooled.reset(short16);
+        packeter.parsePacketData(pooled);
+        IPv6Packet fresh = new IPv6Packet(short16);
+        packeter.parsePacketData(fresh);
+        if (!Arrays.equals(pooled.sourceAddress, fresh.sourceAddress)) {
+            System.out.println("Pooled packet reset FAILED: " + IPv6Address.of(pooled.sourceAddress)
+                    + " <> " + IPv6Address.of(fresh.sourceAddress));
+        } else {
+            System.out.println("Pooled packet reset OK: " + IPv6Address.of(pooled.sourceAddress));
+        }
     }
 }
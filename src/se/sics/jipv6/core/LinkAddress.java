@@ -0,0 +1,97 @@
+package se.sics.jipv6.core;
+
+import se.sics.jipv6.util.TextFormat;
+
+/*
+ * Immutable link layer address of up to 8 bytes stored in a long together
+ * with its length, so a short address is never equal to a long address.
+ *
+ * As for IPv6Address the instances are obtained with of() from a direct
+ * mapped cache and the text form - the colon separated bytes as printed by
+ * MacPacket.macToString - is created on first use.
+ */
+public final class LinkAddress {
+
+    public static final int MAX_LENGTH = 8;
+
+    private static final int CACHE_SIZE = 512;
+    private static final LinkAddress[] cache = new LinkAddress[CACHE_SIZE];
+
+    private final long value;
+    private final int length;
+    private String text;
+
+    private LinkAddress(long value, int length) {
+        this.value = value;
+        this.length = length;
+    }
+
+    public static LinkAddress of(byte[] address) {
+        if (address == null) {
+            return null;
+        }
+        if (address.length > MAX_LENGTH) {
+            throw new IllegalArgumentException("link address of " + address.length + " bytes");
+        }
+        long value = 0;
+        for (int i = 0; i < address.length; i++) {
+            value = (value << 8) | (address[i] & 0xff);
+        }
+        int length = address.length;
+        int index = index(hashCode(value, length));
+        LinkAddress addr = cache[index];
+        if (addr == null || addr.value != value || addr.length != length) {
+            addr = new LinkAddress(value, length);
+            cache[index] = addr;
+        }
+        return addr;
+    }
+
+    private static int hashCode(long value, int length) {
+        long h = value * 0x9e3779b97f4a7c15L + length;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static int index(int hash) {
+        return (hash ^ (hash >>> 16)) & (CACHE_SIZE - 1);
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public long toLong() {
+        return value;
+    }
+
+    public byte[] getBytes() {
+        byte[] address = new byte[length];
+        for (int i = 0; i < length; i++) {
+            address[i] = (byte) (value >>> ((length - i - 1) * 8));
+        }
+        return address;
+    }
+
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof LinkAddress)) {
+            return false;
+        }
+        LinkAddress addr = (LinkAddress) other;
+        return value == addr.value && length == addr.length;
+    }
+
+    public int hashCode() {
+        return hashCode(value, length);
+    }
+
+    public String toString() {
+        String t = text;
+        if (t == null) {
+            text = t = TextFormat.appendMAC(new StringBuilder(length * 3), getBytes()).toString();
+        }
+        return t;
+    }
+}
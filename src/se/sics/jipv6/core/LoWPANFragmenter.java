@@ -1,115 +1,403 @@
 package se.sics.jipv6.core;
 
-import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Random;
 
+/*
+ * Reassembly of 6LoWPAN fragments (RFC 4944). Datagrams are identified by
+ * link source, tag and size and the received parts are tracked with a bitmap
+ * of 8 octet units of the uncompressed datagram. Incomplete datagrams are
+ * dropped after the reassembly timeout, and the least recently used ones
+ * when the buffers would exceed the memory limit.
+ *
+ * Times are taken from the packets - the capture time when reading a
+ * capture file - so the timeout also works for old captures.
+ *
+ * On the send side a compressed packet is split into a first fragment with
+ * all compressed headers and following fragments of multiples of 8 octets.
+ */
 public class LoWPANFragmenter {
 
     private static final boolean DEBUG = false;
 
+    /* room for the link layer header in front of the reassembled data */
+    private static final int HEADROOM = 64;
+
+    /* RFC 4944 - at most 60 seconds */
+    public static final long DEFAULT_REASSEMBLY_TIMEOUT = 60000;
+    public static final int DEFAULT_MAX_MEMORY = 64 * 1024;
+
+    public static final int FRAG1_HEADER_LENGTH = 4;
+    public static final int FRAGN_HEADER_LENGTH = 5;
+    /* the datagram size field is 11 bits */
+    public static final int MAX_DATAGRAM_SIZE = 0x7ff;
+
     static class FragmentContext {
-        int tag;
-        int size;
-        int receivedSize;
-        long time;
-        byte[] data;
-        int firstFragmentOffset = 0;
-        HashMap <String, String> map = new HashMap<String, String>();
-
-        FragmentContext(int tag, int size) {
-            this.data = new byte[size];
-            this.tag = tag;
-            this.time = System.currentTimeMillis();
+        final int size;
+        /* one bit per 8 octets of the uncompressed datagram */
+        final long[] received;
+        final byte[] data;
+        /* time of the first received fragment */
+        final long time;
+        /*
+         * The uncompressed datagram is at HEADROOM in data. The first fragment
+         * is shorter as its headers are compressed - it ends where its
+         * uncompressed headers would end and the reassembled packet starts there.
+         */
+        int start = HEADROOM;
+        boolean hasFirst;
+
+        FragmentContext(int size, long time) {
             this.size = size;
-            this.receivedSize = 0;
+            this.received = new long[(units(size) + 63) >> 6];
+            this.data = new byte[HEADROOM + size];
+            this.time = time;
+        }
+
+        int getMemorySize() {
+            return data.length;
         }
 
-        /* copy whole packet payload to buffer */
-        public boolean copyData(IPv6Packet packet, int offset) {
-            int plen = packet.getPayloadLength();
-            String key = "" + offset + ":" + plen;
-            if (map.get(key) == null) {
-                if(offset > 0) {
-                    /* compensate for this offset */
-                    offset = offset - firstFragmentOffset;
+        /* Returns the number of units in [first, last) that have been received */
+        int countReceived(int first, int last) {
+            int n = 0;
+            for (int i = first; i < last; i++) {
+                if ((received[i >> 6] & (1L << i)) != 0) {
+                    n++;
                 }
-                packet.copy(0, data, offset);
-                map.put(key, "");
-                return true;
-            } else {
-                if(DEBUG) System.out.println("*** already received that part");
-                return false;
+            }
+            return n;
+        }
+
+        void setReceived(int first, int last) {
+            for (int i = first; i < last; i++) {
+                received[i >> 6] |= 1L << i;
             }
         }
 
+        boolean isComplete() {
+            return hasFirst && countReceived(0, units(size)) == units(size);
+        }
+
         public void setPacketPayload(IPv6Packet packet) {
-            byte[] cleanedData = Arrays.copyOf(data, data.length - firstFragmentOffset);
-            packet.setBytePayload(cleanedData);
+            /* the packet becomes a view of the reassembled data */
+            packet.setBytePayloadWithHeadroom(data, start, HEADROOM + size - start);
         }
     }
 
-    private HashMap<String, FragmentContext> fragmentMap = new HashMap<String, FragmentContext>();
+    /* fragments are identified by link source, tag and datagram size */
+    static final class FragmentKey {
+        final LinkAddress source;
+        final int tag;
+        final int size;
+
+        FragmentKey(LinkAddress source, int tag, int size) {
+            this.source = source;
+            this.tag = tag;
+            this.size = size;
+        }
 
+        public boolean equals(Object other) {
+            if (!(other instanceof FragmentKey)) {
+                return false;
+            }
+            FragmentKey key = (FragmentKey) other;
+            return tag == key.tag && size == key.size
+                    && (source == null ? key.source == null : source.equals(key.source));
+        }
 
+        public int hashCode() {
+            return ((source == null ? 0 : source.hashCode() * 31) + tag) * 31 + size;
+        }
 
-    public boolean handleFragment(IPv6Packet packet, int uncomprSize, int comprSize) {
-        int data = packet.getData(0);
+        public String toString() {
+            return source + "-" + tag + "-" + size;
+        }
+    }
+
+    /* in access order - the first context is the least recently used */
+    private final LinkedHashMap<FragmentKey, FragmentContext> fragmentMap =
+            new LinkedHashMap<FragmentKey, FragmentContext>(16, 0.75f, true);
+
+    private long reassemblyTimeout = DEFAULT_REASSEMBLY_TIMEOUT;
+    private int maxMemory = DEFAULT_MAX_MEMORY;
+    private int memoryUsed;
+    /* no context expires before this time */
+    private long nextExpiry = Long.MAX_VALUE;
+
+    /* tag of the last fragmented datagram sent */
+    private int datagramTag = new Random().nextInt(0x10000);
+
+    private long reassembledCount;
+    private long expiredCount;
+    private long evictedCount;
+    private long overlappingCount;
+    private long duplicateCount;
+    private long invalidCount;
+
+    static int units(int len) {
+        return (len + 7) >> 3;
+    }
+
+    public long getReassemblyTimeout() {
+        return reassemblyTimeout;
+    }
+
+    public void setReassemblyTimeout(long timeout) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("reassembly timeout must be positive: " + timeout);
+        }
+        this.reassemblyTimeout = timeout;
+        nextExpiry = Long.MIN_VALUE;
+    }
+
+    public int getMaxMemory() {
+        return maxMemory;
+    }
+
+    /* The maximal number of bytes used by the buffers of incomplete datagrams */
+    public void setMaxMemory(int maxMemory) {
+        if (maxMemory < HEADROOM + 2048) {
+            throw new IllegalArgumentException("memory limit too small for one datagram: " + maxMemory);
+        }
+        this.maxMemory = maxMemory;
+    }
 
-        if ((data & 0xf8) == IPHCPacketer.SICSLOWPAN_DISPATCH_FRAG1) {
-            /* This is a first fragment */
-            int fragSize = packet.get16(0) & 0x7ff;
-            int fragTag = packet.get16(2);
-            String id = packet.getLinkSourceAsString() + "-" + fragTag;
+    public int getPendingCount() {
+        return fragmentMap.size();
+    }
+
+    public int getMemoryUsed() {
+        return memoryUsed;
+    }
 
-            /* Source and fragTag as indication of packet */
-            if (DEBUG) System.out.printf("First Fragment found: size:%d tag:%d ID:%s\n", fragSize, fragTag, id);
-            packet.incPos(4);
+    public long getReassembledCount() {
+        return reassembledCount;
+    }
+
+    /* incomplete datagrams dropped after the reassembly timeout */
+    public long getExpiredCount() {
+        return expiredCount;
+    }
 
-            FragmentContext ctx = fragmentMap.get(id);
-            if (ctx == null) {
-                ctx = new FragmentContext(fragTag, fragSize);
-                fragmentMap.put(id, ctx);
+    /* incomplete datagrams dropped to stay within the memory limit */
+    public long getEvictedCount() {
+        return evictedCount;
+    }
+
+    /* fragments that partly overlapped received data - the datagram was restarted */
+    public long getOverlappingCount() {
+        return overlappingCount;
+    }
+
+    public long getDuplicateCount() {
+        return duplicateCount;
+    }
+
+    /* fragments outside the datagram or not a multiple of 8 octets */
+    public long getInvalidCount() {
+        return invalidCount;
+    }
+
+    public String getStatistics() {
+        return "Fragments: reassembled:" + reassembledCount + " pending:" + fragmentMap.size()
+                + " expired:" + expiredCount + " evicted:" + evictedCount
+                + " overlapping:" + overlappingCount + " duplicate:" + duplicateCount
+                + " invalid:" + invalidCount;
+    }
+
+    /* Drops all incomplete datagrams older than the reassembly timeout */
+    public void expire(long now) {
+        if (now <= nextExpiry) {
+            return;
+        }
+        nextExpiry = Long.MAX_VALUE;
+        Iterator<FragmentContext> contexts = fragmentMap.values().iterator();
+        while (contexts.hasNext()) {
+            FragmentContext ctx = contexts.next();
+            if (now - ctx.time > reassemblyTimeout) {
+                if (DEBUG) System.out.println("*** Fragment context expired: age:" + (now - ctx.time));
+                memoryUsed -= ctx.getMemorySize();
+                expiredCount++;
+                contexts.remove();
             } else {
-                if (DEBUG) System.out.println("*** Found context for 1-fragment: age:" + (System.currentTimeMillis() - ctx.time));
+                nextExpiry = Math.min(nextExpiry, ctx.time + reassemblyTimeout);
             }
-            if (ctx.copyData(packet, 0)) {
-                ctx.receivedSize += packet.getPayloadLength() + (uncomprSize - comprSize);
-                ctx.firstFragmentOffset = (uncomprSize - comprSize);
+        }
+    }
+
+    private FragmentContext getContext(FragmentKey id, long now) {
+        FragmentContext ctx = fragmentMap.get(id);
+        if (ctx != null && now - ctx.time > reassemblyTimeout) {
+            /* a late fragment starts over */
+            removeContext(id, ctx);
+            expiredCount++;
+            ctx = null;
+        }
+        if (ctx == null) {
+            if (DEBUG) System.out.println("Found no context for fragment: Create new with ID:" + id);
+            ctx = new FragmentContext(id.size, now);
+            /* make room by dropping the least recently used datagrams */
+            Iterator<FragmentContext> contexts = fragmentMap.values().iterator();
+            while (memoryUsed + ctx.getMemorySize() > maxMemory && contexts.hasNext()) {
+                memoryUsed -= contexts.next().getMemorySize();
+                evictedCount++;
+                contexts.remove();
             }
-            if (DEBUG) System.out.println("Received:" + ctx.receivedSize);
-            /* Fragment 1 should never be "complete" since it would not be fragmentet then? */
+            fragmentMap.put(id, ctx);
+            memoryUsed += ctx.getMemorySize();
+            nextExpiry = Math.min(nextExpiry, now + reassemblyTimeout);
+        }
+        return ctx;
+    }
+
+    private void removeContext(FragmentKey id, FragmentContext ctx) {
+        fragmentMap.remove(id);
+        memoryUsed -= ctx.getMemorySize();
+    }
+
+    /*
+     * Adds the len bytes at the current position of the packet, covering
+     * [offset, end) of the uncompressed datagram, to the context. Returns
+     * the context to continue with - a new one if the fragment overlapped
+     * received data - or null if the fragment was dropped.
+     */
+    private FragmentContext addFragment(FragmentKey id, FragmentContext ctx, IPv6Packet packet,
+            int offset, int end, long now) {
+        int len = packet.getPayloadLength();
+        int first = offset >> 3;
+        int last = units(end);
+        int received = ctx.countReceived(first, last);
+        if (received == last - first) {
+            if (DEBUG) System.out.println("*** already received that part");
+            duplicateCount++;
+            return null;
+        }
+        if (received > 0) {
+            /* the sender has reused the tag - or the fragments are broken */
+            if (DEBUG) System.out.println("*** overlapping fragment - restarting datagram " + id);
+            overlappingCount++;
+            removeContext(id, ctx);
+            ctx = getContext(id, now);
+        }
+        /* the fragment ends at end in the uncompressed datagram */
+        packet.copy(0, ctx.data, HEADROOM + end - len, len);
+        ctx.setReceived(first, last);
+        return ctx;
+    }
+
+    public boolean handleFragment(IPv6Packet packet, int uncomprSize, int comprSize) {
+        int data = packet.getData(0);
+        boolean firstFragment = (data & 0xf8) == IPHCPacketer.SICSLOWPAN_DISPATCH_FRAG1;
+        if (!firstFragment && (data & 0xf8) != IPHCPacketer.SICSLOWPAN_DISPATCH_FRAGN) {
+            return true;
+        }
+        long now = packet.getTimeMillis();
+        if (now == 0) {
+            now = System.currentTimeMillis();
+        }
+        expire(now);
+
+        int fragSize = packet.get16(0) & 0x7ff;
+        int fragTag = packet.get16(2);
+        FragmentKey id = new FragmentKey(LinkAddress.of(packet.getLinkSource()), fragTag, fragSize);
+        int headerLen = firstFragment ? 4 : 5;
+        /* the first fragment header is compressed - it expands by uncomprSize - comprSize */
+        int offset = firstFragment ? 0 : (packet.getData(4) & 0xff) * 8;
+        int expansion = firstFragment ? uncomprSize - comprSize : 0;
+        if (DEBUG) System.out.printf("Fragment found: size:%d tag:%d offset:%d ID:%s\n", fragSize, fragTag, offset, id);
+        packet.incPos(headerLen);
+        int end = offset + expansion + packet.getPayloadLength();
+        if (expansion < 0 || end > fragSize || (end < fragSize && (end & 7) != 0)) {
+            /* does not fit the datagram - or would leave a hole */
+            invalidCount++;
             return false;
-        } else if ((data & 0xf8) == IPHCPacketer.SICSLOWPAN_DISPATCH_FRAGN) {
-            int fragSize = packet.get16(0) & 0x7ff;
-            int fragTag = packet.get16(2);
-            int fragOffset = packet.getData(4) * 8;
-            String id = packet.getLinkSourceAsString() + "-" + fragTag;
-
-            if (DEBUG) System.out.printf("N Fragment found: size:%d tag:%d offset:%d ID:%s\n", fragSize, fragTag, fragOffset, id);
-            packet.incPos(5);
-            /* here we should handle appending the packet data to the fragment buffers... */
-            FragmentContext ctx = fragmentMap.get(id);
-            if (ctx == null) {
-                if (DEBUG) System.out.println("Found no context for N-fragment: Create new with ID:" + id);
-                ctx = new FragmentContext(fragTag, fragSize);
-                fragmentMap.put(id, ctx);
-            }
-            /* typically no extra header size here? */
-            if (ctx.copyData(packet, fragOffset)) {
-                ctx.receivedSize += packet.getPayloadLength();
-            }
-            if (DEBUG) System.out.println("Received:" + ctx.receivedSize);
-            if (ctx.receivedSize == ctx.size) {
-                if (DEBUG) System.out.println("**** Packet done !!!!");
-                packet.currentPos -= 5; /* back down to regular 802.15.4 header - then put a "big" packet there... */
-                ctx.setPacketPayload(packet);
-                /* remove from fragmentMap */
-                fragmentMap.remove(id);
-                return true;
-            }
+        }
+
+        FragmentContext ctx = addFragment(id, getContext(id, now), packet, offset, end, now);
+        if (ctx == null) {
             return false;
         }
+        if (firstFragment) {
+            ctx.start = HEADROOM + expansion;
+            ctx.hasFirst = true;
+        }
+        if (DEBUG) System.out.println("Received:" + end + " of " + ctx.size);
+        if (!ctx.isComplete()) {
+            return false;
+        }
+        if (DEBUG) System.out.println("**** Packet done !!!!");
+        /* back down to regular 802.15.4 header - then put a "big" packet there... */
+        packet.currentPos -= headerLen;
+        ctx.setPacketPayload(packet);
+        removeContext(id, ctx);
+        reassembledCount++;
         return true;
     }
 
+    /* Returns the tag for the next fragmented datagram */
+    public synchronized int nextDatagramTag() {
+        datagramTag = (datagramTag + 1) & 0xffff;
+        return datagramTag;
+    }
+
+    /*
+     * Splits the compressed packet at the current position into fragments of
+     * at most maxLength bytes. The compressed headers are comprSize bytes and
+     * uncomprSize bytes when decompressed. Each fragment has headroom bytes
+     * free in front for the lower layer headers and shares the attributes -
+     * the link addresses - of the packet.
+     */
+    public MacPacket[] fragment(IPv6Packet packet, int uncomprSize, int comprSize, int maxLength, int headroom) {
+        int len = packet.getPayloadLength();
+        int size = len - comprSize + uncomprSize;
+        if (size > MAX_DATAGRAM_SIZE) {
+            throw new IllegalArgumentException("datagram of " + size + " bytes is too large to fragment");
+        }
+        /* the first fragment ends at a multiple of 8 octets in the uncompressed datagram */
+        int first = ((maxLength - FRAG1_HEADER_LENGTH - comprSize + uncomprSize) & ~7) - uncomprSize;
+        int step = (maxLength - FRAGN_HEADER_LENGTH) & ~7;
+        if (first < 0 || step <= 0) {
+            throw new IllegalStateException("compressed headers of " + comprSize
+                    + " bytes do not fit in a fragment of " + maxLength + " bytes");
+        }
+        first = Math.min(first, len - comprSize);
+        int count = 1 + (len - comprSize - first + step - 1) / step;
+        int tag = nextDatagramTag();
+
+        MacPacket[] fragments = new MacPacket[count];
+        fragments[0] = createFragment(packet, headroom, IPHCPacketer.SICSLOWPAN_DISPATCH_FRAG1,
+                size, tag, 0, comprSize + first);
+        int pos = comprSize + first;
+        for (int i = 1; i < count; i++) {
+            int n = Math.min(step, len - pos);
+            fragments[i] = createFragment(packet, headroom, IPHCPacketer.SICSLOWPAN_DISPATCH_FRAGN,
+                    size, tag, pos, n);
+            pos += n;
+        }
+        if (DEBUG) System.out.println("Fragmented " + size + " bytes into " + count + " fragments, tag:" + tag);
+        return fragments;
+    }
+
+    /* A fragment with the len bytes at pos in the packet */
+    private static MacPacket createFragment(IPv6Packet packet, int headroom, int dispatch,
+            int size, int tag, int pos, int len) {
+        int headerLen = dispatch == IPHCPacketer.SICSLOWPAN_DISPATCH_FRAG1
+                ? FRAG1_HEADER_LENGTH : FRAGN_HEADER_LENGTH;
+        byte[] data = new byte[headroom + headerLen + len];
+        data[headroom] = (byte) (dispatch | (size >> 8));
+        data[headroom + 1] = (byte) size;
+        data[headroom + 2] = (byte) (tag >> 8);
+        data[headroom + 3] = (byte) tag;
+        if (headerLen == FRAGN_HEADER_LENGTH) {
+            /* the offset in the uncompressed datagram - the first fragment covers the expansion */
+            data[headroom + 4] = (byte) ((size - (packet.getPayloadLength() - pos)) >> 3);
+        }
+        packet.copy(pos, data, headroom + headerLen, len);
+        MacPacket fragment = new MacPacket(packet.getTimeMillis());
+        fragment.attributes = packet.attributes;
+        fragment.setOwnedBytes(data, headroom, headerLen + len);
+        return fragment;
+    }
 }
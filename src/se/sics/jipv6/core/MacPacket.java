@@ -39,33 +39,79 @@
  */
 
 package se.sics.jipv6.core;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Hashtable;
 
+import se.sics.jipv6.pcap.AttributeKey;
 import se.sics.jipv6.pcap.CapturedPacket;
+import se.sics.jipv6.pcap.PacketAttributes;
+import se.sics.jipv6.util.TextFormat;
 
 public class MacPacket {
 
     public static final String LL_SOURCE = "link.source";
     public static final String LL_DESTINATION = "link.destination";
 
-    protected Hashtable<String, Object> attributes;
+    public static final AttributeKey LL_SOURCE_KEY = AttributeKey.objectKey(LL_SOURCE);
+    public static final AttributeKey LL_DESTINATION_KEY = AttributeKey.objectKey(LL_DESTINATION);
+
+    protected PacketAttributes attributes;
     
-    private final long timeMillis;
+    private long timeMillis;
+    private boolean retained;
 
-    /* this is the packet data array */
+    /*
+     * this is the packet data array - the packet is the view between
+     * dataStart and dataEnd which may be part of a larger shared array
+     */
     protected byte[] packetData;
-    /* current position of packet data cursor */
+    int dataStart = 0;
+    int dataEnd = 0;
+    /* set when the packet owns the data - the bytes before dataStart are then free for headers */
+    private boolean ownsData;
+    /* current position of packet data cursor (relative to dataStart) */
     int currentPos = 0;
 
     public MacPacket(CapturedPacket p) {
         this.timeMillis = p.getTimeMillis();
         this.packetData = p.getPayload();
-        this.attributes = p.getAttributes();
+        this.dataEnd = packetData.length;
+        this.attributes = p.getPacketAttributes();
     }
     
     public MacPacket(long time) {
         this.timeMillis = time;
-        this.attributes = new Hashtable<String, Object>();
+        this.attributes = new PacketAttributes();
+    }
+
+    /* Resets a pooled packet for decoding the specified captured packet */
+    public void reset(CapturedPacket p) {
+        reset(p.getTimeMillis(), p.getPayload(), p.getPacketAttributes());
+    }
+
+    void reset(long time, byte[] data, PacketAttributes attributes) {
+        this.timeMillis = time;
+        this.packetData = data;
+        this.dataStart = 0;
+        this.dataEnd = data == null ? 0 : data.length;
+        this.attributes = attributes;
+        this.currentPos = 0;
+        this.ownsData = false;
+        this.retained = false;
+    }
+
+    /*
+     * Marks the packet as kept by the caller. Packets handed to the
+     * analyzers are reused for later packets after the callback unless
+     * they have been retained.
+     */
+    public void retain() {
+        retained = true;
+    }
+
+    public boolean isRetained() {
+        return retained;
     }
 
     public long getTimeMillis() {
@@ -77,76 +123,188 @@ public class MacPacket {
     }
 
     public void setBytes(byte[] data) {
-        packetData = data;
-        currentPos = 0;
+        setBytes(data, 0, data.length);
     }
 
+    /* The packet becomes a view of the data - the data is not copied */
     public void setBytes(byte[] data, int startPos, int len) {
-        byte[] payload = new byte[len];
-        System.arraycopy(data, startPos, payload, 0, len);
-        packetData = payload;
+        if (startPos < 0 || len < 0 || startPos + len > data.length) {
+            throw new IllegalArgumentException("illegal view " + startPos + "+" + len + " of " + data.length + " bytes");
+        }
+        packetData = data;
+        dataStart = startPos;
+        dataEnd = startPos + len;
+        ownsData = false;
         /* reset cursor in this case !!! */
         currentPos = 0;
     }
 
+    /*
+     * As setBytes but the packet takes ownership of the data. Lower layers
+     * write their headers in place into the bytes before startPos.
+     */
+    public void setOwnedBytes(byte[] data, int startPos, int len) {
+        setBytes(data, startPos, len);
+        ownsData = true;
+    }
+
+    /*
+     * The packet becomes a view of the data in the buffer between its
+     * position and limit. Direct buffers have no accessible array and are
+     * copied.
+     */
+    public void setBytes(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            setBytes(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        } else {
+            byte[] data = new byte[buffer.remaining()];
+            buffer.duplicate().get(data);
+            setBytes(data);
+        }
+    }
+
     /* This will replace any data after the specific position with the data array */
     public void setBytePayload(byte[] data) {
-        byte[] newData = new byte[data.length + currentPos];
-        System.arraycopy(packetData, 0, newData, 0, currentPos);
-        System.arraycopy(data, 0, newData, currentPos, data.length);
+        setBytePayload(data, 0, data.length);
+    }
+
+    /*
+     * Replaces any data after the current position with len bytes of data
+     * at offset. The data is copied and the array is left unchanged.
+     */
+    public void setBytePayload(byte[] data, int offset, int len) {
+        byte[] newData = new byte[len + currentPos];
+        System.arraycopy(packetData, dataStart, newData, 0, currentPos);
+        System.arraycopy(data, offset, newData, currentPos, len);
         packetData = newData;
+        dataStart = 0;
+        dataEnd = newData.length;
+        ownsData = true;
+    }
+
+    /*
+     * As setBytePayload but the caller hands over the array with headroom
+     * before offset. If the headroom fits the bytes before the current
+     * position, they are written there and the packet becomes a view of
+     * data without copying the payload.
+     */
+    public void setBytePayloadWithHeadroom(byte[] data, int offset, int len) {
+        if (offset >= currentPos) {
+            int start = offset - currentPos;
+            System.arraycopy(packetData, dataStart, data, start, currentPos);
+            packetData = data;
+            dataStart = start;
+            dataEnd = offset + len;
+            ownsData = false;
+        } else {
+            setBytePayload(data, offset, len);
+        }
     }
 
     public void appendBytes(byte[] data) {
         if (packetData == null) {
-            packetData = data;
+            setBytes(data);
         } else {
-            setPacketData(packetData, data);
+            setPacketData(packetData, dataStart, dataEnd - dataStart, data, 0, data.length);
         }
     }
 
     public void prependBytes(byte[] data) {
         if (packetData == null) {
-            packetData = data;
+            setBytes(data);
         } else {
-            setPacketData(data, packetData);
+            prependBytes(data, 0, data.length);
         }
     }
 
-    private void setPacketData(byte[] data1, byte[] data2) {
-        byte[] newData = new byte[data1.length + data2.length];
-        System.arraycopy(data1, 0, newData, 0, data1.length);
-        System.arraycopy(data2, 0, newData, data1.length, data2.length);
+    /* Prepends len bytes of data - in place if the packet owns the data and has the headroom */
+    public void prependBytes(byte[] data, int offset, int len) {
+        if (ownsData && dataStart >= len) {
+            dataStart -= len;
+            System.arraycopy(data, offset, packetData, dataStart, len);
+        } else if (packetData == null) {
+            setOwnedBytes(Arrays.copyOfRange(data, offset, offset + len), 0, len);
+        } else {
+            setPacketData(data, offset, len, packetData, dataStart, dataEnd - dataStart);
+        }
+    }
+
+    public void prependByte(byte data) {
+        if (ownsData && dataStart > 0) {
+            packetData[--dataStart] = data;
+        } else {
+            prependBytes(new byte[] { data });
+        }
+    }
+
+    private void setPacketData(byte[] data1, int offset1, int len1, byte[] data2, int offset2, int len2) {
+        byte[] newData = new byte[len1 + len2];
+        System.arraycopy(data1, offset1, newData, 0, len1);
+        System.arraycopy(data2, offset2, newData, len1, len2);
         packetData = newData;
+        dataStart = 0;
+        dataEnd = newData.length;
+        ownsData = true;
     }
 
+    /* Returns the packet data - a copy if the packet is a view of part of an array */
     public byte[] getBytes() {
-        return packetData;
+        if (packetData == null || (dataStart == 0 && dataEnd == packetData.length)) {
+            return packetData;
+        }
+        return Arrays.copyOfRange(packetData, dataStart, dataEnd);
+    }
+
+    /* Returns a read-only view of the packet data after the current position */
+    public ByteBuffer getPayloadBuffer() {
+        return ByteBuffer.wrap(packetData, dataStart + currentPos, getPayloadLength()).slice().asReadOnlyBuffer();
     }
 
     /* total packet length */
     public int getTotalLength() {
-        return packetData.length;
+        return dataEnd - dataStart;
     }
 
     /* called when headers are parsed to get current payload lenght
      * only useful when parsing messages... */
     public int getPayloadLength() {
-        return packetData.length - currentPos;
+        return dataEnd - dataStart - currentPos;
     }
 
     public void setAttribute(String name, Object object) {
-        attributes.put(name, object);
+        attributes.set(name, object);
     }
 
     public void setAttribute(String name, int data) {
-        attributes.put(name, new Integer(data));
+        attributes.set(name, data);
     }
 
     public Object getAttribute(String name) {
         return attributes.get(name);
     }
 
+    public void setAttribute(AttributeKey key, Object object) {
+        attributes.setObject(key, object);
+    }
+
+    public void setAttribute(AttributeKey key, int data) {
+        attributes.setInt(key, data);
+    }
+
+    public Object getAttribute(AttributeKey key) {
+        return attributes.getObject(key);
+    }
+
+    public PacketAttributes getPacketAttributes() {
+        return attributes;
+    }
+
+    /* Hashtable view of the attributes - use getPacketAttributes() */
+    @Deprecated
+    public Hashtable<String, Object> getAttributes() {
+        return attributes.asHashtable();
+    }
+
     public static String addressToString(byte[] addr) {
         StringBuilder addrStr = new StringBuilder();
         for(int i = 0; i < addr.length; i++) {
@@ -159,7 +317,7 @@ public class MacPacket {
     }
 
     public byte[] getLinkSource() {
-        return (byte[]) attributes.get(LL_SOURCE);
+        return (byte[]) attributes.getObject(LL_SOURCE_KEY);
     }
 
     public String getLinkSourceAsString() {
@@ -167,7 +325,7 @@ public class MacPacket {
     }
 
     public byte[] getLinkDestination() {
-        return (byte[]) attributes.get(LL_DESTINATION);
+        return (byte[]) attributes.getObject(LL_DESTINATION_KEY);
     }
 
     public String getLinkDestinationAsString() {
@@ -176,8 +334,8 @@ public class MacPacket {
 
 
     public int get32(int pos) {
-        pos = currentPos + pos;
-        if (packetData.length >= pos + 3) {
+        pos = dataStart + currentPos + pos;
+        if (dataEnd >= pos + 3) {
             return ((packetData[pos] & 0xff) << 24) |
                     ((packetData[pos + 1] & 0xff) << 16) |
                     ((packetData[pos + 2] & 0xff) << 8) |
@@ -187,8 +345,8 @@ public class MacPacket {
     }
 
     public int get24(int pos) {
-        pos = currentPos + pos;
-        if (packetData.length >= pos + 2) {
+        pos = dataStart + currentPos + pos;
+        if (dataEnd >= pos + 2) {
             return ((packetData[pos] & 0xff) << 16) |
                     ((packetData[pos + 1] & 0xff) << 8) |
                     (packetData[pos + 2] & 0xff);
@@ -217,39 +375,47 @@ public class MacPacket {
 
 
     public int get16(int pos) {
-        pos = currentPos + pos;
-        if (packetData.length > pos + 1)
+        pos = dataStart + currentPos + pos;
+        if (dataEnd > pos + 1)
             return ((packetData[pos] & 0xff) << 8) | packetData[pos + 1] & 0xff;
         return 0;
     }
 
     public byte getData(int pos) {
-        return packetData[currentPos + pos];
+        return packetData[dataStart + currentPos + pos];
     }
 
     public void incPos(int delta) {
         currentPos += delta;
     }
 
+    /* Returns a copy of the payload - see getPayloadBuffer() for a view without copying */
     public byte[] getPayload() {
         // payload is from pos to end...
-        byte[] payload = new byte[packetData.length - currentPos];
-        System.arraycopy(packetData, currentPos, payload, 0, payload.length);
+        byte[] payload = new byte[getPayloadLength()];
+        System.arraycopy(packetData, dataStart + currentPos, payload, 0, payload.length);
         return payload;
     }
 
+    /* Adds the bytes from currentPos + pos to the 16 bit one's complement sum */
+    public int checkSum(int sum, int pos, int len) {
+        return IPv6Packet.checkSum(sum, packetData, dataStart + currentPos + pos, len);
+    }
+
     public int getAttributeAsInt(String attr) {
-        Object val = attributes.get(attr);
-        if (val instanceof Integer) return ((Integer)val).intValue();
-        if (val instanceof String) return Integer.parseInt((String) val);
-        return -1;
+        return attributes.getAsInt(attr);
+    }
+
+    /* returns the attribute value or -1 if not set */
+    public int getAttributeAsInt(AttributeKey key) {
+        return attributes.getInt(key, -1);
     }
 
     /* copies bytes from currentPos + pos to the given array */
     public void copy(int pos, byte[] dst, int dstPos, int len) {
-        int tPos = pos + currentPos;
-        if (tPos + len > packetData.length) {
-            System.out.println("Trying to copy data from " + pos + " " + currentPos + " of " + len + " len (totSize: " + packetData.length + ")");
+        int tPos = dataStart + pos + currentPos;
+        if (tPos + len > dataEnd) {
+            System.out.println("Trying to copy data from " + pos + " " + currentPos + " of " + len + " len (totSize: " + getTotalLength() + ")");
         }
         if (len + dstPos > dst.length) {
             System.out.println("Trying to copy data to " + dstPos + " of " + len + " len (totSize: " + dst.length + ")");
@@ -265,27 +431,22 @@ public class MacPacket {
 
 
     public void setData(int pos, byte val) {
-        packetData[currentPos + pos] = val;
+        packetData[dataStart + currentPos + pos] = val;
     }
 
     public void printPayload() {
-        for(int i = currentPos; i < packetData.length; i++) {
+        for(int i = dataStart + currentPos; i < dataEnd; i++) {
             System.out.printf("%02x", packetData[i] & 0xff);
         }
         System.out.println();
     }
 
     public static String macToString(byte[] addr) {
-        StringBuilder str = new StringBuilder();
-        for(int i = 0; i < addr.length; i++) {
-            if(i > 0) str.append(':');
-            str.append(String.format("%02x", addr[i]));
-        }
-        return str.toString();
+        return TextFormat.appendMAC(new StringBuilder(addr.length * 3), addr).toString();
     }
 
     public void printPacket() {
-        for (String key : attributes.keySet().toArray(new String[0])) {
+        for (String key : attributes.getNames()) {
             Object value = attributes.get(key);
             if(key.equals(LL_SOURCE) || key.equals(LL_DESTINATION)) {
                 byte[] addr = (byte[]) value;
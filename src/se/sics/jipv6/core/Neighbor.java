@@ -74,19 +74,28 @@ public class Neighbor {
     public static final int NO_STATE = 5;
 
 
-    byte[] ipAddress;
-    byte[] linkAddress;
+    IPv6Address ipAddress;
+    LinkAddress linkAddress;
     NetworkInterface netInterface;
     long reachableUntil;
     long lastNDSent;
     int state = INCOMPLETE;
 
     public byte[] getIpAddress() {
-        return ipAddress;
+        return ipAddress == null ? null : ipAddress.getBytes();
     }
 
     public void setIpAddress(byte[] ipAddress) {
-        this.ipAddress = ipAddress;
+        this.ipAddress = IPv6Address.of(ipAddress);
+    }
+
+    public IPv6Address getAddress() {
+        return ipAddress;
+    }
+
+    /* the link layer address or null if not yet known */
+    public byte[] getLinkAddress() {
+        return linkAddress == null ? null : linkAddress.getBytes();
     }
 
     public void setState(int state) {
@@ -57,8 +57,8 @@ public class NeighborTable {
         if (nb == null) {
             if (checkIPAddress(ipAddress)) {
                 nb = new Neighbor();
-                nb.ipAddress = ipAddress;
-                nb.linkAddress = linkAddress;
+                nb.ipAddress = IPv6Address.of(ipAddress);
+                nb.linkAddress = LinkAddress.of(linkAddress);
                 nb.state = checkLinkAddress(linkAddress) ? Neighbor.STALE : Neighbor.INCOMPLETE;
                 if (neighborCount < neighbors.length) {
                     neighbors[neighborCount++] = nb;
@@ -69,7 +69,7 @@ public class NeighborTable {
             }
         } else {
             /* Neighbor already in neighbor table */
-            nb.linkAddress = linkAddress;
+            nb.linkAddress = LinkAddress.of(linkAddress);
             nb.state = Neighbor.INCOMPLETE;
         }
         return nb;
@@ -111,7 +111,7 @@ public class NeighborTable {
         int neighborCount0 = neighborCount;
         Neighbor[] neis = neighbors;
         for (int i = 0; i < neighborCount0; i++) {
-            if (Utils.equals(ipAddress, neis[i].ipAddress)) {
+            if (neis[i].ipAddress.matches(ipAddress)) {
                 return neis[i];
             }
         }
@@ -1,8 +1,11 @@
 package se.sics.jipv6.core;
 
 import java.io.PrintStream;
+import java.util.Arrays;
 import java.util.Formatter;
 
+import se.sics.jipv6.util.TextFormat;
+
 public class RPLPacket extends ICMP6Packet {
 
     public static final int ICMP6_TYPE_RPL = 155;
@@ -44,6 +47,20 @@ public class RPLPacket extends ICMP6Packet {
     public RPLPacket() {
     }
 
+    void reset() {
+        super.reset();
+        instanceID = 0;
+        version = 0;
+        rank = 0;
+        flag = 0;
+        dtsn = 0;
+        sequence = 0;
+        lifetime = 0;
+        Arrays.fill(dagID, (byte) 0);
+        targetPrefixLen = 0;
+        Arrays.fill(targetPrefix, (byte) 0);
+    }
+
     public void parsePacketData(IPv6Packet packet) {
         super.parsePacketData(packet);
         /* Skip type, code and checksum  */
@@ -122,19 +139,23 @@ public class RPLPacket extends ICMP6Packet {
         if (code < RPL_NAMES.length) {
             name = RPL_NAMES[code];
         }
-        out.format("ICMP6 - RPL " + name);
-        switch (code) {
-        case RPL_DIO:
-            out.format(" Rank: " + (rank / 128.0));
-            out.format(" DAG ID: ");
-            IPv6Packet.printAddress(out, dagID);
-            out.format("\n");
-            break;
-        case RPL_DAO:
-            out.format(" Seq: " + sequence + " Lifetime: " + lifetime + " Target:");
-            IPv6Packet.printAddress(out, targetPrefix);
-            out.format("\n");
-            break;
+        StringBuilder sb = TextFormat.getBuilder();
+        try {
+            sb.append("ICMP6 - RPL ").append(name);
+            switch (code) {
+            case RPL_DIO:
+                sb.append(" Rank: ").append(rank / 128.0);
+                sb.append(" DAG ID: ");
+                TextFormat.appendIPv6(sb, dagID).append('\n');
+                break;
+            case RPL_DAO:
+                sb.append(" Seq: ").append(sequence).append(" Lifetime: ").append(lifetime).append(" Target:");
+                TextFormat.appendIPv6(sb, targetPrefix).append('\n');
+                break;
+            }
+            TextFormat.write(out, sb);
+        } finally {
+            TextFormat.release(sb);
         }
     }
 }
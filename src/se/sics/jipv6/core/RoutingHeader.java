@@ -0,0 +1,177 @@
+package se.sics.jipv6.core;
+
+import java.util.Formatter;
+
+import se.sics.jipv6.util.TextFormat;
+
+/*
+ * IPv6 routing header. The addresses of the RPL source routing header
+ * (RFC 6554, type 3) are decoded - the prefix bytes elided by CmprI and
+ * CmprE are taken from the IPv6 destination address.
+ */
+public class RoutingHeader implements IPv6ExtensionHeader {
+
+    public static final byte DISPATCH = 43;
+    public static final int TYPE_RPL_SOURCE_ROUTE = 3;
+
+    private static final IPv6Address[] NO_ADDRESSES = new IPv6Address[0];
+
+    byte nextHeader = 0;
+    int len;
+    int routingType = TYPE_RPL_SOURCE_ROUTE;
+    int segmentsLeft;
+    IPv6Address[] addresses = NO_ADDRESSES;
+    IPPayload next;
+
+    /* Resets a reused header before parsing */
+    void reset() {
+        nextHeader = 0;
+        len = 0;
+        routingType = TYPE_RPL_SOURCE_ROUTE;
+        segmentsLeft = 0;
+        addresses = NO_ADDRESSES;
+        next = null;
+    }
+
+    public byte getNextHeader() {
+        return nextHeader;
+    }
+
+    public void setNextHeader(byte nextHeader) {
+        this.nextHeader = nextHeader;
+    }
+
+    public int getRoutingType() {
+        return routingType;
+    }
+
+    public int getSegmentsLeft() {
+        return segmentsLeft;
+    }
+
+    /* All addresses of a source route - the last segmentsLeft are still to be visited */
+    public IPv6Address[] getAddresses() {
+        return addresses;
+    }
+
+    /* Sets a source route where all addresses are still to be visited */
+    public void setAddresses(IPv6Address[] addresses) {
+        this.addresses = addresses;
+        this.routingType = TYPE_RPL_SOURCE_ROUTE;
+        this.segmentsLeft = addresses.length;
+    }
+
+    @Override
+    public byte getDispatch() {
+        return DISPATCH;
+    }
+
+    private static int commonPrefix(IPv6Address address, byte[] reference) {
+        byte[] a = address.getBytes();
+        int n = 0;
+        /* at least one byte is always carried */
+        while (n < 15 && a[n] == reference[n]) {
+            n++;
+        }
+        return n;
+    }
+
+    @Override
+    public byte[] generatePacketData(IPv6Packet packet) {
+        if (routingType != TYPE_RPL_SOURCE_ROUTE) {
+            throw new IllegalStateException("can not generate routing header of type " + routingType);
+        }
+        byte[] payload = next != null ? next.generatePacketData(packet) : null;
+        int n = addresses.length;
+        int cmprI = 15;
+        for (int i = 0; i < n - 1; i++) {
+            cmprI = Math.min(cmprI, commonPrefix(addresses[i], packet.destAddress));
+        }
+        int cmprE = n > 0 ? commonPrefix(addresses[n - 1], packet.destAddress) : 15;
+        if (n < 2) {
+            cmprI = 0;
+        }
+        int routeLen = n > 0 ? (n - 1) * (16 - cmprI) + 16 - cmprE : 0;
+        int size = (8 + routeLen + 7) & ~7;
+        int pad = size - 8 - routeLen;
+
+        byte[] data = new byte[size + (payload != null ? payload.length : 0)];
+        data[0] = next != null ? next.getDispatch() : nextHeader;
+        data[1] = (byte) (size / 8 - 1);
+        data[2] = (byte) routingType;
+        data[3] = (byte) segmentsLeft;
+        data[4] = (byte) ((cmprI << 4) | cmprE);
+        data[5] = (byte) (pad << 4);
+        int pos = 8;
+        for (int i = 0; i < n; i++) {
+            int elided = i < n - 1 ? cmprI : cmprE;
+            byte[] a = addresses[i].getBytes();
+            System.arraycopy(a, elided, data, pos, 16 - elided);
+            pos += 16 - elided;
+        }
+        if (payload != null) {
+            System.arraycopy(payload, 0, data, size, payload.length);
+        }
+        return data;
+    }
+
+    @Override
+    public void parsePacketData(IPv6Packet packet) {
+        /* Assumes that this is the correct position */
+        nextHeader = packet.getData(0);
+        int hdrExtLen = packet.getData(1) & 0xff;
+        len = hdrExtLen * 8 + 8;
+        routingType = packet.getData(2) & 0xff;
+        segmentsLeft = packet.getData(3) & 0xff;
+        addresses = NO_ADDRESSES;
+        if (routingType == TYPE_RPL_SOURCE_ROUTE) {
+            int cmprI = (packet.getData(4) & 0xff) >> 4;
+            int cmprE = packet.getData(4) & 0x0f;
+            int pad = (packet.getData(5) & 0xff) >> 4;
+            /* the addresses follow the first 8 bytes and end before the padding */
+            int routeLen = hdrExtLen * 8 - pad;
+            if (routeLen >= 16 - cmprE) {
+                int n = (routeLen - (16 - cmprE)) / (16 - cmprI) + 1;
+                addresses = new IPv6Address[n];
+                byte[] address = new byte[16];
+                int pos = 8;
+                for (int i = 0; i < n; i++) {
+                    int elided = i < n - 1 ? cmprI : cmprE;
+                    System.arraycopy(packet.destAddress, 0, address, 0, elided);
+                    packet.copy(pos, address, elided, 16 - elided);
+                    pos += 16 - elided;
+                    addresses[i] = IPv6Address.of(address);
+                }
+            }
+        }
+        packet.incPos(len);
+    }
+
+    @Override
+    public void printPacket(Formatter out) {
+        StringBuilder sb = TextFormat.getBuilder();
+        try {
+            sb.append("RH NH: ").append(nextHeader & 0xff).append(" type: ").append(routingType)
+                .append(" SL: ").append(segmentsLeft);
+            if (addresses.length > 0) {
+                sb.append(" route:");
+                for (int i = 0; i < addresses.length; i++) {
+                    sb.append(i == 0 ? " " : " -> ").append(addresses[i]);
+                }
+            }
+            sb.append('\n');
+            TextFormat.write(out, sb);
+        } finally {
+            TextFormat.release(sb);
+        }
+    }
+
+    public void setNext(IPPayload payload) {
+        next = payload;
+    }
+
+    @Override
+    public IPPayload getNext() {
+        return next;
+    }
+}
@@ -45,7 +45,6 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Formatter;
 
-import se.sics.jipv6.util.Utils;
 
 public class TCPConnection {
     // States of the connection
@@ -69,10 +68,10 @@ public class TCPConnection {
 
     // my port & IP (IP can be null here...)
     int localPort;
-    byte[] localIP;
+    IPv6Address localIP;
     // other port
     int externalPort = -1;
-    byte[] externalIP;
+    IPv6Address externalIP;
 
     /* position in connection array - debug */
     byte pos;
@@ -147,8 +146,8 @@ public class TCPConnection {
     public boolean matches(IPv6Packet packet, TCPPacket tcpPacket) {
         if ((externalPort == -1 || tcpPacket.sourcePort == externalPort) &&
                 tcpPacket.destinationPort == localPort &&
-                (localIP == null || Utils.equals(localIP, packet.destAddress)) &&
-                (externalIP == null || Utils.equals(externalIP, packet.sourceAddress))) {
+                (localIP == null || localIP.matches(packet.destAddress)) &&
+                (externalIP == null || externalIP.matches(packet.sourceAddress))) {
             return true;
         }
         return false;
@@ -157,7 +156,7 @@ public class TCPConnection {
     /* send packet + update sendNext - this should take into account ext window */
     /* is this what mess up the stuff */
     public void send(TCPPacket tcpPacket) throws IOException {
-        IPv6Packet packet = new IPv6Packet(tcpPacket, localIP, externalIP);
+        IPv6Packet packet = new IPv6Packet(tcpPacket, localIP.getBytes(), externalIP.getBytes());
         tcpPacket.seqNo = sendNext;
         tcpPacket.ackNo = receiveNext;
 
@@ -241,7 +240,7 @@ public class TCPConnection {
         }
 
 
-        IPv6Packet packet = new IPv6Packet(tcpPacket, localIP, externalIP);
+        IPv6Packet packet = new IPv6Packet(tcpPacket, localIP.getBytes(), externalIP.getBytes());
         tcpPacket.seqNo = sentUnack;
         lastSendTime = System.currentTimeMillis();
         tcpPacket.printPacket(new Formatter(System.out));
@@ -91,9 +91,9 @@ public class TCPHandler extends TimerTask {
                     TCPPacket tcpReply = createAck(tcpPacket, TCPPacket.SYN);
                     TCPConnection tc = new TCPConnection(ipStack, packet.netInterface);
                     /* setup the connection */
-                    tc.externalIP = packet.sourceAddress;
+                    tc.externalIP = IPv6Address.of(packet.sourceAddress);
                     tc.externalPort = tcpPacket.sourcePort;
-                    tc.localIP = ipStack.myIPAddress;
+                    tc.localIP = IPv6Address.of(ipStack.myIPAddress);
                     tc.localPort = tcpPacket.destinationPort;
                     tc.state = TCPConnection.SYN_RECEIVED;
                     tc.receiveNext = tcpPacket.seqNo + 1;
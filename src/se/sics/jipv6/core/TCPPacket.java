@@ -43,6 +43,7 @@ package se.sics.jipv6.core;
 import java.io.PrintStream;
 import java.util.Formatter;
 
+import se.sics.jipv6.util.TextFormat;
 import se.sics.jipv6.util.Utils;
 
 /**
@@ -130,8 +131,7 @@ public class TCPPacket implements IPPayload {
         packet.payloadLen = size;
         int sum = packet.upperLayerHeaderChecksum(DISPATCH);
 
-        sum = IPv6Packet.checkSum(sum, data, size);
-        sum = (~sum) & 0xffff;
+        sum = Checksum.complement(Checksum.add(sum, data, 0, size));
         data[16] = (byte) (sum >> 8);
         data[17] = (byte) (sum & 0xff);
 
@@ -182,18 +182,11 @@ public class TCPPacket implements IPPayload {
         checksum = packet.get16(16);
         urgentPointer = packet.get16(18);
 
-        /* checksum */
-        packet.setData(16, (byte) 0);
-        packet.setData(17, (byte) 0);
+        /* checksum - verified in place with the checksum field */
         byte[] data = packet.getPayload();
-        int sum = packet.upperLayerHeaderChecksum(DISPATCH);
-        sum = IPv6Packet.checkSum(sum, data, data.length);
-        sum = (~sum) & 0xffff;
-        if (sum == checksum) {
-            // System.out.println("TCP: Checksum matches!!!");
-        } else {
+        if (!Checksum.verify(packet, DISPATCH, data.length)) {
             System.out.println("TCP: Checksum error: " +
-                    Utils.hex16(checksum) + " <?> " + Utils.hex16(sum));
+                    Utils.hex16(checksum) + " <?> " + Utils.hex16(Checksum.expected(packet, DISPATCH, data.length, checksum)));
         }
         if (data.length - (offset * 4) > 0) {
             int len = data.length - (offset * 4);
@@ -206,19 +199,25 @@ public class TCPPacket implements IPPayload {
      * @see se.sics.mspsim.net.IPPayload#printPacket(java.io.PrintStream)
      */
     public void printPacket(Formatter out) {
-        out.format("[TCP " + sourcePort +
-                " -> " + destinationPort + " Flag: " + Utils.hex8(flags) +
-                " seq: " + Long.toString(seqNo & 0xffffL, 16) +
-                " ack: " + Long.toString(ackNo &  0xffffL, 16));
-        if (payload != null) {
-            out.format("|");
-            int len = 8;
-            if (payload.length < len) len = payload.length;
-            for (int i = 0; i < len; i++) {
-                out.format("%c",(char)payload[i]);
+        StringBuilder sb = TextFormat.getBuilder();
+        try {
+            sb.append("[TCP ").append(sourcePort).append(" -> ").append(destinationPort).append(" Flag: ");
+            TextFormat.appendHex8(sb, flags);
+            sb.append(" seq: ").append(Long.toString(seqNo & 0xffffL, 16));
+            sb.append(" ack: ").append(Long.toString(ackNo &  0xffffL, 16));
+            if (payload != null) {
+                sb.append('|');
+                int len = 8;
+                if (payload.length < len) len = payload.length;
+                for (int i = 0; i < len; i++) {
+                    sb.append((char)payload[i]);
+                }
             }
+            sb.append("]\n");
+            TextFormat.write(out, sb);
+        } finally {
+            TextFormat.release(sb);
         }
-        out.format("]\n");
     }
 
     public TCPPacket replyPacket() {
@@ -40,8 +40,11 @@
 
 package se.sics.jipv6.core;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Formatter;
 
+import se.sics.jipv6.util.TextFormat;
 import se.sics.jipv6.util.Utils;
 
 public class UDPPacket implements IPPayload {
@@ -53,7 +56,23 @@ public class UDPPacket implements IPPayload {
     int destinationPort;
     int length;
     int checkSum;
+    boolean checksumValid;
+    /* payloadLength bytes at payloadOffset - a view of the packet data when parsed */
     byte[] payload;
+    int payloadOffset;
+    int payloadLength;
+
+    /* Resets a reused packet before parsing */
+    void reset() {
+        sourcePort = 0;
+        destinationPort = 0;
+        length = 0;
+        checkSum = 0;
+        checksumValid = false;
+        payload = null;
+        payloadOffset = 0;
+        payloadLength = 0;
+    }
 
     public UDPPacket replyPacket() {
         UDPPacket udp = new UDPPacket();
@@ -62,12 +81,42 @@ public class UDPPacket implements IPPayload {
         return udp;
     }
 
+    /* Returns the payload - copied from the packet data on first call for parsed packets */
     public byte[] getPayload() {
+        if (payload != null && (payloadOffset != 0 || payloadLength != payload.length)) {
+            payload = Arrays.copyOfRange(payload, payloadOffset, payloadOffset + payloadLength);
+            payloadOffset = 0;
+        }
         return payload;
     }
 
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+
+    /* Returns a read-only view of the payload without copying */
+    public ByteBuffer getPayloadBuffer() {
+        if (payload == null) {
+            return ByteBuffer.allocate(0);
+        }
+        return ByteBuffer.wrap(payload, payloadOffset, payloadLength).slice().asReadOnlyBuffer();
+    }
+
     public void setPayload(byte[] payload) {
         this.payload = payload;
+        this.payloadOffset = 0;
+        this.payloadLength = payload != null ? payload.length : 0;
+    }
+
+    /* Sets the payload to a view of len bytes at pos in the packet */
+    void setPayload(MacPacket packet, int pos, int len) {
+        if (len < 0 || pos + len > packet.getPayloadLength()) {
+            throw new IllegalStateException("UDP payload of " + len + " bytes at " + pos
+                    + " exceeds packet payload of " + packet.getPayloadLength() + " bytes");
+        }
+        this.payload = packet.packetData;
+        this.payloadOffset = packet.dataStart + packet.currentPos + pos;
+        this.payloadLength = len;
     }
 
     public int getSourcePort() {
@@ -88,8 +137,7 @@ public class UDPPacket implements IPPayload {
 
     /* generate RAW UDP packet */
     public byte[] generatePacketData(IPv6Packet packet) {
-        int size = payload != null ? payload.length : 0;
-        size += 8;
+        int size = payloadLength + 8;
         byte[] data = new byte[size];
         int pos = 0;
         data[pos++] = (byte)(sourcePort >> 8);
@@ -102,14 +150,13 @@ public class UDPPacket implements IPPayload {
         data[pos++] = 0;
 
         if (payload != null) {
-            System.arraycopy(payload, 0, data, pos, payload.length);
+            System.arraycopy(payload, payloadOffset, data, pos, payloadLength);
         }
 
         packet.payloadLen = size;
         int sum = packet.upperLayerHeaderChecksum((byte)DISPATCH);
 
-        sum = IPv6Packet.checkSum(sum, data, size);
-        sum = (~sum) & 0xffff;
+        sum = Checksum.complement(Checksum.add(sum, data, 0, size));
         data[6] = (byte) (sum >> 8);
         data[7] = (byte) (sum & 0xff);
 
@@ -121,8 +168,14 @@ public class UDPPacket implements IPPayload {
     }
 
     public void printPacket(Formatter out) {
-        out.format("UDP Packet srcPort: " + sourcePort +
-                " destPort: " + destinationPort + " length: " + length + "\n");
+        StringBuilder sb = TextFormat.getBuilder();
+        try {
+            sb.append("UDP Packet srcPort: ").append(sourcePort).append(" destPort: ")
+                .append(destinationPort).append(" length: ").append(length).append('\n');
+            TextFormat.write(out, sb);
+        } finally {
+            TextFormat.release(sb);
+        }
     }
 
     public void parsePacketData(IPv6Packet packet) {
@@ -135,51 +188,55 @@ public class UDPPacket implements IPPayload {
             System.out.println("UDP Length: " + length);
             System.out.println("UDP payload length: " + packet.getPayloadLength());
         }
-        /* this will *crash* if packet does not contain all data */
-        payload = new byte[length - 8];
         /* length is total UDP length */
-        packet.copy(8, payload, 0, length - 8);
+        setPayload(packet, 8, length - 8);
 
-        /* checksum */
-        packet.setData(6, (byte) 0);
-        packet.setData(7, (byte) 0);
-        byte[] data = packet.getPayload();
-        packet.payloadLen = data.length;
+        /* checksum - verified over the payload in place */
+        int len = packet.getPayloadLength();
         if (DEBUG) {
-            System.out.println("Calculating checksum on len:" + data.length);
+            System.out.println("Calculating checksum on len:" + len);
         }
-        int sum = packet.upperLayerHeaderChecksum((byte)DISPATCH);
-        sum = IPv6Packet.checkSum(sum, data, data.length);
-        sum = (~sum) & 0xffff;
-        if (sum == checkSum) {
+        checksumValid = Checksum.verify(packet, DISPATCH, len);
+        if (checksumValid) {
             if (DEBUG) System.out.println("UDP: Checksum matches!!!");
         } else {
+            Checksum.countError();
             System.out.println("UDP: Checksum error: " +
-                    Utils.hex16(checkSum) + " <?> " + Utils.hex16(sum));
+                    Utils.hex16(checkSum) + " <?> " + Utils.hex16(Checksum.expected(packet, DISPATCH, len, checkSum)));
         }
     }
 
-    // TODO: IPHC should instead insert this data into the UDP packet so
-    // that there is no need for special handling-
-    public int doVirtualChecksum(IPv6Packet packet) {
-        byte[] vheader = new byte[8];
-        int length = payload.length + 8;
-        vheader[0] = (byte) (sourcePort >> 8);
-        vheader[1] = (byte) (sourcePort & 0xff);
-        vheader[2] = (byte) (destinationPort >> 8);
-        vheader[3] = (byte) (destinationPort & 0xff);
-        vheader[4] = (byte) (length >> 8);
-        vheader[5] = (byte) (length & 0xff);
+    /* false if the packet was parsed with a checksum error */
+    public boolean isChecksumValid() {
+        return checksumValid;
+    }
 
+    /*
+     * Checksum of a UDP header that is not in the packet data - compressed by
+     * IPHC - and the payload. The header words are added directly to the sum.
+     */
+    public int calculateChecksum(IPv6Packet packet) {
+        int length = payloadLength + 8;
         packet.payloadLen = length;
         int sum = packet.upperLayerHeaderChecksum((byte) DISPATCH);
+        sum = Checksum.add16(sum, sourcePort);
+        sum = Checksum.add16(sum, destinationPort);
+        sum = Checksum.add16(sum, length);
+        if (payload != null) {
+            sum = Checksum.add(sum, payload, payloadOffset, payloadLength);
+        }
+        return Checksum.complement(sum);
+    }
 
-        sum = IPv6Packet.checkSum(sum, vheader, 8);
-        sum = IPv6Packet.checkSum(sum, payload, payload.length);
-        sum = (~sum) & 0xffff;
-        if (sum == checkSum) {
+    // TODO: IPHC should instead insert this data into the UDP packet so
+    // that there is no need for special handling-
+    public int doVirtualChecksum(IPv6Packet packet) {
+        int sum = calculateChecksum(packet);
+        checksumValid = sum == checkSum;
+        if (checksumValid) {
             if (DEBUG) System.out.println("UDP: Checksum matches!!!");
         } else {
+            Checksum.countError();
             System.out.println("UDP: Checksum error: " +
                     Utils.hex16(checkSum) + " <?> " + Utils.hex16(sum));
         }
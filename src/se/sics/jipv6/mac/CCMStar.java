@@ -0,0 +1,161 @@
+package se.sics.jipv6.mac;
+
+import java.security.GeneralSecurityException;
+import java.util.IdentityHashMap;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/*
+ * AES-CCM* as used by 802.15.4 link layer security - CCM with a two byte
+ * length field and optional encryption and MIC.
+ *
+ * The AES block cipher is initialised once per key and thread, so each
+ * thread gets its own instance from getInstance() with the ciphers for the
+ * keys it has used and the nonce and block buffers for the frame it is
+ * working on.
+ */
+public class CCMStar {
+
+    public static final int BLOCK_SIZE = 16;
+    public static final int NONCE_LENGTH = 13;
+
+    /* the MIC length for the two lowest bits of the security level */
+    private static final int[] MIC_LENGTH = {0, 4, 8, 16};
+
+    private static final ThreadLocal<CCMStar> instances = new ThreadLocal<CCMStar>() {
+        protected CCMStar initialValue() {
+            return new CCMStar();
+        }
+    };
+
+    private final IdentityHashMap<byte[], Cipher> ciphers = new IdentityHashMap<byte[], Cipher>();
+    private final byte[] nonce = new byte[NONCE_LENGTH];
+    /* the counter block, its key stream and the CBC-MAC */
+    private final byte[] counter = new byte[BLOCK_SIZE];
+    private final byte[] stream = new byte[BLOCK_SIZE];
+    private final byte[] mac = new byte[BLOCK_SIZE];
+    private Cipher cipher;
+    private int macPos;
+
+    private CCMStar() {
+    }
+
+    public static CCMStar getInstance() {
+        return instances.get();
+    }
+
+    public static int getMICLength(int securityLevel) {
+        return MIC_LENGTH[securityLevel & 3];
+    }
+
+    public static boolean isEncrypted(int securityLevel) {
+        return (securityLevel & 4) != 0;
+    }
+
+    /* Sets the 802.15.4 nonce - the extended source address, frame counter and security level */
+    public void setNonce(byte[] source, long frameCounter, int securityLevel) {
+        System.arraycopy(source, 0, nonce, 0, 8);
+        nonce[8] = (byte) (frameCounter >> 24);
+        nonce[9] = (byte) (frameCounter >> 16);
+        nonce[10] = (byte) (frameCounter >> 8);
+        nonce[11] = (byte) frameCounter;
+        nonce[12] = (byte) securityLevel;
+    }
+
+    /*
+     * Decrypts len bytes of data at pos in place and verifies the MIC over
+     * the aLen bytes at aPos followed by the decrypted data. Returns false
+     * if the MIC does not match - the data is then left decrypted.
+     */
+    public boolean decrypt(byte[] key, byte[] data, int aPos, int aLen, int pos, int len,
+            byte[] mic, int micPos, int micLength) {
+        cipher = getCipher(key);
+        /* counter blocks - flags with a two byte counter, the nonce and the counter */
+        counter[0] = 1;
+        System.arraycopy(nonce, 0, counter, 1, NONCE_LENGTH);
+        for (int i = 0; i < len; i += BLOCK_SIZE) {
+            setCounter(i / BLOCK_SIZE + 1);
+            encrypt(counter, stream);
+            for (int j = 0, n = Math.min(BLOCK_SIZE, len - i); j < n; j++) {
+                data[pos + i + j] ^= stream[j];
+            }
+        }
+        if (micLength == 0) {
+            return true;
+        }
+
+        /* B0 - flags, nonce and length of the message */
+        mac[0] = (byte) ((aLen > 0 ? 0x40 : 0) | (((micLength - 2) / 2) << 3) | 1);
+        System.arraycopy(nonce, 0, mac, 1, NONCE_LENGTH);
+        mac[14] = (byte) (len >> 8);
+        mac[15] = (byte) len;
+        encrypt(mac, mac);
+        macPos = 0;
+        if (aLen > 0) {
+            /* the length of the authentication data followed by the data */
+            updateMAC(aLen >> 8);
+            updateMAC(aLen);
+            for (int i = 0; i < aLen; i++) {
+                updateMAC(data[aPos + i]);
+            }
+            padMAC();
+        }
+        for (int i = 0; i < len; i++) {
+            updateMAC(data[pos + i]);
+        }
+        padMAC();
+
+        /* the MIC is encrypted with the first key stream block */
+        setCounter(0);
+        encrypt(counter, stream);
+        int diff = 0;
+        for (int i = 0; i < micLength; i++) {
+            diff |= (mac[i] ^ stream[i] ^ mic[micPos + i]) & 0xff;
+        }
+        return diff == 0;
+    }
+
+    private void setCounter(int i) {
+        counter[14] = (byte) (i >> 8);
+        counter[15] = (byte) i;
+    }
+
+    private void updateMAC(int b) {
+        mac[macPos++] ^= (byte) b;
+        if (macPos == BLOCK_SIZE) {
+            encrypt(mac, mac);
+            macPos = 0;
+        }
+    }
+
+    /* the remaining bytes of the block are zero */
+    private void padMAC() {
+        if (macPos > 0) {
+            encrypt(mac, mac);
+            macPos = 0;
+        }
+    }
+
+    private void encrypt(byte[] in, byte[] out) {
+        try {
+            cipher.doFinal(in, 0, BLOCK_SIZE, out, 0);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES failed", e);
+        }
+    }
+
+    private Cipher getCipher(byte[] key) {
+        Cipher c = ciphers.get(key);
+        if (c == null) {
+            try {
+                c = Cipher.getInstance("AES/ECB/NoPadding");
+                c.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("AES not available", e);
+            }
+            ciphers.put(key, c);
+        }
+        return c;
+    }
+}
@@ -44,6 +44,8 @@ import java.io.PrintStream;
 
 import se.sics.jipv6.core.AbstractPacketHandler;
 import se.sics.jipv6.core.MacPacket;
+import se.sics.jipv6.pcap.AttributeKey;
+import se.sics.jipv6.util.TextFormat;
 import se.sics.jipv6.util.Utils;
 
 public class IEEE802154Handler extends AbstractPacketHandler {
@@ -63,6 +65,22 @@ public class IEEE802154Handler extends AbstractPacketHandler {
 
     public static final String SEQ_NO = "802154.seqno";
     public static final String PAYLOAD_LEN = "802154.len";
+    public static final String DECRYPTED = "802154.decrypted";
+
+    /* Typed keys for the attributes above - stored unboxed in the packet */
+    public static final AttributeKey SOURCE_PAN_ID_KEY = AttributeKey.intKey(SOURCE_PAN_ID);
+    public static final AttributeKey SOURCE_MODE_KEY = AttributeKey.intKey(SOURCE_MODE);
+    public static final AttributeKey DESTINATION_PAN_ID_KEY = AttributeKey.intKey(DESTINATION_PAN_ID);
+    public static final AttributeKey DESTINATION_MODE_KEY = AttributeKey.intKey(DESTINATION_MODE);
+    public static final AttributeKey VERSION_KEY = AttributeKey.intKey(VERSION);
+    public static final AttributeKey ACK_REQ_KEY = AttributeKey.intKey(ACK_REQ);
+    public static final AttributeKey DATA_PENDING_KEY = AttributeKey.intKey(DATA_PENDING);
+    public static final AttributeKey SECURITY_KEY = AttributeKey.intKey(SECURITY);
+    public static final AttributeKey PACKET_TYPE_KEY = AttributeKey.intKey(PACKET_TYPE);
+    public static final AttributeKey PANID_COMPRESSION_KEY = AttributeKey.intKey(PANID_COMPRESSION);
+    public static final AttributeKey SEQ_NO_KEY = AttributeKey.intKey(SEQ_NO);
+    public static final AttributeKey PAYLOAD_LEN_KEY = AttributeKey.intKey(PAYLOAD_LEN);
+    public static final AttributeKey DECRYPTED_KEY = AttributeKey.intKey(DECRYPTED);
 
     public static final int BEACONFRAME = 0x00;
     public static final int DATAFRAME = 0x01;
@@ -71,6 +89,10 @@ public class IEEE802154Handler extends AbstractPacketHandler {
 
     public static final String TYPE_NAMES[] = {"BEACON", "DATA", "ACK", "CMD"};
 
+    public static final int FRAME_VERSION_2003 = 0;
+    public static final int FRAME_VERSION_2006 = 1;
+    public static final int FRAME_VERSION_2015 = 2;
+
 
     public static final int SECURITY_BIT = 0x03;
     public static final int PENDING_BIT = 0x04;
@@ -80,101 +102,63 @@ public class IEEE802154Handler extends AbstractPacketHandler {
     public static final int SHORT_ADDRESS = 2;
     public static final int LONG_ADDRESS = 3;
 
+    /* frame control, sequence number, PAN ids and long addresses */
+    public static final int MAX_HEADER_LENGTH = 2 + 1 + 2 + 8 + 2 + 8;
+    /* largest PHY payload - including the FCS */
+    public static final int MAX_FRAME_LENGTH = 127;
+    public static final int FCS_LENGTH = 2;
+
     private static final byte[] BROADCAST_ADDR = {(byte)0xff, (byte)0xff};
 
     private int defaultAddressMode = LONG_ADDRESS;
     private byte seqNo = 0;
+    /* header scratch buffer - also guards the sequence number */
+    private final byte[] header = new byte[MAX_FRAME_LENGTH];
 
     private int myPanID = 0xabcd;
 
+    /* reused for each frame received */
+    private final IEEE802154Header rxHeader = new IEEE802154Header();
+    private KeyTable keyTable;
+
     /* create a 802.15.4 packet of the bytes and "dispatch" to the
      * next handler
      */
     public void packetReceived(MacPacket packet) {
-        //    IEEE802154Packet newPacket = new IEEE802154Packet(packet);
         /* no dispatch at this level ?! */
-
-        int type = packet.getData(0) & 7;
-        int security = (packet.getData(0) >> SECURITY_BIT) & 1;
-        int pending = (packet.getData(0) >> PENDING_BIT) & 1;
-        int ackRequired = (packet.getData(0) >> ACKREQ_BIT) & 1;
-        int panCompression  = (packet.getData(0) >> PANCOMPR_BIT) & 1;
-        int seqCompression = packet.getData(1) & 1;
-        int destAddrMode = (packet.getData(1) >> 2) & 3;
-        int frameVersion = (packet.getData(1) >> 4) & 3;
-        int srcAddrMode = (packet.getData(1) >> 6) & 3;
-
-        /* SeqNo can be compressed! */
-        int pos = 2;
-        int seqNumber = 0;
-        if(seqCompression == 0) {
-            seqNumber = packet.getData(2);
-            pos++;
-        } else {
-            if(DEBUG) System.out.println("Seqno compressed.");
+        IEEE802154Header h = rxHeader;
+        int pos = h.parse(packet);
+        if(DEBUG && h.seqNoSuppressed) System.out.println("Seqno compressed.");
+
+        packet.setAttribute(DESTINATION_MODE_KEY, h.destinationMode);
+        packet.setAttribute(SOURCE_MODE_KEY, h.sourceMode);
+        if (h.destinationMode > 0 && h.destinationPanID >= 0) {
+            packet.setAttribute(DESTINATION_PAN_ID_KEY, h.destinationPanID);
         }
-
-        packet.setAttribute(DESTINATION_MODE, destAddrMode);
-        packet.setAttribute(SOURCE_MODE, srcAddrMode);
-        
-        int destPanID = 0;
-        if (destAddrMode > 0) {
-            destPanID = (packet.getData(pos) & 0xff) + ((packet.getData(pos + 1) & 0xff) << 8);
-            packet.setAttribute(DESTINATION_PAN_ID, destPanID);
-            pos += 2;
-            if (destAddrMode == SHORT_ADDRESS) {
-                byte[] destAddress = new byte[2];
-                destAddress[1] = packet.getData(pos);
-                destAddress[0] = packet.getData(pos + 1);
-                pos += 2;
-                packet.setAttribute(MacPacket.LL_DESTINATION, destAddress);
-            } else if (destAddrMode == LONG_ADDRESS) {
-                byte[] destAddress = new byte[8];
-                for (int i = 0; i < 8; i++) {
-                    destAddress[i] = packet.getData(pos + 7 - i);
-                }
-                pos += 8;
-                packet.setAttribute(MacPacket.LL_DESTINATION, destAddress);
-            } else {
-                // No destination address
-            }
+        if (h.destinationOffset > 0) {
+            packet.setAttribute(MacPacket.LL_DESTINATION_KEY,
+                    readAddress(packet, h.destinationOffset, h.destinationMode));
         }
-
-        if (srcAddrMode > 0) {
-            int srcPanID = 0;
-            if (panCompression == 0){
-                srcPanID = (packet.getData(pos) & 0xff) + ((packet.getData(pos + 1) & 0xff) << 8);
-                pos += 2;
-            } else {
-                srcPanID = destPanID;
-            }
-            packet.setAttribute(SOURCE_PAN_ID, srcPanID);
-            if (srcAddrMode == SHORT_ADDRESS) {
-                byte[] sourceAddress = new byte[2];
-                sourceAddress[1] = packet.getData(pos);
-                sourceAddress[0] = packet.getData(pos + 1);
-                pos += 2;
-                packet.setAttribute(MacPacket.LL_SOURCE, sourceAddress);
-            } else if (srcAddrMode == LONG_ADDRESS) {
-                byte[] sourceAddress = new byte[8];
-                for (int i = 0; i < 8; i++) {
-                    sourceAddress[i] = packet.getData(pos + 7 - i);
-                }
-                pos += 8;
-                packet.setAttribute(MacPacket.LL_SOURCE, sourceAddress);
-            } else {
-                // No source address
-            }
+        if (h.sourceMode > 0 && h.sourcePanID >= 0) {
+            packet.setAttribute(SOURCE_PAN_ID_KEY, h.sourcePanID);
+        }
+        if (h.sourceOffset > 0) {
+            packet.setAttribute(MacPacket.LL_SOURCE_KEY,
+                    readAddress(packet, h.sourceOffset, h.sourceMode));
+        }
+        if (h.security && keyTable != null && decrypt(packet, h)) {
+            packet.setAttribute(DECRYPTED_KEY, 1);
+            pos = h.parsePayloadIEs(packet);
         }
         packet.incPos(pos);
-        packet.setAttribute(PAYLOAD_LEN, packet.getPayloadLength());
-        packet.setAttribute(VERSION, frameVersion & 0xff);
-        packet.setAttribute(SEQ_NO, seqNumber & 0xff);
-        packet.setAttribute(ACK_REQ, ackRequired & 0xff);
-        packet.setAttribute(DATA_PENDING, pending & 0xff);
-        packet.setAttribute(SECURITY, security & 0xff);
-        packet.setAttribute(PACKET_TYPE, type & 0xff);
-        packet.setAttribute(PANID_COMPRESSION, panCompression);
+        packet.setAttribute(PAYLOAD_LEN_KEY, packet.getPayloadLength());
+        packet.setAttribute(VERSION_KEY, h.version);
+        packet.setAttribute(SEQ_NO_KEY, h.seqNo);
+        packet.setAttribute(ACK_REQ_KEY, h.ackRequired ? 1 : 0);
+        packet.setAttribute(DATA_PENDING_KEY, h.pending ? 1 : 0);
+        packet.setAttribute(SECURITY_KEY, h.security ? 1 : 0);
+        packet.setAttribute(PACKET_TYPE_KEY, h.type);
+        packet.setAttribute(PANID_COMPRESSION_KEY, h.panCompression ? 1 : 0);
 
         if (DEBUG) {
             System.out.println("802.15.4 Consumed " + pos + " bytes");
@@ -183,20 +167,104 @@ public class IEEE802154Handler extends AbstractPacketHandler {
         dispatch(-1, packet);
     }
 
+    /*
+     * Replaces the secured frame with the decrypted frame without the MIC.
+     * Returns false if the frame could not be decrypted.
+     */
+    private boolean decrypt(MacPacket packet, IEEE802154Header h) {
+        int level = h.securityLevel;
+        if (level == 0) {
+            return false;
+        }
+        /* the nonce needs the extended source address - and the frame counter, not the ASN */
+        byte[] source = h.sourceMode == LONG_ADDRESS ? packet.getLinkSource() : null;
+        if (source == null || h.frameCounterSuppressed) {
+            keyTable.countUnsupported();
+            return false;
+        }
+        byte[] key = keyTable.getKey(source, h.destinationPanID, h.keyIndex);
+        if (key == null) {
+            keyTable.countMissingKey();
+            return false;
+        }
+        int micLength = CCMStar.getMICLength(level);
+        int length = packet.getPayloadLength() - micLength;
+        if (length < h.headerLength) {
+            keyTable.countMICFailure();
+            return false;
+        }
+        /* the captured data is left as it is */
+        byte[] data = new byte[length + micLength];
+        packet.copy(0, data, 0, data.length);
+        int aLength = CCMStar.isEncrypted(level) ? h.headerLength : length;
+        CCMStar ccm = CCMStar.getInstance();
+        /* the link source is already in the byte order of the nonce */
+        ccm.setNonce(source, h.frameCounter, level);
+        if (!ccm.decrypt(key, data, 0, aLength, aLength, length - aLength, data, length, micLength)) {
+            keyTable.countMICFailure();
+            return false;
+        }
+        packet.setOwnedBytes(data, 0, length);
+        keyTable.countDecrypted();
+        return true;
+    }
+
+    public KeyTable getKeyTable() {
+        return keyTable;
+    }
+
+    /* Secured frames are decrypted with the keys in the table - null to leave them as they are */
+    public void setKeyTable(KeyTable keyTable) {
+        this.keyTable = keyTable;
+    }
+
+    /* The header of the last frame received - valid until the next frame */
+    public IEEE802154Header getHeader() {
+        return rxHeader;
+    }
+
+    /* addresses are sent in reverse byte order */
+    private static byte[] readAddress(MacPacket packet, int pos, int mode) {
+        int len = IEEE802154Header.getAddressLength(mode);
+        byte[] address = new byte[len];
+        for (int i = 0; i < len; i++) {
+            address[i] = packet.getData(pos + len - 1 - i);
+        }
+        return address;
+    }
+
     /* create a 802.15.4 packet with the given packet as payload, and
      * deliver to the lower layer handler */
     public void sendPacket(MacPacket packet) {
         System.out.println("Packet should be sent!!!");
-        byte[] buffer = new byte[127];
+        synchronized (header) {
+            int pos = writeHeader(packet, header);
+            /* in place when the packet was generated with headroom */
+            packet.prependBytes(header, 0, pos);
+        }
+        lowerLayer.sendPacket(packet);
+    }
+
+    /* The length of the header written by sendPacket for the packet */
+    public static int getHeaderLength(MacPacket packet) {
+        return 2 + 1 + 2 + packet.getLinkDestination().length + 2 + packet.getLinkSource().length;
+    }
+
+    /* The room for the payload in a frame sent by sendPacket */
+    public static int getMaxPayloadLength(MacPacket packet) {
+        return MAX_FRAME_LENGTH - FCS_LENGTH - getHeaderLength(packet);
+    }
+
+    private int writeHeader(MacPacket packet, byte[] buffer) {
         int pos = 0;
         int destPanID = 0xabcd;
         int data = 0;
         /* construct a default packet... needs fixing later */
         /* no security, no compression, etc */
-        data = packet.getAttributeAsInt(PACKET_TYPE);
-        data = data | (packet.getAttributeAsInt(SECURITY) << SECURITY_BIT);
-        data = data | (packet.getAttributeAsInt(ACK_REQ) << ACKREQ_BIT);
-        data = data | (packet.getAttributeAsInt(DATA_PENDING) << PENDING_BIT);
+        data = packet.getAttributeAsInt(PACKET_TYPE_KEY);
+        data = data | (packet.getAttributeAsInt(SECURITY_KEY) << SECURITY_BIT);
+        data = data | (packet.getAttributeAsInt(ACK_REQ_KEY) << ACKREQ_BIT);
+        data = data | (packet.getAttributeAsInt(DATA_PENDING_KEY) << PENDING_BIT);
 
         buffer[0] = (byte) data;
 
@@ -232,11 +300,7 @@ public class IEEE802154Handler extends AbstractPacketHandler {
             buffer[pos++] = src[src.length - i - 1];
         }
 
-        byte[] pHeader = new byte[pos];
-        System.arraycopy(buffer, 0, pHeader, 0, pos);
-        packet.prependBytes(pHeader);
-
-        lowerLayer.sendPacket(packet);
+        return pos;
     }
 
     public static String getPacketTypeName(int type) {
@@ -247,26 +311,36 @@ public class IEEE802154Handler extends AbstractPacketHandler {
     }
 
     public void printPacket(PrintStream out, MacPacket packet) {
-        out.print("802.15.4 " + getPacketTypeName(packet.getAttributeAsInt(PACKET_TYPE)) + " from " + Utils.hex16(packet.getAttributeAsInt(SOURCE_PAN_ID)) + "/");
-        printAddress(out, packet.getAttributeAsInt(SOURCE_MODE),
-                (byte[]) packet.getAttribute(MacPacket.LL_SOURCE));
-        out.print(" to " + Utils.hex16(packet.getAttributeAsInt(DESTINATION_PAN_ID)) + "/");
-        printAddress(out, packet.getAttributeAsInt(DESTINATION_MODE),
-                (byte[]) packet.getAttribute(MacPacket.LL_DESTINATION));
-        out.print(" Sec:" + packet.getAttribute(SECURITY));
-        out.println(" seqNo: " + packet.getAttributeAsInt(SEQ_NO) + " vers: " +
-                packet.getAttributeAsInt(VERSION) + " len: " +
-                packet.getAttributeAsInt(PAYLOAD_LEN));
+        StringBuilder sb = TextFormat.getBuilder();
+        try {
+            sb.append("802.15.4 ").append(getPacketTypeName(packet.getAttributeAsInt(PACKET_TYPE_KEY))).append(" from ");
+            TextFormat.appendHex16(sb, packet.getAttributeAsInt(SOURCE_PAN_ID_KEY)).append('/');
+            appendAddress(sb, packet.getAttributeAsInt(SOURCE_MODE_KEY),
+                    (byte[]) packet.getAttribute(MacPacket.LL_SOURCE_KEY));
+            sb.append(" to ");
+            TextFormat.appendHex16(sb, packet.getAttributeAsInt(DESTINATION_PAN_ID_KEY)).append('/');
+            appendAddress(sb, packet.getAttributeAsInt(DESTINATION_MODE_KEY),
+                    (byte[]) packet.getAttribute(MacPacket.LL_DESTINATION_KEY));
+            sb.append(" Sec:").append(packet.getAttribute(SECURITY_KEY));
+            sb.append(" seqNo: ").append(packet.getAttributeAsInt(SEQ_NO_KEY)).append(" vers: ")
+                .append(packet.getAttributeAsInt(VERSION_KEY)).append(" len: ")
+                .append(packet.getAttributeAsInt(PAYLOAD_LEN_KEY)).append(System.lineSeparator());
+            TextFormat.write(out, sb);
+        } finally {
+            TextFormat.release(sb);
+        }
     }
 
-    private void printAddress(PrintStream out, int type, byte[] addr) {
+    private void appendAddress(StringBuilder sb, int type, byte[] addr) {
         if (type == SHORT_ADDRESS) {
-            out.print(Utils.hex8(addr[0]) + Utils.hex8(addr[1]));
+            TextFormat.appendHex(sb, addr, 0, 2);
         } else if (type == LONG_ADDRESS) {
-            out.print(Utils.hex8(addr[0]) + Utils.hex8(addr[1]) + ":" +
-                    Utils.hex8(addr[2]) + Utils.hex8(addr[3]) + ":" +
-                    Utils.hex8(addr[4]) + Utils.hex8(addr[5]) + ":" +
-                    Utils.hex8(addr[6]) + Utils.hex8(addr[7]));
+            for (int i = 0; i < 8; i += 2) {
+                if (i > 0) {
+                    sb.append(':');
+                }
+                TextFormat.appendHex(sb, addr, i, 2);
+            }
         }
     }
 }
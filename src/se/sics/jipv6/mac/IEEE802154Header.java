@@ -0,0 +1,453 @@
+package se.sics.jipv6.mac;
+
+import se.sics.jipv6.core.MacPacket;
+
+/*
+ * The MAC header of a received IEEE 802.15.4 frame.
+ *
+ * The layout of the addressing fields only depends on the frame control
+ * field, so it is looked up in a table with an entry for each frame version,
+ * addressing mode, sequence number suppression and PAN ID compression, and
+ * the fields are then read at fixed offsets. Frames of version 2
+ * (802.15.4-2015) use the PAN ID compression rules of that version, and
+ * their header IEs, payload IEs and the IEs nested in MLME IEs are
+ * iterated - the payload IEs of secured frames once they are decrypted.
+ *
+ * The header is reused for each frame parsed - all offsets are from the
+ * start of the frame.
+ */
+public class IEEE802154Header {
+
+    /* the kind of an IE */
+    public static final int HEADER_IE = 0;
+    public static final int PAYLOAD_IE = 1;
+    public static final int NESTED_IE = 2;
+
+    /* header IE element ids */
+    public static final int IE_HEADER_TERMINATION_1 = 0x7e;
+    public static final int IE_HEADER_TERMINATION_2 = 0x7f;
+    /* payload IE group ids */
+    public static final int IE_PAYLOAD_MLME = 0x1;
+    public static final int IE_PAYLOAD_TERMINATION = 0xf;
+    /* long nested IE ids are above the short ones */
+    public static final int IE_NESTED_LONG = 0x80;
+
+    /* IEs after this many are skipped but not recorded */
+    public static final int MAX_IES = 16;
+
+    private static final int[] KEY_ID_LENGTH = {0, 1, 5, 9};
+
+    /* a layout has the offsets of the PAN ids and addresses - 0 when not present */
+    private static final int FIELD_MASK = 0x1f;
+    private static final int DEST_PAN_SHIFT = 0;
+    private static final int DEST_ADDR_SHIFT = 5;
+    private static final int SRC_PAN_SHIFT = 10;
+    private static final int SRC_ADDR_SHIFT = 15;
+    private static final int LENGTH_SHIFT = 20;
+
+    /* indexed by the second frame control byte and the PAN ID compression bit */
+    private static final int[] LAYOUT = new int[512];
+
+    static {
+        for (int i = 0; i < LAYOUT.length; i++) {
+            LAYOUT[i] = createLayout(i >> 1, (i & 1) != 0);
+        }
+    }
+
+    private static int createLayout(int fc1, boolean panCompression) {
+        int destMode = (fc1 >> 2) & 3;
+        int version = (fc1 >> 4) & 3;
+        int srcMode = (fc1 >> 6) & 3;
+        boolean hasDest = destMode != 0;
+        boolean hasSrc = srcMode != 0;
+        boolean destPan;
+        boolean srcPan;
+        if (version == IEEE802154Handler.FRAME_VERSION_2015) {
+            /* table 7-2 of 802.15.4-2015 */
+            if (!hasDest && !hasSrc) {
+                destPan = panCompression;
+                srcPan = false;
+            } else if (!hasSrc) {
+                destPan = !panCompression;
+                srcPan = false;
+            } else if (!hasDest) {
+                destPan = false;
+                srcPan = !panCompression;
+            } else if (destMode == IEEE802154Handler.LONG_ADDRESS
+                    && srcMode == IEEE802154Handler.LONG_ADDRESS) {
+                destPan = !panCompression;
+                srcPan = false;
+            } else {
+                destPan = true;
+                srcPan = !panCompression;
+            }
+        } else {
+            destPan = hasDest;
+            srcPan = hasSrc && !panCompression;
+        }
+
+        /* the sequence number can only be suppressed in 802.15.4-2015 frames */
+        boolean seqNoSuppressed = (fc1 & 1) != 0 && version == IEEE802154Handler.FRAME_VERSION_2015;
+        int pos = seqNoSuppressed ? 2 : 3;
+        int layout = 0;
+        if (destPan) {
+            layout |= pos << DEST_PAN_SHIFT;
+            pos += 2;
+        }
+        if (getAddressLength(destMode) > 0) {
+            layout |= pos << DEST_ADDR_SHIFT;
+            pos += getAddressLength(destMode);
+        }
+        if (srcPan) {
+            layout |= pos << SRC_PAN_SHIFT;
+            pos += 2;
+        }
+        if (getAddressLength(srcMode) > 0) {
+            layout |= pos << SRC_ADDR_SHIFT;
+            pos += getAddressLength(srcMode);
+        }
+        return layout | (pos << LENGTH_SHIFT);
+    }
+
+    public static int getAddressLength(int mode) {
+        switch (mode) {
+        case IEEE802154Handler.SHORT_ADDRESS:
+            return 2;
+        case IEEE802154Handler.LONG_ADDRESS:
+            return 8;
+        default:
+            return 0;
+        }
+    }
+
+    int type;
+    boolean security;
+    boolean pending;
+    boolean ackRequired;
+    boolean panCompression;
+    boolean seqNoSuppressed;
+    boolean iePresent;
+    int destinationMode;
+    int version;
+    int sourceMode;
+    int seqNo;
+    /* -1 when neither PAN id is in the frame */
+    int destinationPanID;
+    int sourcePanID;
+    int destinationOffset;
+    int sourceOffset;
+
+    /* the auxiliary security header */
+    int securityOffset;
+    int securityLevel;
+    int keyIdMode;
+    boolean frameCounterSuppressed;
+    long frameCounter;
+    int keyIndex;
+
+    int headerLength;
+    /* payload IEs of a secured frame - parsed after decryption */
+    boolean payloadIEsPending;
+
+    private final int[] ieKind = new int[MAX_IES];
+    private final int[] ieId = new int[MAX_IES];
+    private final int[] ieOffset = new int[MAX_IES];
+    private final int[] ieLength = new int[MAX_IES];
+    private int ieCount;
+
+    /*
+     * Parses the header of the frame at the current position of the packet.
+     * Returns the length of the header - the MAC payload follows it.
+     */
+    public int parse(MacPacket packet) {
+        int length = packet.getPayloadLength();
+        if (length < 2) {
+            throw new IllegalStateException("802.15.4 frame of " + length + " bytes");
+        }
+        int fc0 = packet.getData(0) & 0xff;
+        int fc1 = packet.getData(1) & 0xff;
+        int layout = LAYOUT[(fc1 << 1) | ((fc0 >> IEEE802154Handler.PANCOMPR_BIT) & 1)];
+        int pos = (layout >> LENGTH_SHIFT) & FIELD_MASK;
+        if (pos > length) {
+            throw new IllegalStateException("802.15.4 header of " + pos + " bytes exceeds frame of "
+                    + length + " bytes");
+        }
+
+        type = fc0 & 7;
+        security = ((fc0 >> IEEE802154Handler.SECURITY_BIT) & 1) != 0;
+        pending = ((fc0 >> IEEE802154Handler.PENDING_BIT) & 1) != 0;
+        ackRequired = ((fc0 >> IEEE802154Handler.ACKREQ_BIT) & 1) != 0;
+        panCompression = ((fc0 >> IEEE802154Handler.PANCOMPR_BIT) & 1) != 0;
+        destinationMode = (fc1 >> 2) & 3;
+        version = (fc1 >> 4) & 3;
+        sourceMode = (fc1 >> 6) & 3;
+        /* sequence number suppression and IEs are only in 802.15.4-2015 frames */
+        seqNoSuppressed = (fc1 & 1) != 0 && version == IEEE802154Handler.FRAME_VERSION_2015;
+        iePresent = (fc1 & 2) != 0 && version == IEEE802154Handler.FRAME_VERSION_2015;
+        seqNo = seqNoSuppressed ? 0 : packet.getData(2) & 0xff;
+
+        int offset = (layout >> DEST_PAN_SHIFT) & FIELD_MASK;
+        destinationPanID = offset == 0 ? -1 : get16LE(packet, offset);
+        offset = (layout >> SRC_PAN_SHIFT) & FIELD_MASK;
+        sourcePanID = offset == 0 ? destinationPanID : get16LE(packet, offset);
+        if (destinationPanID == -1) {
+            destinationPanID = sourcePanID;
+        }
+        destinationOffset = (layout >> DEST_ADDR_SHIFT) & FIELD_MASK;
+        sourceOffset = (layout >> SRC_ADDR_SHIFT) & FIELD_MASK;
+
+        securityOffset = 0;
+        securityLevel = 0;
+        keyIdMode = 0;
+        frameCounterSuppressed = false;
+        frameCounter = 0;
+        keyIndex = -1;
+        if (security) {
+            pos = parseSecurityHeader(packet, pos, length);
+        }
+
+        ieCount = 0;
+        payloadIEsPending = false;
+        if (iePresent) {
+            pos = parseIEs(packet, pos, length);
+        }
+        headerLength = pos;
+        return pos;
+    }
+
+    private int parseSecurityHeader(MacPacket packet, int pos, int length) {
+        if (pos >= length) {
+            throw new IllegalStateException("802.15.4 frame without auxiliary security header");
+        }
+        int control = packet.getData(pos) & 0xff;
+        securityOffset = pos;
+        securityLevel = control & 7;
+        keyIdMode = (control >> 3) & 3;
+        frameCounterSuppressed = ((control >> 5) & 1) != 0
+                && version == IEEE802154Handler.FRAME_VERSION_2015;
+        int end = pos + 1 + (frameCounterSuppressed ? 0 : 4) + KEY_ID_LENGTH[keyIdMode];
+        if (end > length) {
+            throw new IllegalStateException("802.15.4 auxiliary security header of " + (end - pos)
+                    + " bytes exceeds frame");
+        }
+        if (!frameCounterSuppressed) {
+            frameCounter = get16LE(packet, pos + 1) | ((long) get16LE(packet, pos + 3) << 16);
+        }
+        if (keyIdMode != 0) {
+            /* the key index is the last byte of the key identifier */
+            keyIndex = packet.getData(end - 1) & 0xff;
+        }
+        return end;
+    }
+
+    private int parseIEs(MacPacket packet, int pos, int length) {
+        boolean payloadIEs = false;
+        while (pos + 2 <= length) {
+            int descriptor = get16LE(packet, pos);
+            int len = descriptor & 0x7f;
+            int id = (descriptor >> 7) & 0xff;
+            checkIELength(pos + 2 + len, length);
+            pos += 2;
+            if (id == IE_HEADER_TERMINATION_1) {
+                payloadIEs = true;
+                break;
+            }
+            if (id == IE_HEADER_TERMINATION_2) {
+                break;
+            }
+            addIE(HEADER_IE, id, pos, len);
+            pos += len;
+        }
+        payloadIEsPending = payloadIEs && security;
+        if (!payloadIEs || security) {
+            /* payload IEs of secured frames are left with the payload */
+            return pos;
+        }
+        return parsePayloadIEs(packet, pos, length);
+    }
+
+    /*
+     * Parses the payload IEs left after the header of a secured frame once
+     * the frame has been decrypted. Returns the new length of the header.
+     */
+    int parsePayloadIEs(MacPacket packet) {
+        if (payloadIEsPending) {
+            payloadIEsPending = false;
+            headerLength = parsePayloadIEs(packet, headerLength, packet.getPayloadLength());
+        }
+        return headerLength;
+    }
+
+    private int parsePayloadIEs(MacPacket packet, int pos, int length) {
+        while (pos + 2 <= length) {
+            int descriptor = get16LE(packet, pos);
+            int len = descriptor & 0x7ff;
+            int group = (descriptor >> 11) & 0xf;
+            checkIELength(pos + 2 + len, length);
+            pos += 2;
+            if (group == IE_PAYLOAD_TERMINATION) {
+                break;
+            }
+            addIE(PAYLOAD_IE, group, pos, len);
+            if (group == IE_PAYLOAD_MLME) {
+                parseNestedIEs(packet, pos, pos + len);
+            }
+            pos += len;
+        }
+        return pos;
+    }
+
+    private void parseNestedIEs(MacPacket packet, int pos, int end) {
+        while (pos + 2 <= end) {
+            int descriptor = get16LE(packet, pos);
+            int id;
+            int len;
+            if ((descriptor & 0x8000) == 0) {
+                id = (descriptor >> 8) & 0x7f;
+                len = descriptor & 0xff;
+            } else {
+                id = IE_NESTED_LONG | ((descriptor >> 11) & 0xf);
+                len = descriptor & 0x7ff;
+            }
+            checkIELength(pos + 2 + len, end);
+            addIE(NESTED_IE, id, pos + 2, len);
+            pos += 2 + len;
+        }
+    }
+
+    private static void checkIELength(int end, int length) {
+        if (end > length) {
+            throw new IllegalStateException("802.15.4 IE exceeds frame by " + (end - length) + " bytes");
+        }
+    }
+
+    private void addIE(int kind, int id, int offset, int len) {
+        if (ieCount < MAX_IES) {
+            ieKind[ieCount] = kind;
+            ieId[ieCount] = id;
+            ieOffset[ieCount] = offset;
+            ieLength[ieCount] = len;
+            ieCount++;
+        }
+    }
+
+    private static int get16LE(MacPacket packet, int pos) {
+        return (packet.getData(pos) & 0xff) | ((packet.getData(pos + 1) & 0xff) << 8);
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public boolean isSecurityEnabled() {
+        return security;
+    }
+
+    public boolean isFramePending() {
+        return pending;
+    }
+
+    public boolean isAckRequired() {
+        return ackRequired;
+    }
+
+    public boolean isPanIDCompressed() {
+        return panCompression;
+    }
+
+    public boolean isSeqNoSuppressed() {
+        return seqNoSuppressed;
+    }
+
+    public boolean isIEPresent() {
+        return iePresent;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public int getSeqNo() {
+        return seqNo;
+    }
+
+    public int getDestinationMode() {
+        return destinationMode;
+    }
+
+    public int getDestinationPanID() {
+        return destinationPanID;
+    }
+
+    /* offset of the destination address - 0 if there is none */
+    public int getDestinationOffset() {
+        return destinationOffset;
+    }
+
+    public int getSourceMode() {
+        return sourceMode;
+    }
+
+    public int getSourcePanID() {
+        return sourcePanID;
+    }
+
+    /* offset of the source address - 0 if there is none */
+    public int getSourceOffset() {
+        return sourceOffset;
+    }
+
+    /* offset of the auxiliary security header - 0 if the frame is not secured */
+    public int getSecurityOffset() {
+        return securityOffset;
+    }
+
+    public int getSecurityLevel() {
+        return securityLevel;
+    }
+
+    public int getKeyIdMode() {
+        return keyIdMode;
+    }
+
+    /* the key index or -1 if the key is implicit */
+    public int getKeyIndex() {
+        return keyIndex;
+    }
+
+    public boolean isFrameCounterSuppressed() {
+        return frameCounterSuppressed;
+    }
+
+    public long getFrameCounter() {
+        return frameCounter;
+    }
+
+    public int getHeaderLength() {
+        return headerLength;
+    }
+
+    /* number of IEs recorded - termination IEs are not included */
+    public int getIECount() {
+        return ieCount;
+    }
+
+    public int getIEKind(int index) {
+        return ieKind[index];
+    }
+
+    /* element id, group id or nested id (IE_NESTED_LONG set for long ones) of the IE */
+    public int getIEId(int index) {
+        return ieId[index];
+    }
+
+    /* offset of the IE content */
+    public int getIEOffset(int index) {
+        return ieOffset[index];
+    }
+
+    public int getIELength(int index) {
+        return ieLength[index];
+    }
+
+}
@@ -0,0 +1,208 @@
+package se.sics.jipv6.mac;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import se.sics.jipv6.core.LinkAddress;
+import se.sics.jipv6.util.Utils;
+
+/*
+ * AES-128 keys for 802.15.4 link layer security.
+ *
+ * A key is either for a device - used for all frames from its extended
+ * address - or for a PAN and optionally a key index. The key file has one
+ * key per line:
+ *
+ *   # comment
+ *   pan <pan id|*> [<key index>] <key>
+ *   device <extended address> <key>
+ *
+ * PAN ids and key indexes are hexadecimal, the address may have colons and
+ * the key is 32 hexadecimal digits. The keys are looked up for each secured
+ * frame and can be shared by several handlers.
+ */
+public class KeyTable {
+
+    public static final int KEY_LENGTH = 16;
+
+    /* matches any PAN id or key index */
+    public static final int ANY = -1;
+
+    private final ConcurrentHashMap<LinkAddress, byte[]> deviceKeys = new ConcurrentHashMap<LinkAddress, byte[]>();
+
+    private static final class PanKey {
+        final int panID;
+        final int keyIndex;
+        final byte[] key;
+
+        PanKey(int panID, int keyIndex, byte[] key) {
+            this.panID = panID;
+            this.keyIndex = keyIndex;
+            this.key = key;
+        }
+    }
+
+    /* the PAN keys are few and the array is replaced when a key is added */
+    private volatile PanKey[] panKeys = new PanKey[0];
+
+    private final AtomicLong decrypted = new AtomicLong();
+    private final AtomicLong micFailures = new AtomicLong();
+    private final AtomicLong missingKeys = new AtomicLong();
+    private final AtomicLong unsupported = new AtomicLong();
+
+    public static KeyTable load(String file) throws IOException {
+        KeyTable table = new KeyTable();
+        table.loadFile(file);
+        return table;
+    }
+
+    public void loadFile(String file) throws IOException {
+        BufferedReader input = new BufferedReader(new FileReader(file));
+        try {
+            int lineNo = 0;
+            String line;
+            while ((line = input.readLine()) != null) {
+                lineNo++;
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                try {
+                    parseLine(line.split("\\s+"));
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(file + ":" + lineNo + ": " + e.getMessage(), e);
+                }
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    private void parseLine(String[] args) {
+        if (args[0].equals("device") && args.length == 3) {
+            byte[] address = Utils.hexconv(args[1].replace(":", ""));
+            if (address == null || address.length != 8) {
+                throw new IllegalArgumentException("illegal extended address: " + args[1]);
+            }
+            addDeviceKey(address, parseKey(args[2]));
+        } else if (args[0].equals("pan") && (args.length == 3 || args.length == 4)) {
+            int panID = parseHex(args[1], 0xffff);
+            int keyIndex = args.length == 4 ? parseHex(args[2], 0xff) : ANY;
+            addPanKey(panID, keyIndex, parseKey(args[args.length - 1]));
+        } else {
+            throw new IllegalArgumentException("expected 'pan <pan id> [<key index>] <key>' or 'device <address> <key>'");
+        }
+    }
+
+    private static int parseHex(String value, int max) {
+        if (value.equals("*")) {
+            return ANY;
+        }
+        try {
+            int v = Integer.parseInt(value, 16);
+            if (v >= 0 && v <= max) {
+                return v;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("illegal value: " + value);
+    }
+
+    private static byte[] parseKey(String value) {
+        byte[] key = Utils.hexconv(value);
+        if (key == null || key.length != KEY_LENGTH || value.length() != KEY_LENGTH * 2) {
+            throw new IllegalArgumentException("key must be " + KEY_LENGTH * 2 + " hex digits: " + value);
+        }
+        return key;
+    }
+
+    public void addDeviceKey(byte[] address, byte[] key) {
+        checkKey(key);
+        deviceKeys.put(LinkAddress.of(address), key.clone());
+    }
+
+    public synchronized void addPanKey(int panID, int keyIndex, byte[] key) {
+        checkKey(key);
+        PanKey[] keys = panKeys;
+        int i = 0;
+        while (i < keys.length && (keys[i].panID != panID || keys[i].keyIndex != keyIndex)) {
+            i++;
+        }
+        keys = Arrays.copyOf(keys, Math.max(keys.length, i + 1));
+        keys[i] = new PanKey(panID, keyIndex, key.clone());
+        panKeys = keys;
+    }
+
+    private static void checkKey(byte[] key) {
+        if (key == null || key.length != KEY_LENGTH) {
+            throw new IllegalArgumentException("key must be " + KEY_LENGTH + " bytes");
+        }
+    }
+
+    public int getKeyCount() {
+        return deviceKeys.size() + panKeys.length;
+    }
+
+    /*
+     * Returns the key for a frame from the source with the PAN id and key
+     * index (-1 for an implicit key) or null if there is no such key. A
+     * device key is used before the PAN keys and an exact PAN key before
+     * the keys for any PAN or index.
+     */
+    public byte[] getKey(byte[] source, int panID, int keyIndex) {
+        if (source != null && !deviceKeys.isEmpty()) {
+            byte[] key = deviceKeys.get(LinkAddress.of(source));
+            if (key != null) {
+                return key;
+            }
+        }
+        byte[] best = null;
+        int bestScore = -1;
+        for (PanKey k : panKeys) {
+            if ((k.panID != ANY && k.panID != panID) || (k.keyIndex != ANY && k.keyIndex != keyIndex)) {
+                continue;
+            }
+            int score = (k.panID != ANY ? 2 : 0) + (k.keyIndex != ANY ? 1 : 0);
+            if (score > bestScore) {
+                best = k.key;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    void countDecrypted() {
+        decrypted.incrementAndGet();
+    }
+
+    void countMICFailure() {
+        micFailures.incrementAndGet();
+    }
+
+    void countMissingKey() {
+        missingKeys.incrementAndGet();
+    }
+
+    void countUnsupported() {
+        unsupported.incrementAndGet();
+    }
+
+    public long getDecrypted() {
+        return decrypted.get();
+    }
+
+    public long getMICFailures() {
+        return micFailures.get();
+    }
+
+    public String getStatistics() {
+        return "Link security: keys:" + getKeyCount() + " decrypted:" + decrypted.get()
+                + " mic-failures:" + micFailures.get() + " no-key:" + missingKeys.get()
+                + " unsupported:" + unsupported.get();
+    }
+}
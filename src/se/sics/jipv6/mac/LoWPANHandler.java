@@ -39,15 +39,30 @@
  */
 package se.sics.jipv6.mac;
 
+import java.util.TimerTask;
+
 import se.sics.jipv6.core.AbstractPacketHandler;
+import se.sics.jipv6.core.IPHCPacketer;
+import se.sics.jipv6.core.IPPacketer;
 import se.sics.jipv6.core.IPStack;
 import se.sics.jipv6.core.IPv6Packet;
 import se.sics.jipv6.core.NetworkInterface;
 import se.sics.jipv6.core.MacPacket;
+import se.sics.jipv6.pcap.AttributeKey;
 
 public class LoWPANHandler extends AbstractPacketHandler implements NetworkInterface {
 
+    public static final String DISPATCH = "6lowpan.dispatch";
+    public static final AttributeKey DISPATCH_KEY = AttributeKey.intKey(DISPATCH);
+
+    /* dispatch byte and the largest 802.15.4 header */
+    private static final int HEADROOM = 1 + IEEE802154Handler.MAX_HEADER_LENGTH;
+
+    /* milliseconds between the fragments of a packet - 0 sends them back to back */
+    public static final int DEFAULT_FRAGMENT_SPACING = 10;
+
     private IPStack ipStack;
+    private int fragmentSpacing = DEFAULT_FRAGMENT_SPACING;
 
     public LoWPANHandler() {
     }
@@ -56,6 +71,18 @@ public class LoWPANHandler extends AbstractPacketHandler implements NetworkInter
         ipStack = stack;
     }
 
+    public int getFragmentSpacing() {
+        return fragmentSpacing;
+    }
+
+    /* Sets the time in milliseconds between sending the fragments of a packet */
+    public void setFragmentSpacing(int spacing) {
+        if (spacing < 0) {
+            throw new IllegalArgumentException("negative fragment spacing: " + spacing);
+        }
+        fragmentSpacing = spacing;
+    }
+
     public String getName() {
         return "6lowpan";
     }
@@ -68,28 +95,97 @@ public class LoWPANHandler extends AbstractPacketHandler implements NetworkInter
         /* create IP packet based on the correct dispatch */
         IPv6Packet ipPacket = new IPv6Packet(packet);
         int dispatch = packet.getData(0);
-        packet.setAttribute("6lowpan.dispatch", dispatch);
+        packet.setAttribute(DISPATCH_KEY, dispatch);
         /* remove the dispatch and continue */
         ipPacket.incPos(1);
         if (dispatch == ipStack.getDefaultPacketer().getDispatch()) {
-            ipStack.getDefaultPacketer().parsePacketData(ipPacket);
+            if (ipStack.isRouter() && forwardFragment(ipPacket)) {
+                /* sent on to the next hop without reassembly */
+                return;
+            }
+            if (!ipStack.getDefaultPacketer().parsePacketData(ipPacket)) {
+                /* a fragment - wait for the rest of the datagram */
+                return;
+            }
             /* send in the packet */
             ipPacket.netInterface = this;
             ipStack.receivePacket(ipPacket);
         }
     }
 
+    /* Sends a fragment of a datagram that is forwarded on to the next hop */
+    private boolean forwardFragment(IPv6Packet packet) {
+        IPPacketer packeter = ipStack.getDefaultPacketer();
+        if (!(packeter instanceof IPHCPacketer)) {
+            return false;
+        }
+        /* room for the largest 802.15.4 header */
+        int maxLength = IEEE802154Handler.MAX_FRAME_LENGTH - IEEE802154Handler.FCS_LENGTH
+                - IEEE802154Handler.MAX_HEADER_LENGTH - 1;
+        MacPacket fragment = ipStack.getFragmentForwarder().forwardFragment(packet,
+                (IPHCPacketer) packeter, maxLength, HEADROOM);
+        if (fragment == null) {
+            return false;
+        }
+        fragment.prependByte(packeter.getDispatch());
+        lowerLayer.sendPacket(fragment);
+        return true;
+    }
+
     public void sendPacket(IPv6Packet packet) {
         /* LoWPANHandler is for IP over 802.15.4 */
-        // Get packeter and create packet
-        byte[] data = ipStack.getPacketer().generatePacketData((IPv6Packet)packet);
-        packet.setBytes(data);
-        /* set the dispatch */
-        byte[] data2 = new byte[1];
-        data2[0] = ipStack.getPacketer().getDispatch();
-        packet.prependBytes(data2);
-        /* give to lower layer for sending on... */
-        lowerLayer.sendPacket(packet);
+        // Get packeter and create packet with room for the dispatch and MAC header
+        IPPacketer packeter = ipStack.getPacketer();
+        packeter.writePacketData(packet, HEADROOM);
+        MacPacket[] fragments = null;
+        if (packeter instanceof IPHCPacketer) {
+            /* room for the packet after the dispatch */
+            int maxLength = IEEE802154Handler.getMaxPayloadLength(packet) - 1;
+            fragments = ((IPHCPacketer) packeter).fragment(packet, maxLength, HEADROOM);
+        }
+        if (fragments == null) {
+            /* set the dispatch */
+            packet.prependByte(packeter.getDispatch());
+            /* give to lower layer for sending on... */
+            lowerLayer.sendPacket(packet);
+            return;
+        }
+        for (MacPacket fragment : fragments) {
+            fragment.prependByte(packeter.getDispatch());
+        }
+        sendFragments(fragments);
+    }
+
+    /*
+     * Sends the first fragment directly and the rest fragmentSpacing
+     * milliseconds apart so that they do not collide with each other when
+     * forwarded.
+     */
+    private void sendFragments(final MacPacket[] fragments) {
+        lowerLayer.sendPacket(fragments[0]);
+        if (fragmentSpacing == 0) {
+            for (int i = 1; i < fragments.length; i++) {
+                lowerLayer.sendPacket(fragments[i]);
+            }
+            return;
+        }
+        ipStack.getTimer().schedule(new TimerTask() {
+            private int next = 1;
+
+            public void run() {
+                try {
+                    lowerLayer.sendPacket(fragments[next++]);
+                } catch (RuntimeException e) {
+                    /* the timer is shared - drop the rest of the packet */
+                    System.err.println("Failed to send fragment " + next + " of " + fragments.length);
+                    e.printStackTrace();
+                    next = fragments.length;
+                }
+                if (next == fragments.length) {
+                    cancel();
+                }
+            }
+        }, fragmentSpacing, fragmentSpacing);
     }
 
     public void sendPacket(MacPacket packet) {
@@ -0,0 +1,300 @@
+package se.sics.jipv6.pcap;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Capture writer that moves the file writing off the capture thread.
+ *
+ * Packets are queued in a bounded ring buffer and written in batches by a
+ * dedicated thread. The output is flushed when the amount of unflushed data
+ * or the time since the last flush exceeds the configured limits. Packets
+ * are dropped (and counted) when the writer falls behind and the ring
+ * buffer is full.
+ */
+public class AsyncCaptureWriter implements CaptureWriter {
+
+    public static final int DEFAULT_CAPACITY = 4096;
+    public static final int DEFAULT_FLUSH_SIZE = 64 * 1024;
+    public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+
+    private static final int MAX_BATCH_SIZE = 256;
+
+    private final CaptureWriter writer;
+    private final CapturedPacket[] ring;
+    private final CapturedPacket[] batch;
+    private int head;
+    private int count;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition flushed = lock.newCondition();
+
+    private int flushSize = DEFAULT_FLUSH_SIZE;
+    private long flushInterval = DEFAULT_FLUSH_INTERVAL;
+    private boolean isAutoFlush = false;
+
+    /* number of packets queued, written and flushed, and dropped */
+    private long queuedPackets;
+    private long flushedPackets;
+    private long droppedPackets;
+    private boolean isSyncRequested;
+    private boolean isClosed;
+    private IOException error;
+
+    private final Thread thread;
+
+    public AsyncCaptureWriter(CaptureWriter writer) {
+        this(writer, DEFAULT_CAPACITY);
+    }
+
+    public AsyncCaptureWriter(CaptureWriter writer, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("illegal capacity: " + capacity);
+        }
+        this.writer = writer;
+        this.ring = new CapturedPacket[capacity];
+        this.batch = new CapturedPacket[Math.min(capacity, MAX_BATCH_SIZE)];
+        /* the output is flushed by this writer instead */
+        writer.setAutoFlush(false);
+
+        this.thread = new Thread(new Runnable() {
+            public void run() {
+                writeLoop();
+            }
+        }, "capture-writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    public int getCapacity() {
+        return ring.length;
+    }
+
+    public int getFlushSize() {
+        return flushSize;
+    }
+
+    /* number of bytes written before the output is flushed */
+    public void setFlushSize(int flushSize) {
+        this.flushSize = flushSize;
+    }
+
+    public long getFlushInterval() {
+        return flushInterval;
+    }
+
+    /* max time in milliseconds that written packets stay unflushed */
+    public void setFlushInterval(long flushInterval) {
+        this.flushInterval = flushInterval;
+    }
+
+    public boolean isAutoFlush() {
+        return isAutoFlush;
+    }
+
+    /* flush after every written batch */
+    public void setAutoFlush(boolean isAutoFlush) {
+        this.isAutoFlush = isAutoFlush;
+    }
+
+    public boolean isAddingCRC() {
+        return writer.isAddingCRC();
+    }
+
+    public void setAddingCRC(boolean isAddingCRC) {
+        writer.setAddingCRC(isAddingCRC);
+    }
+
+    /* bytes written by the writer thread - packets still queued are not included */
+    public long getPosition() {
+        return writer.getPosition();
+    }
+
+    public long getDroppedPackets() {
+        lock.lock();
+        try {
+            return droppedPackets;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getWrittenPackets() {
+        lock.lock();
+        try {
+            return flushedPackets;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getQueueLength() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void writePacket(long timeMillis, byte[] data) throws IOException {
+        writePacket(new CapturedPacket(timeMillis, data));
+    }
+
+    /* queues the packet for writing - never blocks */
+    public void writePacket(CapturedPacket captured) throws IOException {
+        lock.lock();
+        try {
+            if (isClosed) {
+                throw new IOException("capture writer is closed");
+            }
+            if (count == ring.length || error != null) {
+                droppedPackets++;
+                return;
+            }
+            /* The packet must not be reused before it has been written */
+            captured.retain();
+            ring[(head + count) % ring.length] = captured;
+            count++;
+            queuedPackets++;
+            if (count == 1) {
+                notEmpty.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* waits until all packets queued so far have been written and flushed */
+    public void sync() throws IOException {
+        lock.lock();
+        try {
+            long target = queuedPackets;
+            isSyncRequested = true;
+            notEmpty.signal();
+            while (flushedPackets < target && error == null && thread.isAlive()) {
+                flushed.awaitUninterruptibly();
+            }
+            if (error != null) {
+                throw error;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void flush() throws IOException {
+        sync();
+    }
+
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        writer.close();
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private void writeLoop() {
+        long lastFlush = System.currentTimeMillis();
+        long written = 0;
+        long unflushedPackets = 0;
+        long unflushedBytes = 0;
+        boolean done = false;
+        while (!done) {
+            int n = 0;
+            boolean doFlush;
+            lock.lock();
+            try {
+                while (count == 0 && !isClosed && !isSyncRequested) {
+                    if (unflushedPackets == 0) {
+                        notEmpty.awaitUninterruptibly();
+                    } else {
+                        long wait = lastFlush + flushInterval - System.currentTimeMillis();
+                        if (wait <= 0) {
+                            break;
+                        }
+                        try {
+                            notEmpty.await(wait, TimeUnit.MILLISECONDS);
+                        } catch (InterruptedException e) {
+                            // Ignore and flush
+                            break;
+                        }
+                    }
+                }
+                while (count > 0 && n < batch.length) {
+                    batch[n++] = ring[head];
+                    ring[head] = null;
+                    head = (head + 1) % ring.length;
+                    count--;
+                }
+                done = isClosed && count == 0;
+                doFlush = done || isAutoFlush || (isSyncRequested && count == 0);
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                for (int i = 0; i < n; i++) {
+                    writer.writePacket(batch[i]);
+                    unflushedBytes += batch[i].getPayload().length;
+                    batch[i] = null;
+                }
+                written += n;
+                unflushedPackets += n;
+                if (doFlush || unflushedBytes >= flushSize
+                        || System.currentTimeMillis() - lastFlush >= flushInterval) {
+                    writer.flush();
+                    lastFlush = System.currentTimeMillis();
+                    unflushedPackets = 0;
+                    unflushedBytes = 0;
+                    lock.lock();
+                    try {
+                        flushedPackets = written;
+                        if (count == 0) {
+                            isSyncRequested = false;
+                        }
+                        flushed.signalAll();
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            } catch (IOException e) {
+                lock.lock();
+                try {
+                    error = e;
+                    /* everything not yet written is lost */
+                    droppedPackets += queuedPackets - written;
+                    count = 0;
+                    flushed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                done = true;
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package se.sics.jipv6.pcap;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Predeclared packet attribute key with a fixed storage slot.
+ *
+ * Numeric keys (int and long) are stored unboxed in PacketAttributes and
+ * object keys in an object slot. Attributes set by name are mapped to the
+ * registered key with that name, and names without a registered key are
+ * stored in an overflow map.
+ */
+public final class AttributeKey {
+
+    public enum Type { INT, LONG, OBJECT }
+
+    /* Numeric slots are tracked in a 64 bit mask */
+    public static final int MAX_NUMERIC_KEYS = 64;
+
+    private static final ConcurrentHashMap<String, AttributeKey> keys = new ConcurrentHashMap<String, AttributeKey>();
+    private static volatile int numericKeyCount;
+    private static volatile int objectKeyCount;
+    private static volatile AttributeKey[] allKeys = new AttributeKey[0];
+
+    private final String name;
+    private final Type type;
+    private final int slot;
+
+    private AttributeKey(String name, Type type, int slot) {
+        this.name = name;
+        this.type = type;
+        this.slot = slot;
+    }
+
+    public static AttributeKey intKey(String name) {
+        return register(name, Type.INT);
+    }
+
+    public static AttributeKey longKey(String name) {
+        return register(name, Type.LONG);
+    }
+
+    public static AttributeKey objectKey(String name) {
+        return register(name, Type.OBJECT);
+    }
+
+    /* Returns the registered key with the specified name or null if there is no such key */
+    public static AttributeKey get(String name) {
+        return keys.get(name);
+    }
+
+    private static synchronized AttributeKey register(String name, Type type) {
+        AttributeKey key = keys.get(name);
+        if (key != null) {
+            if (key.type != type) {
+                throw new IllegalArgumentException("attribute " + name + " already declared as " + key.type);
+            }
+            return key;
+        }
+        if (type == Type.OBJECT) {
+            key = new AttributeKey(name, type, objectKeyCount++);
+        } else if (numericKeyCount < MAX_NUMERIC_KEYS) {
+            key = new AttributeKey(name, type, numericKeyCount++);
+        } else {
+            throw new IllegalStateException("too many numeric attributes: " + name);
+        }
+        keys.put(name, key);
+        AttributeKey[] newKeys = Arrays.copyOf(allKeys, allKeys.length + 1);
+        newKeys[allKeys.length] = key;
+        allKeys = newKeys;
+        return key;
+    }
+
+    /* all registered keys in registration order - the array must not be modified */
+    static AttributeKey[] getKeys() {
+        return allKeys;
+    }
+
+    static int getNumericKeyCount() {
+        return numericKeyCount;
+    }
+
+    static int getObjectKeyCount() {
+        return objectKeyCount;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public boolean isNumeric() {
+        return type != Type.OBJECT;
+    }
+
+    int getSlot() {
+        return slot;
+    }
+
+    public String toString() {
+        return name;
+    }
+
+}
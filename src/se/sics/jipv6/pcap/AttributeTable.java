@@ -0,0 +1,225 @@
+package se.sics.jipv6.pcap;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/*
+ * Hashtable view of the packet attributes for analyzers written for the
+ * earlier Hashtable based attributes. Reads and writes go directly to the
+ * PacketAttributes - the inherited Hashtable storage is never used.
+ */
+class AttributeTable extends Hashtable<String, Object> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient PacketAttributes attributes;
+
+    private final transient AbstractMap<String, Object> map = new AbstractMap<String, Object>() {
+
+        public Set<Map.Entry<String, Object>> entrySet() {
+            return new AbstractSet<Map.Entry<String, Object>>() {
+                public Iterator<Map.Entry<String, Object>> iterator() {
+                    final Iterator<String> names = attributes.getNames().iterator();
+                    return new Iterator<Map.Entry<String, Object>>() {
+                        private String last;
+
+                        public boolean hasNext() {
+                            return names.hasNext();
+                        }
+
+                        public Map.Entry<String, Object> next() {
+                            last = names.next();
+                            return new AbstractMap.SimpleEntry<String, Object>(last, attributes.get(last)) {
+                                private static final long serialVersionUID = 1L;
+
+                                public Object setValue(Object value) {
+                                    AttributeTable.this.put(getKey(), value);
+                                    return super.setValue(value);
+                                }
+                            };
+                        }
+
+                        public void remove() {
+                            if (last == null) {
+                                throw new IllegalStateException();
+                            }
+                            attributes.set(last, null);
+                            last = null;
+                        }
+                    };
+                }
+
+                public int size() {
+                    return attributes.getNames().size();
+                }
+            };
+        }
+    };
+
+    AttributeTable(PacketAttributes attributes) {
+        super(1);
+        this.attributes = attributes;
+    }
+
+    public Object get(Object key) {
+        return key instanceof String ? attributes.get((String) key) : null;
+    }
+
+    public Object put(String key, Object value) {
+        if (key == null || value == null) {
+            throw new NullPointerException();
+        }
+        Object old = attributes.get(key);
+        attributes.set(key, value);
+        return old;
+    }
+
+    public Object remove(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        Object old = attributes.get((String) key);
+        attributes.set((String) key, null);
+        return old;
+    }
+
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    public boolean contains(Object value) {
+        return map.containsValue(value);
+    }
+
+    public boolean containsValue(Object value) {
+        return map.containsValue(value);
+    }
+
+    public int size() {
+        return attributes.getNames().size();
+    }
+
+    public boolean isEmpty() {
+        return attributes.isEmpty();
+    }
+
+    public void clear() {
+        attributes.clear();
+    }
+
+    public Set<String> keySet() {
+        return map.keySet();
+    }
+
+    public Collection<Object> values() {
+        return map.values();
+    }
+
+    public Set<Map.Entry<String, Object>> entrySet() {
+        return map.entrySet();
+    }
+
+    public Enumeration<String> keys() {
+        return Collections.enumeration(attributes.getNames());
+    }
+
+    public Enumeration<Object> elements() {
+        return Collections.enumeration(map.values());
+    }
+
+    public Object getOrDefault(Object key, Object defaultValue) {
+        Object value = get(key);
+        return value != null ? value : defaultValue;
+    }
+
+    public Object putIfAbsent(String key, Object value) {
+        Object old = get(key);
+        return old != null ? old : put(key, value);
+    }
+
+    public Object replace(String key, Object value) {
+        return containsKey(key) ? put(key, value) : null;
+    }
+
+    public void forEach(BiConsumer<? super String, ? super Object> action) {
+        for (String name : attributes.getNames()) {
+            action.accept(name, attributes.get(name));
+        }
+    }
+
+    public boolean replace(String key, Object oldValue, Object newValue) {
+        Object value = get(key);
+        if (value == null || !value.equals(oldValue)) {
+            return false;
+        }
+        put(key, newValue);
+        return true;
+    }
+
+    public void replaceAll(BiFunction<? super String, ? super Object, ? extends Object> function) {
+        for (String name : attributes.getNames()) {
+            put(name, function.apply(name, attributes.get(name)));
+        }
+    }
+
+    public Object computeIfAbsent(String key, Function<? super String, ? extends Object> function) {
+        Object value = get(key);
+        if (value == null) {
+            value = function.apply(key);
+            if (value != null) {
+                put(key, value);
+            }
+        }
+        return value;
+    }
+
+    public Object computeIfPresent(String key, BiFunction<? super String, ? super Object, ? extends Object> function) {
+        Object value = get(key);
+        return value == null ? null : update(key, function.apply(key, value));
+    }
+
+    public Object compute(String key, BiFunction<? super String, ? super Object, ? extends Object> function) {
+        return update(key, function.apply(key, get(key)));
+    }
+
+    public Object merge(String key, Object value, BiFunction<? super Object, ? super Object, ? extends Object> function) {
+        Object old = get(key);
+        return update(key, old == null ? value : function.apply(old, value));
+    }
+
+    /* sets or removes (null value) the attribute and returns the new value */
+    private Object update(String key, Object value) {
+        if (value == null) {
+            remove(key);
+        } else {
+            put(key, value);
+        }
+        return value;
+    }
+
+    public Object clone() {
+        return new Hashtable<String, Object>(this);
+    }
+
+    public boolean equals(Object o) {
+        return map.equals(o);
+    }
+
+    public int hashCode() {
+        return map.hashCode();
+    }
+
+    public String toString() {
+        return attributes.toString();
+    }
+}
@@ -0,0 +1,487 @@
+package se.sics.jipv6.pcap;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/*
+ * Capture filter for raw 802.15.4 frames.
+ *
+ * The filter expression is compiled once into a tree of predicates that
+ * are evaluated directly on the frame bytes, before any packet decoding.
+ * The frame header is parsed once per frame into a few integer fields.
+ *
+ * Expression syntax (BPF style):
+ *
+ *   expr      = term { ("or" | "||") term }
+ *   term      = factor { ("and" | "&&") factor }
+ *   factor    = ("not" | "!") factor | "(" expr ")" | primitive
+ *   primitive = [src | dst] pan NUMBER
+ *             | [src | dst | host] [host] ADDRESS
+ *             | broadcast
+ *             | beacon | data | ack | cmd
+ *             | ackreq | pending | security
+ *             | seq NUMBER | version NUMBER
+ *             | len (= | == | != | < | <= | > | >=) NUMBER
+ *             | iphc | frag
+ *
+ * Addresses are written as printed by the sniffer, most significant byte
+ * first, for example "00:12:75:00:01:02:03:04" or "0x1234" for short
+ * addresses. A "*" matches any byte and a trailing "*" matches the rest
+ * of the address, for example "src 00:12:75:*".
+ *
+ * A compiled filter keeps per-frame state and is not thread safe - use
+ * copy() to get a filter for another thread.
+ */
+public class CaptureFilter {
+
+    /* Number of frame bytes needed to evaluate any filter */
+    public static final int MAX_HEADER_LENGTH = 32;
+
+    private static final int BEACONFRAME = 0;
+    private static final int DATAFRAME = 1;
+    private static final int ACKFRAME = 2;
+    private static final int CMDFRAME = 3;
+    private static final int SHORT_ADDRESS = 2;
+    private static final int LONG_ADDRESS = 3;
+
+    /* Parsed 802.15.4 header of the current frame */
+    private static class Frame {
+        byte[] data;
+        int offset;
+        int length;
+        int fcf;
+        int seqNo;
+        int destMode;
+        int srcMode;
+        int destPan = -1;
+        int srcPan = -1;
+        int destAddr;
+        int srcAddr;
+        int payload;
+
+        /* returns false if the frame is too short to have a frame control field */
+        boolean parse(byte[] data, int offset, int length, int available) {
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+            if (length < 2 || available < 2) {
+                return false;
+            }
+            fcf = (data[offset] & 0xff) | ((data[offset + 1] & 0xff) << 8);
+            seqNo = -1;
+            destMode = 0;
+            srcMode = 0;
+            destPan = -1;
+            srcPan = -1;
+            payload = -1;
+
+            int limit = Math.min(length, available);
+            int pos = 2;
+            /* the sequence number can only be suppressed in 802.15.4-2015 frames */
+            if ((fcf & 0x100) == 0 || ((fcf >> 12) & 3) != 2) {
+                if (pos >= limit) {
+                    return true;
+                }
+                seqNo = data[offset + pos] & 0xff;
+                pos++;
+            }
+            int dMode = (fcf >> 10) & 3;
+            int sMode = (fcf >> 14) & 3;
+            if (dMode > 0) {
+                int alen = addressLength(dMode);
+                if (pos + 2 + alen > limit) {
+                    return true;
+                }
+                destPan = readPan(pos);
+                destAddr = pos + 2;
+                destMode = dMode;
+                pos += 2 + alen;
+            }
+            if (sMode > 0) {
+                int alen = addressLength(sMode);
+                boolean panCompression = (fcf & 0x40) != 0;
+                if (pos + (panCompression ? 0 : 2) + alen > limit) {
+                    return true;
+                }
+                if (panCompression) {
+                    srcPan = destPan;
+                } else {
+                    srcPan = readPan(pos);
+                    pos += 2;
+                }
+                srcAddr = pos;
+                srcMode = sMode;
+                pos += alen;
+            }
+            if (pos < limit) {
+                payload = pos;
+            }
+            return true;
+        }
+
+        private int readPan(int pos) {
+            return (data[offset + pos] & 0xff) | ((data[offset + pos + 1] & 0xff) << 8);
+        }
+
+        /* Address byte in printed order - the address is stored least significant byte first */
+        int addressByte(int addrPos, int alen, int index) {
+            return data[offset + addrPos + alen - 1 - index] & 0xff;
+        }
+
+        int payloadByte() {
+            return data[offset + payload] & 0xff;
+        }
+    }
+
+    private static int addressLength(int mode) {
+        return mode == SHORT_ADDRESS ? 2 : (mode == LONG_ADDRESS ? 8 : 0);
+    }
+
+    private interface Predicate {
+        boolean test(Frame frame);
+    }
+
+    private final String expression;
+    private final Predicate predicate;
+    private final Frame frame = new Frame();
+    private final byte[] header = new byte[MAX_HEADER_LENGTH];
+
+    private CaptureFilter(String expression, Predicate predicate) {
+        this.expression = expression;
+        this.predicate = predicate;
+    }
+
+    /* Compiles a filter expression - throws IllegalArgumentException for illegal expressions */
+    public static CaptureFilter compile(String expression) {
+        Parser parser = new Parser(expression);
+        Predicate predicate = parser.parse();
+        return new CaptureFilter(expression.trim(), predicate);
+    }
+
+    /* Returns a new filter for the same expression that can be used by another thread */
+    public CaptureFilter copy() {
+        return new CaptureFilter(expression, predicate);
+    }
+
+    public String getExpression() {
+        return expression;
+    }
+
+    public boolean matches(CapturedPacket packet) {
+        byte[] data = packet.getPayload();
+        return matches(data, 0, data.length);
+    }
+
+    public boolean matches(byte[] data, int offset, int length) {
+        return matches(data, offset, length, length);
+    }
+
+    /*
+     * Matches a frame of the specified length when only the first
+     * available bytes are present in data (at least MAX_HEADER_LENGTH
+     * bytes or the whole frame are needed for an exact match).
+     */
+    public boolean matches(byte[] data, int offset, int length, int available) {
+        if (!frame.parse(data, offset, length, available)) {
+            return false;
+        }
+        return predicate.test(frame);
+    }
+
+    /* Matches the frame at the current position of the buffer without changing the position */
+    public boolean matches(ByteBuffer buffer) {
+        int length = buffer.remaining();
+        int available = Math.min(length, MAX_HEADER_LENGTH);
+        int position = buffer.position();
+        for (int i = 0; i < available; i++) {
+            header[i] = buffer.get(position + i);
+        }
+        return matches(header, 0, length, available);
+    }
+
+    public String toString() {
+        return expression;
+    }
+
+    // -------------------------------------------------------------------
+    // Expression parser
+    // -------------------------------------------------------------------
+
+    private static class Parser {
+        private final String expression;
+        private final ArrayList<String> tokens = new ArrayList<String>();
+        private int index;
+
+        Parser(String expression) {
+            this.expression = expression;
+            tokenize(expression);
+        }
+
+        private void tokenize(String expression) {
+            int i = 0;
+            int len = expression.length();
+            while (i < len) {
+                char c = expression.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    i++;
+                } else if (c == '(' || c == ')') {
+                    tokens.add(String.valueOf(c));
+                    i++;
+                } else if (c == '!' || c == '<' || c == '>' || c == '=') {
+                    if (i + 1 < len && expression.charAt(i + 1) == '=') {
+                        tokens.add(expression.substring(i, i + 2));
+                        i += 2;
+                    } else {
+                        tokens.add(String.valueOf(c));
+                        i++;
+                    }
+                } else if ((c == '&' || c == '|') && i + 1 < len && expression.charAt(i + 1) == c) {
+                    tokens.add(expression.substring(i, i + 2));
+                    i += 2;
+                } else {
+                    int start = i;
+                    while (i < len && !Character.isWhitespace(expression.charAt(i))
+                            && "()!<>=&|".indexOf(expression.charAt(i)) < 0) {
+                        i++;
+                    }
+                    if (start == i) {
+                        throw error("unexpected character '" + c + "'");
+                    }
+                    tokens.add(expression.substring(start, i).toLowerCase());
+                }
+            }
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException("illegal filter '" + expression + "': " + message);
+        }
+
+        private String peek() {
+            return index < tokens.size() ? tokens.get(index) : null;
+        }
+
+        private String next(String expected) {
+            if (index >= tokens.size()) {
+                throw error("missing " + expected);
+            }
+            return tokens.get(index++);
+        }
+
+        private boolean accept(String token) {
+            if (token.equals(peek())) {
+                index++;
+                return true;
+            }
+            return false;
+        }
+
+        Predicate parse() {
+            if (tokens.isEmpty()) {
+                throw error("empty expression");
+            }
+            Predicate p = parseOr();
+            if (index < tokens.size()) {
+                throw error("unexpected '" + tokens.get(index) + "'");
+            }
+            return p;
+        }
+
+        private Predicate parseOr() {
+            Predicate p = parseAnd();
+            while (accept("or") || accept("||")) {
+                final Predicate a = p;
+                final Predicate b = parseAnd();
+                p = f -> a.test(f) || b.test(f);
+            }
+            return p;
+        }
+
+        private Predicate parseAnd() {
+            Predicate p = parseNot();
+            while (accept("and") || accept("&&")) {
+                final Predicate a = p;
+                final Predicate b = parseNot();
+                p = f -> a.test(f) && b.test(f);
+            }
+            return p;
+        }
+
+        private Predicate parseNot() {
+            if (accept("not") || accept("!")) {
+                final Predicate a = parseNot();
+                return f -> !a.test(f);
+            }
+            if (accept("(")) {
+                Predicate p = parseOr();
+                if (!accept(")")) {
+                    throw error("missing ')'");
+                }
+                return p;
+            }
+            return parsePrimitive();
+        }
+
+        private Predicate parsePrimitive() {
+            String token = next("expression");
+            switch (token) {
+            case "src":
+            case "dst":
+            case "host": {
+                boolean src = !token.equals("dst");
+                boolean dst = !token.equals("src");
+                if (!token.equals("host") && accept("pan")) {
+                    return panPredicate(src, dst, parseNumber(0xffff));
+                }
+                accept("host");
+                return addressPredicate(src, dst, next("address"));
+            }
+            case "pan":
+                return panPredicate(true, true, parseNumber(0xffff));
+            case "broadcast":
+                return f -> f.destMode == SHORT_ADDRESS
+                        && f.addressByte(f.destAddr, 2, 0) == 0xff
+                        && f.addressByte(f.destAddr, 2, 1) == 0xff;
+            case "beacon":
+                return typePredicate(BEACONFRAME);
+            case "data":
+                return typePredicate(DATAFRAME);
+            case "ack":
+                return typePredicate(ACKFRAME);
+            case "cmd":
+                return typePredicate(CMDFRAME);
+            case "security":
+                return f -> (f.fcf & 0x08) != 0;
+            case "pending":
+                return f -> (f.fcf & 0x10) != 0;
+            case "ackreq":
+                return f -> (f.fcf & 0x20) != 0;
+            case "seq": {
+                final int seqNo = parseNumber(0xff);
+                return f -> f.seqNo == seqNo;
+            }
+            case "version": {
+                final int version = parseNumber(3);
+                return f -> ((f.fcf >> 12) & 3) == version;
+            }
+            case "len":
+                return lengthPredicate(next("operator"), parseNumber(Integer.MAX_VALUE));
+            case "iphc":
+                /* 6LoWPAN IPHC dispatch 011xxxxx */
+                return f -> f.payload >= 0 && (f.payloadByte() & 0xe0) == 0x60;
+            case "frag":
+                /* 6LoWPAN FRAG1 (11000xxx) or FRAGN (11100xxx) dispatch */
+                return f -> f.payload >= 0 && ((f.payloadByte() & 0xf8) == 0xc0
+                        || (f.payloadByte() & 0xf8) == 0xe0);
+            default:
+                throw error("unknown primitive '" + token + "'");
+            }
+        }
+
+        private int parseNumber(int max) {
+            String token = next("number");
+            long value;
+            try {
+                if (token.startsWith("0x")) {
+                    value = Long.parseLong(token.substring(2), 16);
+                } else {
+                    value = Long.parseLong(token);
+                }
+            } catch (NumberFormatException e) {
+                throw error("illegal number '" + token + "'");
+            }
+            if (value < 0 || value > max) {
+                throw error("number out of range '" + token + "'");
+            }
+            return (int) value;
+        }
+
+        private Predicate typePredicate(final int type) {
+            return f -> (f.fcf & 7) == type;
+        }
+
+        private Predicate panPredicate(final boolean src, final boolean dst, final int pan) {
+            return f -> (dst && f.destPan == pan) || (src && f.srcPan == pan);
+        }
+
+        private Predicate lengthPredicate(String op, final int value) {
+            switch (op) {
+            case "=":
+            case "==":
+                return f -> f.length == value;
+            case "!=":
+                return f -> f.length != value;
+            case "<":
+                return f -> f.length < value;
+            case "<=":
+                return f -> f.length <= value;
+            case ">":
+                return f -> f.length > value;
+            case ">=":
+                return f -> f.length >= value;
+            default:
+                throw error("illegal operator '" + op + "'");
+            }
+        }
+
+        private Predicate addressPredicate(final boolean src, final boolean dst, String address) {
+            final int[] bytes;
+            final boolean isPrefix;
+            if (address.startsWith("0x")) {
+                int value = parseAddressNumber(address);
+                bytes = new int[] { value >> 8, value & 0xff };
+                isPrefix = false;
+            } else {
+                String[] parts = address.split(":", -1);
+                isPrefix = parts.length > 1 && parts[parts.length - 1].equals("*");
+                int count = isPrefix ? parts.length - 1 : parts.length;
+                if (count > 8 || (!isPrefix && count != 2 && count != 8)) {
+                    throw error("illegal address '" + address + "'");
+                }
+                bytes = new int[count];
+                for (int i = 0; i < count; i++) {
+                    if (parts[i].equals("*")) {
+                        // Wildcard byte
+                        bytes[i] = -1;
+                    } else {
+                        try {
+                            bytes[i] = Integer.parseInt(parts[i], 16);
+                        } catch (NumberFormatException e) {
+                            throw error("illegal address '" + address + "'");
+                        }
+                        if (bytes[i] < 0 || bytes[i] > 0xff || parts[i].length() > 2) {
+                            throw error("illegal address '" + address + "'");
+                        }
+                    }
+                }
+            }
+            return f -> (dst && matchAddress(f, f.destMode, f.destAddr, bytes, isPrefix))
+                    || (src && matchAddress(f, f.srcMode, f.srcAddr, bytes, isPrefix));
+        }
+
+        private int parseAddressNumber(String address) {
+            try {
+                int value = Integer.parseInt(address.substring(2), 16);
+                if (value >= 0 && value <= 0xffff) {
+                    return value;
+                }
+            } catch (NumberFormatException e) {
+                // Handled below
+            }
+            throw error("illegal short address '" + address + "'");
+        }
+    }
+
+    private static boolean matchAddress(Frame f, int mode, int addrPos, int[] bytes, boolean isPrefix) {
+        int alen = addressLength(mode);
+        if (alen == 0 || alen < bytes.length || (!isPrefix && alen != bytes.length)) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] >= 0 && f.addressByte(addrPos, alen, i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,164 @@
+package se.sics.jipv6.pcap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/*
+ * Sparse index of a capture file stored next to the capture (capture file
+ * name + ".idx"). The index holds the timestamp (in microseconds) and the
+ * file offset of every interval:th packet, i.e. entry i refers to packet
+ * number i * interval.
+ *
+ * File format (big endian): magic "JIDX", version, interval, followed by
+ * (timestamp, offset) pairs of 64 bits each until end of file.
+ */
+public class CaptureIndex {
+
+    public static final String SUFFIX = ".idx";
+    public static final int DEFAULT_INTERVAL = 1000;
+
+    static final int MAGIC = 0x4a494458;
+    static final int VERSION = 1;
+
+    private final int interval;
+    private long[] timestamps = new long[64];
+    private long[] offsets = new long[64];
+    private int size;
+
+    public CaptureIndex(int interval) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("illegal index interval: " + interval);
+        }
+        this.interval = interval;
+    }
+
+    public static String getIndexFilename(String captureFilename) {
+        return captureFilename + SUFFIX;
+    }
+
+    public int getInterval() {
+        return interval;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getTimestamp(int entry) {
+        checkEntry(entry);
+        return timestamps[entry];
+    }
+
+    public long getOffset(int entry) {
+        checkEntry(entry);
+        return offsets[entry];
+    }
+
+    public long getPacketNumber(int entry) {
+        checkEntry(entry);
+        return (long) entry * interval;
+    }
+
+    private void checkEntry(int entry) {
+        if (entry < 0 || entry >= size) {
+            throw new IndexOutOfBoundsException("entry " + entry + " of " + size);
+        }
+    }
+
+    /* adds the entry for the next indexed packet */
+    public void add(long timestamp, long offset) {
+        if (size == timestamps.length) {
+            timestamps = Arrays.copyOf(timestamps, size * 2);
+            offsets = Arrays.copyOf(offsets, size * 2);
+        }
+        timestamps[size] = timestamp;
+        offsets[size] = offset;
+        size++;
+    }
+
+    /*
+     * Returns the last entry that starts before the specified timestamp, or
+     * the first entry if all entries are later. Returns -1 if the index is
+     * empty. Assumes the packets are stored in timestamp order.
+     */
+    public int findEntry(long timestamp) {
+        if (size == 0) {
+            return -1;
+        }
+        int low = 0;
+        int high = size - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (timestamps[mid] < timestamp) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /* Returns the last entry at or before the specified packet number, or -1 if the index is empty */
+    public int findEntryByPacket(long packetNumber) {
+        if (size == 0 || packetNumber < 0) {
+            return -1;
+        }
+        return (int) Math.min(packetNumber / interval, size - 1);
+    }
+
+    public static CaptureIndex load(String filename) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(filename)));
+        try {
+            if (input.readInt() != MAGIC) {
+                throw new IOException("Not a capture index file: " + filename);
+            }
+            int version = input.readInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported capture index version: " + version);
+            }
+            CaptureIndex index = new CaptureIndex(input.readInt());
+            for (;;) {
+                long timestamp;
+                try {
+                    timestamp = input.readLong();
+                } catch (EOFException e) {
+                    // End of index
+                    break;
+                }
+                index.add(timestamp, input.readLong());
+            }
+            return index;
+        } catch (EOFException e) {
+            throw new IOException("truncated capture index file: " + filename, e);
+        } finally {
+            input.close();
+        }
+    }
+
+    public void save(String filename) throws IOException {
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename)));
+        try {
+            writeHeader(output, interval);
+            for (int i = 0; i < size; i++) {
+                output.writeLong(timestamps[i]);
+                output.writeLong(offsets[i]);
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    static void writeHeader(DataOutputStream output, int interval) throws IOException {
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        output.writeInt(interval);
+    }
+
+}
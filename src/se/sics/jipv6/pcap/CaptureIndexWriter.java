@@ -0,0 +1,53 @@
+package se.sics.jipv6.pcap;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/*
+ * Writes a CaptureIndex file incrementally while the capture is written.
+ * Every packet written to the capture is reported and an index entry is
+ * added for every interval:th packet.
+ */
+public class CaptureIndexWriter {
+
+    private final DataOutputStream output;
+    private final int interval;
+    private long packetCount;
+
+    public CaptureIndexWriter(String filename, int interval) throws IOException {
+        if (interval < 1) {
+            throw new IllegalArgumentException("illegal index interval: " + interval);
+        }
+        this.interval = interval;
+        this.output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename)));
+        CaptureIndex.writeHeader(output, interval);
+    }
+
+    public int getInterval() {
+        return interval;
+    }
+
+    public long getPacketCount() {
+        return packetCount;
+    }
+
+    /* reports a packet with the specified timestamp (microseconds) written at the specified offset */
+    public void packetWritten(long timestamp, long offset) throws IOException {
+        if (packetCount % interval == 0) {
+            output.writeLong(timestamp);
+            output.writeLong(offset);
+        }
+        packetCount++;
+    }
+
+    public void flush() throws IOException {
+        output.flush();
+    }
+
+    public void close() throws IOException {
+        output.close();
+    }
+
+}
@@ -0,0 +1,38 @@
+package se.sics.jipv6.pcap;
+
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/* Common interface for the capture file readers */
+public interface CaptureReader {
+
+    public void setStripEthernetHeaders(boolean stripEthernetHeaders);
+
+    public void setStripCRC(boolean stripCRC);
+
+    public int getLinkLayerHeaderType();
+
+    /* returns the next packet or null at end of file */
+    public PCAPPacket readPacket() throws IOException;
+
+    public void close() throws IOException;
+
+    /* checks the file magic - true for PCAPNG files */
+    public static boolean isPCAPNG(String filename) throws IOException {
+        DataInputStream input = new DataInputStream(new FileInputStream(filename));
+        try {
+            return input.readInt() == PCAPNG.BLOCK_SECTION_HEADER;
+        } finally {
+            input.close();
+        }
+    }
+
+    /* opens a reader for the file based on the file magic (PCAP or PCAPNG) */
+    public static CaptureReader open(String filename) throws IOException {
+        if (isPCAPNG(filename)) {
+            return new PCAPNGReader(filename);
+        }
+        return new MappedPCAPReader(filename);
+    }
+}
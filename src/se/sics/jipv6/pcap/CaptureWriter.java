@@ -0,0 +1,35 @@
+package se.sics.jipv6.pcap;
+
+import java.io.IOException;
+
+/* Common interface for the capture file writers */
+public interface CaptureWriter {
+
+    public boolean isAddingCRC();
+
+    public void setAddingCRC(boolean isAddingCRC);
+
+    public boolean isAutoFlush();
+
+    /* flush the output after every written packet (default) */
+    public void setAutoFlush(boolean isAutoFlush);
+
+    /* number of bytes written to the capture file so far */
+    public long getPosition();
+
+    public void writePacket(long timeMillis, byte[] data) throws IOException;
+
+    public void writePacket(CapturedPacket captured) throws IOException;
+
+    public void flush() throws IOException;
+
+    public void close() throws IOException;
+
+    /* creates a PCAPNG writer for .pcapng files and a PCAP writer otherwise */
+    public static CaptureWriter create(String filename) throws IOException {
+        if (filename.toLowerCase().endsWith(".pcapng")) {
+            return new PCAPNGWriter(filename);
+        }
+        return new PCAPWriter(filename);
+    }
+}
@@ -5,24 +5,58 @@ import java.util.Hashtable;
 public class CapturedPacket {
 
     public static final String RSSI = "packet.rssi";
+    public static final String COMMENT = "packet.comment";
+
+    public static final AttributeKey RSSI_KEY = AttributeKey.objectKey(RSSI);
+    public static final AttributeKey COMMENT_KEY = AttributeKey.objectKey(COMMENT);
+
+    private long timeMillis;
+    private byte[] payload;
+    private boolean retained;
     
-    private final long timeMillis;
-    private final byte[] payload;
-    
-    Hashtable<String, Object> attributes = new Hashtable<String, Object>();
+    final PacketAttributes attributes = new PacketAttributes();
 
     public CapturedPacket(long timeMillis, byte[] payload) {
         this.timeMillis = timeMillis;
         this.payload = payload;
     }
 
+    /* Reuses the packet for another captured packet - the attributes are cleared */
+    protected void reset(long timeMillis, byte[] payload) {
+        this.timeMillis = timeMillis;
+        this.payload = payload;
+        this.retained = false;
+        attributes.clear();
+    }
+
+    /*
+     * Marks the packet as kept by the caller. Packets read from a capture
+     * file may be reused for later packets after the analyzers have seen
+     * them unless they have been retained.
+     */
+    public void retain() {
+        retained = true;
+    }
+
+    public boolean isRetained() {
+        return retained;
+    }
+
     public void setAttribute(String name, Object value) {
-        attributes.put(name, value);
+        attributes.set(name, value);
     }
-    
+
     public Object getAttribute(String name) {
         return attributes.get(name);
     }
+
+    public void setAttribute(AttributeKey key, Object value) {
+        attributes.setObject(key, value);
+    }
+
+    public Object getAttribute(AttributeKey key) {
+        return attributes.getObject(key);
+    }
     
     public long getTimeMillis() {
         return timeMillis;
@@ -32,8 +66,14 @@ public class CapturedPacket {
         return payload;
     }
 
-    public Hashtable<String, Object> getAttributes() {
+    public PacketAttributes getPacketAttributes() {
         return attributes;
     }
 
+    /* Hashtable view of the attributes - use getPacketAttributes() */
+    @Deprecated
+    public Hashtable<String, Object> getAttributes() {
+        return attributes.asHashtable();
+    }
+
 }
@@ -0,0 +1,217 @@
+package se.sics.jipv6.pcap;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * PCAP reader with random access by timestamp and packet number.
+ *
+ * A sparse CaptureIndex is loaded from the file next to the capture or, if
+ * missing or older than the capture, built by scanning the capture and then
+ * saved for the next time. Lookups position the reader at the closest index
+ * entry and scan forward from there.
+ *
+ * Timestamps are in microseconds and the capture is assumed to be stored
+ * in timestamp order.
+ */
+public class IndexedPCAPReader implements CaptureReader {
+
+    private static final boolean DEBUG = false;
+
+    private final MappedPCAPReader reader;
+    private final CaptureIndex index;
+    private long packetCount;
+    private long packetNumber;
+
+    public IndexedPCAPReader(String filename) throws IOException {
+        this(filename, CaptureIndex.DEFAULT_INTERVAL);
+    }
+
+    /* interval is the number of packets between index entries if a new index needs to be built */
+    public IndexedPCAPReader(String filename, int interval) throws IOException {
+        this.reader = new MappedPCAPReader(filename);
+        try {
+            CaptureIndex index = loadIndex(filename);
+            if (index == null) {
+                index = buildIndex(reader, interval);
+                saveIndex(index, filename);
+            }
+            this.index = index;
+            this.packetCount = countPackets();
+            reader.rewind();
+        } catch (IOException e) {
+            reader.close();
+            throw e;
+        }
+    }
+
+    private CaptureIndex loadIndex(String filename) {
+        File captureFile = new File(filename);
+        File indexFile = new File(CaptureIndex.getIndexFilename(filename));
+        if (!indexFile.isFile() || indexFile.lastModified() < captureFile.lastModified()) {
+            return null;
+        }
+        try {
+            CaptureIndex index = CaptureIndex.load(indexFile.getPath());
+            for (int i = 0; i < index.size(); i++) {
+                if (index.getOffset(i) >= reader.getFileSize()) {
+                    // Index does not match the capture
+                    return null;
+                }
+            }
+            return index;
+        } catch (IOException e) {
+            if (DEBUG) System.err.println("Failed to load capture index: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static void saveIndex(CaptureIndex index, String filename) {
+        try {
+            index.save(CaptureIndex.getIndexFilename(filename));
+        } catch (IOException e) {
+            // The index is rebuilt the next time if it could not be saved
+            if (DEBUG) System.err.println("Failed to save capture index: " + e.getMessage());
+        }
+    }
+
+    /* Scans the capture and returns an index with an entry every interval:th packet */
+    public static CaptureIndex buildIndex(MappedPCAPReader reader, int interval) throws IOException {
+        CaptureIndex index = new CaptureIndex(interval);
+        reader.rewind();
+        for (long n = 0; reader.nextPacket(); n++) {
+            if (n % interval == 0) {
+                index.add(reader.getTimestamp(), reader.getRecordOffset());
+            }
+        }
+        return index;
+    }
+
+    /* counts the packets by scanning from the last index entry */
+    private long countPackets() throws IOException {
+        long count = 0;
+        int entry = index.size() - 1;
+        if (entry >= 0) {
+            reader.setPosition(index.getOffset(entry));
+            count = index.getPacketNumber(entry);
+        } else {
+            reader.rewind();
+        }
+        while (reader.nextPacket()) {
+            count++;
+        }
+        return count;
+    }
+
+    public CaptureIndex getIndex() {
+        return index;
+    }
+
+    public long getPacketCount() {
+        return packetCount;
+    }
+
+    /* number of the packet returned by the next call to readPacket() */
+    public long getPacketNumber() {
+        return packetNumber;
+    }
+
+    public void setStripEthernetHeaders(boolean stripEthernetHeaders) {
+        reader.setStripEthernetHeaders(stripEthernetHeaders);
+    }
+
+    public void setStripCRC(boolean stripCRC) {
+        reader.setStripCRC(stripCRC);
+    }
+
+    public int getLinkLayerHeaderType() {
+        return reader.getLinkLayerHeaderType();
+    }
+
+    private void moveToEntry(int entry) {
+        if (entry < 0) {
+            reader.rewind();
+            packetNumber = 0;
+        } else {
+            reader.setPosition(index.getOffset(entry));
+            packetNumber = index.getPacketNumber(entry);
+        }
+    }
+
+    /*
+     * Positions the reader at the first packet with a timestamp at or after
+     * the specified timestamp and returns its packet number. Returns the
+     * packet count if there is no such packet.
+     */
+    public long seek(long timestamp) throws IOException {
+        moveToEntry(index.findEntry(timestamp));
+        for (;;) {
+            long position = reader.getPosition();
+            if (!reader.nextPacket()) {
+                return packetNumber;
+            }
+            if (reader.getTimestamp() >= timestamp) {
+                reader.setPosition(position);
+                return packetNumber;
+            }
+            packetNumber++;
+        }
+    }
+
+    /* Positions the reader at the specified packet number */
+    public void seekPacket(long n) throws IOException {
+        if (n < 0 || n > packetCount) {
+            throw new IndexOutOfBoundsException("packet " + n + " of " + packetCount);
+        }
+        moveToEntry(index.findEntryByPacket(n));
+        while (packetNumber < n && reader.nextPacket()) {
+            packetNumber++;
+        }
+    }
+
+    /* Returns the specified packet or null if there is no such packet */
+    public PCAPPacket packetAt(long n) throws IOException {
+        if (n < 0 || n >= packetCount) {
+            return null;
+        }
+        seekPacket(n);
+        return readPacket();
+    }
+
+    /*
+     * Returns all packets with timestamps in the range [from, to) and
+     * leaves the reader at the first packet after the range.
+     */
+    public List<PCAPPacket> range(long from, long to) throws IOException {
+        ArrayList<PCAPPacket> packets = new ArrayList<PCAPPacket>();
+        seek(from);
+        for (;;) {
+            long position = reader.getPosition();
+            if (!reader.nextPacket()) {
+                break;
+            }
+            if (reader.getTimestamp() >= to) {
+                reader.setPosition(position);
+                break;
+            }
+            packets.add(reader.getPacket());
+            packetNumber++;
+        }
+        return packets;
+    }
+
+    public PCAPPacket readPacket() throws IOException {
+        PCAPPacket packet = reader.readPacket();
+        if (packet != null) {
+            packetNumber++;
+        }
+        return packet;
+    }
+
+    public void close() throws IOException {
+        reader.close();
+    }
+
+}
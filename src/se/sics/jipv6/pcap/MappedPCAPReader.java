@@ -0,0 +1,330 @@
+package se.sics.jipv6.pcap;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * PCAP reader that maps the capture file into memory instead of streaming it.
+ *
+ * Packets are returned as a view into the mapped region that is only valid
+ * until the next call to nextPacket(). No memory is allocated per record.
+ * Files larger than what fits in one mapping (2 GB) are mapped in windows
+ * and a new window is mapped whenever a record crosses the window end.
+ */
+public class MappedPCAPReader implements CaptureReader {
+
+    private static final int PCAP_MAGIC       = 0xa1b2c3d4;
+    private static final int PCAP_MAGIC_NSEC  = 0xa1b23c4d;
+    private static final int FILE_HEADER_SIZE = 24;
+    private static final int RECORD_HEADER_SIZE = 16;
+    private static final int ETHERNET_HEADER_SIZE = 14;
+
+    public static final long DEFAULT_WINDOW_SIZE = 256L * 1024 * 1024;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long fileSize;
+    private final long windowSize;
+    private ByteOrder byteOrder = ByteOrder.BIG_ENDIAN;
+    private boolean isNanosecondResolution = false;
+
+    private MappedByteBuffer window;
+    private ByteBuffer view;
+    private long windowStart;
+    private long position;
+
+    private int versionMajor;
+    private int versionMinor;
+    private int timezone;
+    private int timestampAccuracy;
+    private int snapshotMaxLength;
+    private int llayerHeaderType;
+    private boolean isStrippingEthernetHeaders = false;
+    private boolean isStrippingCRC = false;
+    private CaptureFilter filter;
+
+    /* Current record */
+    private long recordOffset = -1;
+    private long timestamp;
+    private int capturedSize;
+    private int dataOffset;
+    private int dataLength;
+
+    public MappedPCAPReader(String filename) throws IOException {
+        this(filename, DEFAULT_WINDOW_SIZE);
+    }
+
+    public MappedPCAPReader(String filename, long windowSize) throws IOException {
+        if (windowSize < FILE_HEADER_SIZE || windowSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("illegal window size: " + windowSize);
+        }
+        this.file = new RandomAccessFile(filename, "r");
+        this.channel = file.getChannel();
+        this.fileSize = channel.size();
+        this.windowSize = windowSize;
+        try {
+            if (fileSize < FILE_HEADER_SIZE) {
+                throw new IOException("Not a PCAP file: " + filename);
+            }
+            map(0);
+            int magic = window.getInt(0);
+            if (magic == Integer.reverseBytes(PCAP_MAGIC) || magic == Integer.reverseBytes(PCAP_MAGIC_NSEC)) {
+                byteOrder = ByteOrder.LITTLE_ENDIAN;
+                window.order(byteOrder);
+                view.order(byteOrder);
+                magic = Integer.reverseBytes(magic);
+            }
+            if (magic == PCAP_MAGIC_NSEC) {
+                isNanosecondResolution = true;
+            } else if (magic != PCAP_MAGIC) {
+                throw new IOException("Not a PCAP file: " + filename);
+            }
+            this.versionMajor = window.getShort(4);
+            this.versionMinor = window.getShort(6);
+            this.timezone = window.getInt(8);
+            this.timestampAccuracy = window.getInt(12);
+            this.snapshotMaxLength = window.getInt(16);
+            this.llayerHeaderType = window.getInt(20);
+            this.position = FILE_HEADER_SIZE;
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    public boolean isStrippingEthernetHeaders() {
+        return isStrippingEthernetHeaders;
+    }
+
+    public void setStripEthernetHeaders(boolean stripEthernetHeaders) {
+        this.isStrippingEthernetHeaders = stripEthernetHeaders;
+    }
+
+    public boolean isStrippingCRC() {
+        return isStrippingCRC;
+    }
+
+    public void setStripCRC(boolean isStrippingCRC) {
+        this.isStrippingCRC = isStrippingCRC;
+    }
+
+    public CaptureFilter getFilter() {
+        return filter;
+    }
+
+    /* only packets matching the filter are returned by nextPacket() */
+    public void setFilter(CaptureFilter filter) {
+        this.filter = filter;
+    }
+
+    public int getVersionMajor() {
+        return versionMajor;
+    }
+
+    public int getVersionMinor() {
+        return versionMinor;
+    }
+
+    public int getTimezone() {
+        return timezone;
+    }
+
+    public int getTimestampAccuracy() {
+        return timestampAccuracy;
+    }
+
+    public int getMaxSnapshotLength() {
+        return snapshotMaxLength;
+    }
+
+    public int getLinkLayerHeaderType() {
+        return llayerHeaderType;
+    }
+
+    public ByteOrder getByteOrder() {
+        return byteOrder;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /* file offset of the next record to be read */
+    public long getPosition() {
+        return position;
+    }
+
+    /* moves the reader to the record starting at the specified file offset */
+    public void setPosition(long offset) {
+        if (offset < FILE_HEADER_SIZE || offset > fileSize) {
+            throw new IllegalArgumentException("illegal record offset: " + offset);
+        }
+        this.position = offset;
+        this.recordOffset = -1;
+    }
+
+    /* moves the reader back to the first record */
+    public void rewind() {
+        setPosition(FILE_HEADER_SIZE);
+    }
+
+    /* maps a new window starting at the specified file offset */
+    private void map(long offset) throws IOException {
+        long size = Math.min(windowSize, fileSize - offset);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+        window.order(byteOrder);
+        view = window.duplicate();
+        view.order(byteOrder);
+        windowStart = offset;
+    }
+
+    /* make sure that len bytes at offset are available in the current window */
+    private int ensureMapped(long offset, int len) throws IOException {
+        if (offset < windowStart || offset + len > windowStart + window.limit()) {
+            if (len > windowSize) {
+                throw new IOException("record larger than map window: " + len);
+            }
+            map(offset);
+        }
+        return (int) (offset - windowStart);
+    }
+
+    /*
+     * Advances to the next packet in the file. Returns false at end of file.
+     * Any view returned by getPacketData() is invalid after this call.
+     */
+    public boolean nextPacket() throws IOException {
+        while (nextRecord()) {
+            if (filter == null || filter.matches(getPacketData())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean nextRecord() throws IOException {
+        if (position + RECORD_HEADER_SIZE > fileSize) {
+            // End of file
+            recordOffset = -1;
+            return false;
+        }
+        int pos = ensureMapped(position, RECORD_HEADER_SIZE);
+        long seconds = window.getInt(pos) & 0xffffffffL;
+        long fraction = window.getInt(pos + 4) & 0xffffffffL;
+        int savedSize = window.getInt(pos + 8);
+        int origSize = window.getInt(pos + 12);
+        if (savedSize < 0 || position + RECORD_HEADER_SIZE + savedSize > fileSize) {
+            throw new IOException("truncated PCAP record at offset " + position);
+        }
+        pos = ensureMapped(position + RECORD_HEADER_SIZE, savedSize);
+
+        int start = pos;
+        int len = savedSize;
+        if (this.isStrippingEthernetHeaders && this.llayerHeaderType == PCAPHeader.LINKTYPE_ETHERNET) {
+            // Skip Ethernet header: 14 bytes
+            start += ETHERNET_HEADER_SIZE;
+            len -= ETHERNET_HEADER_SIZE;
+            origSize -= ETHERNET_HEADER_SIZE;
+        }
+        if (this.isStrippingCRC) {
+            len -= 2;
+            origSize -= 2;
+        }
+        if (len <= 0) {
+            throw new IOException("too small segment");
+        }
+
+        if (isNanosecondResolution) {
+            fraction /= 1000;
+        }
+        this.recordOffset = position;
+        this.timestamp = seconds * 1000000L + fraction;
+        this.capturedSize = origSize;
+        this.dataOffset = start;
+        this.dataLength = len;
+        this.position += RECORD_HEADER_SIZE + savedSize;
+        return true;
+    }
+
+    private void checkRecord() {
+        if (recordOffset < 0) {
+            throw new IllegalStateException("no current packet");
+        }
+    }
+
+    /* file offset of the current record header */
+    public long getRecordOffset() {
+        return recordOffset;
+    }
+
+    /* timestamp of the current packet in microseconds */
+    public long getTimestamp() {
+        checkRecord();
+        return timestamp;
+    }
+
+    public long getTimeMillis() {
+        checkRecord();
+        return timestamp / 1000L;
+    }
+
+    public int getCapturedSize() {
+        checkRecord();
+        return capturedSize;
+    }
+
+    public int getPacketLength() {
+        checkRecord();
+        return dataLength;
+    }
+
+    public byte getPacketByte(int index) {
+        checkRecord();
+        if (index < 0 || index >= dataLength) {
+            throw new IndexOutOfBoundsException("index " + index + " of " + dataLength);
+        }
+        return window.get(dataOffset + index);
+    }
+
+    /*
+     * Returns a view of the current packet data positioned at the start of
+     * the packet and limited to its end. The same view object is reused for
+     * every packet.
+     */
+    public ByteBuffer getPacketData() {
+        checkRecord();
+        view.limit(dataOffset + dataLength);
+        view.position(dataOffset);
+        return view;
+    }
+
+    public void copyPacketData(byte[] dst, int dstPos) {
+        getPacketData().get(dst, dstPos, dataLength);
+    }
+
+    /* copies the current packet into a PCAPPacket */
+    public PCAPPacket getPacket() {
+        byte[] data = new byte[getPacketLength()];
+        copyPacketData(data, 0);
+        return new PCAPPacket(timestamp, capturedSize, data);
+    }
+
+    /* PCAPReader compatible read - copies the packet data */
+    public PCAPPacket readPacket() throws IOException {
+        if (!nextPacket()) {
+            return null;
+        }
+        return getPacket();
+    }
+
+    public void close() throws IOException {
+        window = null;
+        view = null;
+        file.close();
+    }
+
+}
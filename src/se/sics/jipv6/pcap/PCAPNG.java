@@ -0,0 +1,48 @@
+package se.sics.jipv6.pcap;
+
+/* Block types and option codes for the PCAPNG file format */
+public class PCAPNG {
+
+    public static final int BLOCK_SECTION_HEADER      = 0x0a0d0d0a;
+    public static final int BLOCK_INTERFACE_DESCR     = 0x00000001;
+    public static final int BLOCK_SIMPLE_PACKET       = 0x00000003;
+    public static final int BLOCK_ENHANCED_PACKET     = 0x00000006;
+
+    public static final int BYTE_ORDER_MAGIC          = 0x1a2b3c4d;
+
+    public static final int OPT_ENDOFOPT  = 0;
+    public static final int OPT_COMMENT   = 1;
+
+    public static final int SHB_USERAPPL  = 4;
+
+    public static final int IF_NAME       = 2;
+    public static final int IF_TSRESOL    = 9;
+    public static final int IF_TSOFFSET   = 14;
+
+    /* The default timestamp resolution is microseconds */
+    public static final int DEFAULT_TSRESOL = 6;
+
+    private PCAPNG() {
+        // Prevent instances of this class
+    }
+
+    public static int pad4(int len) {
+        return (len + 3) & ~3;
+    }
+
+    /* converts a timestamp in interface units to microseconds */
+    public static long toMicros(long timestamp, int tsresol) {
+        if ((tsresol & 0x80) == 0) {
+            int exp = tsresol - 6;
+            long scale = 1;
+            for (int i = Math.abs(exp); i > 0; i--) {
+                scale *= 10;
+            }
+            return exp >= 0 ? timestamp / scale : timestamp * scale;
+        }
+        int shift = tsresol & 0x7f;
+        long seconds = timestamp >>> shift;
+        long fraction = timestamp & ((1L << shift) - 1);
+        return seconds * 1000000L + ((fraction * 1000000L) >>> shift);
+    }
+}
@@ -0,0 +1,275 @@
+package se.sics.jipv6.pcap;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/*
+ * Streaming PCAPNG reader. Handles Section Header, Interface Description,
+ * Enhanced Packet and Simple Packet blocks - all other blocks are skipped.
+ * Packet comments on the form "name=value" (as written by PCAPNGWriter)
+ * are restored as packet attributes, other comments are stored in the
+ * CapturedPacket.COMMENT attribute.
+ */
+public class PCAPNGReader implements CaptureReader {
+
+    private static class InterfaceDescription {
+        int linkType;
+        int snapLen;
+        int tsresol = PCAPNG.DEFAULT_TSRESOL;
+        long tsoffset;
+    }
+
+    private final DataInputStream input;
+    private ByteOrder byteOrder = ByteOrder.BIG_ENDIAN;
+    private ArrayList<InterfaceDescription> interfaces = new ArrayList<InterfaceDescription>();
+    private byte[] block = new byte[4096];
+    private ByteBuffer blockBuffer = ByteBuffer.wrap(block);
+    private int versionMajor;
+    private int versionMinor;
+    private boolean isStrippingEthernetHeaders = false;
+    private boolean isStrippingCRC = false;
+
+    public PCAPNGReader(String filename) throws IOException {
+        this.input = new DataInputStream(new BufferedInputStream(new FileInputStream(filename)));
+        try {
+            if (!readBlock() || blockBuffer.getInt(0) != PCAPNG.BLOCK_SECTION_HEADER) {
+                throw new IOException("Not a PCAPNG file: " + filename);
+            }
+            handleSectionHeader();
+            // Read up to the first packet to know the interfaces
+            while (interfaces.isEmpty() && readBlock()) {
+                if (blockBuffer.getInt(0) != PCAPNG.BLOCK_INTERFACE_DESCR) {
+                    // Rewinding is not supported - all interfaces must come first
+                    throw new IOException("No interface description in PCAPNG file: " + filename);
+                }
+                handleInterfaceDescription();
+            }
+        } catch (IOException e) {
+            input.close();
+            throw e;
+        }
+    }
+
+    public boolean isStrippingEthernetHeaders() {
+        return isStrippingEthernetHeaders;
+    }
+
+    public void setStripEthernetHeaders(boolean stripEthernetHeaders) {
+        this.isStrippingEthernetHeaders = stripEthernetHeaders;
+    }
+
+    public boolean isStrippingCRC() {
+        return isStrippingCRC;
+    }
+
+    public void setStripCRC(boolean isStrippingCRC) {
+        this.isStrippingCRC = isStrippingCRC;
+    }
+
+    public int getVersionMajor() {
+        return versionMajor;
+    }
+
+    public int getVersionMinor() {
+        return versionMinor;
+    }
+
+    public int getInterfaceCount() {
+        return interfaces.size();
+    }
+
+    /* link type of the first interface in the current section */
+    public int getLinkLayerHeaderType() {
+        return interfaces.isEmpty() ? -1 : interfaces.get(0).linkType;
+    }
+
+    public int getMaxSnapshotLength() {
+        return interfaces.isEmpty() ? -1 : interfaces.get(0).snapLen;
+    }
+
+    /*
+     * Reads the next block into the block buffer. The block type is
+     * at offset 0, block length at offset 4 and the body at offset 8.
+     */
+    private boolean readBlock() throws IOException {
+        int first = input.read();
+        if (first < 0) {
+            // End of file
+            return false;
+        }
+        block[0] = (byte) first;
+        input.readFully(block, 1, 7);
+        if (blockBuffer.getInt(0) == PCAPNG.BLOCK_SECTION_HEADER) {
+            // A new section might change the byte order
+            input.readFully(block, 8, 4);
+            int magic = blockBuffer.order(ByteOrder.BIG_ENDIAN).getInt(8);
+            if (magic == PCAPNG.BYTE_ORDER_MAGIC) {
+                byteOrder = ByteOrder.BIG_ENDIAN;
+            } else if (magic == Integer.reverseBytes(PCAPNG.BYTE_ORDER_MAGIC)) {
+                byteOrder = ByteOrder.LITTLE_ENDIAN;
+            } else {
+                throw new IOException("illegal PCAPNG byte order magic");
+            }
+            blockBuffer.order(byteOrder);
+            int len = blockBuffer.getInt(4);
+            if (len < 28 || (len & 3) != 0) {
+                throw new IOException("illegal PCAPNG section header length: " + len);
+            }
+            ensureCapacity(len);
+            input.readFully(block, 12, len - 12);
+        } else {
+            int len = blockBuffer.getInt(4);
+            if (len < 12 || (len & 3) != 0) {
+                throw new IOException("illegal PCAPNG block length: " + len);
+            }
+            ensureCapacity(len);
+            input.readFully(block, 8, len - 8);
+        }
+        return true;
+    }
+
+    private void ensureCapacity(int len) {
+        if (len > block.length) {
+            byte[] newBlock = new byte[Math.max(len, block.length * 2)];
+            System.arraycopy(block, 0, newBlock, 0, 12);
+            block = newBlock;
+            blockBuffer = ByteBuffer.wrap(block).order(byteOrder);
+        }
+    }
+
+    private void handleSectionHeader() {
+        interfaces.clear();
+        versionMajor = blockBuffer.getShort(12) & 0xffff;
+        versionMinor = blockBuffer.getShort(14) & 0xffff;
+    }
+
+    private void handleInterfaceDescription() {
+        InterfaceDescription ifd = new InterfaceDescription();
+        ifd.linkType = blockBuffer.getShort(8) & 0xffff;
+        ifd.snapLen = blockBuffer.getInt(12);
+        int end = blockBuffer.getInt(4) - 4;
+        for (int pos = 16; pos + 4 <= end; ) {
+            int code = blockBuffer.getShort(pos) & 0xffff;
+            int len = blockBuffer.getShort(pos + 2) & 0xffff;
+            if (code == PCAPNG.OPT_ENDOFOPT || pos + 4 + len > end) {
+                // End of options or an option that does not fit in the block
+                break;
+            }
+            if (code == PCAPNG.IF_TSRESOL && len >= 1) {
+                ifd.tsresol = block[pos + 4] & 0xff;
+            } else if (code == PCAPNG.IF_TSOFFSET && len >= 8) {
+                ifd.tsoffset = blockBuffer.getLong(pos + 4);
+            }
+            pos += 4 + PCAPNG.pad4(len);
+        }
+        interfaces.add(ifd);
+    }
+
+    private void handleOptions(PCAPPacket packet, int pos, int end) {
+        while (pos + 4 <= end) {
+            int code = blockBuffer.getShort(pos) & 0xffff;
+            int len = blockBuffer.getShort(pos + 2) & 0xffff;
+            if (code == PCAPNG.OPT_ENDOFOPT || pos + 4 + len > end) {
+                // End of options or an option that does not fit in the block
+                break;
+            }
+            if (code == PCAPNG.OPT_COMMENT) {
+                String comment = new String(block, pos + 4, len, StandardCharsets.UTF_8);
+                int index = comment.indexOf('=');
+                if (index > 0) {
+                    packet.setAttribute(comment.substring(0, index), comment.substring(index + 1));
+                } else {
+                    packet.setAttribute(CapturedPacket.COMMENT, comment);
+                }
+            }
+            pos += 4 + PCAPNG.pad4(len);
+        }
+    }
+
+    private PCAPPacket createPacket(InterfaceDescription ifd, long timestamp, int pos, int savedSize, int capturedSize) throws IOException {
+        if (this.isStrippingEthernetHeaders && ifd.linkType == PCAPHeader.LINKTYPE_ETHERNET) {
+            // Skip Ethernet header: 14 bytes
+            pos += 14;
+            savedSize -= 14;
+            capturedSize -= 14;
+        }
+        if (this.isStrippingCRC) {
+            savedSize -= 2;
+            capturedSize -= 2;
+        }
+        if (savedSize <= 0) {
+            throw new IOException("too small segment");
+        }
+        byte[] data = new byte[savedSize];
+        System.arraycopy(block, pos, data, 0, savedSize);
+        return new PCAPPacket(timestamp, capturedSize, data);
+    }
+
+    public PCAPPacket readPacket() throws IOException {
+        try {
+            while (readBlock()) {
+                int type = blockBuffer.getInt(0);
+                int blockLen = blockBuffer.getInt(4);
+                switch (type) {
+                case PCAPNG.BLOCK_SECTION_HEADER:
+                    handleSectionHeader();
+                    break;
+                case PCAPNG.BLOCK_INTERFACE_DESCR:
+                    handleInterfaceDescription();
+                    break;
+                case PCAPNG.BLOCK_ENHANCED_PACKET: {
+                    int ifIndex = blockBuffer.getInt(8);
+                    if (ifIndex < 0 || ifIndex >= interfaces.size()) {
+                        throw new IOException("unknown PCAPNG interface: " + ifIndex);
+                    }
+                    InterfaceDescription ifd = interfaces.get(ifIndex);
+                    long ts = ((blockBuffer.getInt(12) & 0xffffffffL) << 32) | (blockBuffer.getInt(16) & 0xffffffffL);
+                    long timestamp = PCAPNG.toMicros(ts, ifd.tsresol) + ifd.tsoffset * 1000000L;
+                    int savedSize = blockBuffer.getInt(20);
+                    int capturedSize = blockBuffer.getInt(24);
+                    /* the packet data must be within the block */
+                    if (savedSize < 0 || savedSize > blockLen - 32) {
+                        throw new IOException("illegal PCAPNG packet length: " + savedSize
+                                + " in block of " + blockLen + " bytes");
+                    }
+                    PCAPPacket packet = createPacket(ifd, timestamp, 28, savedSize, capturedSize);
+                    handleOptions(packet, 28 + PCAPNG.pad4(savedSize), blockLen - 4);
+                    return packet;
+                }
+                case PCAPNG.BLOCK_SIMPLE_PACKET: {
+                    if (interfaces.isEmpty()) {
+                        throw new IOException("no PCAPNG interface for simple packet");
+                    }
+                    InterfaceDescription ifd = interfaces.get(0);
+                    int capturedSize = blockBuffer.getInt(8);
+                    int savedSize = Math.min(capturedSize, blockLen - 16);
+                    if (ifd.snapLen > 0) {
+                        savedSize = Math.min(savedSize, ifd.snapLen);
+                    }
+                    // Simple packets have no timestamp
+                    return createPacket(ifd, 0, 12, savedSize, capturedSize);
+                }
+                default:
+                    // Ignore all other block types
+                    break;
+                }
+            }
+        } catch (EOFException e) {
+            throw new IOException("truncated PCAPNG file", e);
+        }
+        // End of file
+        return null;
+    }
+
+    public void close() throws IOException {
+        input.close();
+    }
+
+}
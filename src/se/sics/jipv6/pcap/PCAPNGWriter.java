@@ -0,0 +1,192 @@
+package se.sics.jipv6.pcap;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Streaming PCAPNG writer. Writes one section with a single 802.15.4
+ * interface and stores the analyzer annotations of each packet
+ * (by default "ip.type" and "color") as packet comments.
+ */
+public class PCAPNGWriter implements CaptureWriter {
+
+    public static final String[] DEFAULT_COMMENT_ATTRIBUTES = { "ip.type", "color" };
+
+    private static final byte[] PADDING = new byte[4];
+
+    private final DataOutputStream output;
+    private final int maxSnapshotSize;
+    private CCITT_CRC packetCrc = new CCITT_CRC();
+    private boolean isAddingCRC = false;
+    private boolean isAutoFlush = true;
+    private long position;
+    private String[] commentAttributes = DEFAULT_COMMENT_ATTRIBUTES;
+    private byte[][] comments = new byte[DEFAULT_COMMENT_ATTRIBUTES.length][];
+
+    public PCAPNGWriter(String filename) throws IOException {
+        this(filename, null);
+    }
+
+    public PCAPNGWriter(String filename, PCAPHeader header) throws IOException {
+        this.output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename)));
+        if (header == null) {
+            header = new PCAPHeader();
+            header.setMaxSnapshotLength(4096);
+        }
+
+        // Only 802.15.4 frames support by this exporter
+        header.setLinkLayerHeaderType(PCAPHeader.LINKTYPE_IEEE802_15_4);
+        this.maxSnapshotSize = header.getMaxSnapshotLength();
+
+        writeSectionHeader();
+        writeInterfaceDescription(header.getLinkLayerHeaderType(), maxSnapshotSize);
+        output.flush();
+    }
+
+    private void writeSectionHeader() throws IOException {
+        byte[] appl = "jipv6".getBytes(StandardCharsets.UTF_8);
+        int optionsLen = 4 + PCAPNG.pad4(appl.length) + 4;
+        int blockLen = 12 + 16 + optionsLen;
+        output.writeInt(PCAPNG.BLOCK_SECTION_HEADER);
+        output.writeInt(blockLen);
+        output.writeInt(PCAPNG.BYTE_ORDER_MAGIC);
+        output.writeShort(1);
+        output.writeShort(0);
+        // Section length is not specified
+        output.writeLong(-1L);
+        writeOption(PCAPNG.SHB_USERAPPL, appl);
+        output.writeInt(PCAPNG.OPT_ENDOFOPT);
+        output.writeInt(blockLen);
+        position += blockLen;
+    }
+
+    private void writeInterfaceDescription(int linkType, int snapLen) throws IOException {
+        int optionsLen = 4 + 4 + 4;
+        int blockLen = 12 + 8 + optionsLen;
+        output.writeInt(PCAPNG.BLOCK_INTERFACE_DESCR);
+        output.writeInt(blockLen);
+        output.writeShort(linkType);
+        output.writeShort(0);
+        output.writeInt(snapLen);
+        writeOption(PCAPNG.IF_TSRESOL, new byte[] { PCAPNG.DEFAULT_TSRESOL });
+        output.writeInt(PCAPNG.OPT_ENDOFOPT);
+        output.writeInt(blockLen);
+        position += blockLen;
+    }
+
+    private void writeOption(int code, byte[] value) throws IOException {
+        output.writeShort(code);
+        output.writeShort(value.length);
+        output.write(value);
+        output.write(PADDING, 0, PCAPNG.pad4(value.length) - value.length);
+    }
+
+    public String[] getCommentAttributes() {
+        return commentAttributes;
+    }
+
+    /* sets the packet attributes that are stored as packet comments */
+    public void setCommentAttributes(String... attributes) {
+        this.commentAttributes = attributes;
+        this.comments = new byte[attributes.length][];
+    }
+
+    public boolean isAddingCRC() {
+        return isAddingCRC;
+    }
+
+    public void setAddingCRC(boolean isAddingCRC) {
+        this.isAddingCRC = isAddingCRC;
+    }
+
+    public boolean isAutoFlush() {
+        return isAutoFlush;
+    }
+
+    public void setAutoFlush(boolean isAutoFlush) {
+        this.isAutoFlush = isAutoFlush;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    public void writePacket(long timeMillis, byte[] data) throws IOException {
+        writePacket(timeMillis * 1000L, data, 0);
+    }
+
+    public void writePacket(CapturedPacket captured) throws IOException {
+        int commentCount = 0;
+        for (int i = 0; i < commentAttributes.length; i++) {
+            Object value = captured.getAttribute(commentAttributes[i]);
+            if (value != null) {
+                comments[commentCount++] = (commentAttributes[i] + '=' + value).getBytes(StandardCharsets.UTF_8);
+            }
+        }
+        long timestamp;
+        if (captured instanceof PCAPPacket) {
+            timestamp = ((PCAPPacket) captured).getTimestamp();
+        } else {
+            timestamp = captured.getTimeMillis() * 1000L;
+        }
+        writePacket(timestamp, captured.getPayload(), commentCount);
+    }
+
+    /* writes an enhanced packet block with the first commentCount comments */
+    private void writePacket(long timeMicros, byte[] data, int commentCount) throws IOException {
+        int size = data.length;
+        int padding = this.isAddingCRC ? 2 : 0;
+        if (size + padding > this.maxSnapshotSize) {
+            size = this.maxSnapshotSize - padding;
+        }
+        int capturedLen = size + padding;
+        int optionsLen = 0;
+        for (int i = 0; i < commentCount; i++) {
+            optionsLen += 4 + PCAPNG.pad4(comments[i].length);
+        }
+        if (optionsLen > 0) {
+            optionsLen += 4;
+        }
+        int blockLen = 12 + 20 + PCAPNG.pad4(capturedLen) + optionsLen;
+
+        output.writeInt(PCAPNG.BLOCK_ENHANCED_PACKET);
+        output.writeInt(blockLen);
+        // Interface id
+        output.writeInt(0);
+        output.writeInt((int) (timeMicros >>> 32));
+        output.writeInt((int) timeMicros);
+        output.writeInt(capturedLen);
+        output.writeInt(data.length + padding);
+        /* and the data */
+        output.write(data, 0, size);
+        if (this.isAddingCRC) {
+            packetCrc.reset();
+            packetCrc.addBitrev(data, 0, size);
+            output.writeShort(packetCrc.getCRCBitrev());
+        }
+        output.write(PADDING, 0, PCAPNG.pad4(capturedLen) - capturedLen);
+        for (int i = 0; i < commentCount; i++) {
+            writeOption(PCAPNG.OPT_COMMENT, comments[i]);
+            comments[i] = null;
+        }
+        if (optionsLen > 0) {
+            output.writeInt(PCAPNG.OPT_ENDOFOPT);
+        }
+        output.writeInt(blockLen);
+        position += blockLen;
+        if (this.isAutoFlush) {
+            output.flush();
+        }
+    }
+
+    public void flush() throws IOException {
+        output.flush();
+    }
+
+    public void close() throws IOException {
+        output.close();
+    }
+}
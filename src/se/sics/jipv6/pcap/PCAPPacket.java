@@ -11,6 +11,13 @@ public class PCAPPacket extends CapturedPacket {
         this.capturedSize = capturedSize;
     }
 
+    /* Reuses the packet for another record - see CapturedPacket.retain() */
+    public void reset(long timestamp, int capturedSize, byte[] payload) {
+        reset(timestamp / 1000L, payload);
+        this.timestamp = timestamp;
+        this.capturedSize = capturedSize;
+    }
+
     public long getTimestamp() {
         return this.timestamp;
     }
@@ -5,7 +5,7 @@ import java.io.DataInputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 
-public class PCAPReader {
+public class PCAPReader implements CaptureReader {
 
     private DataInputStream input;
     private int versionMajor;
@@ -16,6 +16,7 @@ public class PCAPReader {
     private int llayerHeaderType;
     private boolean isStrippingEthernetHeaders = false;
     private boolean isStrippingCRC = false;
+    private CaptureFilter filter;
 
     public PCAPReader(String filename) throws IOException {
         this.input = new DataInputStream(new BufferedInputStream(new FileInputStream(filename)));
@@ -47,6 +48,15 @@ public class PCAPReader {
         this.isStrippingCRC = isStrippingCRC;
     }
 
+    public CaptureFilter getFilter() {
+        return filter;
+    }
+
+    /* only packets matching the filter are returned by readPacket() */
+    public void setFilter(CaptureFilter filter) {
+        this.filter = filter;
+    }
+
     public int getVersionMajor() {
         return versionMajor;
     }
@@ -72,6 +82,14 @@ public class PCAPReader {
     }
 
     public PCAPPacket readPacket() throws IOException {
+        PCAPPacket packet;
+        do {
+            packet = readNextPacket();
+        } while (packet != null && filter != null && !filter.matches(packet));
+        return packet;
+    }
+
+    private PCAPPacket readNextPacket() throws IOException {
         if(this.input.available() == 0) {
             // End of file
             return null;
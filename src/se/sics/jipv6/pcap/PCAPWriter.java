@@ -5,12 +5,14 @@ import java.io.DataOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 
-public class PCAPWriter {
+public class PCAPWriter implements CaptureWriter {
 
     private final DataOutputStream output;
     private final int maxSnapshotSize;
     private CCITT_CRC packetCrc = new CCITT_CRC();
     private boolean isAddingCRC = false;
+    private boolean isAutoFlush = true;
+    private long position;
 
     public PCAPWriter(String filename) throws IOException {
         this(filename, null);
@@ -26,6 +28,7 @@ public class PCAPWriter {
         // Only 802.15.4 frames support by this exporter
         header.setLinkLayerHeaderType(PCAPHeader.LINKTYPE_IEEE802_15_4);
         header.writeHeader(this.output);
+        this.position = this.output.size();
 
         this.maxSnapshotSize = header.getMaxSnapshotLength();
     }
@@ -38,14 +41,30 @@ public class PCAPWriter {
         this.isAddingCRC = isAddingCRC;
     }
 
+    public boolean isAutoFlush() {
+        return isAutoFlush;
+    }
+
+    public void setAutoFlush(boolean isAutoFlush) {
+        this.isAutoFlush = isAutoFlush;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
     public void writePacket(long timeMillis, byte[] data) throws IOException {
+        writePacketMicros(timeMillis * 1000L, data);
+    }
+
+    private void writePacketMicros(long timeMicros, byte[] data) throws IOException {
         int size = data.length;
         int padding = this.isAddingCRC ? 2 : 0;
         if (size + padding > this.maxSnapshotSize) {
             size = this.maxSnapshotSize - padding;
         }
-        output.writeInt((int) (timeMillis / 1000));
-        output.writeInt((int) (timeMillis % 1000) * 1000);
+        output.writeInt((int) (timeMicros / 1000000));
+        output.writeInt((int) (timeMicros % 1000000));
         // Saved size
         output.writeInt(size + padding);
         // Captured size
@@ -57,11 +76,19 @@ public class PCAPWriter {
             packetCrc.addBitrev(data, 0, size);
             output.writeShort(packetCrc.getCRCBitrev());
         }
-        output.flush();
+        position += 16 + size + padding;
+        if (this.isAutoFlush) {
+            output.flush();
+        }
     }
 
     public void writePacket(CapturedPacket captured) throws IOException {
-        this.writePacket(captured.getTimeMillis(), captured.getPayload());
+        if (captured instanceof PCAPPacket) {
+            // Keep the microsecond resolution of the original capture
+            writePacketMicros(((PCAPPacket) captured).getTimestamp(), captured.getPayload());
+        } else {
+            writePacket(captured.getTimeMillis(), captured.getPayload());
+        }
     }
 
     public void flush() throws IOException {
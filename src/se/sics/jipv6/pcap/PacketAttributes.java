@@ -0,0 +1,264 @@
+package se.sics.jipv6.pcap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+
+/*
+ * Decoded packet metadata.
+ *
+ * Attributes with a registered AttributeKey are stored in slots: numeric
+ * values unboxed in a long array with a presence mask and other values in
+ * an object array. Attributes without a registered key are kept in an
+ * overflow map. The storage arrays are allocated on first use.
+ *
+ * The name based methods are kept for compatibility with analyzers written
+ * for the earlier Hashtable based attributes. Unlike the Hashtable the
+ * attributes are not synchronized - a packet is expected to be decoded and
+ * annotated by one thread at a time.
+ */
+public class PacketAttributes {
+
+    private long numericMask;
+    private long[] numericValues;
+    private Object[] objectValues;
+    private HashMap<String, Object> overflow;
+    private AttributeTable table;
+
+    // -------------------------------------------------------------------
+    // Typed access
+    // -------------------------------------------------------------------
+
+    public boolean contains(AttributeKey key) {
+        if (key.isNumeric()) {
+            return (numericMask & (1L << key.getSlot())) != 0
+                    // Might have been set by name before the key was registered
+                    || (overflow != null && overflow.get(key.getName()) != null);
+        }
+        return getObjectSlot(key) != null;
+    }
+
+    public void setInt(AttributeKey key, int value) {
+        setLong(key, value);
+    }
+
+    public void setLong(AttributeKey key, long value) {
+        if (!key.isNumeric()) {
+            throw new IllegalArgumentException("attribute " + key + " is not numeric");
+        }
+        int slot = key.getSlot();
+        if (numericValues == null || slot >= numericValues.length) {
+            numericValues = grow(numericValues, slot, AttributeKey.getNumericKeyCount());
+        }
+        numericValues[slot] = value;
+        numericMask |= 1L << slot;
+        if (overflow != null) {
+            // Any earlier non-numeric value of the attribute is replaced
+            overflow.remove(key.getName());
+        }
+    }
+
+    public int getInt(AttributeKey key, int defaultValue) {
+        return (int) getLong(key, defaultValue);
+    }
+
+    public long getLong(AttributeKey key, long defaultValue) {
+        if (!key.isNumeric()) {
+            throw new IllegalArgumentException("attribute " + key + " is not numeric");
+        }
+        int slot = key.getSlot();
+        if ((numericMask & (1L << slot)) == 0) {
+            if (overflow != null) {
+                // Might have been set by name before the key was registered
+                Object value = overflow.get(key.getName());
+                if (value instanceof Number) {
+                    return ((Number) value).longValue();
+                }
+            }
+            return defaultValue;
+        }
+        return numericValues[slot];
+    }
+
+    public void setObject(AttributeKey key, Object value) {
+        if (key.isNumeric()) {
+            set(key.getName(), value);
+            return;
+        }
+        int slot = key.getSlot();
+        if (objectValues == null || slot >= objectValues.length) {
+            if (value == null) {
+                return;
+            }
+            objectValues = grow(objectValues, slot, AttributeKey.getObjectKeyCount());
+        }
+        objectValues[slot] = value;
+        if (overflow != null) {
+            overflow.remove(key.getName());
+        }
+    }
+
+    /* Returns the attribute value - numeric values are boxed */
+    public Object getObject(AttributeKey key) {
+        if (key.isNumeric()) {
+            int slot = key.getSlot();
+            if ((numericMask & (1L << slot)) != 0) {
+                return box(key, numericValues[slot]);
+            }
+            return overflow == null ? null : overflow.get(key.getName());
+        }
+        return getObjectSlot(key);
+    }
+
+    public void remove(AttributeKey key) {
+        if (key.isNumeric()) {
+            numericMask &= ~(1L << key.getSlot());
+            if (overflow != null) {
+                overflow.remove(key.getName());
+            }
+        } else {
+            if (objectValues != null && key.getSlot() < objectValues.length) {
+                objectValues[key.getSlot()] = null;
+            }
+            if (overflow != null) {
+                overflow.remove(key.getName());
+            }
+        }
+    }
+
+    private Object getObjectSlot(AttributeKey key) {
+        int slot = key.getSlot();
+        if (objectValues == null || slot >= objectValues.length || objectValues[slot] == null) {
+            // Might have been set by name before the key was registered
+            return overflow == null ? null : overflow.get(key.getName());
+        }
+        return objectValues[slot];
+    }
+
+    private static Object box(AttributeKey key, long value) {
+        if (key.getType() == AttributeKey.Type.INT) {
+            return Integer.valueOf((int) value);
+        }
+        return Long.valueOf(value);
+    }
+
+    private static long[] grow(long[] values, int slot, int count) {
+        int size = Math.max(slot + 1, count);
+        return values == null ? new long[size] : Arrays.copyOf(values, size);
+    }
+
+    private static Object[] grow(Object[] values, int slot, int count) {
+        int size = Math.max(slot + 1, count);
+        return values == null ? new Object[size] : Arrays.copyOf(values, size);
+    }
+
+    // -------------------------------------------------------------------
+    // Name based access
+    // -------------------------------------------------------------------
+
+    public void set(String name, int value) {
+        AttributeKey key = AttributeKey.get(name);
+        if (key != null && key.isNumeric()) {
+            setInt(key, value);
+        } else {
+            set(name, Integer.valueOf(value));
+        }
+    }
+
+    /* Sets the attribute - a null value removes the attribute */
+    public void set(String name, Object value) {
+        AttributeKey key = AttributeKey.get(name);
+        if (key != null) {
+            if (!key.isNumeric()) {
+                setObject(key, value);
+                return;
+            }
+            if (value instanceof Integer || value instanceof Long
+                    || value instanceof Short || value instanceof Byte) {
+                setLong(key, ((Number) value).longValue());
+                return;
+            }
+            // Not a numeric value - kept in the overflow map
+            numericMask &= ~(1L << key.getSlot());
+        }
+        if (value == null) {
+            if (overflow != null) {
+                overflow.remove(name);
+            }
+        } else {
+            if (overflow == null) {
+                overflow = new HashMap<String, Object>();
+            }
+            overflow.put(name, value);
+        }
+    }
+
+    public Object get(String name) {
+        AttributeKey key = AttributeKey.get(name);
+        if (key != null) {
+            return getObject(key);
+        }
+        return overflow == null ? null : overflow.get(name);
+    }
+
+    /* Returns the attribute as int or -1 if the attribute is missing or not a number */
+    public int getAsInt(String name) {
+        AttributeKey key = AttributeKey.get(name);
+        if (key != null && key.isNumeric() && (numericMask & (1L << key.getSlot())) != 0) {
+            return (int) numericValues[key.getSlot()];
+        }
+        Object val = get(name);
+        if (val instanceof Number) return ((Number)val).intValue();
+        if (val instanceof String) return Integer.parseInt((String) val);
+        return -1;
+    }
+
+    /* Returns the names of all attributes that are set */
+    public List<String> getNames() {
+        ArrayList<String> names = new ArrayList<String>();
+        if (numericMask != 0 || objectValues != null) {
+            for (AttributeKey key : AttributeKey.getKeys()) {
+                if (contains(key) && (overflow == null || !overflow.containsKey(key.getName()))) {
+                    names.add(key.getName());
+                }
+            }
+        }
+        if (overflow != null) {
+            names.addAll(overflow.keySet());
+        }
+        return names;
+    }
+
+    /* Returns a live Hashtable view of the attributes for the earlier Hashtable based API */
+    public Hashtable<String, Object> asHashtable() {
+        if (table == null) {
+            table = new AttributeTable(this);
+        }
+        return table;
+    }
+
+    public boolean isEmpty() {
+        return getNames().isEmpty();
+    }
+
+    public void clear() {
+        numericMask = 0;
+        if (objectValues != null) {
+            Arrays.fill(objectValues, null);
+        }
+        overflow = null;
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        for (String name : getNames()) {
+            if (sb.length() > 1) {
+                sb.append(", ");
+            }
+            sb.append(name).append('=').append(get(name));
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -0,0 +1,262 @@
+package se.sics.jipv6.pcap;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.TreeMap;
+
+/*
+ * Capture writer that rolls over to a new file when the current file
+ * reaches a size, packet count or duration limit. The files are named
+ * after the specified file name with a sequence number added before the
+ * extension ("capture.pcap" becomes "capture-00001.pcap" and so on) and
+ * at most maxFiles files are kept - the oldest files are removed. Files
+ * left by an earlier capture with the same name are counted as the oldest
+ * files and the numbering continues after the highest sequence number.
+ *
+ * Each file gets a sidecar CaptureIndex file with the timestamp and file
+ * offset of every indexInterval:th packet.
+ */
+public class RotatingCaptureWriter implements CaptureWriter {
+
+    private final String prefix;
+    private final String suffix;
+    private long maxFileSize = 0;
+    private long maxPackets = 0;
+    private long maxDuration = 0;
+    private int maxFiles = 0;
+    private int indexInterval = CaptureIndex.DEFAULT_INTERVAL;
+    private boolean isAddingCRC = false;
+    private boolean isAutoFlush = true;
+
+    private final ArrayDeque<String> files = new ArrayDeque<String>();
+    private int sequence = 0;
+    private String currentFilename;
+    private CaptureWriter writer;
+    private CaptureIndexWriter indexWriter;
+    private long filePackets;
+    private long fileStartTime;
+    private long totalPosition;
+
+    public RotatingCaptureWriter(String filename) {
+        int index = filename.lastIndexOf('.');
+        if (index > filename.lastIndexOf(File.separatorChar)) {
+            this.prefix = filename.substring(0, index);
+            this.suffix = filename.substring(index);
+        } else {
+            this.prefix = filename;
+            this.suffix = ".pcap";
+        }
+        findExistingFiles();
+    }
+
+    private void findExistingFiles() {
+        String name = new File(prefix).getName();
+        File dir = new File(prefix).getAbsoluteFile().getParentFile();
+        String[] names = dir == null ? null : dir.list();
+        if (names == null) {
+            return;
+        }
+        TreeMap<Integer, String> existing = new TreeMap<Integer, String>();
+        for (String n : names) {
+            if (n.startsWith(name + '-') && n.endsWith(suffix)) {
+                String number = n.substring(name.length() + 1, n.length() - suffix.length());
+                if (isSequenceNumber(number)) {
+                    existing.put(Integer.parseInt(number), prefix + '-' + number + suffix);
+                }
+            }
+        }
+        files.addAll(existing.values());
+        if (!existing.isEmpty()) {
+            sequence = existing.lastKey();
+        }
+    }
+
+    private static boolean isSequenceNumber(String number) {
+        // At least five digits as written by rotate()
+        if (number.length() < 5 || number.length() > 9) {
+            return false;
+        }
+        for (int i = 0; i < number.length(); i++) {
+            char c = number.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long getMaxFileSize() {
+        return maxFileSize;
+    }
+
+    /* max size of each file in bytes, 0 for no limit */
+    public void setMaxFileSize(long maxFileSize) {
+        this.maxFileSize = maxFileSize;
+    }
+
+    public long getMaxPackets() {
+        return maxPackets;
+    }
+
+    /* max number of packets in each file, 0 for no limit */
+    public void setMaxPackets(long maxPackets) {
+        this.maxPackets = maxPackets;
+    }
+
+    public long getMaxDuration() {
+        return maxDuration;
+    }
+
+    /* max capture time in milliseconds covered by each file, 0 for no limit */
+    public void setMaxDuration(long maxDuration) {
+        this.maxDuration = maxDuration;
+    }
+
+    public int getMaxFiles() {
+        return maxFiles;
+    }
+
+    /* max number of files to keep, 0 to keep all files */
+    public void setMaxFiles(int maxFiles) {
+        this.maxFiles = maxFiles;
+    }
+
+    public int getIndexInterval() {
+        return indexInterval;
+    }
+
+    /* number of packets between index entries, 0 to not write any index */
+    public void setIndexInterval(int indexInterval) {
+        if (indexInterval < 0) {
+            throw new IllegalArgumentException("illegal index interval: " + indexInterval);
+        }
+        this.indexInterval = indexInterval;
+    }
+
+    public boolean isAddingCRC() {
+        return isAddingCRC;
+    }
+
+    public void setAddingCRC(boolean isAddingCRC) {
+        this.isAddingCRC = isAddingCRC;
+        if (writer != null) {
+            writer.setAddingCRC(isAddingCRC);
+        }
+    }
+
+    public boolean isAutoFlush() {
+        return isAutoFlush;
+    }
+
+    public void setAutoFlush(boolean isAutoFlush) {
+        this.isAutoFlush = isAutoFlush;
+        if (writer != null) {
+            writer.setAutoFlush(isAutoFlush);
+        }
+    }
+
+    /* name of the file currently written or null if no file has been created yet */
+    public String getCurrentFilename() {
+        return currentFilename;
+    }
+
+    /* total number of bytes written to all files */
+    public long getPosition() {
+        return writer == null ? totalPosition : totalPosition + writer.getPosition();
+    }
+
+    public void writePacket(long timeMillis, byte[] data) throws IOException {
+        writePacket(new CapturedPacket(timeMillis, data));
+    }
+
+    public void writePacket(CapturedPacket captured) throws IOException {
+        long timestamp;
+        if (captured instanceof PCAPPacket) {
+            timestamp = ((PCAPPacket) captured).getTimestamp();
+        } else {
+            timestamp = captured.getTimeMillis() * 1000L;
+        }
+        if (writer == null || isRotationNeeded(timestamp)) {
+            rotate(timestamp);
+        }
+        long offset = writer.getPosition();
+        writer.writePacket(captured);
+        filePackets++;
+        if (indexWriter != null) {
+            indexWriter.packetWritten(timestamp, offset);
+            if (isAutoFlush) {
+                indexWriter.flush();
+            }
+        }
+    }
+
+    private boolean isRotationNeeded(long timestamp) {
+        if (filePackets == 0) {
+            // Always write at least one packet to each file
+            return false;
+        }
+        if (maxPackets > 0 && filePackets >= maxPackets) {
+            return true;
+        }
+        if (maxFileSize > 0 && writer.getPosition() >= maxFileSize) {
+            return true;
+        }
+        if (maxDuration > 0 && timestamp - fileStartTime >= maxDuration * 1000L) {
+            return true;
+        }
+        return false;
+    }
+
+    private void closeFile() throws IOException {
+        if (writer != null) {
+            totalPosition += writer.getPosition();
+            try {
+                writer.close();
+            } finally {
+                writer = null;
+                if (indexWriter != null) {
+                    indexWriter.close();
+                    indexWriter = null;
+                }
+            }
+        }
+    }
+
+    private void rotate(long timestamp) throws IOException {
+        closeFile();
+
+        sequence++;
+        String filename = String.format("%s-%05d%s", prefix, sequence, suffix);
+        writer = CaptureWriter.create(filename);
+        writer.setAddingCRC(isAddingCRC);
+        writer.setAutoFlush(isAutoFlush);
+        if (indexInterval > 0) {
+            indexWriter = new CaptureIndexWriter(CaptureIndex.getIndexFilename(filename), indexInterval);
+        }
+        filePackets = 0;
+        fileStartTime = timestamp;
+
+        currentFilename = filename;
+        files.add(filename);
+        while (maxFiles > 0 && files.size() > maxFiles) {
+            String oldFile = files.removeFirst();
+            new File(oldFile).delete();
+            new File(CaptureIndex.getIndexFilename(oldFile)).delete();
+        }
+    }
+
+    public void flush() throws IOException {
+        if (writer != null) {
+            writer.flush();
+        }
+        if (indexWriter != null) {
+            indexWriter.flush();
+        }
+    }
+
+    public void close() throws IOException {
+        closeFile();
+    }
+
+}
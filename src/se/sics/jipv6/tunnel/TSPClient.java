@@ -42,6 +42,7 @@ import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.util.Arrays;
 import java.util.Formatter;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -306,7 +307,8 @@ public class TSPClient implements NetworkInterface {
                         System.out.println("*** Tunneled packet received!!!");
                         if (ipStack != null) {
                             IPv6Packet packet = new IPv6Packet();
-                            packet.setBytes(data, 0, receiveP.getLength());
+                            /* copied as the receive buffer is reused */
+                            packet.setBytes(Arrays.copyOf(data, receiveP.getLength()));
                             packet.parsePacketData(packet);
                             packet.netInterface = this;
                             ipStack.receivePacket(packet);
@@ -21,6 +21,7 @@ public class PacketStore {
     /* Packets are assumed to be in time-stamp order and only added one at a time - e.g. no multipe
      * adders... */
     public void storePacket(CapturedPacket p) {
+        p.retain();
         currentPackets[pos] = p;
         pos++;
         if(pos == PACKETS_PER_BLOCK) {
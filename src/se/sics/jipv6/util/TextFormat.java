@@ -0,0 +1,191 @@
+package se.sics.jipv6.util;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Formatter;
+
+/*
+ * Table driven formatting of hex, MAC and IPv6 addresses and timestamps
+ * into a StringBuilder, for the per packet text output that otherwise goes
+ * through Formatter.format and temporary strings.
+ *
+ * getBuilder() returns a builder that is reused by the thread, and write()
+ * hands the text to the output and clears the builder. A print method
+ * that calls another print method before writing its own text will get a
+ * new builder for the nested call. Callers release the builder in a
+ * finally block so that an exception before write() does not leave the
+ * reused builder marked as in use.
+ */
+public final class TextFormat {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final class SharedBuilder {
+        final StringBuilder sb = new StringBuilder(256);
+        boolean inUse;
+    }
+
+    private static final ThreadLocal<SharedBuilder> BUILDER = new ThreadLocal<SharedBuilder>() {
+        protected SharedBuilder initialValue() {
+            return new SharedBuilder();
+        }
+    };
+
+    private TextFormat() {
+    }
+
+    public static StringBuilder getBuilder() {
+        SharedBuilder shared = BUILDER.get();
+        if (shared.inUse) {
+            // Nested print call
+            return new StringBuilder(256);
+        }
+        shared.inUse = true;
+        shared.sb.setLength(0);
+        return shared.sb;
+    }
+
+    /* Clears the builder and, if it is the thread's reused builder, makes it available again */
+    public static void release(StringBuilder sb) {
+        sb.setLength(0);
+        SharedBuilder shared = BUILDER.get();
+        if (shared.sb == sb) {
+            shared.inUse = false;
+        }
+    }
+
+    public static void write(Formatter out, StringBuilder sb) {
+        try {
+            out.out().append(sb);
+        } catch (IOException e) {
+            /* Formatter.format also drops output errors */
+        } finally {
+            release(sb);
+        }
+    }
+
+    public static void write(PrintStream out, StringBuilder sb) {
+        try {
+            out.append(sb);
+        } finally {
+            release(sb);
+        }
+    }
+
+    public static StringBuilder appendHex8(StringBuilder sb, int data) {
+        return sb.append(HEX[(data >> 4) & 0xf]).append(HEX[data & 0xf]);
+    }
+
+    public static StringBuilder appendHex16(StringBuilder sb, int data) {
+        return sb.append(HEX[(data >> 12) & 0xf]).append(HEX[(data >> 8) & 0xf])
+                .append(HEX[(data >> 4) & 0xf]).append(HEX[data & 0xf]);
+    }
+
+    public static StringBuilder appendHex(StringBuilder sb, byte[] data, int offset, int len) {
+        for (int i = offset, n = offset + len; i < n; i++) {
+            appendHex8(sb, data[i]);
+        }
+        return sb;
+    }
+
+    /* colon separated bytes - 00:12:74:... */
+    public static StringBuilder appendMAC(StringBuilder sb, byte[] addr) {
+        for (int i = 0; i < addr.length; i++) {
+            if (i > 0) {
+                sb.append(':');
+            }
+            appendHex8(sb, addr[i]);
+        }
+        return sb;
+    }
+
+    /* all eight groups with leading zeroes - fe80:0000:0000:... */
+    public static StringBuilder appendIPv6(StringBuilder sb, byte[] address) {
+        for (int i = 0; i < 16; i += 2) {
+            if (i > 0) {
+                sb.append(':');
+            }
+            appendHex8(sb, address[i]);
+            appendHex8(sb, address[i + 1]);
+        }
+        return sb;
+    }
+
+    /* RFC 5952 form - fe80::212:7401:1:101 */
+    public static StringBuilder appendIPv6Compressed(StringBuilder sb, byte[] address, int offset) {
+        int bestStart = -1;
+        int bestLen = 1;
+        for (int i = 0; i < 8; i++) {
+            int len = 0;
+            while (i + len < 8 && getGroup(address, offset, i + len) == 0) {
+                len++;
+            }
+            if (len > bestLen) {
+                bestStart = i;
+                bestLen = len;
+            }
+            i += len;
+        }
+        for (int i = 0; i < 8; i++) {
+            if (i == bestStart) {
+                sb.append("::");
+                i += bestLen - 1;
+            } else {
+                if (i > 0 && i != bestStart + bestLen) {
+                    sb.append(':');
+                }
+                appendHexNoPad(sb, getGroup(address, offset, i));
+            }
+        }
+        return sb;
+    }
+
+    private static int getGroup(byte[] address, int offset, int group) {
+        return ((address[offset + group * 2] & 0xff) << 8) | (address[offset + group * 2 + 1] & 0xff);
+    }
+
+    private static void appendHexNoPad(StringBuilder sb, int value) {
+        boolean digits = false;
+        for (int shift = 12; shift > 0; shift -= 4) {
+            int d = (value >> shift) & 0xf;
+            if (d != 0 || digits) {
+                sb.append(HEX[d]);
+                digits = true;
+            }
+        }
+        sb.append(HEX[value & 0xf]);
+    }
+
+    /* decimal value right aligned in width characters as %<width>d */
+    public static StringBuilder appendPadded(StringBuilder sb, long value, int width) {
+        int start = sb.length();
+        sb.append(value);
+        for (int n = width - (sb.length() - start); n > 0; n--) {
+            sb.insert(start, ' ');
+        }
+        return sb;
+    }
+
+    /* decimal value with leading zeroes as %0<width>d */
+    public static StringBuilder appendZeroPadded(StringBuilder sb, long value, int width) {
+        if (value < 0) {
+            sb.append('-');
+            value = -value;
+            width--;
+        }
+        int start = sb.length();
+        sb.append(value);
+        for (int n = width - (sb.length() - start); n > 0; n--) {
+            sb.insert(start, '0');
+        }
+        return sb;
+    }
+
+    /* elapsed milliseconds as h:mm:ss.mmm */
+    public static StringBuilder appendElapsed(StringBuilder sb, long elapsed) {
+        sb.append(elapsed / (1000 * 3600)).append(':');
+        appendZeroPadded(sb, elapsed / (1000 * 60) % 60, 2).append(':');
+        appendZeroPadded(sb, (elapsed / 1000) % 60, 2).append('.');
+        return appendZeroPadded(sb, elapsed % 1000, 3);
+    }
+}
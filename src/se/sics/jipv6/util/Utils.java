@@ -61,19 +61,12 @@ public class Utils {
     }
 
     public static String hex8(int data) {
-        String s = Integer.toString(data & 0xff, 16);
-        if (s.length() < 2) {
-            s = str16.substring(0, 2 - s.length()) + s;
-        }
-        return s;
+        return new String(new char[] { hex[(data >> 4) & 0xf], hex[data & 0xf] });
     }
 
     public static String hex16(int data) {
-        String s = Integer.toString(data & 0xffff, 16);
-        if (s.length() < 4) {
-            s = str16.substring(0, 4 - s.length()) + s;
-        }
-        return s;
+        return new String(new char[] { hex[(data >> 12) & 0xf], hex[(data >> 8) & 0xf],
+                hex[(data >> 4) & 0xf], hex[data & 0xf] });
     }
 
     public static void fill(byte[] array, int pos, int len, byte value) {
@@ -201,6 +194,28 @@ public class Utils {
         return sb.toString();
     }
 
+    /* stable sort of the indices in order by the keys they refer to */
+    public static void sortIndices(int[] order, long[] keys) {
+        int[] tmp = new int[order.length];
+        for (int width = 1; width < order.length; width *= 2) {
+            for (int lo = 0; lo < order.length; lo += 2 * width) {
+                int mid = Math.min(lo + width, order.length);
+                int hi = Math.min(lo + 2 * width, order.length);
+                int i = lo, j = mid, k = lo;
+                while (i < mid && j < hi) {
+                    tmp[k++] = keys[order[j]] < keys[order[i]] ? order[j++] : order[i++];
+                }
+                while (i < mid) {
+                    tmp[k++] = order[i++];
+                }
+                while (j < hi) {
+                    tmp[k++] = order[j++];
+                }
+            }
+            System.arraycopy(tmp, 0, order, 0, order.length);
+        }
+    }
+
     public static boolean equals(byte[] arr1, byte[] arr2) {
         if (arr1 == null && arr2 == null) return true;
         if (arr1 == null || arr2 == null) return false;